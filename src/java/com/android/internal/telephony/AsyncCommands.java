@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.telephony.SignalStrength;
+
+import com.android.internal.telephony.cdma.CdmaSmsBroadcastConfigInfo;
+import com.android.internal.telephony.gsm.SmsBroadcastConfigInfo;
+import com.android.internal.telephony.uicc.IccCardStatus;
+import com.android.internal.telephony.uicc.IccIoResult;
+
+import java.util.List;
+
+/**
+ * Future based front end to the most used CommandsInterface requests: SIM
+ * I/O, SMS, call control and network queries.
+ *
+ * Each method issues the request right away and returns a CommandsFuture
+ * for its response, so a caller can start several requests and wait once,
+ * or chain them with CommandsFuture.then, instead of parking a thread in
+ * wait() per request. Responses are delivered on the given Looper, and a
+ * future not answered within the timeout fails with a CommandException
+ * of REQUEST_TIMED_OUT. Requests that complete without a result use
+ * CommandsFuture&lt;Void&gt;.
+ *
+ * {@hide}
+ */
+public class AsyncCommands {
+    private static final int EVENT_RESPONSE = 1;
+    private static final int EVENT_TIMEOUT = 2;
+
+    private final CommandsInterface mCi;
+    private final long mTimeoutMillis;
+
+    private final Handler mHandler;
+
+    /**
+     * @param looper thread that completes futures and runs their listeners
+     * @param timeoutMillis deadline for each response; 0 for none
+     */
+    public AsyncCommands(CommandsInterface ci, Looper looper, long timeoutMillis) {
+        mCi = ci;
+        mTimeoutMillis = timeoutMillis;
+        mHandler = new Handler(looper) {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case EVENT_RESPONSE: {
+                        AsyncResult ar = (AsyncResult) msg.obj;
+                        CommandsFuture<Object> future = (CommandsFuture<Object>) ar.userObj;
+                        removeMessages(EVENT_TIMEOUT, future);
+                        if (ar.exception != null) {
+                            future.completeExceptionally(ar.exception);
+                        } else {
+                            future.complete(ar.result);
+                        }
+                        break;
+                    }
+                    case EVENT_TIMEOUT:
+                        ((CommandsFuture<Object>) msg.obj).completeExceptionally(
+                                new CommandException(CommandException.Error.REQUEST_TIMED_OUT));
+                        break;
+                }
+            }
+        };
+    }
+
+    /**
+     * Fails <code>future</code> with REQUEST_TIMED_OUT unless it completes
+     * within <code>timeoutMillis</code>; for deadlines on composed futures.
+     *
+     * @return <code>future</code>
+     */
+    public <T> CommandsFuture<T> withTimeout(CommandsFuture<T> future, long timeoutMillis) {
+        mHandler.sendMessageDelayed(mHandler.obtainMessage(EVENT_TIMEOUT, future),
+                timeoutMillis);
+        return future;
+    }
+
+    private Message response(CommandsFuture<?> future) {
+        if (mTimeoutMillis > 0) {
+            withTimeout(future, mTimeoutMillis);
+        }
+        return mHandler.obtainMessage(EVENT_RESPONSE, future);
+    }
+
+    //***** SIM I/O
+
+    public CommandsFuture<IccIoResult> iccIOForApp(int command, int fileid, String path,
+            int p1, int p2, int p3, String data, String pin2, String aid) {
+        CommandsFuture<IccIoResult> future = new CommandsFuture<IccIoResult>();
+        mCi.iccIOForApp(command, fileid, path, p1, p2, p3, data, pin2, aid, response(future));
+        return future;
+    }
+
+    public CommandsFuture<IccCardStatus> getIccCardStatus() {
+        CommandsFuture<IccCardStatus> future = new CommandsFuture<IccCardStatus>();
+        mCi.getIccCardStatus(response(future));
+        return future;
+    }
+
+    public CommandsFuture<String> getIMSIForApp(String aid) {
+        CommandsFuture<String> future = new CommandsFuture<String>();
+        mCi.getIMSIForApp(aid, response(future));
+        return future;
+    }
+
+    //***** SMS
+
+    public CommandsFuture<SmsResponse> sendSMS(String smscPDU, String pdu) {
+        CommandsFuture<SmsResponse> future = new CommandsFuture<SmsResponse>();
+        mCi.sendSMS(smscPDU, pdu, response(future));
+        return future;
+    }
+
+    public CommandsFuture<SmsResponse> sendCdmaSms(byte[] pdu) {
+        CommandsFuture<SmsResponse> future = new CommandsFuture<SmsResponse>();
+        mCi.sendCdmaSms(pdu, response(future));
+        return future;
+    }
+
+    public CommandsFuture<Void> writeSmsToSim(int status, String smsc, String pdu) {
+        CommandsFuture<Void> future = new CommandsFuture<Void>();
+        mCi.writeSmsToSim(status, smsc, pdu, response(future));
+        return future;
+    }
+
+    public CommandsFuture<Void> deleteSmsOnSim(int index) {
+        CommandsFuture<Void> future = new CommandsFuture<Void>();
+        mCi.deleteSmsOnSim(index, response(future));
+        return future;
+    }
+
+    public CommandsFuture<Void> setGsmBroadcastConfig(SmsBroadcastConfigInfo[] config) {
+        CommandsFuture<Void> future = new CommandsFuture<Void>();
+        mCi.setGsmBroadcastConfig(config, response(future));
+        return future;
+    }
+
+    public CommandsFuture<Void> setGsmBroadcastActivation(boolean activate) {
+        CommandsFuture<Void> future = new CommandsFuture<Void>();
+        mCi.setGsmBroadcastActivation(activate, response(future));
+        return future;
+    }
+
+    public CommandsFuture<Void> setCdmaBroadcastConfig(CdmaSmsBroadcastConfigInfo[] configs) {
+        CommandsFuture<Void> future = new CommandsFuture<Void>();
+        mCi.setCdmaBroadcastConfig(configs, response(future));
+        return future;
+    }
+
+    public CommandsFuture<Void> setCdmaBroadcastActivation(boolean activate) {
+        CommandsFuture<Void> future = new CommandsFuture<Void>();
+        mCi.setCdmaBroadcastActivation(activate, response(future));
+        return future;
+    }
+
+    //***** Call control
+
+    public CommandsFuture<List<DriverCall>> getCurrentCalls() {
+        CommandsFuture<List<DriverCall>> future = new CommandsFuture<List<DriverCall>>();
+        mCi.getCurrentCalls(response(future));
+        return future;
+    }
+
+    public CommandsFuture<Void> dial(String address, int clirMode, UUSInfo uusInfo) {
+        CommandsFuture<Void> future = new CommandsFuture<Void>();
+        mCi.dial(address, clirMode, uusInfo, response(future));
+        return future;
+    }
+
+    public CommandsFuture<Void> hangupConnection(int gsmIndex) {
+        CommandsFuture<Void> future = new CommandsFuture<Void>();
+        mCi.hangupConnection(gsmIndex, response(future));
+        return future;
+    }
+
+    public CommandsFuture<Void> acceptCall() {
+        CommandsFuture<Void> future = new CommandsFuture<Void>();
+        mCi.acceptCall(response(future));
+        return future;
+    }
+
+    public CommandsFuture<Void> rejectCall() {
+        CommandsFuture<Void> future = new CommandsFuture<Void>();
+        mCi.rejectCall(response(future));
+        return future;
+    }
+
+    //***** Network queries
+
+    public CommandsFuture<SignalStrength> getSignalStrength() {
+        CommandsFuture<SignalStrength> future = new CommandsFuture<SignalStrength>();
+        mCi.getSignalStrength(response(future));
+        return future;
+    }
+
+    public CommandsFuture<String[]> getOperator() {
+        CommandsFuture<String[]> future = new CommandsFuture<String[]>();
+        mCi.getOperator(response(future));
+        return future;
+    }
+
+    public CommandsFuture<String[]> getVoiceRegistrationState() {
+        CommandsFuture<String[]> future = new CommandsFuture<String[]>();
+        mCi.getVoiceRegistrationState(response(future));
+        return future;
+    }
+
+    public CommandsFuture<String[]> getDataRegistrationState() {
+        CommandsFuture<String[]> future = new CommandsFuture<String[]>();
+        mCi.getDataRegistrationState(response(future));
+        return future;
+    }
+
+    public CommandsFuture<int[]> getNetworkSelectionMode() {
+        CommandsFuture<int[]> future = new CommandsFuture<int[]>();
+        mCi.getNetworkSelectionMode(response(future));
+        return future;
+    }
+
+    public CommandsFuture<List<OperatorInfo>> getAvailableNetworks() {
+        CommandsFuture<List<OperatorInfo>> future = new CommandsFuture<List<OperatorInfo>>();
+        mCi.getAvailableNetworks(response(future));
+        return future;
+    }
+}
@@ -55,6 +55,9 @@ public class CommandException extends RuntimeException {
         SS_MODIFIED_TO_DIAL,
         SS_MODIFIED_TO_USSD,
         SS_MODIFIED_TO_SS,
+        // Raised by the framework, not by rild
+        REQUEST_TIMED_OUT,
+        REQUEST_WINDOW_FULL,
     }
 
     public CommandException(Error e) {
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of a CommandsInterface request, as returned by
+ * {@link AsyncCommands}.
+ *
+ * A future completes once, with a result, an exception (usually a
+ * CommandException) or by being cancelled; later attempts are ignored.
+ * Listeners run on the thread that completes the future, which for
+ * AsyncCommands is its Looper thread, or right away if the future is
+ * already done. {@link #map}, {@link #then} and {@link #allOf} chain
+ * requests without blocking any thread in between.
+ *
+ * {@hide}
+ */
+public class CommandsFuture<T> implements Future<T> {
+
+    /** Told when a future completes. */
+    public interface Listener<T> {
+        void onComplete(CommandsFuture<T> future);
+    }
+
+    /** Turns a result into another value; exceptions fail the new future. */
+    public interface Transform<T, R> {
+        R apply(T result) throws Exception;
+    }
+
+    /** Starts the next request from a result. */
+    public interface Continuation<T, R> {
+        CommandsFuture<R> apply(T result);
+    }
+
+    // Guarded by this
+    private boolean mDone;
+    private boolean mCancelled;
+    private T mResult;
+    private Throwable mException;
+    private ArrayList<Listener<T>> mListeners;
+
+    /** @return a future that has already completed with <code>result</code>. */
+    public static <T> CommandsFuture<T> completed(T result) {
+        CommandsFuture<T> future = new CommandsFuture<T>();
+        future.complete(result);
+        return future;
+    }
+
+    /**
+     * @return a future that completes with every result, in order, once all
+     * of <code>futures</code> succeed, or with the first exception.
+     */
+    public static <T> CommandsFuture<List<T>> allOf(final List<CommandsFuture<T>> futures) {
+        final CommandsFuture<List<T>> all = new CommandsFuture<List<T>>();
+        if (futures.isEmpty()) {
+            all.complete(new ArrayList<T>());
+            return all;
+        }
+
+        final int[] remaining = { futures.size() };
+        Listener<T> listener = new Listener<T>() {
+            @Override
+            public void onComplete(CommandsFuture<T> future) {
+                Throwable ex = future.getException();
+                if (ex != null) {
+                    all.completeExceptionally(ex);
+                    return;
+                }
+                synchronized (remaining) {
+                    if (--remaining[0] > 0) {
+                        return;
+                    }
+                }
+                ArrayList<T> results = new ArrayList<T>(futures.size());
+                for (CommandsFuture<T> f : futures) {
+                    results.add(f.getResult());
+                }
+                all.complete(results);
+            }
+        };
+        for (CommandsFuture<T> f : futures) {
+            f.addListener(listener);
+        }
+        return all;
+    }
+
+    /** @return false if the future was already done. */
+    public boolean complete(T result) {
+        return finish(result, null, false);
+    }
+
+    /** @return false if the future was already done. */
+    public boolean completeExceptionally(Throwable ex) {
+        return finish(null, ex, false);
+    }
+
+    /**
+     * Completes the future with a CancellationException. The request itself
+     * still runs; its response is dropped.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(null, new CancellationException(), true);
+    }
+
+    private boolean finish(T result, Throwable ex, boolean cancelled) {
+        ArrayList<Listener<T>> listeners;
+        synchronized (this) {
+            if (mDone) {
+                return false;
+            }
+            mDone = true;
+            mResult = result;
+            mException = ex;
+            mCancelled = cancelled;
+            listeners = mListeners;
+            mListeners = null;
+            notifyAll();
+        }
+        if (listeners != null) {
+            for (Listener<T> listener : listeners) {
+                listener.onComplete(this);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    /** @return the result, or null if not done or failed. */
+    public synchronized T getResult() {
+        return mResult;
+    }
+
+    /** @return the exception, or null if not done or successful. */
+    public synchronized Throwable getException() {
+        return mException;
+    }
+
+    /**
+     * Runs <code>listener</code> when the future completes, on the completing
+     * thread, or now on this thread if it already has.
+     */
+    public void addListener(Listener<T> listener) {
+        synchronized (this) {
+            if (!mDone) {
+                if (mListeners == null) {
+                    mListeners = new ArrayList<Listener<T>>(1);
+                }
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.onComplete(this);
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (!mDone) {
+            wait();
+        }
+        return report();
+    }
+
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!mDone) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return report();
+    }
+
+    // Called with the lock held and mDone set
+    private T report() throws ExecutionException {
+        if (mCancelled) {
+            throw (CancellationException) mException;
+        }
+        if (mException != null) {
+            throw new ExecutionException(mException);
+        }
+        return mResult;
+    }
+
+    /** @return a future for <code>transform</code> applied to the result. */
+    public <R> CommandsFuture<R> map(final Transform<T, R> transform) {
+        final CommandsFuture<R> next = new CommandsFuture<R>();
+        addListener(new Listener<T>() {
+            @Override
+            public void onComplete(CommandsFuture<T> future) {
+                Throwable ex = future.getException();
+                if (ex != null) {
+                    next.completeExceptionally(ex);
+                    return;
+                }
+                try {
+                    next.complete(transform.apply(future.getResult()));
+                } catch (Exception e) {
+                    next.completeExceptionally(e);
+                }
+            }
+        });
+        return next;
+    }
+
+    /**
+     * @return a future for the request <code>continuation</code> starts once
+     * this one succeeds. A failure skips the continuation.
+     */
+    public <R> CommandsFuture<R> then(final Continuation<T, R> continuation) {
+        final CommandsFuture<R> next = new CommandsFuture<R>();
+        addListener(new Listener<T>() {
+            @Override
+            public void onComplete(CommandsFuture<T> future) {
+                Throwable ex = future.getException();
+                if (ex != null) {
+                    next.completeExceptionally(ex);
+                    return;
+                }
+                CommandsFuture<R> started;
+                try {
+                    started = continuation.apply(future.getResult());
+                } catch (RuntimeException e) {
+                    next.completeExceptionally(e);
+                    return;
+                }
+                started.addListener(new Listener<R>() {
+                    @Override
+                    public void onComplete(CommandsFuture<R> f) {
+                        if (f.getException() != null) {
+                            next.completeExceptionally(f.getException());
+                        } else {
+                            next.complete(f.getResult());
+                        }
+                    }
+                });
+            }
+        });
+        return next;
+    }
+}
@@ -47,6 +47,7 @@ import com.android.internal.util.HexDump;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import static android.telephony.SmsManager.STATUS_ON_ICC_FREE;
 import static android.telephony.SmsManager.STATUS_ON_ICC_READ;
@@ -73,16 +74,18 @@ public class IccSmsInterfaceManager {
 
     private static final int EVENT_LOAD_DONE = 1;
     private static final int EVENT_UPDATE_DONE = 2;
-    protected static final int EVENT_SET_BROADCAST_ACTIVATION_DONE = 3;
-    protected static final int EVENT_SET_BROADCAST_CONFIG_DONE = 4;
     private static final int SMS_CB_CODE_SCHEME_MIN = 0;
     private static final int SMS_CB_CODE_SCHEME_MAX = 255;
 
+    // Upper bound on a cell broadcast configuration request
+    private static final long BROADCAST_CONFIG_TIMEOUT_MILLIS = 30 * 1000;
+
     protected PhoneBase mPhone;
     final protected Context mContext;
     final protected AppOpsManager mAppOps;
     final private UserManager mUserManager;
     protected SMSDispatcher mDispatcher;
+    protected final AsyncCommands mCommands;
 
     protected Handler mHandler = new Handler() {
         @Override
@@ -114,14 +117,6 @@ public class IccSmsInterfaceManager {
                         mLock.notifyAll();
                     }
                     break;
-                case EVENT_SET_BROADCAST_ACTIVATION_DONE:
-                case EVENT_SET_BROADCAST_CONFIG_DONE:
-                    ar = (AsyncResult) msg.obj;
-                    synchronized (mLock) {
-                        mSuccess = (ar.exception == null);
-                        mLock.notifyAll();
-                    }
-                    break;
             }
         }
     };
@@ -133,6 +128,8 @@ public class IccSmsInterfaceManager {
         mUserManager = (UserManager) mContext.getSystemService(Context.USER_SERVICE);
         mDispatcher = new ImsSMSDispatcher(phone,
                 phone.mSmsStorageMonitor, phone.mSmsUsageMonitor);
+        mCommands = new AsyncCommands(phone.mCi, mHandler.getLooper(),
+                BROADCAST_CONFIG_TIMEOUT_MILLIS);
     }
 
     protected void markMessagesAsRead(ArrayList<byte[]> messages) {
@@ -978,80 +975,44 @@ public class IccSmsInterfaceManager {
         if (DBG)
             log("Calling setGsmBroadcastConfig with " + configs.length + " configurations");
 
-        synchronized (mLock) {
-            Message response = mHandler.obtainMessage(EVENT_SET_BROADCAST_CONFIG_DONE);
-
-            mSuccess = false;
-            mPhone.mCi.setGsmBroadcastConfig(configs, response);
-
-            try {
-                mLock.wait();
-            } catch (InterruptedException e) {
-                log("interrupted while trying to set cell broadcast config");
-            }
-        }
-
-        return mSuccess;
+        return waitForSuccess(mCommands.setGsmBroadcastConfig(configs),
+                "set cell broadcast config");
     }
 
     private boolean setCellBroadcastActivation(boolean activate) {
         if (DBG)
             log("Calling setCellBroadcastActivation(" + activate + ')');
 
-        synchronized (mLock) {
-            Message response = mHandler.obtainMessage(EVENT_SET_BROADCAST_ACTIVATION_DONE);
-
-            mSuccess = false;
-            mPhone.mCi.setGsmBroadcastActivation(activate, response);
-
-            try {
-                mLock.wait();
-            } catch (InterruptedException e) {
-                log("interrupted while trying to set cell broadcast activation");
-            }
-        }
-
-        return mSuccess;
+        return waitForSuccess(mCommands.setGsmBroadcastActivation(activate),
+                "set cell broadcast activation");
     }
 
     private boolean setCdmaBroadcastConfig(CdmaSmsBroadcastConfigInfo[] configs) {
         if (DBG)
             log("Calling setCdmaBroadcastConfig with " + configs.length + " configurations");
 
-        synchronized (mLock) {
-            Message response = mHandler.obtainMessage(EVENT_SET_BROADCAST_CONFIG_DONE);
-
-            mSuccess = false;
-            mPhone.mCi.setCdmaBroadcastConfig(configs, response);
-
-            try {
-                mLock.wait();
-            } catch (InterruptedException e) {
-                log("interrupted while trying to set cdma broadcast config");
-            }
-        }
-
-        return mSuccess;
+        return waitForSuccess(mCommands.setCdmaBroadcastConfig(configs),
+                "set cdma broadcast config");
     }
 
     private boolean setCdmaBroadcastActivation(boolean activate) {
         if (DBG)
             log("Calling setCdmaBroadcastActivation(" + activate + ")");
 
-        synchronized (mLock) {
-            Message response = mHandler.obtainMessage(EVENT_SET_BROADCAST_ACTIVATION_DONE);
-
-            mSuccess = false;
-            mPhone.mCi.setCdmaBroadcastActivation(activate, response);
+        return waitForSuccess(mCommands.setCdmaBroadcastActivation(activate),
+                "set cdma broadcast activation");
+    }
 
-            try {
-                mLock.wait();
-            } catch (InterruptedException e) {
-                log("interrupted while trying to set cdma broadcast activation");
-            }
+    private boolean waitForSuccess(CommandsFuture<Void> result, String what) {
+        try {
+            result.get();
+            return true;
+        } catch (ExecutionException e) {
+            log("failed to " + what + ": " + e.getCause());
+        } catch (InterruptedException e) {
+            log("interrupted while trying to " + what);
         }
-
-        return mSuccess;
+        return false;
     }
 
     protected void log(String msg) {
@@ -35,8 +35,6 @@ import android.content.SharedPreferences;
 import android.content.pm.UserInfo;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
-import android.content.pm.ResolveInfo;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.net.Uri;
@@ -53,10 +51,8 @@ import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.preference.PreferenceManager;
-import android.provider.Settings;
 import android.provider.Telephony;
 import android.provider.Telephony.Sms.Intents;
-import android.service.carrier.CarrierMessagingService;
 import android.service.carrier.ICarrierMessagingCallback;
 import android.service.carrier.ICarrierMessagingService;
 import android.service.carrier.MessagePdu;
@@ -68,16 +64,15 @@ import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 
-import com.android.internal.telephony.uicc.UiccCard;
-import com.android.internal.telephony.uicc.UiccController;
 import android.text.TextUtils;
 import com.android.internal.telephony.util.BlacklistUtils;
 import com.android.internal.telephony.PhoneBase;
-import com.android.internal.util.HexDump;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
 
 import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.ArrayList;
@@ -109,18 +104,6 @@ public abstract class InboundSmsHandler extends StateMachine {
     protected static final boolean DBG = true;
     private static final boolean VDBG = false;  // STOPSHIP if true, logs user data
 
-    /** Query projection for checking for duplicate message segments. */
-    private static final String[] PDU_PROJECTION = {
-            "pdu"
-    };
-
-    /** Query projection for combining concatenated message segments. */
-    private static final String[] PDU_SEQUENCE_PORT_PROJECTION = {
-            "pdu",
-            "sequence",
-            "destination_port"
-    };
-
     static final int PDU_COLUMN = 0;
     static final int SEQUENCE_COLUMN = 1;
     static final int DESTINATION_PORT_COLUMN = 2;
@@ -206,6 +189,18 @@ public abstract class InboundSmsHandler extends StateMachine {
 
     IDeviceIdleController mDeviceIdleController;
 
+    /**
+     * Multi-part segments in the raw table, loaded when startup recovery completes. Shared
+     * with the handlers of the other phones, as the raw table is.
+     */
+    final SmsReassemblyIndex mReassemblyIndex;
+
+    /** Raw table inserts and deletes, batched within ro.telephony.sms.raw_batch_window_ms. */
+    final SmsRawTableWriter mRawTableWriter;
+
+    /** Protected addresses and filtering apps, cached between messages. */
+    final SmsRoutingContext mRoutingContext;
+
     /**
      * Create a new SMS broadcast helper.
      * @param name the class name for logging
@@ -222,6 +217,12 @@ public abstract class InboundSmsHandler extends StateMachine {
         mCellBroadcastHandler = cellBroadcastHandler;
         mResolver = context.getContentResolver();
         mWapPush = new WapPushOverSms(context);
+        mReassemblyIndex = SmsReassemblyIndex.forFormat(is3gpp2());
+        mRawTableWriter = new SmsRawTableWriter(mResolver,
+                SystemProperties.getInt("ro.telephony.sms.raw_batch_window_ms", 0),
+                getHandler().getLooper());
+        mRoutingContext = new SmsRoutingContext(context, getHandler().getLooper(),
+                phone.getPhoneId());
 
         boolean smsCapable = mContext.getResources().getBoolean(
                 com.android.internal.R.bool.config_sms_capable);
@@ -266,6 +267,8 @@ public abstract class InboundSmsHandler extends StateMachine {
     @Override
     protected void onQuitting() {
         mWapPush.dispose();
+        mRawTableWriter.flush();
+        mRoutingContext.dispose();
 
         while (mWakeLock.isHeld()) {
             mWakeLock.release();
@@ -368,6 +371,7 @@ public abstract class InboundSmsHandler extends StateMachine {
                     return HANDLED;
 
                 case EVENT_START_ACCEPTING_SMS:
+                    loadReassemblyIndex();
                     transitionTo(mIdleState);
                     return HANDLED;
 
@@ -807,54 +811,27 @@ public abstract class InboundSmsHandler extends StateMachine {
             pdus = new byte[][]{tracker.getPdu()};
         } else {
             // multi-part message
-            Cursor cursor = null;
-            try {
-                // used by several query selection arguments
-                address = tracker.getAddress();
-                String refNumber = Integer.toString(tracker.getReferenceNumber());
-                String count = Integer.toString(tracker.getMessageCount());
-
-                // query for all segments and broadcast message if we have all the parts
-                String[] whereArgs = {address, refNumber, count};
-                cursor = mResolver.query(sRawUri, PDU_SEQUENCE_PORT_PROJECTION,
-                        SELECT_BY_REFERENCE, whereArgs, null);
-
-                int cursorCount = cursor.getCount();
-                if (cursorCount < messageCount) {
-                    // Wait for the other message parts to arrive. It's also possible for the last
-                    // segment to arrive before processing the EVENT_BROADCAST_SMS for one of the
-                    // earlier segments. In that case, the broadcast will be sent as soon as all
-                    // segments are in the table, and any later EVENT_BROADCAST_SMS messages will
-                    // get a row count of 0 and return.
-                    return false;
-                }
-
-                // All the parts are in place, deal with them
-                pdus = new byte[messageCount][];
-                while (cursor.moveToNext()) {
-                    // subtract offset to convert sequence to 0-based array index
-                    int index = cursor.getInt(SEQUENCE_COLUMN) - tracker.getIndexOffset();
-
-                    pdus[index] = HexDump.hexStringToByteArray(cursor.getString(PDU_COLUMN));
-
-                    // Read the destination port from the first segment (needed for CDMA WAP PDU).
-                    // It's not a bad idea to prefer the port from the first segment in other cases.
-                    if (index == 0 && !cursor.isNull(DESTINATION_PORT_COLUMN)) {
-                        int port = cursor.getInt(DESTINATION_PORT_COLUMN);
-                        // strip format flags and convert to real port number, or -1
-                        port = InboundSmsTracker.getRealDestPort(port);
-                        if (port != -1) {
-                            destPort = port;
-                        }
-                    }
-                }
-            } catch (SQLException e) {
-                loge("Can't access multipart SMS database", e);
+            address = tracker.getAddress();
+            InboundSmsTracker[] segments = mReassemblyIndex.takeIfComplete(tracker);
+            if (segments == null) {
+                // Wait for the other message parts to arrive. It's also possible for the last
+                // segment to arrive before processing the EVENT_BROADCAST_SMS for one of the
+                // earlier segments. In that case, the broadcast will be sent as soon as all
+                // segments are in the table, and the message is marked taken in the index
+                // then, so any later EVENT_BROADCAST_SMS messages for it return here.
                 return false;
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
+            }
+
+            // All the parts are in place, deal with them
+            pdus = new byte[messageCount][];
+            for (int i = 0; i < messageCount; i++) {
+                pdus[i] = segments[i].getPdu();
+            }
+
+            // Read the destination port from the first segment (needed for CDMA WAP PDU).
+            // It's not a bad idea to prefer the port from the first segment in other cases.
+            if (segments[0].getDestPort() != -1) {
+                destPort = segments[0].getDestPort();
             }
         }
 
@@ -889,8 +866,7 @@ public abstract class InboundSmsHandler extends StateMachine {
             }
         }
 
-        List<String> regAddresses = Settings.Secure.getDelimitedStringAsList(mContext.getContentResolver(),
-                Settings.Secure.PROTECTED_SMS_ADDRESSES , "|");
+        List<String> regAddresses = mRoutingContext.getProtectedAddresses();
 
         List<String> allAddresses = Intents
                 .getNormalizedAddressesFromPdus(pdus, tracker.getFormat());
@@ -905,18 +881,8 @@ public abstract class InboundSmsHandler extends StateMachine {
             return true;
         }
 
-        List<String> carrierPackages = null;
-        UiccCard card = UiccController.getInstance().getUiccCard(mPhone.getPhoneId());
-        if (card != null) {
-            carrierPackages = card.getCarrierPackageNamesForIntent(
-                    mContext.getPackageManager(),
-                    new Intent(CarrierMessagingService.SERVICE_INTERFACE));
-        } else {
-            loge("UiccCard not initialized.");
-        }
-
-        List<String> systemPackages =
-                getSystemAppForIntent(new Intent(CarrierMessagingService.SERVICE_INTERFACE));
+        List<String> carrierPackages = mRoutingContext.getCarrierPackages(mPhone.getPhoneId());
+        List<String> systemPackages = mRoutingContext.getSystemPackages();
 
         if (carrierPackages != null && carrierPackages.size() == 1) {
             log("Found carrier package.");
@@ -939,27 +905,6 @@ public abstract class InboundSmsHandler extends StateMachine {
         return true;
     }
 
-    private List<String> getSystemAppForIntent(Intent intent) {
-        List<String> packages = new ArrayList<String>();
-        PackageManager packageManager = mContext.getPackageManager();
-        List<ResolveInfo> receivers = packageManager.queryIntentServices(intent, 0);
-        String carrierFilterSmsPerm = "android.permission.CARRIER_FILTER_SMS";
-
-        for (ResolveInfo info : receivers) {
-            if (info.serviceInfo == null) {
-                loge("Can't get service information from " + info);
-                continue;
-            }
-            String packageName = info.serviceInfo.packageName;
-                if (packageManager.checkPermission(carrierFilterSmsPerm, packageName) ==
-                        packageManager.PERMISSION_GRANTED) {
-                    packages.add(packageName);
-                    if (DBG) log("getSystemAppForIntent: added package "+ packageName);
-                }
-        }
-        return packages;
-    }
-
     /**
      * Dispatch the intent with the specified permission, appOp, and result receiver, using
      * this state machine's handler thread to run the result receiver.
@@ -1013,12 +958,14 @@ public abstract class InboundSmsHandler extends StateMachine {
      * Helper for {@link SmsBroadcastUndelivered} to delete an old message in the raw table.
      */
     void deleteFromRawTable(String deleteWhere, String[] deleteWhereArgs) {
-        int rows = mResolver.delete(sRawUri, deleteWhere, deleteWhereArgs);
-        if (rows == 0) {
-            loge("No rows were deleted from raw table!");
-        } else if (DBG) {
-            log("Deleted " + rows + " rows from raw table.");
+        if (SELECT_BY_REFERENCE.equals(deleteWhere)) {
+            // The writer runs this delete before any later insert, so a segment that
+            // arrives from now on belongs to a new message with the same reference
+            mReassemblyIndex.remove(deleteWhereArgs[0], Integer.parseInt(deleteWhereArgs[1]),
+                    Integer.parseInt(deleteWhereArgs[2]));
         }
+        // Write-behind; the writer logs the deleted row counts
+        mRawTableWriter.delete(deleteWhere, deleteWhereArgs);
     }
 
     Bundle handleSmsWhitelisting(ComponentName target) {
@@ -1104,56 +1051,32 @@ public abstract class InboundSmsHandler extends StateMachine {
      */
     private int addTrackerToRawTable(InboundSmsTracker tracker) {
         if (tracker.getMessageCount() != 1) {
-            // check for duplicate message segments
-            Cursor cursor = null;
-            try {
-                // sequence numbers are 1-based except for CDMA WAP, which is 0-based
-                int sequence = tracker.getSequenceNumber();
-
-                // convert to strings for query
-                String address = tracker.getAddress();
-                String refNumber = Integer.toString(tracker.getReferenceNumber());
-                String count = Integer.toString(tracker.getMessageCount());
-
-                String seqNumber = Integer.toString(sequence);
-
-                // set the delete selection args for multi-part message
-                String[] deleteWhereArgs = {address, refNumber, count};
-                tracker.setDeleteWhere(SELECT_BY_REFERENCE, deleteWhereArgs);
-
-                // Check for duplicate message segments
-                cursor = mResolver.query(sRawUri, PDU_PROJECTION,
-                        "address=? AND reference_number=? AND count=? AND sequence=?",
-                        new String[] {address, refNumber, count, seqNumber}, null);
-
-                // moveToNext() returns false if no duplicates were found
-                if (cursor.moveToNext()) {
-                    loge("Discarding duplicate message segment, refNumber=" + refNumber
-                            + " seqNumber=" + seqNumber);
-                    String oldPduString = cursor.getString(PDU_COLUMN);
-                    byte[] pdu = tracker.getPdu();
-                    byte[] oldPdu = HexDump.hexStringToByteArray(oldPduString);
-                    if (!Arrays.equals(oldPdu, tracker.getPdu())) {
-                        loge("Warning: dup message segment PDU of length " + pdu.length
-                                + " is different from existing PDU of length " + oldPdu.length);
-                    }
-                    return Intents.RESULT_SMS_DUPLICATED;   // reject message
-                }
-                cursor.close();
-            } catch (SQLException e) {
-                loge("Can't access multipart SMS database", e);
-                return Intents.RESULT_SMS_GENERIC_ERROR;    // reject message
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
+            // set the delete selection args for multi-part message
+            String refNumber = Integer.toString(tracker.getReferenceNumber());
+            String[] deleteWhereArgs = {tracker.getAddress(), refNumber,
+                    Integer.toString(tracker.getMessageCount())};
+            tracker.setDeleteWhere(SELECT_BY_REFERENCE, deleteWhereArgs);
+
+            // Check for duplicate message segments; the index mirrors the raw table
+            InboundSmsTracker existing = mReassemblyIndex.getSegment(tracker);
+            if (existing != null) {
+                loge("Discarding duplicate message segment, refNumber=" + refNumber
+                        + " seqNumber=" + tracker.getSequenceNumber());
+                byte[] pdu = tracker.getPdu();
+                byte[] oldPdu = existing.getPdu();
+                if (!Arrays.equals(oldPdu, pdu)) {
+                    loge("Warning: dup message segment PDU of length " + pdu.length
+                            + " is different from existing PDU of length " + oldPdu.length);
                 }
+                return Intents.RESULT_SMS_DUPLICATED;   // reject message
             }
         }
 
         ContentValues values = tracker.getContentValues();
 
         if (VDBG) log("adding content values to raw table: " + values.toString());
-        Uri newUri = mResolver.insert(sRawUri, values);
+        // Returns once the row is stored, so the SMSC is only acked for durable segments
+        Uri newUri = mRawTableWriter.insert(values);
         if (DBG) log("URI of new row -> " + newUri);
 
         try {
@@ -1161,6 +1084,9 @@ public abstract class InboundSmsHandler extends StateMachine {
             if (tracker.getMessageCount() == 1) {
                 // set the delete selection args for single-part message
                 tracker.setDeleteWhere(SELECT_BY_ID, new String[]{Long.toString(rowId)});
+            } else {
+                mReassemblyIndex.add(tracker);
+                deleteExpiredSegments();
             }
             return Intents.RESULT_SMS_HANDLED;
         } catch (Exception e) {
@@ -1169,6 +1095,70 @@ public abstract class InboundSmsHandler extends StateMachine {
         }
     }
 
+    /**
+     * Deletes the segments of multi-part messages that stayed incomplete for longer than
+     * {@link SmsBroadcastUndelivered#PARTIAL_SEGMENT_EXPIRE_AGE}, as the boot scan would,
+     * so they do not pile up in the raw table and {@link #mReassemblyIndex} while the phone
+     * stays up.
+     */
+    private void deleteExpiredSegments() {
+        ArrayList<String[]> expired = mReassemblyIndex.removeExpired(System.currentTimeMillis());
+        if (expired == null) {
+            return;
+        }
+        if (DBG) log("deleting " + expired.size() + " expired multi-part messages");
+        for (String[] deleteWhereArgs : expired) {
+            deleteFromRawTable(SELECT_BY_REFERENCE, deleteWhereArgs);
+        }
+    }
+
+    /**
+     * Loads the multi-part segments of this handler's format from the raw table into
+     * {@link #mReassemblyIndex}, unless the handler of another phone already did. Called
+     * once {@link SmsBroadcastUndelivered} has deleted expired segments, before any new
+     * segment is processed.
+     */
+    private void loadReassemblyIndex() {
+        // Holding the index keeps the handlers of other phones from using it half loaded
+        synchronized (mReassemblyIndex) {
+            if (!mReassemblyIndex.markLoaded()) {
+                return;
+            }
+            Cursor cursor = null;
+            try {
+                cursor = mResolver.query(sRawUri,
+                        SmsBroadcastUndelivered.PDU_PENDING_MESSAGE_PROJECTION,
+                        "count IS NOT NULL", null, null);
+                if (cursor == null) {
+                    loge("error loading multi-part segments");
+                    return;
+                }
+
+                boolean isCurrentFormat3gpp2 = isCurrentFormat3gpp2();
+                while (cursor.moveToNext()) {
+                    InboundSmsTracker tracker;
+                    try {
+                        tracker = new InboundSmsTracker(cursor, isCurrentFormat3gpp2);
+                    } catch (IllegalArgumentException e) {
+                        loge("error loading SmsTracker: " + e);
+                        continue;
+                    }
+                    if (tracker.is3gpp2() == is3gpp2()) {
+                        mReassemblyIndex.add(tracker);
+                    }
+                }
+            } catch (SQLException e) {
+                loge("Can't access multipart SMS database", e);
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+        if (DBG) log("loaded " + mReassemblyIndex.getSegmentCount() + " segments of "
+                + mReassemblyIndex.getMessageCount() + " multi-part messages");
+    }
+
     /**
      * Returns whether the default message format for the current radio technology is 3GPP2.
      * @return true if the radio technology uses 3GPP2 format by default, false for 3GPP format
@@ -1377,6 +1367,15 @@ public abstract class InboundSmsHandler extends StateMachine {
         }
     }
 
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        super.dump(fd, pw, args);
+        pw.println(" mReassemblyIndex: messages=" + mReassemblyIndex.getMessageCount()
+                + " segments=" + mReassemblyIndex.getSegmentCount());
+        mRawTableWriter.dump(pw);
+        mRoutingContext.dump(pw);
+    }
+
     /**
      * Log with debug level.
      * @param s the string to log
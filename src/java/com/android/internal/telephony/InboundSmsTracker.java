@@ -18,6 +18,7 @@ package com.android.internal.telephony;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.os.SystemProperties;
 
 import com.android.internal.util.HexDump;
 
@@ -63,6 +64,13 @@ public final class InboundSmsTracker {
     /** Destination port mask (16-bit unsigned value on GSM and CDMA). */
     private static final int DEST_PORT_MASK = 0xffff;
 
+    /**
+     * Whether new raw table rows store the PDU as a BLOB rather than a hex string. Rows are
+     * read in either format, and SmsBroadcastUndelivered converts old rows at boot.
+     */
+    static final boolean STORE_BLOB_PDUS =
+            SystemProperties.getBoolean("ro.telephony.sms.raw_blob_pdu", false);
+
     /**
      * Create a tracker for a single-part SMS.
      * @param pdu the message PDU
@@ -123,7 +131,7 @@ public final class InboundSmsTracker {
      * @param cursor a Cursor pointing to the row to construct this SmsTracker for
      */
     InboundSmsTracker(Cursor cursor, boolean isCurrentFormat3gpp2) {
-        mPdu = HexDump.hexStringToByteArray(cursor.getString(InboundSmsHandler.PDU_COLUMN));
+        mPdu = readPdu(cursor);
 
         if (cursor.isNull(InboundSmsHandler.DESTINATION_PORT_COLUMN)) {
             mDestPort = -1;
@@ -176,7 +184,7 @@ public final class InboundSmsTracker {
 
     ContentValues getContentValues() {
         ContentValues values = new ContentValues();
-        values.put("pdu", HexDump.toHexString(mPdu));
+        putPdu(values, mPdu);
         values.put("date", mTimestamp);
         // Always set the destination port, since it now contains message format flags.
         // Port is a 16-bit value, or -1, so clear the upper bits before setting flags.
@@ -204,6 +212,42 @@ public final class InboundSmsTracker {
         return values;
     }
 
+    /**
+     * Read the PDU of the raw table row pointed to by Cursor, stored in either format.
+     * @param cursor a Cursor with the PDU in column {@link InboundSmsHandler#PDU_COLUMN}
+     * @return the PDU
+     */
+    static byte[] readPdu(Cursor cursor) {
+        if (cursor.getType(InboundSmsHandler.PDU_COLUMN) == Cursor.FIELD_TYPE_BLOB) {
+            return cursor.getBlob(InboundSmsHandler.PDU_COLUMN);
+        }
+        return HexDump.hexStringToByteArray(cursor.getString(InboundSmsHandler.PDU_COLUMN));
+    }
+
+    /**
+     * Put the PDU into raw table values in the configured format.
+     * @param values the values to add the "pdu" column to
+     * @param pdu the PDU
+     */
+    static void putPdu(ContentValues values, byte[] pdu) {
+        if (STORE_BLOB_PDUS) {
+            values.put("pdu", pdu);
+        } else {
+            values.put("pdu", HexDump.toHexString(pdu));
+        }
+    }
+
+    /**
+     * Whether the PDU of the row pointed to by Cursor is not in the configured format.
+     * @param cursor a Cursor with the PDU in column {@link InboundSmsHandler#PDU_COLUMN}
+     * @return true if the row should be rewritten
+     */
+    static boolean needsPduConversion(Cursor cursor) {
+        int type = cursor.getType(InboundSmsHandler.PDU_COLUMN);
+        return STORE_BLOB_PDUS ? type == Cursor.FIELD_TYPE_STRING
+                : type == Cursor.FIELD_TYPE_BLOB;
+    }
+
     /**
      * Get the port number, or -1 if there is no destination port.
      * @param destPort the destination port value, with flags
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+/**
+ * Fixed-size latency histogram in microseconds.
+ *
+ * Samples go into log-linear buckets, four per power of two microseconds,
+ * so recording never allocates. Not thread safe; callers guard it.
+ *
+ * {@hide}
+ */
+class LatencyHistogram {
+    // Four sub-buckets per power of two, up to 2^31 us (~35 minutes)
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (32 - SUB_BUCKET_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+    final long[] mBuckets = new long[BUCKET_COUNT];
+    long mCount;
+    long mMaxUs;
+
+    void record(long us) {
+        if (us < 0) us = 0;
+        mBuckets[bucketFor(us)]++;
+        mCount++;
+        if (us > mMaxUs) mMaxUs = us;
+    }
+
+    /**
+     * @return the upper bound, in microseconds, of the bucket holding
+     * the given percentile, or 0 if nothing was recorded.
+     */
+    long percentile(int percent) {
+        if (mCount == 0) return 0;
+        long rank = (mCount * percent + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets[i];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), mMaxUs);
+            }
+        }
+        return mMaxUs;
+    }
+
+    static int bucketFor(long us) {
+        if (us < SUB_BUCKETS) return (int) us;
+        int msb = 63 - Long.numberOfLeadingZeros(us);
+        if (msb >= 32) return BUCKET_COUNT - 1;
+        int sub = (int) (us >>> (msb - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (msb - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long bucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int msb = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (msb - SUB_BUCKET_BITS)) - 1;
+    }
+}
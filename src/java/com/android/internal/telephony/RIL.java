@@ -45,10 +45,12 @@ import android.os.Message;
 import android.os.Parcel;
 import android.os.PowerManager;
 import android.os.BatteryManager;
+import android.os.Build;
 import android.os.SystemProperties;
 import android.os.PowerManager.WakeLock;
 import android.os.SystemClock;
 import android.provider.Settings.SettingNotFoundException;
+import android.system.ErrnoException;
 import android.telephony.CellInfo;
 import android.telephony.NeighboringCellInfo;
 import android.telephony.PhoneNumberUtils;
@@ -61,7 +63,7 @@ import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.telephony.ModemActivityInfo;
 import android.text.TextUtils;
-import android.util.SparseArray;
+import android.util.SparseIntArray;
 import android.view.Display;
 
 import com.android.internal.telephony.gsm.SmsBroadcastConfigInfo;
@@ -86,13 +88,13 @@ import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.FileDescriptor;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.Random;
@@ -106,10 +108,29 @@ class RILRequest {
     //***** Class Variables
     static Random sRandom = new Random();
     static AtomicInteger sNextSerial = new AtomicInteger(0);
-    private static Object sPoolSync = new Object();
-    private static RILRequest sPool = null;
-    private static int sPoolSize = 0;
-    private static final int MAX_POOL_SIZE = 4;
+
+    // The pool is split into stripes, each with its own lock, so that
+    // callers on different threads rarely contend. obtain() starts at the
+    // calling thread's stripe and release() at the request's serial, so
+    // stripes fill evenly even though most requests are released by
+    // RILReceiver; obtain() takes from the other stripes before allocating.
+    private static final int POOL_STRIPES = 4;
+    private static final int MAX_STRIPE_SIZE = 8;
+    // Pooled requests keep their Parcel, and with it the Parcel's buffer,
+    // unless it grew past this
+    private static final int MAX_RETAINED_PARCEL_BYTES = 2048;
+
+    private static final class PoolStripe {
+        RILRequest mHead;
+        int mSize;
+    }
+
+    private static final PoolStripe[] sPool = new PoolStripe[POOL_STRIPES];
+    static {
+        for (int i = 0; i < POOL_STRIPES; i++) {
+            sPool[i] = new PoolStripe();
+        }
+    }
     private Context mContext;
 
     //***** Instance Variables
@@ -118,6 +139,16 @@ class RILRequest {
     Message mResult;
     Parcel mParcel;
     RILRequest mNext;
+    // SystemClock.elapsedRealtimeNanos() when send() accepted the request
+    // and when it was written to rild; see RilLatencyStats
+    long mEnqueueNanos;
+    long mWriteNanos;
+    // Set while this request is the leader of a RilSingleFlight group
+    RilSingleFlight mSingleFlight;
+    // Set while this request holds a slot of a RilInFlightWindow
+    RilInFlightWindow mWindow;
+    // RilResponseCache.getGeneration() when send() accepted the request
+    int mCacheGeneration;
 
     /**
      * Retrieves a new RILRequest instance from the pool.
@@ -129,12 +160,16 @@ class RILRequest {
     static RILRequest obtain(int request, Message result) {
         RILRequest rr = null;
 
-        synchronized(sPoolSync) {
-            if (sPool != null) {
-                rr = sPool;
-                sPool = rr.mNext;
-                rr.mNext = null;
-                sPoolSize--;
+        int first = (int) Thread.currentThread().getId();
+        for (int i = 0; i < POOL_STRIPES && rr == null; i++) {
+            PoolStripe stripe = sPool[(first + i) & (POOL_STRIPES - 1)];
+            synchronized (stripe) {
+                if (stripe.mHead != null) {
+                    rr = stripe.mHead;
+                    stripe.mHead = rr.mNext;
+                    rr.mNext = null;
+                    stripe.mSize--;
+                }
             }
         }
 
@@ -146,7 +181,14 @@ class RILRequest {
 
         rr.mRequest = request;
         rr.mResult = result;
-        rr.mParcel = Parcel.obtain();
+        if (rr.mParcel == null) {
+            rr.mParcel = Parcel.obtain();
+        }
+        rr.mEnqueueNanos = 0;
+        rr.mWriteNanos = 0;
+        rr.mSingleFlight = null;
+        rr.mWindow = null;
+        rr.mCacheGeneration = 0;
 
         if (result != null && result.getTarget() == null) {
             throw new NullPointerException("Message target must not be null");
@@ -165,14 +207,40 @@ class RILRequest {
      * Note: This should only be called once per use.
      */
     void release() {
-        synchronized (sPoolSync) {
-            if (sPoolSize < MAX_POOL_SIZE) {
-                mNext = sPool;
-                sPool = this;
-                sPoolSize++;
-                mResult = null;
+        RilInFlightWindow window = mWindow;
+        mWindow = null;
+        mResult = null;
+
+        Parcel p = mParcel;
+        if (p != null && p.dataCapacity() > MAX_RETAINED_PARCEL_BYTES) {
+            p.recycle();
+            p = null;
+            mParcel = null;
+        } else if (p != null) {
+            p.setDataSize(0);
+            p.setDataPosition(0);
+        }
+
+        boolean pooled = false;
+        for (int i = 0; i < POOL_STRIPES && !pooled; i++) {
+            PoolStripe stripe = sPool[(mSerial + i) & (POOL_STRIPES - 1)];
+            synchronized (stripe) {
+                if (stripe.mSize < MAX_STRIPE_SIZE) {
+                    mNext = stripe.mHead;
+                    stripe.mHead = this;
+                    stripe.mSize++;
+                    pooled = true;
+                }
             }
         }
+        if (!pooled && p != null) {
+            p.recycle();
+            mParcel = null;
+        }
+
+        if (window != null) {
+            window.release();
+        }
     }
 
     private RILRequest() {
@@ -212,20 +280,48 @@ class RILRequest {
 
         ex = CommandException.fromRilErrno(error);
 
-        if (RIL.RILJ_LOGD) Rlog.d(LOG_TAG, serialString() + "< "
+        if (RIL.RILJ_TEXT_LOG) Rlog.d(LOG_TAG, serialString() + "< "
             + RIL.requestToString(mRequest)
             + " error: " + ex + " ret=" + RIL.retToString(mRequest, ret));
 
+        sendResult(ret, ex);
+    }
+
+    /**
+     * Delivers the outcome to the caller and to any requests that joined
+     * this one through RilSingleFlight, each of which gets its own copy.
+     */
+    void
+    sendResult(Object ret, Throwable ex) {
         if (mResult != null) {
             AsyncResult.forMessage(mResult, ret, ex);
             mResult.sendToTarget();
         }
 
-        if (mParcel != null) {
-            mParcel.recycle();
-            mParcel = null;
+        if (mSingleFlight != null) {
+            ArrayList<Message> waiters = mSingleFlight.complete(this);
+            mSingleFlight = null;
+            if (waiters != null) {
+                for (int i = 0, count = waiters.size(); i < count; i++) {
+                    Message waiter = waiters.get(i);
+                    AsyncResult.forMessage(waiter, RilResultCopy.copy(ret), ex);
+                    waiter.sendToTarget();
+                }
+            }
         }
     }
+
+    /**
+     * Completes the request with an error raised by the framework rather
+     * than by rild, e.g. a missed response deadline.
+     */
+    void
+    onError(CommandException ex) {
+        if (RIL.RILJ_TEXT_LOG) Rlog.d(LOG_TAG, serialString() + "< "
+            + RIL.requestToString(mRequest) + " error: " + ex);
+
+        sendResult(null, ex);
+    }
 }
 
 
@@ -238,6 +334,11 @@ public class RIL extends BaseCommands implements CommandsInterface {
     static final String RILJ_LOG_TAG = "RILJ";
     static final boolean RILJ_LOGD = true;
     static final boolean RILJ_LOGV = false; // STOPSHIP if true
+    // Per-request and unsolicited text logging, on whenever RILJ_LOGD is, as
+    // before. mEventLog records the same traffic alongside it without
+    // building strings; persist.radio.ril_text_log=false leaves only that.
+    static final boolean RILJ_TEXT_LOG =
+            SystemProperties.getBoolean("persist.radio.ril_text_log", RILJ_LOGD);
     static final int RADIO_SCREEN_UNSET = -1;
     static final int RADIO_SCREEN_OFF = 0;
     static final int RADIO_SCREEN_ON = 1;
@@ -248,6 +349,13 @@ public class RIL extends BaseCommands implements CommandsInterface {
      * the vendor ril.
      */
     private static final int DEFAULT_WAKE_LOCK_TIMEOUT = 60000;
+
+    /** Resolution of the per-request response deadlines */
+    private static final int DEADLINE_TICK_MILLIS = 1000;
+
+    /** Default size limit of a wire capture, see RilWireCapture */
+    private static final long DEFAULT_CAPTURE_MAX_KB = 16 * 1024;
+
     private static final int BYTE_SIZE = 1;
 
     /** Starting number for OEMHOOK request and response IDs */
@@ -272,12 +380,79 @@ public class RIL extends BaseCommands implements CommandsInterface {
     int mRadioScreenState = RADIO_SCREEN_UNSET;
     boolean mIsDevicePlugged = false;
     WakeLock mWakeLock;
+    // Default response deadline of a request
     final int mWakeLockTimeout;
+    // Response deadlines overriding mWakeLockTimeout, keyed by request code.
+    // Requests with a deadline past mWakeLockTimeout are long running: they
+    // hold the wake lock only until written to rild, see isLongRunning().
+    final SparseIntArray mRequestTimeouts = new SparseIntArray();
+    // Requests completed with REQUEST_TIMED_OUT
+    final AtomicInteger mTimedOutCount = new AtomicInteger(0);
+
+    final RilLatencyStats mLatencyStats = new RilLatencyStats();
+
+    // Recent traffic, formatted only by dump
+    final RilEventLog mEventLog = new RilEventLog(SystemProperties.getInt(
+            "ro.telephony.ril.event_log_size", RilEventLog.DEFAULT_CAPACITY));
+
+    // Collapses bursts of superseded unsolicited responses; null unless
+    // enabled with ro.telephony.ril.coalesce_unsol
+    RilUnsolCoalescer mUnsolCoalescer;
+
+    // Decodes and dispatches responses off the receiver thread; null unless
+    // enabled with ro.telephony.ril.decode_thread, and always null with
+    // the shared I/O loop
+    RilDecodePipeline mDecodePipeline;
+
+    // Reads the rild socket of every instance on one thread; null unless
+    // enabled with ro.telephony.ril.shared_io
+    RilIoLoop mIoLoop;
+
+    // Hands frames read by mIoLoop to RILSender for decoding; set if and
+    // only if mIoLoop is
+    RilDecodeQueue mDecodeQueue;
+
+    // Records all socket traffic; null unless persist.radio.ril_capture
+    // names a file on a debuggable build
+    RilWireCapture mWireCapture;
+
+    // Set by dispose; RILReceiver stops instead of reconnecting
+    volatile boolean mDisposed;
+
+    // Response decoders of this instance, seeded from the class defaults
+    final RilResponseTable mSolicitedResponses = new RilResponseTable(sSolicitedDefaults);
+    final RilResponseTable mUnsolicitedResponses = new RilResponseTable(sUnsolicitedDefaults);
     // The number of wakelock requests currently active.  Don't release the lock
     // until dec'd to 0
     int mWakeLockCount;
 
-    SparseArray<RILRequest> mRequestList = new SparseArray<RILRequest>();
+    // In-flight requests keyed by serial; lock free, see RilRequestTable
+    final RilRequestTable mRequestList = new RilRequestTable();
+
+    // When batching is enabled, send() queues requests here and RILSender
+    // drains the whole queue into one socket write per EVENT_SEND_BATCH.
+    final boolean mBatchSend =
+            SystemProperties.getBoolean("ro.telephony.ril.batch_send", false);
+    final ConcurrentLinkedQueue<RILRequest> mSendQueue =
+            new ConcurrentLinkedQueue<RILRequest>();
+    final AtomicBoolean mSendBatchPending = new AtomicBoolean(false);
+
+    // Shares one response among concurrent identical queries; null unless
+    // enabled with ro.telephony.ril.single_flight
+    RilSingleFlight mSingleFlight;
+
+    // Answers static queries such as IMEI without a round trip; null
+    // unless enabled with ro.telephony.ril.cache_responses
+    RilResponseCache mResponseCache;
+
+    // Caps accepted but uncompleted requests; null unless
+    // ro.telephony.ril.max_in_flight is set
+    RilInFlightWindow mInFlightWindow;
+
+    // Orders waiting requests by priority class instead of FIFO; null
+    // unless enabled with ro.telephony.ril.priority_send. Replaces
+    // mSendQueue in batch mode, and the EVENT_SEND queue otherwise.
+    RilSendScheduler mSendScheduler;
 
     Object     mLastNITZTimeInfo;
 
@@ -294,7 +469,12 @@ public class RIL extends BaseCommands implements CommandsInterface {
     //***** Events
 
     static final int EVENT_SEND                 = 1;
-    static final int EVENT_WAKE_LOCK_TIMEOUT    = 2;
+    static final int EVENT_DEADLINE_TICK        = 2;
+    static final int EVENT_SEND_BATCH           = 3;
+    static final int EVENT_SEND_NEXT            = 4;
+    static final int EVENT_WAKE_LOCK_TIMEOUT    = 5;
+    static final int EVENT_DEFERRED_TIMEOUT     = 6;
+    static final int EVENT_DECODE               = 7;
 
     //***** Constants
 
@@ -307,6 +487,9 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
     static final int SOCKET_OPEN_RETRY_MILLIS = 4 * 1000;
 
+    // Number of maximal requests RILSender buffers before forcing a write
+    static final int SEND_BATCH_MAX_FRAMES = 4;
+
     // The number of the required config values for broadcast SMS stored in the C struct
     // RIL_CDMA_BroadcastServiceInfo
     private static final int CDMA_BSI_NO_OF_INTS_STRUCT = 3;
@@ -359,6 +542,17 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
         // Only allocated once
         byte[] dataLength = new byte[4];
+        RilFrameWriter mFrameWriter =
+                new RilFrameWriter(SEND_BATCH_MAX_FRAMES, RIL_MAX_COMMAND_BYTES);
+        // Serials and request codes framed into mFrameWriter but not yet
+        // flushed. Kept by value: once written, a request may be answered
+        // and recycled by RILReceiver at any time.
+        int[] mBatchSerials = new int[16];
+        int[] mBatchRequests = new int[16];
+        int mBatchSize;
+        RilDeadlineWheel mDeadlines =
+                new RilDeadlineWheel(DEADLINE_TICK_MILLIS, SystemClock.elapsedRealtime());
+        ArrayList<RILRequest> mExpired = new ArrayList<RILRequest>();
 
         //***** Runnable implementation
         @Override
@@ -376,162 +570,284 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
             switch (msg.what) {
                 case EVENT_SEND:
-                    try {
-                        LocalSocket s;
-
-                        s = mSocket;
-
-                        if (s == null) {
-                            rr.onError(RADIO_NOT_AVAILABLE, null);
-                            rr.release();
-                            decrementWakeLock();
-                            return;
-                        }
-
-                        synchronized (mRequestList) {
-                            mRequestList.append(rr.mSerial, rr);
-                        }
+                    sendRequest(rr);
+                    break;
 
-                        byte[] data;
+                case EVENT_SEND_NEXT:
+                    // send() posts one of these per queued request; send
+                    // whichever is most urgent by now.
+                    rr = mSendScheduler.poll();
+                    if (rr != null) {
+                        sendRequest(rr);
+                    }
+                    break;
 
-                        data = rr.mParcel.marshall();
-                        rr.mParcel.recycle();
-                        rr.mParcel = null;
+                case EVENT_SEND_BATCH:
+                    // Clear first so a send() racing with the drain below
+                    // schedules another pass rather than being stranded.
+                    mSendBatchPending.set(false);
+                    sendBatch();
+                    break;
 
-                        if (data.length > RIL_MAX_COMMAND_BYTES) {
-                            throw new RuntimeException(
-                                    "Parcel larger than max bytes allowed! "
-                                                          + data.length);
+                case EVENT_DEADLINE_TICK:
+                    // Fail every request rild has not answered in time. A
+                    // late response is then reported as unexpected.
+                    mDeadlines.advance(SystemClock.elapsedRealtime(), mRequestList, mExpired);
+                    for (int i = 0, count = mExpired.size(); i < count; i++) {
+                        rr = mExpired.get(i);
+                        if (RILJ_LOGD) {
+                            Rlog.d(RILJ_LOG_TAG, "Request timed out: [" + rr.mSerial + "] "
+                                    + requestToString(rr.mRequest));
                         }
+                        mTimedOutCount.incrementAndGet();
+                        mLatencyStats.recordTimeout(rr.mRequest);
+                        mEventLog.log(RilEventLog.KIND_TIMEOUT, rr.mSerial, rr.mRequest, 0,
+                                null);
+                        int expiredRequest = rr.mRequest;
+                        rr.onError(new CommandException(
+                                CommandException.Error.REQUEST_TIMED_OUT));
+                        rr.release();
+                        decrementWakeLockForResponse(expiredRequest);
+                    }
+                    mExpired.clear();
 
-                        // parcel length in big endian
-                        dataLength[0] = dataLength[1] = 0;
-                        dataLength[2] = (byte)((data.length >> 8) & 0xff);
-                        dataLength[3] = (byte)((data.length) & 0xff);
-
-                        //Rlog.v(RILJ_LOG_TAG, "writing packet: " + data.length + " bytes");
+                    if (!mDeadlines.isEmpty()) {
+                        sendEmptyMessageDelayed(EVENT_DEADLINE_TICK, mDeadlines.getTickMs());
+                    }
+                    break;
 
-                        s.getOutputStream().write(dataLength);
-                        s.getOutputStream().write(data);
-                    } catch (IOException ex) {
-                        Rlog.e(RILJ_LOG_TAG, "IOException", ex);
-                        req = findAndRemoveRequestFromList(rr.mSerial);
-                        // make sure this request has not already been handled,
-                        // eg, if RILReceiver cleared the list.
-                        if (req != null) {
-                            rr.onError(RADIO_NOT_AVAILABLE, null);
-                            rr.release();
-                            decrementWakeLock();
-                        }
-                    } catch (RuntimeException exc) {
-                        Rlog.e(RILJ_LOG_TAG, "Uncaught exception ", exc);
-                        req = findAndRemoveRequestFromList(rr.mSerial);
-                        // make sure this request has not already been handled,
-                        // eg, if RILReceiver cleared the list.
-                        if (req != null) {
-                            rr.onError(GENERIC_FAILURE, null);
-                            rr.release();
-                            decrementWakeLock();
+                case EVENT_DEFERRED_TIMEOUT:
+                    // A request the in-flight window deferred never got a
+                    // slot in time. arg1 tells a reuse of rr apart.
+                    if (mInFlightWindow.removeDeferred(rr, msg.arg1)) {
+                        if (RILJ_LOGD) {
+                            Rlog.d(RILJ_LOG_TAG, "Deferred request timed out: ["
+                                    + rr.mSerial + "] " + requestToString(rr.mRequest));
                         }
+                        mTimedOutCount.incrementAndGet();
+                        mLatencyStats.recordTimeout(rr.mRequest);
+                        mEventLog.log(RilEventLog.KIND_TIMEOUT, rr.mSerial, rr.mRequest, 0,
+                                null);
+                        rr.onError(new CommandException(
+                                CommandException.Error.REQUEST_TIMED_OUT));
+                        rr.release();
+                        decrementWakeLock();
                     }
+                    break;
 
+                case EVENT_DECODE:
+                    // Responses the shared I/O loop read for us
+                    mDecodeQueue.process();
                     break;
 
                 case EVENT_WAKE_LOCK_TIMEOUT:
-                    // Haven't heard back from the last request.  Assume we're
-                    // not getting a response and  release the wake lock.
-
-                    // The timer of WAKE_LOCK_TIMEOUT is reset with each
-                    // new send request. So when WAKE_LOCK_TIMEOUT occurs
-                    // all requests in mRequestList already waited at
-                    // least DEFAULT_WAKE_LOCK_TIMEOUT but no response.
-                    //
-                    // Note: Keep mRequestList so that delayed response
-                    // can still be handled when response finally comes.
-
-                    synchronized (mRequestList) {
-                        if (clearWakeLock()) {
-                            if (RILJ_LOGD) {
-                                int count = mRequestList.size();
-                                Rlog.d(RILJ_LOG_TAG, "WAKE_LOCK_TIMEOUT " +
-                                        " mRequestList=" + count);
-                                for (int i = 0; i < count; i++) {
-                                    rr = mRequestList.valueAt(i);
-                                    Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] "
-                                            + requestToString(rr.mRequest));
-                                }
-                            }
-                        }
+                    // Safety net behind the response deadlines: the wake
+                    // lock has been held for mWakeLockTimeout since the
+                    // last request. Release it but keep mRequestList, so
+                    // a late response can still be handled.
+                    if (clearWakeLock() && RILJ_LOGD) {
+                        Rlog.d(RILJ_LOG_TAG, "WAKE_LOCK_TIMEOUT " +
+                                " mRequestList=" + mRequestList.size());
                     }
                     break;
             }
         }
-    }
 
-    /**
-     * Reads in a single RIL message off the wire. A RIL message consists
-     * of a 4-byte little-endian length and a subsequent series of bytes.
-     * The final message (length header omitted) is read into
-     * <code>buffer</code> and the length of the final message (less header)
-     * is returned. A return value of -1 indicates end-of-stream.
-     *
-     * @param is non-null; Stream to read from
-     * @param buffer Buffer to fill in. Must be as large as maximum
-     * message size, or an ArrayOutOfBounds exception will be thrown.
-     * @return Length of message less header, or -1 on end of stream.
-     * @throws IOException
-     */
-    private static int readRilMessage(InputStream is, byte[] buffer)
-            throws IOException {
-        int countRead;
-        int offset;
-        int remaining;
-        int messageLength;
-
-        // First, read in the length of the message
-        offset = 0;
-        remaining = 4;
-        do {
-            countRead = is.read(buffer, offset, remaining);
-
-            if (countRead < 0 ) {
-                Rlog.e(RILJ_LOG_TAG, "Hit EOS reading message length");
-                return -1;
+        /**
+         * Writes one request to rild, failing it if the socket is gone or
+         * the write does not go through.
+         */
+        private void
+        sendRequest(RILRequest rr) {
+            // rr may be answered and recycled as soon as it is
+            // written, so capture what we need up front.
+            int serial = rr.mSerial;
+            int request = rr.mRequest;
+            boolean longRunning = isLongRunning(request);
+            try {
+                LocalSocket s;
+
+                s = mSocket;
+
+                if (s == null) {
+                    rr.onError(RADIO_NOT_AVAILABLE, null);
+                    rr.release();
+                    decrementWakeLock();
+                    return;
+                }
+
+                if (rr.mSingleFlight != null) {
+                    rr.mSingleFlight.onWritten(rr);
+                }
+                mRequestList.put(rr);
+                scheduleDeadline(serial, request);
+
+                byte[] data;
+
+                // The Parcel stays with rr and is reused once it is released
+                data = rr.mParcel.marshall();
+
+                if (data.length > RIL_MAX_COMMAND_BYTES) {
+                    throw new RuntimeException(
+                            "Parcel larger than max bytes allowed! "
+                                                  + data.length);
+                }
+
+                // parcel length in big endian
+                dataLength[0] = dataLength[1] = 0;
+                dataLength[2] = (byte)((data.length >> 8) & 0xff);
+                dataLength[3] = (byte)((data.length) & 0xff);
+
+                //Rlog.v(RILJ_LOG_TAG, "writing packet: " + data.length + " bytes");
+
+                rr.mWriteNanos = SystemClock.elapsedRealtimeNanos();
+                if (mWireCapture != null) {
+                    mWireCapture.record(RilWireCapture.DIRECTION_OUTBOUND,
+                            data, 0, data.length);
+                }
+                s.getOutputStream().write(dataLength);
+                s.getOutputStream().write(data);
+
+                if (longRunning) {
+                    // Written; the response will wake us up
+                    decrementWakeLock();
+                }
+            } catch (IOException ex) {
+                Rlog.e(RILJ_LOG_TAG, "IOException", ex);
+                failRequest(serial, longRunning, RADIO_NOT_AVAILABLE);
+            } catch (RuntimeException exc) {
+                Rlog.e(RILJ_LOG_TAG, "Uncaught exception ", exc);
+                failRequest(serial, longRunning, GENERIC_FAILURE);
             }
+        }
 
-            offset += countRead;
-            remaining -= countRead;
-        } while (remaining > 0);
-
-        messageLength = ((buffer[0] & 0xff) << 24)
-                | ((buffer[1] & 0xff) << 16)
-                | ((buffer[2] & 0xff) << 8)
-                | (buffer[3] & 0xff);
-
-        // Then, re-use the buffer and read in the message itself
-        offset = 0;
-        remaining = messageLength;
-        do {
-            countRead = is.read(buffer, offset, remaining);
-
-            if (countRead < 0 ) {
-                Rlog.e(RILJ_LOG_TAG, "Hit EOS reading message.  messageLength=" + messageLength
-                        + " remaining=" + remaining);
-                return -1;
+        /**
+         * Puts a just-sent request on the deadline wheel, starting the
+         * wheel if it was idle.
+         */
+        private void
+        scheduleDeadline(int serial, int request) {
+            boolean idle = mDeadlines.isEmpty();
+            mDeadlines.add(serial, SystemClock.elapsedRealtime() + getRequestTimeout(request));
+            if (idle) {
+                sendEmptyMessageDelayed(EVENT_DEADLINE_TICK, mDeadlines.getTickMs());
             }
+        }
 
-            offset += countRead;
-            remaining -= countRead;
-        } while (remaining > 0);
+        /**
+         * Drains the send queue, framing every request into mFrameWriter and
+         * flushing with as few socket writes as the buffer allows.
+         */
+        private void
+        sendBatch() {
+            LocalSocket s = mSocket;
+            RILRequest rr;
+
+            while ((rr = pollSendQueue()) != null) {
+                if (s == null) {
+                    rr.onError(RADIO_NOT_AVAILABLE, null);
+                    rr.release();
+                    decrementWakeLock();
+                    continue;
+                }
+
+                int serial = rr.mSerial;
+                int request = rr.mRequest;
+                byte[] data;
+                try {
+                    if (rr.mSingleFlight != null) {
+                        rr.mSingleFlight.onWritten(rr);
+                    }
+                    mRequestList.put(rr);
+                    scheduleDeadline(serial, request);
+
+                    data = rr.mParcel.marshall();
+
+                    if (data.length > RIL_MAX_COMMAND_BYTES) {
+                        throw new RuntimeException(
+                                "Parcel larger than max bytes allowed! "
+                                                      + data.length);
+                    }
+                } catch (RuntimeException exc) {
+                    Rlog.e(RILJ_LOG_TAG, "Uncaught exception ", exc);
+                    failRequest(serial, isLongRunning(request), GENERIC_FAILURE);
+                    continue;
+                }
+
+                if (!mFrameWriter.hasRoom(data.length)) {
+                    flushBatch(s);
+                }
+                // Flushed before this looper pass ends
+                rr.mWriteNanos = SystemClock.elapsedRealtimeNanos();
+                mFrameWriter.append(data);
+                addToBatch(serial, request);
+                if (mWireCapture != null) {
+                    mWireCapture.record(RilWireCapture.DIRECTION_OUTBOUND,
+                            data, 0, data.length);
+                }
+            }
+
+            if (s != null) {
+                flushBatch(s);
+            }
+        }
+
+        private void
+        addToBatch(int serial, int request) {
+            if (mBatchSize == mBatchSerials.length) {
+                mBatchSerials = Arrays.copyOf(mBatchSerials, mBatchSize * 2);
+                mBatchRequests = Arrays.copyOf(mBatchRequests, mBatchSize * 2);
+            }
+            mBatchSerials[mBatchSize] = serial;
+            mBatchRequests[mBatchSize] = request;
+            mBatchSize++;
+        }
+
+        private void
+        flushBatch(LocalSocket s) {
+            try {
+                mFrameWriter.flush(s.getOutputStream());
+                for (int i = 0; i < mBatchSize; i++) {
+                    if (isLongRunning(mBatchRequests[i])) {
+                        // Written; the response will wake us up
+                        decrementWakeLock();
+                    }
+                }
+            } catch (IOException ex) {
+                Rlog.e(RILJ_LOG_TAG, "IOException", ex);
+                for (int i = 0; i < mBatchSize; i++) {
+                    failRequest(mBatchSerials[i], isLongRunning(mBatchRequests[i]),
+                            RADIO_NOT_AVAILABLE);
+                }
+            }
+            mBatchSize = 0;
+        }
 
-        return messageLength;
+        /**
+         * Fails a request that could not be written. The wake lock
+         * reference of a long running request belongs to the sender and is
+         * dropped here even if RILReceiver already completed the request.
+         */
+        private void
+        failRequest(int serial, boolean longRunning, int error) {
+            RILRequest req = findAndRemoveRequestFromList(serial);
+            // make sure this request has not already been handled,
+            // eg, if RILReceiver cleared the list.
+            if (req != null) {
+                req.onError(error, null);
+                req.release();
+            }
+            if (req != null || longRunning) {
+                decrementWakeLock();
+            }
+        }
     }
 
     protected class RILReceiver implements Runnable {
-        byte[] buffer;
+        // Framing state for the current connection, recreated on reconnect
+        RilFrameReader mFrameReader;
 
         protected RILReceiver() {
-            buffer = new byte[RIL_MAX_COMMAND_BYTES];
         }
 
         @Override
@@ -544,6 +860,10 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 LocalSocket s = null;
                 LocalSocketAddress l;
 
+                if (mDisposed) {
+                    break;
+                }
+
                 if (mInstanceId == null || mInstanceId == 0 ) {
                     rilSocket = SOCKET_NAME_RIL[0];
                 } else {
@@ -552,8 +872,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
                 try {
                     s = new LocalSocket();
-                    l = new LocalSocketAddress(rilSocket,
-                            LocalSocketAddress.Namespace.RESERVED);
+                    l = getSocketAddress(rilSocket);
                     s.connect(l);
                 } catch (IOException ex){
                     try {
@@ -607,63 +926,632 @@ public class RIL extends BaseCommands implements CommandsInterface {
                     }
                 }
 
+                if (mIoLoop != null) {
+                    // The loop reads from here on, and starts a new receiver
+                    // thread through onSharedSocketClosed on disconnect
+                    try {
+                        mFrameReader = new RilFrameReader(mSocket.getInputStream(),
+                                RIL_MAX_COMMAND_BYTES);
+                        mIoLoop.register(RIL.this, mSocket, mFrameReader, rilSocket);
+                        return;
+                    } catch (IOException ex) {
+                        Rlog.i(RILJ_LOG_TAG, "'" + rilSocket + "' socket closed", ex);
+                        handleSocketClosed(rilSocket);
+                        continue;
+                    }
+                }
+
                 int length = 0;
+                // One Parcel is reused for every frame on this connection;
+                // processResponse never holds on to it past its return.
+                Parcel p = Parcel.obtain();
                 try {
-                    InputStream is = mSocket.getInputStream();
+                    mFrameReader = new RilFrameReader(mSocket.getInputStream(),
+                            RIL_MAX_COMMAND_BYTES);
 
                     for (;;) {
-                        Parcel p;
-
-                        length = readRilMessage(is, buffer);
+                        length = mFrameReader.next();
 
                         if (length < 0) {
                             // End-of-stream reached
                             break;
                         }
 
-                        p = Parcel.obtain();
-                        p.unmarshall(buffer, 0, length);
-                        p.setDataPosition(0);
+                        if (mWireCapture != null) {
+                            mWireCapture.record(RilWireCapture.DIRECTION_INBOUND,
+                                    mFrameReader.frameArray(), mFrameReader.frameOffset(),
+                                    length);
+                        }
+
+                        if (mDecodePipeline != null) {
+                            mDecodePipeline.submit(mFrameReader.frameArray(),
+                                    mFrameReader.frameOffset(), length);
+                            continue;
+                        }
+
+                        mFrameReader.readInto(p);
+
+                        //Rlog.v(RILJ_LOG_TAG, "Read packet: " + length + " bytes");
+
+                        processResponse(p);
+                    }
+                } catch (java.io.IOException ex) {
+                    Rlog.i(RILJ_LOG_TAG, "'" + rilSocket + "' socket closed",
+                          ex);
+                } catch (Throwable tr) {
+                    Rlog.e(RILJ_LOG_TAG, "Uncaught exception read length=" + length +
+                        "Exception:" + tr.toString());
+                } finally {
+                    p.recycle();
+                }
+
+                handleSocketClosed(rilSocket);
+            }} catch (Throwable tr) {
+                Rlog.e(RILJ_LOG_TAG,"Uncaught exception", tr);
+            }
+
+            /* We're disconnected so we don't know the ril version */
+            notifyRegistrantsRilConnectionChanged(-1);
+        }
+    }
+
+    /** Fails what is in flight and forgets the socket after a disconnect. */
+    private void handleSocketClosed(String rilSocket) {
+        if (mDecodePipeline != null) {
+            // Let responses already read complete before failing the rest
+            mDecodePipeline.awaitIdle();
+        }
+        if (mDecodeQueue != null) {
+            mDecodeQueue.process();
+        }
+        if (mWireCapture != null) {
+            mWireCapture.flush();
+        }
+
+        Rlog.i(RILJ_LOG_TAG, "(" + mInstanceId + ") Disconnected from '" + rilSocket
+              + "' socket");
+
+        setRadioState (RadioState.RADIO_UNAVAILABLE);
+
+        try {
+            mSocket.close();
+        } catch (IOException ex) {
+        }
+
+        mSocket = null;
+        RILRequest.resetSerial();
+
+        // Clear request list on close
+        clearRequestList(RADIO_NOT_AVAILABLE, false);
+    }
+
+    /**
+     * Called by RilIoLoop when this instance's socket closes. Cleans up and
+     * reconnects on a new receiver thread, like RILReceiver would have.
+     */
+    void onSharedSocketClosed(final String rilSocket) {
+        if (mDisposed) {
+            handleSocketClosed(rilSocket);
+            return;
+        }
+        mReceiverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                handleSocketClosed(rilSocket);
+                mReceiver.run();
+            }
+        }, "RILReceiver" + mInstanceId);
+        mReceiverThread.start();
+    }
+
+
+
+    //***** Response decoders
+
+    /*
+     * One Decoder per response parser; the tables below map request and
+     * unsolicited codes onto them.
+     */
+    static final RilResponseTable.Decoder DECODE_ACTIVITY_DATA = new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseActivityData(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_CALL_FORWARD = new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseCallForward(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_CALL_LIST = new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseCallList(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_CALL_RING = new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseCallRing(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_CDMA_BROADCAST_CONFIG =
+            new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseCdmaBroadcastConfig(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_CDMA_CALL_WAITING =
+            new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseCdmaCallWaiting(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_CDMA_INFORMATION_RECORD =
+            new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseCdmaInformationRecord(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_CDMA_SMS = new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseCdmaSms(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_CELL_INFO_LIST = new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseCellInfoList(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_CELL_LIST = new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseCellList(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_DATA_CALL_LIST = new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseDataCallList(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_FAIL_CAUSE = new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseFailCause(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_GET_PREFERRED_NETWORK_TYPE =
+            new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseGetPreferredNetworkType(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_GMS_BROADCAST_CONFIG =
+            new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseGmsBroadcastConfig(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_HARDWARE_CONFIG = new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseHardwareConfig(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_ICC_IO = new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseICC_IO(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_ICC_IO_BASE64 = new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseICC_IOBase64(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_ICC_CARD_STATUS = new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseIccCardStatus(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_INTS = new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseInts(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_LCE_DATA = new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseLceData(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_LCE_STATUS = new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseLceStatus(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_OPERATOR_INFOS = new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseOperatorInfos(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_RADIO_CAPABILITY = new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseRadioCapability(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_RAW = new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseRaw(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_SMS = new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseSMS(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_SETUP_DATA_CALL = new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseSetupDataCall(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_SIGNAL_STRENGTH = new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseSignalStrength(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_SIM_REFRESH = new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseSimRefresh(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_SS_DATA = new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseSsData(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_STRING = new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseString(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_STRINGS = new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseStrings(p);
+        }
+    };
 
-                        //Rlog.v(RILJ_LOG_TAG, "Read packet: " + length + " bytes");
+    static final RilResponseTable.Decoder DECODE_SUPP_SERVICE_NOTIFICATION =
+            new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseSuppServiceNotification(p);
+        }
+    };
 
-                        processResponse(p);
-                        p.recycle();
-                    }
-                } catch (java.io.IOException ex) {
-                    Rlog.i(RILJ_LOG_TAG, "'" + rilSocket + "' socket closed",
-                          ex);
-                } catch (Throwable tr) {
-                    Rlog.e(RILJ_LOG_TAG, "Uncaught exception read length=" + length +
-                        "Exception:" + tr.toString());
+    static final RilResponseTable.Decoder DECODE_VOID = new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            return ril.responseVoid(p);
+        }
+    };
+
+    static final RilResponseTable.Decoder DECODE_HANGUP_FOREGROUND_RESUME_BACKGROUND =
+            new RilResponseTable.Decoder() {
+        @Override
+        public Object decode(RIL ril, Parcel p) {
+            if (ril.mTestingEmergencyCall.getAndSet(false)) {
+                if (ril.mEmergencyCallbackModeRegistrant != null) {
+                    ril.riljLog("testing emergency call, notify ECM Registrants");
+                    ril.mEmergencyCallbackModeRegistrant.notifyRegistrant();
                 }
+            }
+            return ril.responseVoid(p);
+        }
+    };
 
-                Rlog.i(RILJ_LOG_TAG, "(" + mInstanceId + ") Disconnected from '" + rilSocket
-                      + "' socket");
+    /**
+     * Default decoders for solicited responses, indexed by RIL_REQUEST_*.
+     * Each RIL instance starts from a copy, see registerSolicitedResponse.
+     */
+    static final RilResponseTable sSolicitedDefaults = new RilResponseTable(0);
+
+    /** Default decoders for unsolicited responses, indexed by RIL_UNSOL_*. */
+    static final RilResponseTable sUnsolicitedDefaults =
+            new RilResponseTable(RIL_UNSOL_RESPONSE_BASE);
+
+    static {
+        RilResponseTable t = sSolicitedDefaults;
+        t.put(RIL_REQUEST_GET_SIM_STATUS, DECODE_ICC_CARD_STATUS);
+        t.put(RIL_REQUEST_ENTER_SIM_PIN, DECODE_INTS);
+        t.put(RIL_REQUEST_ENTER_SIM_PUK, DECODE_INTS);
+        t.put(RIL_REQUEST_ENTER_SIM_PIN2, DECODE_INTS);
+        t.put(RIL_REQUEST_ENTER_SIM_PUK2, DECODE_INTS);
+        t.put(RIL_REQUEST_CHANGE_SIM_PIN, DECODE_INTS);
+        t.put(RIL_REQUEST_CHANGE_SIM_PIN2, DECODE_INTS);
+        t.put(RIL_REQUEST_ENTER_NETWORK_DEPERSONALIZATION, DECODE_INTS);
+        t.put(RIL_REQUEST_GET_CURRENT_CALLS, new RilResponseTable.Entry(DECODE_CALL_LIST,
+                RilResponseTable.FORMAT_ELEMENTS, false));
+        t.put(RIL_REQUEST_DIAL, DECODE_VOID);
+        t.put(RIL_REQUEST_GET_IMSI, new RilResponseTable.Entry(DECODE_STRING,
+                RilResponseTable.FORMAT_DEFAULT, true));
+        t.put(RIL_REQUEST_HANGUP, DECODE_VOID);
+        t.put(RIL_REQUEST_HANGUP_WAITING_OR_BACKGROUND, DECODE_VOID);
+        t.put(RIL_REQUEST_HANGUP_FOREGROUND_RESUME_BACKGROUND,
+                DECODE_HANGUP_FOREGROUND_RESUME_BACKGROUND);
+        t.put(RIL_REQUEST_SWITCH_WAITING_OR_HOLDING_AND_ACTIVE, DECODE_VOID);
+        t.put(RIL_REQUEST_CONFERENCE, DECODE_VOID);
+        t.put(RIL_REQUEST_UDUB, DECODE_VOID);
+        t.put(RIL_REQUEST_LAST_CALL_FAIL_CAUSE, DECODE_FAIL_CAUSE);
+        t.put(RIL_REQUEST_SIGNAL_STRENGTH, DECODE_SIGNAL_STRENGTH);
+        t.put(RIL_REQUEST_VOICE_REGISTRATION_STATE, DECODE_STRINGS);
+        t.put(RIL_REQUEST_DATA_REGISTRATION_STATE, DECODE_STRINGS);
+        t.put(RIL_REQUEST_OPERATOR, DECODE_STRINGS);
+        t.put(RIL_REQUEST_RADIO_POWER, DECODE_VOID);
+        t.put(RIL_REQUEST_DTMF, DECODE_VOID);
+        t.put(RIL_REQUEST_SEND_SMS, DECODE_SMS);
+        t.put(RIL_REQUEST_SEND_SMS_EXPECT_MORE, DECODE_SMS);
+        t.put(RIL_REQUEST_SETUP_DATA_CALL, DECODE_SETUP_DATA_CALL);
+        t.put(RIL_REQUEST_SIM_IO, DECODE_ICC_IO);
+        t.put(RIL_REQUEST_SEND_USSD, DECODE_VOID);
+        t.put(RIL_REQUEST_CANCEL_USSD, DECODE_VOID);
+        t.put(RIL_REQUEST_GET_CLIR, DECODE_INTS);
+        t.put(RIL_REQUEST_SET_CLIR, DECODE_VOID);
+        t.put(RIL_REQUEST_QUERY_CALL_FORWARD_STATUS, new RilResponseTable.Entry(DECODE_CALL_FORWARD,
+                RilResponseTable.FORMAT_ELEMENTS, false));
+        t.put(RIL_REQUEST_SET_CALL_FORWARD, DECODE_VOID);
+        t.put(RIL_REQUEST_QUERY_CALL_WAITING, DECODE_INTS);
+        t.put(RIL_REQUEST_SET_CALL_WAITING, DECODE_VOID);
+        t.put(RIL_REQUEST_SMS_ACKNOWLEDGE, DECODE_VOID);
+        t.put(RIL_REQUEST_GET_IMEI, new RilResponseTable.Entry(DECODE_STRING,
+                RilResponseTable.FORMAT_DEFAULT, true));
+        t.put(RIL_REQUEST_GET_IMEISV, new RilResponseTable.Entry(DECODE_STRING,
+                RilResponseTable.FORMAT_DEFAULT, true));
+        t.put(RIL_REQUEST_ANSWER, DECODE_VOID);
+        t.put(RIL_REQUEST_DEACTIVATE_DATA_CALL, DECODE_VOID);
+        t.put(RIL_REQUEST_QUERY_FACILITY_LOCK, DECODE_INTS);
+        t.put(RIL_REQUEST_SET_FACILITY_LOCK, DECODE_INTS);
+        t.put(RIL_REQUEST_CHANGE_BARRING_PASSWORD, DECODE_VOID);
+        t.put(RIL_REQUEST_QUERY_NETWORK_SELECTION_MODE, DECODE_INTS);
+        t.put(RIL_REQUEST_SET_NETWORK_SELECTION_AUTOMATIC, DECODE_VOID);
+        t.put(RIL_REQUEST_SET_NETWORK_SELECTION_MANUAL, DECODE_VOID);
+        t.put(RIL_REQUEST_QUERY_AVAILABLE_NETWORKS, DECODE_OPERATOR_INFOS);
+        t.put(RIL_REQUEST_DTMF_START, DECODE_VOID);
+        t.put(RIL_REQUEST_DTMF_STOP, DECODE_VOID);
+        t.put(RIL_REQUEST_BASEBAND_VERSION, DECODE_STRING);
+        t.put(RIL_REQUEST_SEPARATE_CONNECTION, DECODE_VOID);
+        t.put(RIL_REQUEST_SET_MUTE, DECODE_VOID);
+        t.put(RIL_REQUEST_GET_MUTE, DECODE_INTS);
+        t.put(RIL_REQUEST_QUERY_CLIP, DECODE_INTS);
+        t.put(RIL_REQUEST_LAST_DATA_CALL_FAIL_CAUSE, DECODE_INTS);
+        t.put(RIL_REQUEST_DATA_CALL_LIST, DECODE_DATA_CALL_LIST);
+        t.put(RIL_REQUEST_RESET_RADIO, DECODE_VOID);
+        t.put(RIL_REQUEST_OEM_HOOK_RAW, DECODE_RAW);
+        t.put(RIL_REQUEST_OEM_HOOK_STRINGS, DECODE_STRINGS);
+        t.put(RIL_REQUEST_SCREEN_STATE, DECODE_VOID);
+        t.put(RIL_REQUEST_SET_SUPP_SVC_NOTIFICATION, DECODE_VOID);
+        t.put(RIL_REQUEST_WRITE_SMS_TO_SIM, DECODE_INTS);
+        t.put(RIL_REQUEST_DELETE_SMS_ON_SIM, DECODE_VOID);
+        t.put(RIL_REQUEST_SET_BAND_MODE, DECODE_VOID);
+        t.put(RIL_REQUEST_QUERY_AVAILABLE_BAND_MODE, DECODE_INTS);
+        t.put(RIL_REQUEST_STK_GET_PROFILE, DECODE_STRING);
+        t.put(RIL_REQUEST_STK_SET_PROFILE, DECODE_VOID);
+        t.put(RIL_REQUEST_STK_SEND_ENVELOPE_COMMAND, DECODE_STRING);
+        t.put(RIL_REQUEST_STK_SEND_TERMINAL_RESPONSE, DECODE_VOID);
+        t.put(RIL_REQUEST_STK_HANDLE_CALL_SETUP_REQUESTED_FROM_SIM, DECODE_INTS);
+        t.put(RIL_REQUEST_EXPLICIT_CALL_TRANSFER, DECODE_VOID);
+        t.put(RIL_REQUEST_SET_PREFERRED_NETWORK_TYPE, DECODE_VOID);
+        t.put(RIL_REQUEST_GET_PREFERRED_NETWORK_TYPE, DECODE_GET_PREFERRED_NETWORK_TYPE);
+        t.put(RIL_REQUEST_GET_NEIGHBORING_CELL_IDS, new RilResponseTable.Entry(DECODE_CELL_LIST,
+                RilResponseTable.FORMAT_ELEMENTS, false));
+        t.put(RIL_REQUEST_SET_LOCATION_UPDATES, DECODE_VOID);
+        t.put(RIL_REQUEST_CDMA_SET_SUBSCRIPTION_SOURCE, DECODE_VOID);
+        t.put(RIL_REQUEST_CDMA_SET_ROAMING_PREFERENCE, DECODE_VOID);
+        t.put(RIL_REQUEST_CDMA_QUERY_ROAMING_PREFERENCE, DECODE_INTS);
+        t.put(RIL_REQUEST_SET_TTY_MODE, DECODE_VOID);
+        t.put(RIL_REQUEST_QUERY_TTY_MODE, DECODE_INTS);
+        t.put(RIL_REQUEST_CDMA_SET_PREFERRED_VOICE_PRIVACY_MODE, DECODE_VOID);
+        t.put(RIL_REQUEST_CDMA_QUERY_PREFERRED_VOICE_PRIVACY_MODE, DECODE_INTS);
+        t.put(RIL_REQUEST_CDMA_FLASH, DECODE_VOID);
+        t.put(RIL_REQUEST_CDMA_BURST_DTMF, DECODE_VOID);
+        t.put(RIL_REQUEST_CDMA_SEND_SMS, DECODE_SMS);
+        t.put(RIL_REQUEST_CDMA_SMS_ACKNOWLEDGE, DECODE_VOID);
+        t.put(RIL_REQUEST_GSM_GET_BROADCAST_CONFIG, DECODE_GMS_BROADCAST_CONFIG);
+        t.put(RIL_REQUEST_GSM_SET_BROADCAST_CONFIG, DECODE_VOID);
+        t.put(RIL_REQUEST_GSM_BROADCAST_ACTIVATION, DECODE_VOID);
+        t.put(RIL_REQUEST_CDMA_GET_BROADCAST_CONFIG, DECODE_CDMA_BROADCAST_CONFIG);
+        t.put(RIL_REQUEST_CDMA_SET_BROADCAST_CONFIG, DECODE_VOID);
+        t.put(RIL_REQUEST_CDMA_BROADCAST_ACTIVATION, DECODE_VOID);
+        t.put(RIL_REQUEST_CDMA_VALIDATE_AND_WRITE_AKEY, DECODE_VOID);
+        t.put(RIL_REQUEST_CDMA_SUBSCRIPTION, DECODE_STRINGS);
+        t.put(RIL_REQUEST_CDMA_WRITE_SMS_TO_RUIM, DECODE_INTS);
+        t.put(RIL_REQUEST_CDMA_DELETE_SMS_ON_RUIM, DECODE_VOID);
+        t.put(RIL_REQUEST_DEVICE_IDENTITY, DECODE_STRINGS);
+        t.put(RIL_REQUEST_GET_SMSC_ADDRESS, DECODE_STRING);
+        t.put(RIL_REQUEST_SET_SMSC_ADDRESS, DECODE_VOID);
+        t.put(RIL_REQUEST_EXIT_EMERGENCY_CALLBACK_MODE, DECODE_VOID);
+        t.put(RIL_REQUEST_REPORT_SMS_MEMORY_STATUS, DECODE_VOID);
+        t.put(RIL_REQUEST_REPORT_STK_SERVICE_IS_RUNNING, DECODE_VOID);
+        t.put(RIL_REQUEST_CDMA_GET_SUBSCRIPTION_SOURCE, DECODE_INTS);
+        t.put(RIL_REQUEST_ISIM_AUTHENTICATION, DECODE_STRING);
+        t.put(RIL_REQUEST_ACKNOWLEDGE_INCOMING_GSM_SMS_WITH_PDU, DECODE_VOID);
+        t.put(RIL_REQUEST_STK_SEND_ENVELOPE_WITH_STATUS, DECODE_ICC_IO);
+        t.put(RIL_REQUEST_VOICE_RADIO_TECH, DECODE_INTS);
+        t.put(RIL_REQUEST_GET_CELL_INFO_LIST, DECODE_CELL_INFO_LIST);
+        t.put(RIL_REQUEST_SET_UNSOL_CELL_INFO_LIST_RATE, DECODE_VOID);
+        t.put(RIL_REQUEST_SET_INITIAL_ATTACH_APN, DECODE_VOID);
+        t.put(RIL_REQUEST_SET_DATA_PROFILE, DECODE_VOID);
+        t.put(RIL_REQUEST_IMS_REGISTRATION_STATE, DECODE_INTS);
+        t.put(RIL_REQUEST_IMS_SEND_SMS, DECODE_SMS);
+        t.put(RIL_REQUEST_SIM_TRANSMIT_APDU_BASIC, DECODE_ICC_IO);
+        t.put(RIL_REQUEST_SIM_OPEN_CHANNEL, new RilResponseTable.Entry(DECODE_INTS,
+                RilResponseTable.FORMAT_DEFAULT, true));
+        t.put(RIL_REQUEST_CAF_SIM_OPEN_CHANNEL_WITH_P2, new RilResponseTable.Entry(DECODE_INTS,
+                RilResponseTable.FORMAT_DEFAULT, true));
+        t.put(RIL_REQUEST_SIM_CLOSE_CHANNEL, DECODE_VOID);
+        t.put(RIL_REQUEST_SIM_TRANSMIT_APDU_CHANNEL, new RilResponseTable.Entry(DECODE_ICC_IO,
+                RilResponseTable.FORMAT_DEFAULT, true));
+        t.put(RIL_REQUEST_SIM_GET_ATR, DECODE_STRING);
+        t.put(RIL_REQUEST_NV_READ_ITEM, DECODE_STRING);
+        t.put(RIL_REQUEST_NV_WRITE_ITEM, DECODE_VOID);
+        t.put(RIL_REQUEST_NV_WRITE_CDMA_PRL, DECODE_VOID);
+        t.put(RIL_REQUEST_NV_RESET_CONFIG, DECODE_VOID);
+        t.put(RIL_REQUEST_SET_UICC_SUBSCRIPTION, DECODE_VOID);
+        t.put(RIL_REQUEST_ALLOW_DATA, DECODE_VOID);
+        t.put(RIL_REQUEST_GET_HARDWARE_CONFIG, new RilResponseTable.Entry(DECODE_HARDWARE_CONFIG,
+                RilResponseTable.FORMAT_ELEMENTS, false));
+        t.put(RIL_REQUEST_SIM_AUTHENTICATION, DECODE_ICC_IO_BASE64);
+        t.put(RIL_REQUEST_SHUTDOWN, DECODE_VOID);
+        t.put(RIL_REQUEST_GET_RADIO_CAPABILITY, DECODE_RADIO_CAPABILITY);
+        t.put(RIL_REQUEST_SET_RADIO_CAPABILITY, DECODE_RADIO_CAPABILITY);
+        t.put(RIL_REQUEST_START_LCE, DECODE_LCE_STATUS);
+        t.put(RIL_REQUEST_STOP_LCE, DECODE_LCE_STATUS);
+        t.put(RIL_REQUEST_PULL_LCEDATA, DECODE_LCE_DATA);
+        t.put(RIL_REQUEST_GET_ACTIVITY_INFO, DECODE_ACTIVITY_DATA);
+        t.put(RIL_REQUEST_SET_MAX_TRANSMIT_POWER, DECODE_VOID);
+
+        t = sUnsolicitedDefaults;
+        t.put(RIL_UNSOL_RESPONSE_RADIO_STATE_CHANGED, DECODE_VOID);
+        t.put(RIL_UNSOL_RESPONSE_CALL_STATE_CHANGED, DECODE_VOID);
+        t.put(RIL_UNSOL_RESPONSE_VOICE_NETWORK_STATE_CHANGED, DECODE_VOID);
+        t.put(RIL_UNSOL_RESPONSE_NEW_SMS, DECODE_STRING);
+        t.put(RIL_UNSOL_RESPONSE_NEW_SMS_STATUS_REPORT, DECODE_STRING);
+        t.put(RIL_UNSOL_RESPONSE_NEW_SMS_ON_SIM, DECODE_INTS);
+        t.put(RIL_UNSOL_ON_USSD, DECODE_STRINGS);
+        t.put(RIL_UNSOL_NITZ_TIME_RECEIVED, DECODE_STRING);
+        t.put(RIL_UNSOL_SIGNAL_STRENGTH, DECODE_SIGNAL_STRENGTH);
+        t.put(RIL_UNSOL_DATA_CALL_LIST_CHANGED, DECODE_DATA_CALL_LIST);
+        t.put(RIL_UNSOL_SUPP_SVC_NOTIFICATION, DECODE_SUPP_SERVICE_NOTIFICATION);
+        t.put(RIL_UNSOL_STK_SESSION_END, DECODE_VOID);
+        t.put(RIL_UNSOL_STK_PROACTIVE_COMMAND, DECODE_STRING);
+        t.put(RIL_UNSOL_STK_EVENT_NOTIFY, DECODE_STRING);
+        t.put(RIL_UNSOL_STK_CALL_SETUP, DECODE_INTS);
+        t.put(RIL_UNSOL_SIM_SMS_STORAGE_FULL, DECODE_VOID);
+        t.put(RIL_UNSOL_SIM_REFRESH, DECODE_SIM_REFRESH);
+        t.put(RIL_UNSOL_CALL_RING, DECODE_CALL_RING);
+        t.put(RIL_UNSOL_RESTRICTED_STATE_CHANGED, DECODE_INTS);
+        t.put(RIL_UNSOL_RESPONSE_SIM_STATUS_CHANGED, DECODE_VOID);
+        t.put(RIL_UNSOL_RESPONSE_CDMA_NEW_SMS, DECODE_CDMA_SMS);
+        t.put(RIL_UNSOL_RESPONSE_NEW_BROADCAST_SMS, DECODE_RAW);
+        t.put(RIL_UNSOL_CDMA_RUIM_SMS_STORAGE_FULL, DECODE_VOID);
+        t.put(RIL_UNSOL_ENTER_EMERGENCY_CALLBACK_MODE, DECODE_VOID);
+        t.put(RIL_UNSOL_CDMA_CALL_WAITING, DECODE_CDMA_CALL_WAITING);
+        t.put(RIL_UNSOL_CDMA_OTA_PROVISION_STATUS, DECODE_INTS);
+        t.put(RIL_UNSOL_CDMA_INFO_REC, DECODE_CDMA_INFORMATION_RECORD);
+        t.put(RIL_UNSOL_OEM_HOOK_RAW, DECODE_RAW);
+        t.put(RIL_UNSOL_RINGBACK_TONE, DECODE_INTS);
+        t.put(RIL_UNSOL_RESEND_INCALL_MUTE, DECODE_VOID);
+        t.put(RIL_UNSOL_CDMA_SUBSCRIPTION_SOURCE_CHANGED, DECODE_INTS);
+        t.put(RIL_UNSOl_CDMA_PRL_CHANGED, DECODE_INTS);
+        t.put(RIL_UNSOL_EXIT_EMERGENCY_CALLBACK_MODE, DECODE_VOID);
+        t.put(RIL_UNSOL_RIL_CONNECTED, DECODE_INTS);
+        t.put(RIL_UNSOL_VOICE_RADIO_TECH_CHANGED, DECODE_INTS);
+        t.put(RIL_UNSOL_CELL_INFO_LIST, DECODE_CELL_INFO_LIST);
+        t.put(RIL_UNSOL_RESPONSE_IMS_NETWORK_STATE_CHANGED, DECODE_VOID);
+        t.put(RIL_UNSOL_UICC_SUBSCRIPTION_STATUS_CHANGED, DECODE_INTS);
+        t.put(RIL_UNSOL_SRVCC_STATE_NOTIFY, DECODE_INTS);
+        t.put(RIL_UNSOL_HARDWARE_CONFIG_CHANGED, DECODE_HARDWARE_CONFIG);
+        t.put(RIL_UNSOL_RADIO_CAPABILITY, DECODE_RADIO_CAPABILITY);
+        t.put(RIL_UNSOL_ON_SS, DECODE_SS_DATA);
+        t.put(RIL_UNSOL_STK_CC_ALPHA_NOTIFY, DECODE_STRING);
+        t.put(RIL_UNSOL_LCEDATA_RECV, DECODE_LCE_DATA);
+    }
 
-                setRadioState (RadioState.RADIO_UNAVAILABLE);
+    /**
+     * Called from the RIL constructor before any thread that reads rild is
+     * started. Vendor RILs override this to register the decoders they
+     * need, so that no frame is decoded with the default table first.
+     * Runs before the subclass constructor, so it must not rely on the
+     * subclass's own fields.
+     */
+    protected void onRegisterResponses() {
+    }
 
-                try {
-                    mSocket.close();
-                } catch (IOException ex) {
-                }
+    /**
+     * Adds or replaces the decoder for a solicited response. Vendor RILs
+     * call this from {@link #onRegisterResponses} for requests they extend.
+     */
+    protected void registerSolicitedResponse(int request, RilResponseTable.Decoder decoder) {
+        checkNotReading("solicited", request);
+        mSolicitedResponses.put(request, decoder);
+    }
 
-                mSocket = null;
-                RILRequest.resetSerial();
+    protected void registerSolicitedResponse(int request, RilResponseTable.Decoder decoder,
+            RilResponseTable.Formatter formatter, boolean privacy) {
+        checkNotReading("solicited", request);
+        mSolicitedResponses.put(request,
+                new RilResponseTable.Entry(decoder, formatter, privacy));
+    }
 
-                // Clear request list on close
-                clearRequestList(RADIO_NOT_AVAILABLE, false);
-            }} catch (Throwable tr) {
-                Rlog.e(RILJ_LOG_TAG,"Uncaught exception", tr);
-            }
+    /**
+     * Adds or replaces the decoder for an unsolicited response. The
+     * response still has to be dispatched by processUnsolicited.
+     */
+    protected void registerUnsolicitedResponse(int response, RilResponseTable.Decoder decoder) {
+        checkNotReading("unsolicited", response);
+        mUnsolicitedResponses.put(response, decoder);
+    }
 
-            /* We're disconnected so we don't know the ril version */
-            notifyRegistrantsRilConnectionChanged(-1);
+    private void checkNotReading(String kind, int code) {
+        if (mReceiverThread != null) {
+            Rlog.w(RILJ_LOG_TAG, "Decoder for " + kind + " " + code + " registered after"
+                    + " RILReceiver started; register it from onRegisterResponses");
         }
     }
 
-
-
     //***** Constructors
 
     public RIL(Context context, int preferredNetworkType, int cdmaSubscription) {
@@ -690,6 +1578,10 @@ public class RIL extends BaseCommands implements CommandsInterface {
         mWakeLockTimeout = SystemProperties.getInt(TelephonyProperties.PROPERTY_WAKE_LOCK_TIMEOUT,
                 DEFAULT_WAKE_LOCK_TIMEOUT);
         mWakeLockCount = 0;
+        initRequestTimeouts();
+
+        // Before any response can be read
+        onRegisterResponses();
 
         mSenderThread = new HandlerThread("RILSender" + mInstanceId);
         mSenderThread.start();
@@ -697,6 +1589,62 @@ public class RIL extends BaseCommands implements CommandsInterface {
         Looper looper = mSenderThread.getLooper();
         mSender = new RILSender(looper);
 
+        if (SystemProperties.getBoolean("ro.telephony.ril.single_flight", false)) {
+            mSingleFlight = new RilSingleFlight();
+        }
+
+        if (SystemProperties.getBoolean("ro.telephony.ril.cache_responses", false)) {
+            mResponseCache = new RilResponseCache(
+                    SystemProperties.get("ro.telephony.ril.cache_ttls", null));
+        }
+
+        int maxInFlight = SystemProperties.getInt("ro.telephony.ril.max_in_flight", 0);
+        if (maxInFlight > 0) {
+            mInFlightWindow = new RilInFlightWindow(this, maxInFlight);
+        }
+
+        if (SystemProperties.getBoolean("ro.telephony.ril.priority_send", false)) {
+            mSendScheduler = new RilSendScheduler(SystemProperties.getInt(
+                    "ro.telephony.ril.priority_max_wait_ms",
+                    RilSendScheduler.DEFAULT_MAX_WAIT_MILLIS));
+        }
+
+        if (SystemProperties.getBoolean("ro.telephony.ril.coalesce_unsol", false)) {
+            mUnsolCoalescer = new RilUnsolCoalescer(this, looper, SystemProperties.getInt(
+                    "ro.telephony.ril.coalesce_window_ms",
+                    RilUnsolCoalescer.DEFAULT_WINDOW_MILLIS));
+        }
+
+        if (useSharedIoLoop()) {
+            try {
+                mIoLoop = RilIoLoop.getInstance();
+                mDecodeQueue = new RilDecodeQueue(this, mSender, EVENT_DECODE,
+                        SystemProperties.getInt("ro.telephony.ril.decode_queue_size",
+                                RilDecodeQueue.DEFAULT_CAPACITY));
+            } catch (ErrnoException e) {
+                Rlog.e(RILJ_LOG_TAG, "Shared I/O loop unavailable, using RILReceiver", e);
+            }
+        }
+
+        // With the shared I/O loop, RILSender decodes
+        if (mIoLoop == null
+                && SystemProperties.getBoolean("ro.telephony.ril.decode_thread", false)) {
+            mDecodePipeline = new RilDecodePipeline(this, SystemProperties.getInt(
+                    "ro.telephony.ril.decode_queue_size",
+                    RilDecodePipeline.DEFAULT_CAPACITY),
+                    "RILDecoder" + mInstanceId);
+        }
+
+        String capturePath = SystemProperties.get("persist.radio.ril_capture");
+        if (!TextUtils.isEmpty(capturePath) && Build.IS_DEBUGGABLE) {
+            riljLog("Capturing RIL traffic to " + capturePath);
+            // One file per RIL instance
+            int instance = mInstanceId == null ? 0 : mInstanceId;
+            mWireCapture = RilWireCapture.open(capturePath + "." + instance,
+                    SystemProperties.getLong("persist.radio.ril_capture_max_kb",
+                            DEFAULT_CAPTURE_MAX_KB) * 1024);
+        }
+
         ConnectivityManager cm = (ConnectivityManager)context.getSystemService(
                 Context.CONNECTIVITY_SERVICE);
         if (cm.isNetworkSupported(ConnectivityManager.TYPE_MOBILE) == false) {
@@ -729,13 +1677,64 @@ public class RIL extends BaseCommands implements CommandsInterface {
         return new RILReceiver();
     }
 
+    /**
+     * Disconnects from rild and stops the threads of this instance for
+     * good. The phone process keeps its RIL instances for its lifetime;
+     * this is for tests that create their own.
+     */
+    void dispose() {
+        mDisposed = true;
+        LocalSocket s = mSocket;
+        if (s != null) {
+            try {
+                // Wakes up a receiver blocked in read
+                s.shutdownInput();
+            } catch (IOException ex) {
+                // already closed
+            }
+        }
+        if (mReceiverThread != null) {
+            // Wakes up a receiver waiting to retry the connection
+            mReceiverThread.interrupt();
+            mContext.unregisterReceiver(mBatteryStateListener);
+            DisplayManager dm = (DisplayManager) mContext.getSystemService(
+                    Context.DISPLAY_SERVICE);
+            dm.unregisterDisplayListener(mDisplayListener);
+        }
+        if (mDecodePipeline != null) {
+            mDecodePipeline.quit();
+        }
+        mSenderThread.quitSafely();
+        if (mWireCapture != null) {
+            mWireCapture.close();
+        }
+    }
+
+    /**
+     * @return whether to read the rild socket on the process-wide RilIoLoop
+     * instead of a RILReceiver thread of our own. Tests override this to
+     * compare both modes in one process.
+     */
+    protected boolean useSharedIoLoop() {
+        return SystemProperties.getBoolean("ro.telephony.ril.shared_io", false);
+    }
+
+    /**
+     * @return the address of the rild socket called <code>name</code>.
+     * Tests override this to connect to a stand-in such as
+     * com.android.internal.telephony.test.RilStandInServer.
+     */
+    protected LocalSocketAddress getSocketAddress(String name) {
+        return new LocalSocketAddress(name, LocalSocketAddress.Namespace.RESERVED);
+    }
+
     //***** CommandsInterface implementation
 
     @Override
     public void getVoiceRadioTechnology(Message result) {
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_VOICE_RADIO_TECH, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -744,7 +1743,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
     public void getImsRegistrationState(Message result) {
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_IMS_REGISTRATION_STATE, result);
 
-        if (RILJ_LOGD) {
+        if (RILJ_TEXT_LOG) {
             riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
         }
         send(rr);
@@ -769,7 +1768,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         //       but this request is also valid for SIM and RUIM
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_GET_SIM_STATUS, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -778,7 +1777,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         //Note: This RIL request is also valid for SIM and RUIM (ICC card)
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_SET_UICC_SUBSCRIPTION, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                 + " appIndex: " + appIndex + " activate: " + activate);
 
         rr.mParcel.writeInt(mInstanceId);
@@ -792,7 +1791,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
     // FIXME This API should take an AID and slot ID
     public void setDataAllowed(boolean allowed, Message result) {
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_ALLOW_DATA, result);
-        if (RILJ_LOGD) {
+        if (RILJ_TEXT_LOG) {
             riljLog(rr.serialString() + "> " + requestToString(rr.mRequest) +
                     " allowed: " + allowed);
         }
@@ -813,7 +1812,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         //       but this request is also valid for SIM and RUIM
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_ENTER_SIM_PIN, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         boolean oldRil = needsOldRilFeature("facilitylock");
 
@@ -837,7 +1836,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         //       but this request is also valid for SIM and RUIM
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_ENTER_SIM_PUK, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         boolean oldRil = needsOldRilFeature("facilitylock");
 
@@ -862,7 +1861,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         //       but this request is also valid for SIM and RUIM
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_ENTER_SIM_PIN2, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         boolean oldRil = needsOldRilFeature("facilitylock");
 
@@ -886,7 +1885,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         //       but this request is also valid for SIM and RUIM
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_ENTER_SIM_PUK2, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         boolean oldRil = needsOldRilFeature("facilitylock");
 
@@ -911,7 +1910,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         //       but this request is also valid for SIM and RUIM
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_CHANGE_SIM_PIN, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         boolean oldRil = needsOldRilFeature("facilitylock");
 
@@ -936,7 +1935,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         //       but this request is also valid for SIM and RUIM
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_CHANGE_SIM_PIN2, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         boolean oldRil = needsOldRilFeature("facilitylock");
 
@@ -955,7 +1954,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
     changeBarringPassword(String facility, String oldPwd, String newPwd, Message result) {
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_CHANGE_BARRING_PASSWORD, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         rr.mParcel.writeInt(3);
         rr.mParcel.writeString(facility);
@@ -1000,7 +1999,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
     getCurrentCalls (Message result) {
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_GET_CURRENT_CALLS, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1016,7 +2015,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
     getDataCallList(Message result) {
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_DATA_CALL_LIST, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1044,7 +2043,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
             rr.mParcel.writeByteArray(uusInfo.getUserData());
         }
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1071,7 +2070,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         if (writeAidOnly)
             rr.mParcel.writeString(aid);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() +
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() +
                               "> getIMSI: " + requestToString(rr.mRequest)
                               + " aid: " + aid);
 
@@ -1083,7 +2082,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
     getIMEI(Message result) {
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_GET_IMEI, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1093,7 +2092,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
     getIMEISV(Message result) {
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_GET_IMEISV, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1106,7 +2105,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_HANGUP, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest) + " " +
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest) + " " +
                 gsmIndex);
 
         rr.mParcel.writeInt(1);
@@ -1121,7 +2120,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_HANGUP_WAITING_OR_BACKGROUND,
                                         result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1133,7 +2132,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 = RILRequest.obtain(
                         RIL_REQUEST_HANGUP_FOREGROUND_RESUME_BACKGROUND,
                                         result);
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1145,7 +2144,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 = RILRequest.obtain(
                         RIL_REQUEST_SWITCH_WAITING_OR_HOLDING_AND_ACTIVE,
                                         result);
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1156,7 +2155,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_CONFERENCE, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1186,7 +2185,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_SEPARATE_CONNECTION, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                             + " " + gsmIndex);
 
         rr.mParcel.writeInt(1);
@@ -1201,7 +2200,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_ANSWER, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1212,7 +2211,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_UDUB, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1223,7 +2222,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_EXPLICIT_CALL_TRANSFER, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1234,7 +2233,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_LAST_CALL_FAIL_CAUSE, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1258,7 +2257,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_LAST_DATA_CALL_FAIL_CAUSE, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1269,7 +2268,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_SET_MUTE, response);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                             + " " + enableMute);
 
         rr.mParcel.writeInt(1);
@@ -1284,7 +2283,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_GET_MUTE, response);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1295,7 +2294,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_SIGNAL_STRENGTH, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1306,7 +2305,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_VOICE_REGISTRATION_STATE, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1317,7 +2316,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_DATA_REGISTRATION_STATE, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1328,7 +2327,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_OPERATOR, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1338,7 +2337,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
     getHardwareConfig (Message result) {
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_GET_HARDWARE_CONFIG, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1349,7 +2348,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_DTMF, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         rr.mParcel.writeString(Character.toString(c));
 
@@ -1362,7 +2361,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_DTMF_START, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         rr.mParcel.writeString(Character.toString(c));
 
@@ -1375,7 +2374,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_DTMF_STOP, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1390,7 +2389,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeString(Integer.toString(on));
         rr.mParcel.writeString(Integer.toString(off));
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                 + " : " + dtmfString);
 
         send(rr);
@@ -1410,7 +2409,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
         constructGsmSendSmsRilRequest(rr, smscPDU, pdu);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1423,7 +2422,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
         constructGsmSendSmsRilRequest(rr, smscPDU, pdu);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1475,7 +2474,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
         constructCdmaSendSmsRilRequest(rr, pdu);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1491,7 +2490,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
         constructGsmSendSmsRilRequest(rr, smscPDU, pdu);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1506,7 +2505,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
         constructCdmaSendSmsRilRequest(rr, pdu);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1706,7 +2705,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeString(authType);
         rr.mParcel.writeString(protocol);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> "
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> "
                 + requestToString(rr.mRequest) + " " + radioTechnology + " "
                 + profile + " " + apn + " " + user + " "
                 + password + " " + authType + " " + protocol);
@@ -1724,7 +2723,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeString(Integer.toString(cid));
         rr.mParcel.writeString(Integer.toString(reason));
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " +
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " +
                 requestToString(rr.mRequest) + " " + cid + " " + reason);
 
         send(rr);
@@ -1738,7 +2737,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeInt(1);
         rr.mParcel.writeInt(on ? 1 : 0);
 
-        if (RILJ_LOGD) {
+        if (RILJ_TEXT_LOG) {
             riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                     + (on ? " on" : " off"));
         }
@@ -1750,7 +2749,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
     public void requestShutdown(Message result) {
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_SHUTDOWN, result);
 
-        if (RILJ_LOGD)
+        if (RILJ_TEXT_LOG)
             riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
@@ -1765,7 +2764,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeInt(1);
         rr.mParcel.writeInt(enable ? 1 : 0);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> "
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> "
                 + requestToString(rr.mRequest));
 
         send(rr);
@@ -1781,7 +2780,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeInt(success ? 1 : 0);
         rr.mParcel.writeInt(cause);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                 + " " + success + " " + cause);
 
         send(rr);
@@ -1797,7 +2796,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         // cause code according to X.S004-550E
         rr.mParcel.writeInt(cause);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                 + " " + success + " " + cause);
 
         send(rr);
@@ -1813,7 +2812,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeString(success ? "1" : "0");
         rr.mParcel.writeString(ackPdu);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                 + ' ' + success + " [" + ackPdu + ']');
 
         send(rr);
@@ -1844,7 +2843,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeString(pin2);
         rr.mParcel.writeString(aid);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> iccIO: "
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> iccIO: "
                 + requestToString(rr.mRequest)
                 + " 0x" + Integer.toHexString(command)
                 + " 0x" + Integer.toHexString(fileid) + " "
@@ -1861,7 +2860,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_GET_CLIR, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1877,7 +2876,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
         rr.mParcel.writeInt(clirMode);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                     + " " + clirMode);
 
         send(rr);
@@ -1892,7 +2891,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeInt(1);
         rr.mParcel.writeInt(serviceClass);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                     + " " + serviceClass);
 
         send(rr);
@@ -1908,7 +2907,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeInt(enable ? 1 : 0);
         rr.mParcel.writeInt(serviceClass);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                 + " " + enable + ", " + serviceClass);
 
         send(rr);
@@ -1921,7 +2920,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 = RILRequest.obtain(RIL_REQUEST_SET_NETWORK_SELECTION_AUTOMATIC,
                                     response);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1933,7 +2932,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 = RILRequest.obtain(RIL_REQUEST_SET_NETWORK_SELECTION_MANUAL,
                                     response);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                     + " " + operatorNumeric);
 
         rr.mParcel.writeString(operatorNumeric);
@@ -1948,7 +2947,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 = RILRequest.obtain(RIL_REQUEST_QUERY_NETWORK_SELECTION_MODE,
                                     response);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1960,7 +2959,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 = RILRequest.obtain(RIL_REQUEST_QUERY_AVAILABLE_NETWORKS,
                                     response);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -1979,7 +2978,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeString(number);
         rr.mParcel.writeInt (timeSeconds);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                     + " " + action + " " + cfReason + " " + serviceClass
                     + timeSeconds);
 
@@ -2000,7 +2999,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeString(number);
         rr.mParcel.writeInt (0);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                 + " " + cfReason + " " + serviceClass);
 
         send(rr);
@@ -2012,7 +3011,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr
             = RILRequest.obtain(RIL_REQUEST_QUERY_CLIP, response);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -2024,7 +3023,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_BASEBAND_VERSION, response);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -2042,7 +3041,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                             Message response) {
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_QUERY_FACILITY_LOCK, response);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         boolean oldRil = needsOldRilFeature("facilitylock");
 
@@ -2075,7 +3074,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
          RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_SET_FACILITY_LOCK, response);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                                                         + " [" + facility + " " + lockState
                                                         + " " + serviceClass + " " + appId + "]");
 
@@ -2103,7 +3102,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_SEND_USSD, response);
 
-        if (RILJ_LOGD) {
+        if (RILJ_TEXT_LOG) {
             String logUssdString = "*******";
             if (RILJ_LOGV) logUssdString = ussdString;
             riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
@@ -2121,7 +3120,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_CANCEL_USSD, response);
 
-        if (RILJ_LOGD) riljLog(rr.serialString()
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString()
                 + "> " + requestToString(rr.mRequest));
 
         send(rr);
@@ -2133,7 +3132,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_RESET_RADIO, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -2175,7 +3174,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_OEM_HOOK_RAW, response);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                + "[" + IccUtils.bytesToHexString(data) + "]");
 
         rr.mParcel.writeByteArray(data);
@@ -2189,7 +3188,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_OEM_HOOK_STRINGS, response);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         rr.mParcel.writeStringArray(strings);
 
@@ -2210,7 +3209,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeInt(1);
         rr.mParcel.writeInt(bandMode);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                  + " " + bandMode);
 
         send(rr);
@@ -2230,7 +3229,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 = RILRequest.obtain(RIL_REQUEST_QUERY_AVAILABLE_BAND_MODE,
                 response);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -2243,7 +3242,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr = RILRequest.obtain(
                 RILConstants.RIL_REQUEST_STK_SEND_TERMINAL_RESPONSE, response);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         rr.mParcel.writeString(contents);
         send(rr);
@@ -2257,7 +3256,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr = RILRequest.obtain(
                 RILConstants.RIL_REQUEST_STK_SEND_ENVELOPE_COMMAND, response);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         rr.mParcel.writeString(contents);
         send(rr);
@@ -2271,7 +3270,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr = RILRequest.obtain(
                 RILConstants.RIL_REQUEST_STK_SEND_ENVELOPE_WITH_STATUS, response);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                 + '[' + contents + ']');
 
         rr.mParcel.writeString(contents);
@@ -2289,7 +3288,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
             RILConstants.RIL_REQUEST_STK_HANDLE_CALL_SETUP_REQUESTED_FROM_SIM,
             response);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         int[] param = new int[1];
         param[0] = accept ? 1 : 0;
@@ -2310,7 +3309,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
         mPreferredNetworkType = networkType;
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                 + " : " + networkType);
 
         send(rr);
@@ -2324,7 +3323,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr = RILRequest.obtain(
                 RILConstants.RIL_REQUEST_GET_PREFERRED_NETWORK_TYPE, response);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -2337,7 +3336,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr = RILRequest.obtain(
                 RILConstants.RIL_REQUEST_GET_NEIGHBORING_CELL_IDS, response);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -2351,7 +3350,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeInt(1);
         rr.mParcel.writeInt(enable ? 1 : 0);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> "
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> "
                 + requestToString(rr.mRequest) + ": " + enable);
 
         send(rr);
@@ -2364,7 +3363,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
     public void getSmscAddress(Message result) {
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_GET_SMSC_ADDRESS, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -2378,7 +3377,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
         rr.mParcel.writeString(address);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                 + " : " + address);
 
         send(rr);
@@ -2393,7 +3392,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeInt(1);
         rr.mParcel.writeInt(available ? 1 : 0);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> "
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> "
                 + requestToString(rr.mRequest) + ": " + available);
 
         send(rr);
@@ -2406,7 +3405,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
     public void reportStkServiceIsRunning(Message result) {
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_REPORT_STK_SERVICE_IS_RUNNING, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -2418,7 +3417,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
     public void getGsmBroadcastConfig(Message response) {
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_GSM_GET_BROADCAST_CONFIG, response);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -2441,7 +3440,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
             rr.mParcel.writeInt(config[i].isSelected() ? 1 : 0);
         }
 
-        if (RILJ_LOGD) {
+        if (RILJ_TEXT_LOG) {
             riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                     + " with " + numOfConfig + " configs : ");
             for (int i = 0; i < numOfConfig; i++) {
@@ -2462,7 +3461,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeInt(1);
         rr.mParcel.writeInt(activate ? 0 : 1);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -2497,7 +3496,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeInt(1);
         rr.mParcel.writeInt(on ? 1 : 0);
 
-        if (RILJ_LOGD) riljLog(rr.serialString()
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString()
                 + "> " + requestToString(rr.mRequest) + ": " + on);
 
         send(rr);
@@ -2539,11 +3538,24 @@ public class RIL extends BaseCommands implements CommandsInterface {
         setRadioState(newState);
     }
 
+    @Override
+    protected void setRadioState(RadioState newState) {
+        if (newState == RadioState.RADIO_UNAVAILABLE && mResponseCache != null) {
+            // Cached answers may not survive a modem restart
+            mResponseCache.invalidate();
+        }
+        super.setRadioState(newState);
+    }
+
     /**
      * Holds a PARTIAL_WAKE_LOCK whenever
      * a) There is outstanding RIL request sent to RIL deamon and no replied
      * b) There is a request pending to be sent out.
      *
+     * Long running requests (see isLongRunning) only count towards b).
+     * Every written request has its own response deadline, after which it
+     * is failed with REQUEST_TIMED_OUT and its reference dropped.
+     *
      * There is a WAKE_LOCK_TIMEOUT to release the lock, though it shouldn't
      * happen often.
      */
@@ -2586,23 +3598,176 @@ public class RIL extends BaseCommands implements CommandsInterface {
         }
     }
 
+    /**
+     * Drops the wake lock reference of a request that was answered, timed
+     * out or cleared. Long running requests gave theirs up when written.
+     */
+    private void
+    decrementWakeLockForResponse(int request) {
+        if (!isLongRunning(request)) {
+            decrementWakeLock();
+        }
+    }
+
+    /**
+     * @return how long rild has to answer <code>request</code>, in ms.
+     */
+    protected int
+    getRequestTimeout(int request) {
+        return mRequestTimeouts.get(request, mWakeLockTimeout);
+    }
+
+    /**
+     * @return true if <code>request</code> may legitimately take longer than
+     * the wake lock timeout, so the wake lock is not held while waiting.
+     */
+    protected boolean
+    isLongRunning(int request) {
+        return getRequestTimeout(request) > mWakeLockTimeout;
+    }
+
+    /**
+     * Loads per-request response deadlines. Defaults cover the network
+     * scans; ro.telephony.ril.request_timeouts overrides them as a comma
+     * separated list of request:millis pairs.
+     */
+    private void
+    initRequestTimeouts() {
+        mRequestTimeouts.put(RIL_REQUEST_QUERY_AVAILABLE_NETWORKS, 3 * 60 * 1000);
+        mRequestTimeouts.put(RIL_REQUEST_SET_NETWORK_SELECTION_MANUAL, 2 * 60 * 1000);
+        mRequestTimeouts.put(RIL_REQUEST_SET_NETWORK_SELECTION_AUTOMATIC, 2 * 60 * 1000);
+
+        String config = SystemProperties.get("ro.telephony.ril.request_timeouts", "");
+        if (TextUtils.isEmpty(config)) {
+            return;
+        }
+        for (String entry : config.split(",")) {
+            String[] pair = entry.trim().split(":");
+            try {
+                mRequestTimeouts.put(Integer.parseInt(pair[0].trim()),
+                        Integer.parseInt(pair[1].trim()));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                riljLog("Ignoring malformed request timeout '" + entry + "'");
+            }
+        }
+    }
+
     protected void
     send(RILRequest rr) {
-        Message msg;
-
         if (mSocket == null) {
             rr.onError(RADIO_NOT_AVAILABLE, null);
             rr.release();
             return;
         }
 
+        Object cached = mResponseCache != null ? mResponseCache.get(rr.mRequest) : null;
+        if (cached != null) {
+            if (RILJ_TEXT_LOG) {
+                riljLog(rr.serialString() + "< " + requestToString(rr.mRequest) + " (cached)");
+            }
+            rr.sendResult(cached, null);
+            rr.release();
+            return;
+        }
+        if (mResponseCache != null) {
+            rr.mCacheGeneration = mResponseCache.getGeneration();
+        }
+
+        if (mSingleFlight != null && mSingleFlight.join(rr)) {
+            // Answered along with the identical request already in flight
+            rr.release();
+            return;
+        }
+
+        if (mInFlightWindow != null) {
+            switch (mInFlightWindow.admit(rr)) {
+                case RilInFlightWindow.DEFERRED:
+                    // Sent through sendDeferred once a slot frees up
+                    return;
+                case RilInFlightWindow.REJECTED:
+                    if (RILJ_LOGD) {
+                        riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
+                                + " rejected, in-flight window full");
+                    }
+                    rr.onError(new CommandException(
+                            CommandException.Error.REQUEST_WINDOW_FULL));
+                    rr.release();
+                    return;
+            }
+        }
+
+        sendAdmitted(rr);
+    }
+
+    /**
+     * Called by the in-flight window when it defers <code>rr</code>. The
+     * request holds a wake lock reference while it waits for a slot, and
+     * is failed with REQUEST_TIMED_OUT if it is still waiting when its
+     * response deadline passes.
+     */
+    void
+    onDeferred(RILRequest rr) {
+        acquireWakeLock();
+        Message msg = mSender.obtainMessage(EVENT_DEFERRED_TIMEOUT, rr.mSerial, 0, rr);
+        mSender.sendMessageDelayed(msg, getRequestTimeout(rr.mRequest));
+    }
+
+    /**
+     * Sends a request the in-flight window deferred, now that it has a
+     * slot.
+     */
+    void
+    sendDeferred(RILRequest rr) {
+        mSender.removeMessages(EVENT_DEFERRED_TIMEOUT, rr);
+        sendAdmitted(rr);
+        // sendAdmitted took a wake lock reference of its own
+        decrementWakeLock();
+    }
+
+    /**
+     * Queues a request for RILSender once it has passed admission control.
+     */
+    void
+    sendAdmitted(RILRequest rr) {
+        Message msg;
+
+        mEventLog.log(RilEventLog.KIND_REQUEST, rr.mSerial, rr.mRequest, 0, null);
+
+        if (mBatchSend) {
+            acquireWakeLock();
+            rr.mEnqueueNanos = SystemClock.elapsedRealtimeNanos();
+            if (mSendScheduler != null) {
+                mSendScheduler.offer(rr);
+            } else {
+                mSendQueue.add(rr);
+            }
+            if (mSendBatchPending.compareAndSet(false, true)) {
+                mSender.sendEmptyMessage(EVENT_SEND_BATCH);
+            }
+            return;
+        }
+
+        if (mSendScheduler != null) {
+            acquireWakeLock();
+            rr.mEnqueueNanos = SystemClock.elapsedRealtimeNanos();
+            mSendScheduler.offer(rr);
+            mSender.sendEmptyMessage(EVENT_SEND_NEXT);
+            return;
+        }
+
         msg = mSender.obtainMessage(EVENT_SEND, rr);
 
         acquireWakeLock();
+        rr.mEnqueueNanos = SystemClock.elapsedRealtimeNanos();
 
         msg.sendToTarget();
     }
 
+    private RILRequest
+    pollSendQueue() {
+        return mSendScheduler != null ? mSendScheduler.poll() : mSendQueue.poll();
+    }
+
     protected void
     processResponse (Parcel p) {
         int type;
@@ -2614,8 +3779,9 @@ public class RIL extends BaseCommands implements CommandsInterface {
         } else if (type == RESPONSE_SOLICITED) {
             RILRequest rr = processSolicited (p);
             if (rr != null) {
+                int request = rr.mRequest;
                 rr.release();
-                decrementWakeLock();
+                decrementWakeLockForResponse(request);
             }
         }
     }
@@ -2627,38 +3793,31 @@ public class RIL extends BaseCommands implements CommandsInterface {
      */
     protected void clearRequestList(int error, boolean loggable) {
         RILRequest rr;
-        synchronized (mRequestList) {
-            int count = mRequestList.size();
-            if (RILJ_LOGD && loggable) {
-                Rlog.d(RILJ_LOG_TAG, "clearRequestList " +
-                        " mWakeLockCount=" + mWakeLockCount +
-                        " mRequestList=" + count);
-            }
+        ArrayList<RILRequest> cleared = new ArrayList<RILRequest>();
+        mRequestList.removeAll(cleared);
+
+        int count = cleared.size();
+        if (RILJ_LOGD && loggable) {
+            Rlog.d(RILJ_LOG_TAG, "clearRequestList " +
+                    " mWakeLockCount=" + mWakeLockCount +
+                    " mRequestList=" + count);
+        }
 
-            for (int i = 0; i < count ; i++) {
-                rr = mRequestList.valueAt(i);
-                if (RILJ_LOGD && loggable) {
-                    Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] " +
-                            requestToString(rr.mRequest));
-                }
-                rr.onError(error, null);
-                rr.release();
-                decrementWakeLock();
+        for (int i = 0; i < count ; i++) {
+            rr = cleared.get(i);
+            if (RILJ_LOGD && loggable) {
+                Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] " +
+                        requestToString(rr.mRequest));
             }
-            mRequestList.clear();
+            int request = rr.mRequest;
+            rr.onError(error, null);
+            rr.release();
+            decrementWakeLockForResponse(request);
         }
     }
 
     protected RILRequest findAndRemoveRequestFromList(int serial) {
-        RILRequest rr = null;
-        synchronized (mRequestList) {
-            rr = mRequestList.get(serial);
-            if (rr != null) {
-                mRequestList.remove(serial);
-            }
-        }
-
-        return rr;
+        return mRequestList.remove(serial);
     }
 
     protected RILRequest
@@ -2679,176 +3838,27 @@ public class RIL extends BaseCommands implements CommandsInterface {
             return null;
         }
 
+        mLatencyStats.record(rr.mRequest, rr.mEnqueueNanos, rr.mWriteNanos,
+                SystemClock.elapsedRealtimeNanos(), error);
+
         Object ret = null;
 
         if (error == 0 || p.dataAvail() > 0) {
             // either command succeeds or command fails but with data payload
-            try {switch (rr.mRequest) {
-            /*
- cat libs/telephony/ril_commands.h \
- | egrep "^ *{RIL_" \
- | sed -re 's/\{([^,]+),[^,]+,([^}]+).+/case \1: ret = \2(p); break;/'
-             */
-            case RIL_REQUEST_GET_SIM_STATUS: ret =  responseIccCardStatus(p); break;
-            case RIL_REQUEST_ENTER_SIM_PIN: ret =  responseInts(p); break;
-            case RIL_REQUEST_ENTER_SIM_PUK: ret =  responseInts(p); break;
-            case RIL_REQUEST_ENTER_SIM_PIN2: ret =  responseInts(p); break;
-            case RIL_REQUEST_ENTER_SIM_PUK2: ret =  responseInts(p); break;
-            case RIL_REQUEST_CHANGE_SIM_PIN: ret =  responseInts(p); break;
-            case RIL_REQUEST_CHANGE_SIM_PIN2: ret =  responseInts(p); break;
-            case RIL_REQUEST_ENTER_NETWORK_DEPERSONALIZATION: ret =  responseInts(p); break;
-            case RIL_REQUEST_GET_CURRENT_CALLS: ret =  responseCallList(p); break;
-            case RIL_REQUEST_DIAL: ret =  responseVoid(p); break;
-            case RIL_REQUEST_GET_IMSI: ret =  responseString(p); break;
-            case RIL_REQUEST_HANGUP: ret =  responseVoid(p); break;
-            case RIL_REQUEST_HANGUP_WAITING_OR_BACKGROUND: ret =  responseVoid(p); break;
-            case RIL_REQUEST_HANGUP_FOREGROUND_RESUME_BACKGROUND: {
-                if (mTestingEmergencyCall.getAndSet(false)) {
-                    if (mEmergencyCallbackModeRegistrant != null) {
-                        riljLog("testing emergency call, notify ECM Registrants");
-                        mEmergencyCallbackModeRegistrant.notifyRegistrant();
-                    }
+            try {
+                RilResponseTable.Entry entry = mSolicitedResponses.get(rr.mRequest);
+                if (entry == null) {
+                    throw new RuntimeException("Unrecognized solicited response: " + rr.mRequest);
                 }
-                ret =  responseVoid(p);
-                break;
-            }
-            case RIL_REQUEST_SWITCH_WAITING_OR_HOLDING_AND_ACTIVE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CONFERENCE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_UDUB: ret =  responseVoid(p); break;
-            case RIL_REQUEST_LAST_CALL_FAIL_CAUSE: ret =  responseFailCause(p); break;
-            case RIL_REQUEST_SIGNAL_STRENGTH: ret =  responseSignalStrength(p); break;
-            case RIL_REQUEST_VOICE_REGISTRATION_STATE: ret =  responseStrings(p); break;
-            case RIL_REQUEST_DATA_REGISTRATION_STATE: ret =  responseStrings(p); break;
-            case RIL_REQUEST_OPERATOR: ret =  responseStrings(p); break;
-            case RIL_REQUEST_RADIO_POWER: ret =  responseVoid(p); break;
-            case RIL_REQUEST_DTMF: ret =  responseVoid(p); break;
-            case RIL_REQUEST_SEND_SMS: ret =  responseSMS(p); break;
-            case RIL_REQUEST_SEND_SMS_EXPECT_MORE: ret =  responseSMS(p); break;
-            case RIL_REQUEST_SETUP_DATA_CALL: ret =  responseSetupDataCall(p); break;
-            case RIL_REQUEST_SIM_IO: ret =  responseICC_IO(p); break;
-            case RIL_REQUEST_SEND_USSD: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CANCEL_USSD: ret =  responseVoid(p); break;
-            case RIL_REQUEST_GET_CLIR: ret =  responseInts(p); break;
-            case RIL_REQUEST_SET_CLIR: ret =  responseVoid(p); break;
-            case RIL_REQUEST_QUERY_CALL_FORWARD_STATUS: ret =  responseCallForward(p); break;
-            case RIL_REQUEST_SET_CALL_FORWARD: ret =  responseVoid(p); break;
-            case RIL_REQUEST_QUERY_CALL_WAITING: ret =  responseInts(p); break;
-            case RIL_REQUEST_SET_CALL_WAITING: ret =  responseVoid(p); break;
-            case RIL_REQUEST_SMS_ACKNOWLEDGE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_GET_IMEI: ret =  responseString(p); break;
-            case RIL_REQUEST_GET_IMEISV: ret =  responseString(p); break;
-            case RIL_REQUEST_ANSWER: ret =  responseVoid(p); break;
-            case RIL_REQUEST_DEACTIVATE_DATA_CALL: ret =  responseVoid(p); break;
-            case RIL_REQUEST_QUERY_FACILITY_LOCK: ret =  responseInts(p); break;
-            case RIL_REQUEST_SET_FACILITY_LOCK: ret =  responseInts(p); break;
-            case RIL_REQUEST_CHANGE_BARRING_PASSWORD: ret =  responseVoid(p); break;
-            case RIL_REQUEST_QUERY_NETWORK_SELECTION_MODE: ret =  responseInts(p); break;
-            case RIL_REQUEST_SET_NETWORK_SELECTION_AUTOMATIC: ret =  responseVoid(p); break;
-            case RIL_REQUEST_SET_NETWORK_SELECTION_MANUAL: ret =  responseVoid(p); break;
-            case RIL_REQUEST_QUERY_AVAILABLE_NETWORKS : ret =  responseOperatorInfos(p); break;
-            case RIL_REQUEST_DTMF_START: ret =  responseVoid(p); break;
-            case RIL_REQUEST_DTMF_STOP: ret =  responseVoid(p); break;
-            case RIL_REQUEST_BASEBAND_VERSION: ret =  responseString(p); break;
-            case RIL_REQUEST_SEPARATE_CONNECTION: ret =  responseVoid(p); break;
-            case RIL_REQUEST_SET_MUTE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_GET_MUTE: ret =  responseInts(p); break;
-            case RIL_REQUEST_QUERY_CLIP: ret =  responseInts(p); break;
-            case RIL_REQUEST_LAST_DATA_CALL_FAIL_CAUSE: ret =  responseInts(p); break;
-            case RIL_REQUEST_DATA_CALL_LIST: ret =  responseDataCallList(p); break;
-            case RIL_REQUEST_RESET_RADIO: ret =  responseVoid(p); break;
-            case RIL_REQUEST_OEM_HOOK_RAW: ret =  responseRaw(p); break;
-            case RIL_REQUEST_OEM_HOOK_STRINGS: ret =  responseStrings(p); break;
-            case RIL_REQUEST_SCREEN_STATE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_SET_SUPP_SVC_NOTIFICATION: ret =  responseVoid(p); break;
-            case RIL_REQUEST_WRITE_SMS_TO_SIM: ret =  responseInts(p); break;
-            case RIL_REQUEST_DELETE_SMS_ON_SIM: ret =  responseVoid(p); break;
-            case RIL_REQUEST_SET_BAND_MODE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_QUERY_AVAILABLE_BAND_MODE: ret =  responseInts(p); break;
-            case RIL_REQUEST_STK_GET_PROFILE: ret =  responseString(p); break;
-            case RIL_REQUEST_STK_SET_PROFILE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_STK_SEND_ENVELOPE_COMMAND: ret =  responseString(p); break;
-            case RIL_REQUEST_STK_SEND_TERMINAL_RESPONSE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_STK_HANDLE_CALL_SETUP_REQUESTED_FROM_SIM: ret =  responseInts(p); break;
-            case RIL_REQUEST_EXPLICIT_CALL_TRANSFER: ret =  responseVoid(p); break;
-            case RIL_REQUEST_SET_PREFERRED_NETWORK_TYPE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_GET_PREFERRED_NETWORK_TYPE: ret =  responseGetPreferredNetworkType(p); break;
-            case RIL_REQUEST_GET_NEIGHBORING_CELL_IDS: ret = responseCellList(p); break;
-            case RIL_REQUEST_SET_LOCATION_UPDATES: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_SET_SUBSCRIPTION_SOURCE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_SET_ROAMING_PREFERENCE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_QUERY_ROAMING_PREFERENCE: ret =  responseInts(p); break;
-            case RIL_REQUEST_SET_TTY_MODE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_QUERY_TTY_MODE: ret =  responseInts(p); break;
-            case RIL_REQUEST_CDMA_SET_PREFERRED_VOICE_PRIVACY_MODE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_QUERY_PREFERRED_VOICE_PRIVACY_MODE: ret =  responseInts(p); break;
-            case RIL_REQUEST_CDMA_FLASH: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_BURST_DTMF: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_SEND_SMS: ret =  responseSMS(p); break;
-            case RIL_REQUEST_CDMA_SMS_ACKNOWLEDGE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_GSM_GET_BROADCAST_CONFIG: ret =  responseGmsBroadcastConfig(p); break;
-            case RIL_REQUEST_GSM_SET_BROADCAST_CONFIG: ret =  responseVoid(p); break;
-            case RIL_REQUEST_GSM_BROADCAST_ACTIVATION: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_GET_BROADCAST_CONFIG: ret =  responseCdmaBroadcastConfig(p); break;
-            case RIL_REQUEST_CDMA_SET_BROADCAST_CONFIG: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_BROADCAST_ACTIVATION: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_VALIDATE_AND_WRITE_AKEY: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_SUBSCRIPTION: ret =  responseStrings(p); break;
-            case RIL_REQUEST_CDMA_WRITE_SMS_TO_RUIM: ret =  responseInts(p); break;
-            case RIL_REQUEST_CDMA_DELETE_SMS_ON_RUIM: ret =  responseVoid(p); break;
-            case RIL_REQUEST_DEVICE_IDENTITY: ret =  responseStrings(p); break;
-            case RIL_REQUEST_GET_SMSC_ADDRESS: ret = responseString(p); break;
-            case RIL_REQUEST_SET_SMSC_ADDRESS: ret = responseVoid(p); break;
-            case RIL_REQUEST_EXIT_EMERGENCY_CALLBACK_MODE: ret = responseVoid(p); break;
-            case RIL_REQUEST_REPORT_SMS_MEMORY_STATUS: ret = responseVoid(p); break;
-            case RIL_REQUEST_REPORT_STK_SERVICE_IS_RUNNING: ret = responseVoid(p); break;
-            case RIL_REQUEST_CDMA_GET_SUBSCRIPTION_SOURCE: ret =  responseInts(p); break;
-            case RIL_REQUEST_ISIM_AUTHENTICATION: ret =  responseString(p); break;
-            case RIL_REQUEST_ACKNOWLEDGE_INCOMING_GSM_SMS_WITH_PDU: ret = responseVoid(p); break;
-            case RIL_REQUEST_STK_SEND_ENVELOPE_WITH_STATUS: ret = responseICC_IO(p); break;
-            case RIL_REQUEST_VOICE_RADIO_TECH: ret = responseInts(p); break;
-            case RIL_REQUEST_GET_CELL_INFO_LIST: ret = responseCellInfoList(p); break;
-            case RIL_REQUEST_SET_UNSOL_CELL_INFO_LIST_RATE: ret = responseVoid(p); break;
-            case RIL_REQUEST_SET_INITIAL_ATTACH_APN: ret = responseVoid(p); break;
-            case RIL_REQUEST_SET_DATA_PROFILE: ret = responseVoid(p); break;
-            case RIL_REQUEST_IMS_REGISTRATION_STATE: ret = responseInts(p); break;
-            case RIL_REQUEST_IMS_SEND_SMS: ret =  responseSMS(p); break;
-            case RIL_REQUEST_SIM_TRANSMIT_APDU_BASIC: ret =  responseICC_IO(p); break;
-            case RIL_REQUEST_SIM_OPEN_CHANNEL: ret  = responseInts(p); break;
-            case RIL_REQUEST_CAF_SIM_OPEN_CHANNEL_WITH_P2: ret = responseInts(p); break;
-            case RIL_REQUEST_SIM_CLOSE_CHANNEL: ret  = responseVoid(p); break;
-            case RIL_REQUEST_SIM_TRANSMIT_APDU_CHANNEL: ret = responseICC_IO(p); break;
-            case RIL_REQUEST_SIM_GET_ATR: ret = responseString(p); break;
-            case RIL_REQUEST_NV_READ_ITEM: ret = responseString(p); break;
-            case RIL_REQUEST_NV_WRITE_ITEM: ret = responseVoid(p); break;
-            case RIL_REQUEST_NV_WRITE_CDMA_PRL: ret = responseVoid(p); break;
-            case RIL_REQUEST_NV_RESET_CONFIG: ret = responseVoid(p); break;
-            case RIL_REQUEST_SET_UICC_SUBSCRIPTION: ret = responseVoid(p); break;
-            case RIL_REQUEST_ALLOW_DATA: ret = responseVoid(p); break;
-            case RIL_REQUEST_GET_HARDWARE_CONFIG: ret = responseHardwareConfig(p); break;
-            case RIL_REQUEST_SIM_AUTHENTICATION: ret =  responseICC_IOBase64(p); break;
-            case RIL_REQUEST_SHUTDOWN: ret = responseVoid(p); break;
-            case RIL_REQUEST_GET_RADIO_CAPABILITY: ret =  responseRadioCapability(p); break;
-            case RIL_REQUEST_SET_RADIO_CAPABILITY: ret =  responseRadioCapability(p); break;
-            case RIL_REQUEST_START_LCE: ret = responseLceStatus(p); break;
-            case RIL_REQUEST_STOP_LCE: ret = responseLceStatus(p); break;
-            case RIL_REQUEST_PULL_LCEDATA: ret = responseLceData(p); break;
-            case RIL_REQUEST_GET_ACTIVITY_INFO: ret = responseActivityData(p); break;
-            case RIL_REQUEST_SET_MAX_TRANSMIT_POWER: ret = responseVoid(p); break;
-
-            default:
-                throw new RuntimeException("Unrecognized solicited response: " + rr.mRequest);
-            //break;
-            }} catch (Throwable tr) {
+                ret = entry.decoder.decode(this, p);
+            } catch (Throwable tr) {
                 // Exceptions here usually mean invalid RIL responses
 
                 Rlog.w(RILJ_LOG_TAG, rr.serialString() + "< "
                         + requestToString(rr.mRequest)
                         + " exception, possible invalid RIL response", tr);
 
-                if (rr.mResult != null) {
-                    AsyncResult.forMessage(rr.mResult, null, tr);
-                    rr.mResult.sendToTarget();
-                }
+                rr.sendResult(null, tr);
                 return rr;
             }
         }
@@ -2877,6 +3887,9 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 break;
         }
 
+        // Set when a failure is reported as success with a stand-in
+        // result, which must not be cached as rild's answer
+        boolean substituted = false;
         if (error != 0) {
             switch (rr.mRequest) {
                 case RIL_REQUEST_ENTER_SIM_PIN:
@@ -2902,6 +3915,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                         // supports based on preferred network bitmasks
                         ret = makeStaticRadioCapability();
                         error = 0;
+                        substituted = true;
                     }
                     break;
                 }
@@ -2909,20 +3923,25 @@ public class RIL extends BaseCommands implements CommandsInterface {
                     ret = new ModemActivityInfo(0, 0, 0,
                             new int [ModemActivityInfo.TX_POWER_LEVELS], 0, 0);
                     error = 0;
+                    substituted = true;
                     break;
             }
 
             if (error != 0) rr.onError(error, ret);
         }
+        mEventLog.log(RilEventLog.KIND_RESPONSE, serial, rr.mRequest, error, ret);
+        if (mResponseCache != null) {
+            mResponseCache.onSolicited(rr.mRequest);
+        }
         if (error == 0) {
+            if (mResponseCache != null && !substituted) {
+                mResponseCache.put(rr.mRequest, ret, rr.mCacheGeneration);
+            }
 
-            if (RILJ_LOGD) riljLog(rr.serialString() + "< " + requestToString(rr.mRequest)
-                    + " " + retToString(rr.mRequest, ret));
+            if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "< " + requestToString(rr.mRequest)
+                    + " " + mSolicitedResponses.format(rr.mRequest, ret));
 
-            if (rr.mResult != null) {
-                AsyncResult.forMessage(rr.mResult, ret, null);
-                rr.mResult.sendToTarget();
-            }
+            rr.sendResult(ret, null);
         }
         return rr;
     }
@@ -2944,87 +3963,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
     static String
     retToString(int req, Object ret) {
-        if (ret == null) return "";
-        switch (req) {
-            // Don't log these return values, for privacy's sake.
-            case RIL_REQUEST_GET_IMSI:
-            case RIL_REQUEST_GET_IMEI:
-            case RIL_REQUEST_GET_IMEISV:
-            case RIL_REQUEST_SIM_OPEN_CHANNEL:
-            case RIL_REQUEST_CAF_SIM_OPEN_CHANNEL_WITH_P2:
-            case RIL_REQUEST_SIM_TRANSMIT_APDU_CHANNEL:
-
-                if (!RILJ_LOGV) {
-                    // If not versbose logging just return and don't display IMSI and IMEI, IMEISV
-                    return "";
-                }
-        }
-
-        StringBuilder sb;
-        String s;
-        int length;
-        if (ret instanceof int[]){
-            int[] intArray = (int[]) ret;
-            length = intArray.length;
-            sb = new StringBuilder("{");
-            if (length > 0) {
-                int i = 0;
-                sb.append(intArray[i++]);
-                while ( i < length) {
-                    sb.append(", ").append(intArray[i++]);
-                }
-            }
-            sb.append("}");
-            s = sb.toString();
-        } else if (ret instanceof String[]) {
-            String[] strings = (String[]) ret;
-            length = strings.length;
-            sb = new StringBuilder("{");
-            if (length > 0) {
-                int i = 0;
-                sb.append(strings[i++]);
-                while ( i < length) {
-                    sb.append(", ").append(strings[i++]);
-                }
-            }
-            sb.append("}");
-            s = sb.toString();
-        }else if (req == RIL_REQUEST_GET_CURRENT_CALLS) {
-            ArrayList<DriverCall> calls = (ArrayList<DriverCall>) ret;
-            sb = new StringBuilder("{");
-            for (DriverCall dc : calls) {
-                sb.append("[").append(dc).append("] ");
-            }
-            sb.append("}");
-            s = sb.toString();
-        } else if (req == RIL_REQUEST_GET_NEIGHBORING_CELL_IDS) {
-            ArrayList<NeighboringCellInfo> cells = (ArrayList<NeighboringCellInfo>) ret;
-            sb = new StringBuilder("{");
-            for (NeighboringCellInfo cell : cells) {
-                sb.append("[").append(cell).append("] ");
-            }
-            sb.append("}");
-            s = sb.toString();
-        } else if (req == RIL_REQUEST_QUERY_CALL_FORWARD_STATUS) {
-            CallForwardInfo[] cinfo = (CallForwardInfo[]) ret;
-            length = cinfo.length;
-            sb = new StringBuilder("{");
-            for(int i = 0; i < length; i++) {
-                sb.append("[").append(cinfo[i]).append("] ");
-            }
-            sb.append("}");
-            s = sb.toString();
-        } else if (req == RIL_REQUEST_GET_HARDWARE_CONFIG) {
-            ArrayList<HardwareConfig> hwcfgs = (ArrayList<HardwareConfig>) ret;
-            sb = new StringBuilder(" ");
-            for (HardwareConfig hwcfg : hwcfgs) {
-                sb.append("[").append(hwcfg).append("] ");
-            }
-            s = sb.toString();
-        } else {
-            s = ret.toString();
-        }
-        return s;
+        return sSolicitedDefaults.format(req, ret);
     }
 
     protected void
@@ -3034,96 +3973,68 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
         response = p.readInt();
 
-        try {switch(response) {
-/*
- cat libs/telephony/ril_unsol_commands.h \
- | egrep "^ *{RIL_" \
- | sed -re 's/\{([^,]+),[^,]+,([^}]+).+/case \1: \2(rr, p); break;/'
-*/
-
-            case RIL_UNSOL_RESPONSE_RADIO_STATE_CHANGED: ret =  responseVoid(p); break;
-            case RIL_UNSOL_RESPONSE_CALL_STATE_CHANGED: ret =  responseVoid(p); break;
-            case RIL_UNSOL_RESPONSE_VOICE_NETWORK_STATE_CHANGED: ret =  responseVoid(p); break;
-            case RIL_UNSOL_RESPONSE_NEW_SMS: ret =  responseString(p); break;
-            case RIL_UNSOL_RESPONSE_NEW_SMS_STATUS_REPORT: ret =  responseString(p); break;
-            case RIL_UNSOL_RESPONSE_NEW_SMS_ON_SIM: ret =  responseInts(p); break;
-            case RIL_UNSOL_ON_USSD: ret =  responseStrings(p); break;
-            case RIL_UNSOL_NITZ_TIME_RECEIVED: ret =  responseString(p); break;
-            case RIL_UNSOL_SIGNAL_STRENGTH: ret = responseSignalStrength(p); break;
-            case RIL_UNSOL_DATA_CALL_LIST_CHANGED: ret = responseDataCallList(p);break;
-            case RIL_UNSOL_SUPP_SVC_NOTIFICATION: ret = responseSuppServiceNotification(p); break;
-            case RIL_UNSOL_STK_SESSION_END: ret = responseVoid(p); break;
-            case RIL_UNSOL_STK_PROACTIVE_COMMAND: ret = responseString(p); break;
-            case RIL_UNSOL_STK_EVENT_NOTIFY: ret = responseString(p); break;
-            case RIL_UNSOL_STK_CALL_SETUP: ret = responseInts(p); break;
-            case RIL_UNSOL_SIM_SMS_STORAGE_FULL: ret =  responseVoid(p); break;
-            case RIL_UNSOL_SIM_REFRESH: ret =  responseSimRefresh(p); break;
-            case RIL_UNSOL_CALL_RING: ret =  responseCallRing(p); break;
-            case RIL_UNSOL_RESTRICTED_STATE_CHANGED: ret = responseInts(p); break;
-            case RIL_UNSOL_RESPONSE_SIM_STATUS_CHANGED:  ret =  responseVoid(p); break;
-            case RIL_UNSOL_RESPONSE_CDMA_NEW_SMS:  ret =  responseCdmaSms(p); break;
-            case RIL_UNSOL_RESPONSE_NEW_BROADCAST_SMS:  ret =  responseRaw(p); break;
-            case RIL_UNSOL_CDMA_RUIM_SMS_STORAGE_FULL:  ret =  responseVoid(p); break;
-            case RIL_UNSOL_ENTER_EMERGENCY_CALLBACK_MODE: ret = responseVoid(p); break;
-            case RIL_UNSOL_CDMA_CALL_WAITING: ret = responseCdmaCallWaiting(p); break;
-            case RIL_UNSOL_CDMA_OTA_PROVISION_STATUS: ret = responseInts(p); break;
-            case RIL_UNSOL_CDMA_INFO_REC: ret = responseCdmaInformationRecord(p); break;
-            case RIL_UNSOL_OEM_HOOK_RAW: ret = responseRaw(p); break;
-            case RIL_UNSOL_RINGBACK_TONE: ret = responseInts(p); break;
-            case RIL_UNSOL_RESEND_INCALL_MUTE: ret = responseVoid(p); break;
-            case RIL_UNSOL_CDMA_SUBSCRIPTION_SOURCE_CHANGED: ret = responseInts(p); break;
-            case RIL_UNSOl_CDMA_PRL_CHANGED: ret = responseInts(p); break;
-            case RIL_UNSOL_EXIT_EMERGENCY_CALLBACK_MODE: ret = responseVoid(p); break;
-            case RIL_UNSOL_RIL_CONNECTED: ret = responseInts(p); break;
-            case RIL_UNSOL_VOICE_RADIO_TECH_CHANGED: ret =  responseInts(p); break;
-            case RIL_UNSOL_CELL_INFO_LIST: ret = responseCellInfoList(p); break;
-            case RIL_UNSOL_RESPONSE_IMS_NETWORK_STATE_CHANGED: ret =  responseVoid(p); break;
-            case RIL_UNSOL_UICC_SUBSCRIPTION_STATUS_CHANGED: ret =  responseInts(p); break;
-            case RIL_UNSOL_SRVCC_STATE_NOTIFY: ret = responseInts(p); break;
-            case RIL_UNSOL_HARDWARE_CONFIG_CHANGED: ret = responseHardwareConfig(p); break;
-            case RIL_UNSOL_RADIO_CAPABILITY:
-                    ret = responseRadioCapability(p); break;
-            case RIL_UNSOL_ON_SS: ret =  responseSsData(p); break;
-            case RIL_UNSOL_STK_CC_ALPHA_NOTIFY: ret =  responseString(p); break;
-            case RIL_UNSOL_LCEDATA_RECV: ret = responseLceData(p); break;
-
-            default:
+        try {
+            RilResponseTable.Entry entry = mUnsolicitedResponses.get(response);
+            if (entry == null) {
                 throw new RuntimeException("Unrecognized unsol response: " + response);
-            //break; (implied)
-        }} catch (Throwable tr) {
+            }
+            ret = entry.decoder.decode(this, p);
+        } catch (Throwable tr) {
             Rlog.e(RILJ_LOG_TAG, "Exception processing unsol response: " + response +
                 "Exception:" + tr.toString());
             return;
         }
+        mEventLog.log(RilEventLog.KIND_UNSOL, 0, response, 0, ret);
+        if (mResponseCache != null) {
+            mResponseCache.onUnsolicited(response);
+        }
+
+        if (mUnsolCoalescer != null && mUnsolCoalescer.offer(response, ret)) {
+            // Part of a burst; delivered later through dispatchUnsolicited,
+            // unless superseded
+            return;
+        }
+
+        dispatchUnsolicited(response, ret, p);
+    }
 
+    /**
+     * Logs a decoded unsolicited response and notifies its registrants.
+     *
+     * @param p the response Parcel, positioned after the decoded payload.
+     * Null for responses delivered by RilUnsolCoalescer, none of which
+     * read past their payload.
+     */
+    protected void
+    dispatchUnsolicited(int response, Object ret, Parcel p) {
         switch(response) {
             case RIL_UNSOL_RESPONSE_RADIO_STATE_CHANGED:
                 /* has bonus radio state int */
                 RadioState newState = getRadioStateFromInt(p.readInt());
-                if (RILJ_LOGD) unsljLogMore(response, newState.toString());
+                if (RILJ_TEXT_LOG) unsljLogMore(response, newState.toString());
 
                 switchToRadioState(newState);
             break;
             case RIL_UNSOL_RESPONSE_IMS_NETWORK_STATE_CHANGED:
-                if (RILJ_LOGD) unsljLog(response);
+                if (RILJ_TEXT_LOG) unsljLog(response);
 
                 mImsNetworkStateChangedRegistrants
                     .notifyRegistrants(new AsyncResult(null, null, null));
             break;
             case RIL_UNSOL_RESPONSE_CALL_STATE_CHANGED:
-                if (RILJ_LOGD) unsljLog(response);
+                if (RILJ_TEXT_LOG) unsljLog(response);
 
                 mCallStateRegistrants
                     .notifyRegistrants(new AsyncResult(null, null, null));
             break;
             case RIL_UNSOL_RESPONSE_VOICE_NETWORK_STATE_CHANGED:
-                if (RILJ_LOGD) unsljLog(response);
+                if (RILJ_TEXT_LOG) unsljLog(response);
 
                 mVoiceNetworkStateRegistrants
                     .notifyRegistrants(new AsyncResult(null, null, null));
             break;
             case RIL_UNSOL_RESPONSE_NEW_SMS: {
-                if (RILJ_LOGD) unsljLog(response);
+                if (RILJ_TEXT_LOG) unsljLog(response);
 
                 // FIXME this should move up a layer
                 String a[] = new String[2];
@@ -3140,7 +4051,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
             break;
             }
             case RIL_UNSOL_RESPONSE_NEW_SMS_STATUS_REPORT:
-                if (RILJ_LOGD) unsljLogRet(response, ret);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, ret);
 
                 if (mSmsStatusRegistrant != null) {
                     mSmsStatusRegistrant.notifyRegistrant(
@@ -3148,7 +4059,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 }
             break;
             case RIL_UNSOL_RESPONSE_NEW_SMS_ON_SIM:
-                if (RILJ_LOGD) unsljLogRet(response, ret);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, ret);
 
                 int[] smsIndex = (int[])ret;
 
@@ -3170,14 +4081,14 @@ public class RIL extends BaseCommands implements CommandsInterface {
                     resp[0] = ((String[])ret)[0];
                     resp[1] = null;
                 }
-                if (RILJ_LOGD) unsljLogMore(response, resp[0]);
+                if (RILJ_TEXT_LOG) unsljLogMore(response, resp[0]);
                 if (mUSSDRegistrant != null) {
                     mUSSDRegistrant.notifyRegistrant(
                         new AsyncResult (null, resp, null));
                 }
             break;
             case RIL_UNSOL_NITZ_TIME_RECEIVED:
-                if (RILJ_LOGD) unsljLogRet(response, ret);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, ret);
 
                 // has bonus long containing milliseconds since boot that the NITZ
                 // time was received
@@ -3216,7 +4127,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 }
             break;
             case RIL_UNSOL_DATA_CALL_LIST_CHANGED:
-                if (RILJ_LOGD) unsljLogRet(response, ret);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, ret);
 
                 boolean oldRil = needsOldRilFeature("skipbrokendatacall");
                 if (oldRil && "IP".equals(((ArrayList<DataCallResponse>)ret).get(0).type))
@@ -3226,7 +4137,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
             break;
 
             case RIL_UNSOL_SUPP_SVC_NOTIFICATION:
-                if (RILJ_LOGD) unsljLogRet(response, ret);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, ret);
 
                 if (mSsnRegistrant != null) {
                     mSsnRegistrant.notifyRegistrant(
@@ -3235,7 +4146,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 break;
 
             case RIL_UNSOL_STK_SESSION_END:
-                if (RILJ_LOGD) unsljLog(response);
+                if (RILJ_TEXT_LOG) unsljLog(response);
 
                 if (mCatSessionEndRegistrant != null) {
                     mCatSessionEndRegistrant.notifyRegistrant(
@@ -3244,7 +4155,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 break;
 
             case RIL_UNSOL_STK_PROACTIVE_COMMAND:
-                if (RILJ_LOGD) unsljLog(response);
+                if (RILJ_TEXT_LOG) unsljLog(response);
 
                 if (mCatProCmdRegistrant != null) {
                     mCatProCmdRegistrant.notifyRegistrant(
@@ -3253,7 +4164,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 break;
 
             case RIL_UNSOL_STK_EVENT_NOTIFY:
-                if (RILJ_LOGD) unsljLog(response);
+                if (RILJ_TEXT_LOG) unsljLog(response);
 
                 if (mCatEventRegistrant != null) {
                     mCatEventRegistrant.notifyRegistrant(
@@ -3262,7 +4173,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 break;
 
             case RIL_UNSOL_STK_CALL_SETUP:
-                if (RILJ_LOGD) unsljLogRet(response, ret);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, ret);
 
                 if (mCatCallSetUpRegistrant != null) {
                     mCatCallSetUpRegistrant.notifyRegistrant(
@@ -3271,7 +4182,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 break;
 
             case RIL_UNSOL_SIM_SMS_STORAGE_FULL:
-                if (RILJ_LOGD) unsljLog(response);
+                if (RILJ_TEXT_LOG) unsljLog(response);
 
                 if (mIccSmsFullRegistrant != null) {
                     mIccSmsFullRegistrant.notifyRegistrant();
@@ -3279,7 +4190,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 break;
 
             case RIL_UNSOL_SIM_REFRESH:
-                if (RILJ_LOGD) unsljLogRet(response, ret);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, ret);
 
                 if (mIccRefreshRegistrants != null) {
                     mIccRefreshRegistrants.notifyRegistrants(
@@ -3288,7 +4199,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 break;
 
             case RIL_UNSOL_CALL_RING:
-                if (RILJ_LOGD) unsljLogRet(response, ret);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, ret);
 
                 if (mRingRegistrant != null) {
                     mRingRegistrant.notifyRegistrant(
@@ -3297,7 +4208,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 break;
 
             case RIL_UNSOL_RESTRICTED_STATE_CHANGED:
-                if (RILJ_LOGD) unsljLogvRet(response, ret);
+                if (RILJ_TEXT_LOG) unsljLogvRet(response, ret);
                 if (mRestrictedStateRegistrant != null) {
                     mRestrictedStateRegistrant.notifyRegistrant(
                                         new AsyncResult (null, ret, null));
@@ -3305,7 +4216,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 break;
 
             case RIL_UNSOL_RESPONSE_SIM_STATUS_CHANGED:
-                if (RILJ_LOGD) unsljLog(response);
+                if (RILJ_TEXT_LOG) unsljLog(response);
 
                 if (mIccStatusChangedRegistrants != null) {
                     mIccStatusChangedRegistrants.notifyRegistrants();
@@ -3313,7 +4224,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 break;
 
             case RIL_UNSOL_RESPONSE_CDMA_NEW_SMS:
-                if (RILJ_LOGD) unsljLog(response);
+                if (RILJ_TEXT_LOG) unsljLog(response);
 
                 SmsMessage sms = (SmsMessage) ret;
 
@@ -3324,7 +4235,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 break;
 
             case RIL_UNSOL_RESPONSE_NEW_BROADCAST_SMS:
-                if (RILJ_LOGD) unsljLogvRet(response, IccUtils.bytesToHexString((byte[])ret));
+                if (RILJ_TEXT_LOG) unsljLogvRet(response, IccUtils.bytesToHexString((byte[])ret));
 
                 if (mGsmBroadcastSmsRegistrant != null) {
                     mGsmBroadcastSmsRegistrant
@@ -3333,7 +4244,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 break;
 
             case RIL_UNSOL_CDMA_RUIM_SMS_STORAGE_FULL:
-                if (RILJ_LOGD) unsljLog(response);
+                if (RILJ_TEXT_LOG) unsljLog(response);
 
                 if (mIccSmsFullRegistrant != null) {
                     mIccSmsFullRegistrant.notifyRegistrant();
@@ -3341,7 +4252,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 break;
 
             case RIL_UNSOL_ENTER_EMERGENCY_CALLBACK_MODE:
-                if (RILJ_LOGD) unsljLog(response);
+                if (RILJ_TEXT_LOG) unsljLog(response);
 
                 if (mEmergencyCallbackModeRegistrant != null) {
                     mEmergencyCallbackModeRegistrant.notifyRegistrant();
@@ -3349,7 +4260,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 break;
 
             case RIL_UNSOL_CDMA_CALL_WAITING:
-                if (RILJ_LOGD) unsljLogRet(response, ret);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, ret);
 
                 if (mCallWaitingInfoRegistrants != null) {
                     mCallWaitingInfoRegistrants.notifyRegistrants(
@@ -3358,7 +4269,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 break;
 
             case RIL_UNSOL_CDMA_OTA_PROVISION_STATUS:
-                if (RILJ_LOGD) unsljLogRet(response, ret);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, ret);
 
                 if (mOtaProvisionRegistrants != null) {
                     mOtaProvisionRegistrants.notifyRegistrants(
@@ -3377,20 +4288,20 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 }
 
                 for (CdmaInformationRecords rec : listInfoRecs) {
-                    if (RILJ_LOGD) unsljLogRet(response, rec);
+                    if (RILJ_TEXT_LOG) unsljLogRet(response, rec);
                     notifyRegistrantsCdmaInfoRec(rec);
                 }
                 break;
 
             case RIL_UNSOL_OEM_HOOK_RAW:
-                if (RILJ_LOGD) unsljLogvRet(response, IccUtils.bytesToHexString((byte[]) ret));
+                if (RILJ_TEXT_LOG) unsljLogvRet(response, IccUtils.bytesToHexString((byte[]) ret));
                 if (mUnsolOemHookRawRegistrant != null) {
                     mUnsolOemHookRawRegistrant.notifyRegistrant(new AsyncResult(null, ret, null));
                 }
                 break;
 
             case RIL_UNSOL_RINGBACK_TONE:
-                if (RILJ_LOGD) unsljLogvRet(response, ret);
+                if (RILJ_TEXT_LOG) unsljLogvRet(response, ret);
                 if (mRingbackToneRegistrants != null) {
                     boolean playtone = (((int[])ret)[0] == 1);
                     mRingbackToneRegistrants.notifyRegistrants(
@@ -3399,7 +4310,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 break;
 
             case RIL_UNSOL_RESEND_INCALL_MUTE:
-                if (RILJ_LOGD) unsljLogRet(response, ret);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, ret);
 
                 if (mResendIncallMuteRegistrants != null) {
                     mResendIncallMuteRegistrants.notifyRegistrants(
@@ -3408,7 +4319,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 break;
 
             case RIL_UNSOL_VOICE_RADIO_TECH_CHANGED:
-                if (RILJ_LOGD) unsljLogRet(response, ret);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, ret);
 
                 if (mVoiceRadioTechChangedRegistrants != null) {
                     mVoiceRadioTechChangedRegistrants.notifyRegistrants(
@@ -3417,7 +4328,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 break;
 
             case RIL_UNSOL_CDMA_SUBSCRIPTION_SOURCE_CHANGED:
-                if (RILJ_LOGD) unsljLogRet(response, ret);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, ret);
 
                 if (mCdmaSubscriptionChangedRegistrants != null) {
                     mCdmaSubscriptionChangedRegistrants.notifyRegistrants(
@@ -3426,7 +4337,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 break;
 
             case RIL_UNSOl_CDMA_PRL_CHANGED:
-                if (RILJ_LOGD) unsljLogRet(response, ret);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, ret);
 
                 if (mCdmaPrlChangedRegistrants != null) {
                     mCdmaPrlChangedRegistrants.notifyRegistrants(
@@ -3435,7 +4346,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 break;
 
             case RIL_UNSOL_EXIT_EMERGENCY_CALLBACK_MODE:
-                if (RILJ_LOGD) unsljLogRet(response, ret);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, ret);
 
                 if (mExitEmergencyCallbackModeRegistrants != null) {
                     mExitEmergencyCallbackModeRegistrants.notifyRegistrants(
@@ -3444,7 +4355,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 break;
 
             case RIL_UNSOL_RIL_CONNECTED: {
-                if (RILJ_LOGD) unsljLogRet(response, ret);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, ret);
 
                 // Initial conditions
                 setRadioPower(false, null);
@@ -3457,7 +4368,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 break;
             }
             case RIL_UNSOL_CELL_INFO_LIST: {
-                if (RILJ_LOGD) unsljLogRet(response, ret);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, ret);
 
                 if (mRilCellInfoListRegistrants != null) {
                     mRilCellInfoListRegistrants.notifyRegistrants(
@@ -3466,7 +4377,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 break;
             }
             case RIL_UNSOL_UICC_SUBSCRIPTION_STATUS_CHANGED: {
-                if (RILJ_LOGD) unsljLogRet(response, ret);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, ret);
 
                 if (mSubscriptionStatusRegistrants != null) {
                     mSubscriptionStatusRegistrants.notifyRegistrants(
@@ -3475,7 +4386,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 break;
             }
             case RIL_UNSOL_SRVCC_STATE_NOTIFY: {
-                if (RILJ_LOGD) unsljLogRet(response, ret);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, ret);
 
                 if (mSrvccStateRegistrants != null) {
                     mSrvccStateRegistrants
@@ -3484,7 +4395,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 break;
             }
             case RIL_UNSOL_HARDWARE_CONFIG_CHANGED:
-                if (RILJ_LOGD) unsljLogRet(response, ret);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, ret);
 
                 if (mHardwareConfigChangeRegistrants != null) {
                     mHardwareConfigChangeRegistrants.notifyRegistrants(
@@ -3492,7 +4403,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 }
                 break;
             case RIL_UNSOL_RADIO_CAPABILITY:
-                if (RILJ_LOGD) unsljLogRet(response, ret);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, ret);
 
                 if (mPhoneRadioCapabilityChangedRegistrants != null) {
                     mPhoneRadioCapabilityChangedRegistrants.notifyRegistrants(
@@ -3500,7 +4411,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                  }
                  break;
             case RIL_UNSOL_ON_SS:
-                if (RILJ_LOGD) unsljLogRet(response, ret);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, ret);
 
                 if (mSsRegistrant != null) {
                     mSsRegistrant.notifyRegistrant(
@@ -3508,7 +4419,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 }
                 break;
             case RIL_UNSOL_STK_CC_ALPHA_NOTIFY:
-                if (RILJ_LOGD) unsljLogRet(response, ret);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, ret);
 
                 if (mCatCcAlphaRegistrant != null) {
                     mCatCcAlphaRegistrant.notifyRegistrant(
@@ -3516,7 +4427,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 }
                 break;
             case RIL_UNSOL_LCEDATA_RECV:
-                if (RILJ_LOGD) unsljLogRet(response, ret);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, ret);
 
                 if (mLceInfoRegistrant != null) {
                     mLceInfoRegistrant.notifyRegistrant(new AsyncResult(null, ret, null));
@@ -3532,6 +4443,9 @@ public class RIL extends BaseCommands implements CommandsInterface {
      */
     protected void notifyRegistrantsRilConnectionChanged(int rilVer) {
         mRilVersion = rilVer;
+        if (mResponseCache != null) {
+            mResponseCache.invalidate();
+        }
         if (mRilConnectedRegistrants != null) {
             mRilConnectedRegistrants.notifyRegistrants(
                                 new AsyncResult (null, new Integer(rilVer), null));
@@ -4147,43 +5061,43 @@ public class RIL extends BaseCommands implements CommandsInterface {
         int response = RIL_UNSOL_CDMA_INFO_REC;
         if (infoRec.record instanceof CdmaInformationRecords.CdmaDisplayInfoRec) {
             if (mDisplayInfoRegistrants != null) {
-                if (RILJ_LOGD) unsljLogRet(response, infoRec.record);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, infoRec.record);
                 mDisplayInfoRegistrants.notifyRegistrants(
                         new AsyncResult (null, infoRec.record, null));
             }
         } else if (infoRec.record instanceof CdmaInformationRecords.CdmaSignalInfoRec) {
             if (mSignalInfoRegistrants != null) {
-                if (RILJ_LOGD) unsljLogRet(response, infoRec.record);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, infoRec.record);
                 mSignalInfoRegistrants.notifyRegistrants(
                         new AsyncResult (null, infoRec.record, null));
             }
         } else if (infoRec.record instanceof CdmaInformationRecords.CdmaNumberInfoRec) {
             if (mNumberInfoRegistrants != null) {
-                if (RILJ_LOGD) unsljLogRet(response, infoRec.record);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, infoRec.record);
                 mNumberInfoRegistrants.notifyRegistrants(
                         new AsyncResult (null, infoRec.record, null));
             }
         } else if (infoRec.record instanceof CdmaInformationRecords.CdmaRedirectingNumberInfoRec) {
             if (mRedirNumInfoRegistrants != null) {
-                if (RILJ_LOGD) unsljLogRet(response, infoRec.record);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, infoRec.record);
                 mRedirNumInfoRegistrants.notifyRegistrants(
                         new AsyncResult (null, infoRec.record, null));
             }
         } else if (infoRec.record instanceof CdmaInformationRecords.CdmaLineControlInfoRec) {
             if (mLineControlInfoRegistrants != null) {
-                if (RILJ_LOGD) unsljLogRet(response, infoRec.record);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, infoRec.record);
                 mLineControlInfoRegistrants.notifyRegistrants(
                         new AsyncResult (null, infoRec.record, null));
             }
         } else if (infoRec.record instanceof CdmaInformationRecords.CdmaT53ClirInfoRec) {
             if (mT53ClirInfoRegistrants != null) {
-                if (RILJ_LOGD) unsljLogRet(response, infoRec.record);
+                if (RILJ_TEXT_LOG) unsljLogRet(response, infoRec.record);
                 mT53ClirInfoRegistrants.notifyRegistrants(
                         new AsyncResult (null, infoRec.record, null));
             }
         } else if (infoRec.record instanceof CdmaInformationRecords.CdmaT53AudioControlInfoRec) {
             if (mT53AudCntrlInfoRegistrants != null) {
-               if (RILJ_LOGD) unsljLogRet(response, infoRec.record);
+               if (RILJ_TEXT_LOG) unsljLogRet(response, infoRec.record);
                mT53AudCntrlInfoRegistrants.notifyRegistrants(
                        new AsyncResult (null, infoRec.record, null));
             }
@@ -4546,11 +5460,13 @@ public class RIL extends BaseCommands implements CommandsInterface {
     }
 
     protected void unsljLogRet(int response, Object ret) {
-        riljLog("[UNSL]< " + responseToString(response) + " " + retToString(response, ret));
+        riljLog("[UNSL]< " + responseToString(response) + " "
+                + mUnsolicitedResponses.format(response, ret));
     }
 
     protected void unsljLogvRet(int response, Object ret) {
-        riljLogv("[UNSL]< " + responseToString(response) + " " + retToString(response, ret));
+        riljLogv("[UNSL]< " + responseToString(response) + " "
+                + mUnsolicitedResponses.format(response, ret));
     }
 
     private Object
@@ -4599,7 +5515,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
     getDeviceIdentity(Message response) {
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_DEVICE_IDENTITY, response);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -4609,7 +5525,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
     getCDMASubscription(Message response) {
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_CDMA_SUBSCRIPTION, response);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -4628,7 +5544,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr = RILRequest.obtain(
                 RILConstants.RIL_REQUEST_CDMA_QUERY_ROAMING_PREFERENCE, response);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -4644,7 +5560,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeInt(1);
         rr.mParcel.writeInt(cdmaRoamingType);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                 + " : " + cdmaRoamingType);
 
         send(rr);
@@ -4661,7 +5577,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeInt(1);
         rr.mParcel.writeInt(cdmaSubscription);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                 + " : " + cdmaSubscription);
 
         send(rr);
@@ -4675,7 +5591,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr = RILRequest.obtain(
                 RILConstants.RIL_REQUEST_CDMA_GET_SUBSCRIPTION_SOURCE, response);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -4688,7 +5604,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr = RILRequest.obtain(
                 RILConstants.RIL_REQUEST_QUERY_TTY_MODE, response);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -4704,7 +5620,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeInt(1);
         rr.mParcel.writeInt(ttyMode);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                 + " : " + ttyMode);
 
         send(rr);
@@ -4720,7 +5636,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
         rr.mParcel.writeString(FeatureCode);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                 + " : " + FeatureCode);
 
         send(rr);
@@ -4757,7 +5673,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
             rr.mParcel.writeInt(rilConfigs[i].isSelected() ? 1 : 0);
         }
 
-        if (RILJ_LOGD) {
+        if (RILJ_TEXT_LOG) {
             riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                     + " with " + rilConfigs.length + " configs : ");
             for (int i = 0; i < rilConfigs.length; i++) {
@@ -4775,7 +5691,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeInt(1);
         rr.mParcel.writeInt(activate ? 0 :1);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -4787,7 +5703,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
     public void exitEmergencyCallbackMode(Message response) {
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_EXIT_EMERGENCY_CALLBACK_MODE, response);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -4798,7 +5714,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
         rr.mParcel.writeString(nonce);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -4812,7 +5728,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeString(data);
         rr.mParcel.writeString(aid);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -4824,7 +5740,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
     public void getCellInfoList(Message result) {
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_GET_CELL_INFO_LIST, result);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -4840,7 +5756,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeInt(1);
         rr.mParcel.writeInt(rateInMillis);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -4857,7 +5773,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeString(username);
         rr.mParcel.writeString(password);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                 + ", apn:" + apn + ", protocol:" + protocol + ", authType:" + authType
                 + ", username:" + username + ", password:" + password);
 
@@ -4870,7 +5786,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_SET_DATA_PROFILE, null);
         DataProfile.toParcel(rr.mParcel, dps);
 
-        if (RILJ_LOGD) {
+        if (RILJ_TEXT_LOG) {
             riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                     + " with " + dps + " Data Profiles : ");
             for (int i = 0; i < dps.length; i++) {
@@ -4897,21 +5813,76 @@ public class RIL extends BaseCommands implements CommandsInterface {
         pw.println(" mSender=" + mSender);
         pw.println(" mReceiverThread=" + mReceiverThread);
         pw.println(" mReceiver=" + mReceiver);
+        if (mReceiver != null && mReceiver.mFrameReader != null) {
+            RilFrameReader reader = mReceiver.mFrameReader;
+            pw.println(" frames read=" + reader.getFrameCount()
+                    + " socket reads=" + reader.getReadCount());
+        }
+        if (mDecodePipeline != null) {
+            mDecodePipeline.dump(pw);
+        }
+        if (mDecodeQueue != null) {
+            mDecodeQueue.dump(pw);
+        }
+        if (mIoLoop != null) {
+            mIoLoop.dump(pw);
+        }
+        if (mWireCapture != null) {
+            mWireCapture.dump(pw);
+            mWireCapture.flush();
+        }
+        pw.println(" mBatchSend=" + mBatchSend);
+        if (mBatchSend && mSender != null) {
+            RilFrameWriter writer = mSender.mFrameWriter;
+            long flushes = writer.getFlushCount();
+            pw.println(" batched flushes=" + flushes
+                    + " frames=" + writer.getFrameCount()
+                    + " framesPerFlush avg="
+                    + (flushes > 0 ? ((float) writer.getFrameCount() / flushes) : 0)
+                    + " max=" + writer.getMaxFramesPerFlush());
+        }
         pw.println(" mWakeLock=" + mWakeLock);
         pw.println(" mWakeLockTimeout=" + mWakeLockTimeout);
-        synchronized (mRequestList) {
-            synchronized (mWakeLock) {
-                pw.println(" mWakeLockCount=" + mWakeLockCount);
-            }
-            int count = mRequestList.size();
-            pw.println(" mRequestList count=" + count);
-            for (int i = 0; i < count; i++) {
-                RILRequest rr = mRequestList.valueAt(i);
-                pw.println("  [" + rr.mSerial + "] " + requestToString(rr.mRequest));
-            }
+        pw.println(" mRequestTimeouts=" + mRequestTimeouts);
+        pw.println(" timed out requests=" + mTimedOutCount.get());
+        synchronized (mWakeLock) {
+            pw.println(" mWakeLockCount=" + mWakeLockCount);
+        }
+        ArrayList<RILRequest> pending = new ArrayList<RILRequest>();
+        mRequestList.snapshot(pending);
+        int count = pending.size();
+        pw.println(" mRequestList count=" + count);
+        for (int i = 0; i < count; i++) {
+            RILRequest rr = pending.get(i);
+            pw.println("  [" + rr.mSerial + "] " + requestToString(rr.mRequest));
         }
         pw.println(" mLastNITZTimeInfo=" + mLastNITZTimeInfo);
         pw.println(" mTestingEmergencyCall=" + mTestingEmergencyCall.get());
+        if (mSendScheduler != null) {
+            mSendScheduler.dump(pw);
+        }
+        if (mSingleFlight != null) {
+            mSingleFlight.dump(pw);
+        }
+        if (mInFlightWindow != null) {
+            mInFlightWindow.dump(pw);
+        }
+        if (mResponseCache != null) {
+            mResponseCache.dump(pw);
+        }
+        mLatencyStats.dump(pw);
+        mEventLog.dump(pw);
+        if (mUnsolCoalescer != null) {
+            mUnsolCoalescer.dump(pw);
+        }
+    }
+
+    /**
+     * @return per request type latency and error statistics, one entry for
+     * every request code sent since boot or the last reset.
+     */
+    public ArrayList<RilLatencyStats.Snapshot> getRequestLatencySnapshot() {
+        return mLatencyStats.getSnapshot();
     }
 
     /**
@@ -4932,7 +5903,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_SIM_OPEN_CHANNEL, response);
         rr.mParcel.writeString(AID);
 
-        if (RILJ_LOGD)
+        if (RILJ_TEXT_LOG)
             riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
@@ -4944,7 +5915,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeByte(p2);
         rr.mParcel.writeString(AID);
 
-        if (RILJ_LOGD)
+        if (RILJ_TEXT_LOG)
             riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
@@ -4959,7 +5930,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeInt(1);
         rr.mParcel.writeInt(channel);
 
-        if (RILJ_LOGD)
+        if (RILJ_TEXT_LOG)
             riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
@@ -5010,7 +5981,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         int slotId = 0;
         rr.mParcel.writeInt(1);
         rr.mParcel.writeInt(slotId);
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> iccGetAtr: "
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> iccGetAtr: "
                 + requestToString(rr.mRequest) + " " + slotId);
 
         send(rr);
@@ -5041,7 +6012,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeInt(p3);
         rr.mParcel.writeString(data);
 
-        if (RILJ_LOGD)
+        if (RILJ_TEXT_LOG)
             riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
@@ -5053,7 +6024,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
         rr.mParcel.writeInt(itemID);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                 + ' ' + itemID);
 
         send(rr);
@@ -5066,7 +6037,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeInt(itemID);
         rr.mParcel.writeString(itemValue);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                 + ' ' + itemID + ": " + itemValue);
 
         send(rr);
@@ -5078,7 +6049,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
         rr.mParcel.writeByteArray(preferredRoamingList);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                 + " (" + preferredRoamingList.length + " bytes)");
 
         send(rr);
@@ -5091,7 +6062,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeInt(1);
         rr.mParcel.writeInt(resetType);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                 + ' ' + resetType);
 
         send(rr);
@@ -5109,7 +6080,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeString(rc.getLogicalModemUuid());
         rr.mParcel.writeInt(rc.getStatus());
 
-        if (RILJ_LOGD) {
+        if (RILJ_TEXT_LOG) {
             riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                     + " " + rc.toString());
         }
@@ -5122,7 +6093,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr = RILRequest.obtain(
                 RIL_REQUEST_GET_RADIO_CAPABILITY, response);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        if (RILJ_TEXT_LOG) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         send(rr);
     }
@@ -5135,7 +6106,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         rr.mParcel.writeInt(reportIntervalMs);
         rr.mParcel.writeInt(pullMode ? 1: 0);  // PULL mode: 1; PUSH mode: 0;
 
-        if (RILJ_LOGD) {
+        if (RILJ_TEXT_LOG) {
             riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
         }
 
@@ -5145,7 +6116,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
     @Override
     public void stopLceService(Message response) {
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_STOP_LCE, response);
-        if (RILJ_LOGD) {
+        if (RILJ_TEXT_LOG) {
             riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
         }
         send(rr);
@@ -5154,7 +6125,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
     @Override
     public void pullLceData(Message response) {
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_PULL_LCEDATA, response);
-        if (RILJ_LOGD) {
+        if (RILJ_TEXT_LOG) {
             riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
         }
         send(rr);
@@ -5165,7 +6136,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
     */
     public void getModemActivityInfo(Message response) {
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_GET_ACTIVITY_INFO, response);
-        if (RILJ_LOGD) {
+        if (RILJ_TEXT_LOG) {
             riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
         }
         send(rr);
@@ -5175,7 +6146,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
     public void setMaxTransmitPower(int state, Message response) {
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_SET_MAX_TRANSMIT_POWER, response);
 
-        if (RILJ_LOGD) {
+        if (RILJ_TEXT_LOG) {
             riljLog(rr.serialString() + "> " + requestToString(rr.mRequest) + " state = " + state);
         }
 
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.util.ArrayList;
+
+/**
+ * Hashed timer wheel holding the response deadline of every request
+ * written to rild.
+ *
+ * Entries are (serial, deadline) pairs stored in primitive arrays, one
+ * bucket per tick. Answered requests are never unlinked from the wheel;
+ * instead, when a bucket comes around, entries whose serial is no longer
+ * in the in-flight table are dropped. This keeps the wheel confined to
+ * the RILSender looper with no locking against RILReceiver.
+ *
+ * {@hide}
+ */
+class RilDeadlineWheel {
+    private static final int SLOTS = 64;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int INITIAL_BUCKET_SIZE = 4;
+
+    private final long mTickMs;
+    private final int[][] mSerials = new int[SLOTS][];
+    private final long[][] mDeadlines = new long[SLOTS][];
+    private final int[] mCounts = new int[SLOTS];
+    private int mSize;
+    private long mLastTick;
+
+    /**
+     * @param tickMs wheel resolution; deadlines fire up to one tick late,
+     * plus however late the tick itself runs
+     * @param now current time in the same base as deadlines
+     */
+    RilDeadlineWheel(long tickMs, long now) {
+        mTickMs = tickMs;
+        mLastTick = now / tickMs;
+    }
+
+    long getTickMs() {
+        return mTickMs;
+    }
+
+    /**
+     * Schedules <code>serial</code> to be checked at <code>deadline</code>.
+     */
+    void add(int serial, long deadline) {
+        // Round up, so that the bucket is swept no earlier than the
+        // deadline; rounding down would leave a deadline still in the
+        // future when its bucket comes around and wait a whole lap. A
+        // deadline inside the current tick would land in an already
+        // visited bucket; push it to the next one.
+        long tick = Math.max((deadline + mTickMs - 1) / mTickMs, mLastTick + 1);
+        int slot = (int) (tick & SLOT_MASK);
+
+        int count = mCounts[slot];
+        if (mSerials[slot] == null) {
+            mSerials[slot] = new int[INITIAL_BUCKET_SIZE];
+            mDeadlines[slot] = new long[INITIAL_BUCKET_SIZE];
+        } else if (count == mSerials[slot].length) {
+            int[] serials = new int[count * 2];
+            long[] deadlines = new long[count * 2];
+            System.arraycopy(mSerials[slot], 0, serials, 0, count);
+            System.arraycopy(mDeadlines[slot], 0, deadlines, 0, count);
+            mSerials[slot] = serials;
+            mDeadlines[slot] = deadlines;
+        }
+        mSerials[slot][count] = serial;
+        mDeadlines[slot][count] = deadline;
+        mCounts[slot] = count + 1;
+        mSize++;
+    }
+
+    /**
+     * Advances the wheel to <code>now</code>. Every request whose deadline
+     * has passed and which is still in <code>table</code> is removed from
+     * the table and appended to <code>expired</code>.
+     */
+    void advance(long now, RilRequestTable table, ArrayList<RILRequest> expired) {
+        long nowTick = now / mTickMs;
+        long ticks = Math.min(nowTick - mLastTick, SLOTS);
+        for (long t = 1; t <= ticks; t++) {
+            expireSlot((int) ((mLastTick + t) & SLOT_MASK), now, table, expired);
+        }
+        if (nowTick > mLastTick) {
+            mLastTick = nowTick;
+        }
+    }
+
+    private void expireSlot(int slot, long now, RilRequestTable table,
+            ArrayList<RILRequest> expired) {
+        int[] serials = mSerials[slot];
+        long[] deadlines = mDeadlines[slot];
+        int count = mCounts[slot];
+        int kept = 0;
+
+        for (int i = 0; i < count; i++) {
+            int serial = serials[i];
+            if (deadlines[i] <= now) {
+                RILRequest rr = table.remove(serial);
+                if (rr != null) {
+                    expired.add(rr);
+                }
+            } else if (table.contains(serial)) {
+                // Due on a later lap of the wheel
+                serials[kept] = serial;
+                deadlines[kept] = deadlines[i];
+                kept++;
+            }
+        }
+
+        mSize -= count - kept;
+        mCounts[slot] = kept;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /** Entries on the wheel, including answered ones not yet swept. */
+    int size() {
+        return mSize;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Parcel;
+import android.os.SystemClock;
+import android.telephony.Rlog;
+
+import java.io.PrintWriter;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Decode and dispatch stage for RIL responses, run on its own thread so
+ * that slow decoders do not stop RILReceiver from draining the socket.
+ *
+ * RILReceiver copies each frame into one of a fixed set of reusable
+ * buffers and queues it; the decode thread unmarshalls frames in arrival
+ * order and runs RIL.processResponse on them, so responses are handled in
+ * exactly the order rild sent them. When every buffer is queued the reader
+ * blocks, and the time spent blocked is reported as reader stall time.
+ *
+ * {@hide}
+ */
+class RilDecodePipeline implements Runnable {
+    static final String LOG_TAG = "RilDecodePipeline";
+
+    static final int DEFAULT_CAPACITY = 32;
+
+    // Initial buffer size; most responses are a few hundred bytes
+    private static final int INITIAL_FRAME_SIZE = 512;
+
+    private static final class Frame {
+        byte[] mData = new byte[INITIAL_FRAME_SIZE];
+        int mLength;
+    }
+
+    private final RIL mRil;
+    private final int mCapacity;
+    private final ArrayBlockingQueue<Frame> mPending;
+    private final ArrayBlockingQueue<Frame> mFree;
+    private final Thread mThread;
+
+    private volatile boolean mQuit;
+
+    // Frames submitted and not yet fully processed, guarded by mIdleLock
+    private final Object mIdleLock = new Object();
+    private int mOutstanding;
+
+    // Statistics, read by RIL.dump
+    private volatile int mMaxDepth;
+    private volatile long mStallCount;
+    private volatile long mStallNanos;
+    private volatile long mFrameCount;
+
+    RilDecodePipeline(RIL ril, int capacity, String name) {
+        mRil = ril;
+        mCapacity = capacity;
+        mPending = new ArrayBlockingQueue<Frame>(capacity);
+        mFree = new ArrayBlockingQueue<Frame>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            mFree.add(new Frame());
+        }
+        mThread = new Thread(this, name);
+        mThread.start();
+    }
+
+    /**
+     * Called by RILReceiver with the frame it just read. Copies the frame
+     * and returns, blocking only while all buffers are in use.
+     */
+    void submit(byte[] array, int offset, int length) throws InterruptedException {
+        Frame frame = mFree.poll();
+        if (frame == null) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            frame = mFree.take();
+            mStallNanos += SystemClock.elapsedRealtimeNanos() - start;
+            mStallCount++;
+        }
+
+        if (frame.mData.length < length) {
+            frame.mData = new byte[length];
+        }
+        System.arraycopy(array, offset, frame.mData, 0, length);
+        frame.mLength = length;
+
+        synchronized (mIdleLock) {
+            mOutstanding++;
+        }
+        // Never blocks: there are only mCapacity frames
+        mPending.put(frame);
+        mFrameCount++;
+
+        int depth = mPending.size();
+        if (depth > mMaxDepth) {
+            mMaxDepth = depth;
+        }
+    }
+
+    /**
+     * Waits until every submitted frame has been processed. RILReceiver
+     * calls this before failing outstanding requests on disconnect, so
+     * responses that were already read are not lost.
+     */
+    void awaitIdle() {
+        synchronized (mIdleLock) {
+            while (mOutstanding > 0) {
+                try {
+                    mIdleLock.wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Stops the decode thread once it is done with the current frame. */
+    void quit() {
+        mQuit = true;
+        mThread.interrupt();
+    }
+
+    @Override
+    public void run() {
+        // Only this thread unmarshalls, so one Parcel serves every frame
+        Parcel p = Parcel.obtain();
+        while (!mQuit) {
+            Frame frame;
+            try {
+                frame = mPending.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            try {
+                p.unmarshall(frame.mData, 0, frame.mLength);
+                p.setDataPosition(0);
+                mRil.processResponse(p);
+            } catch (Throwable tr) {
+                Rlog.e(LOG_TAG, "Uncaught exception processing response length="
+                        + frame.mLength, tr);
+            }
+
+            mFree.offer(frame);
+            synchronized (mIdleLock) {
+                if (--mOutstanding == 0) {
+                    mIdleLock.notifyAll();
+                }
+            }
+        }
+        p.recycle();
+        synchronized (mIdleLock) {
+            // Nobody is left to process what is queued
+            mOutstanding = 0;
+            mIdleLock.notifyAll();
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println(" Decode pipeline: depth=" + mPending.size() + "/" + mCapacity
+                + " maxDepth=" + mMaxDepth
+                + " frames=" + mFrameCount
+                + " readerStalls=" + mStallCount
+                + " readerStallMs=" + (mStallNanos / 1000000));
+    }
+}
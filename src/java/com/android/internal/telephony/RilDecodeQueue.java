@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Handler;
+import android.os.Parcel;
+import android.telephony.Rlog;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+
+/**
+ * Hands the frames RilIoLoop reads for one RIL instance over to that
+ * instance's RILSender looper, so that a slow decoder holds up only its
+ * own instance and not every socket on the loop.
+ *
+ * The loop copies each frame into one of a small set of reusable buffers
+ * and posts a message when the queue stops being empty; the looper then
+ * unmarshalls and processes every queued frame in arrival order. When all
+ * buffers are queued the loop does not wait for the looper, which may
+ * itself be blocked writing to rild: it processes the backlog and the new
+ * frame itself, under the same lock, so responses stay in order and the
+ * socket keeps draining.
+ *
+ * {@hide}
+ */
+class RilDecodeQueue {
+    static final String LOG_TAG = "RilDecodeQueue";
+
+    static final int DEFAULT_CAPACITY = 16;
+
+    // Initial buffer size; most responses are a few hundred bytes
+    private static final int INITIAL_FRAME_SIZE = 512;
+
+    private static final class Frame {
+        byte[] mData = new byte[INITIAL_FRAME_SIZE];
+        int mLength;
+    }
+
+    private final RIL mRil;
+    private final Handler mHandler;
+    private final int mWhat;
+    private final int mCapacity;
+
+    // Guarded by this
+    private final ArrayDeque<Frame> mPending;
+    private final ArrayDeque<Frame> mFree;
+
+    // Held while frames are processed, so that one thread at a time runs
+    // RIL.processResponse for this instance
+    private final Object mDecodeLock = new Object();
+    // Used only under mDecodeLock
+    private final Parcel mParcel = Parcel.obtain();
+
+    // Statistics, read by RIL.dump
+    private volatile int mMaxDepth;
+    private volatile long mFrameCount;
+    private volatile long mOverflowCount;
+
+    /**
+     * @param handler gets a <code>what</code> message whenever process
+     * should be called
+     */
+    RilDecodeQueue(RIL ril, Handler handler, int what, int capacity) {
+        mRil = ril;
+        mHandler = handler;
+        mWhat = what;
+        mCapacity = capacity;
+        mPending = new ArrayDeque<Frame>(capacity);
+        mFree = new ArrayDeque<Frame>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            mFree.add(new Frame());
+        }
+    }
+
+    /**
+     * Called by RilIoLoop with a frame it just read. Copies the frame and
+     * returns without waiting for the looper.
+     */
+    void submit(byte[] array, int offset, int length) {
+        Frame frame;
+        boolean wasEmpty = false;
+        synchronized (this) {
+            frame = mFree.poll();
+            if (frame != null) {
+                if (frame.mData.length < length) {
+                    frame.mData = new byte[length];
+                }
+                System.arraycopy(array, offset, frame.mData, 0, length);
+                frame.mLength = length;
+
+                wasEmpty = mPending.isEmpty();
+                mPending.add(frame);
+                mFrameCount++;
+                if (mPending.size() > mMaxDepth) {
+                    mMaxDepth = mPending.size();
+                }
+            } else {
+                mOverflowCount++;
+            }
+        }
+        if (frame != null) {
+            if (wasEmpty) {
+                mHandler.sendEmptyMessage(mWhat);
+            }
+            return;
+        }
+
+        // Every buffer is queued: catch up on the looper's behalf
+        synchronized (mDecodeLock) {
+            drain();
+            decode(array, offset, length);
+        }
+    }
+
+    /**
+     * Processes every queued frame. Run on the looper, and by the receiver
+     * thread on disconnect so that responses already read complete before
+     * the rest are failed.
+     */
+    void process() {
+        synchronized (mDecodeLock) {
+            drain();
+        }
+    }
+
+    // Called with mDecodeLock held
+    private void drain() {
+        for (;;) {
+            Frame frame;
+            synchronized (this) {
+                frame = mPending.poll();
+            }
+            if (frame == null) {
+                return;
+            }
+            decode(frame.mData, 0, frame.mLength);
+            synchronized (this) {
+                mFree.add(frame);
+            }
+        }
+    }
+
+    // Called with mDecodeLock held
+    private void decode(byte[] array, int offset, int length) {
+        try {
+            mParcel.unmarshall(array, offset, length);
+            mParcel.setDataPosition(0);
+            mRil.processResponse(mParcel);
+        } catch (Throwable tr) {
+            Rlog.e(LOG_TAG, "Uncaught exception processing response length=" + length, tr);
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        int depth;
+        synchronized (this) {
+            depth = mPending.size();
+        }
+        pw.println(" Decode queue: depth=" + depth + "/" + mCapacity
+                + " maxDepth=" + mMaxDepth
+                + " frames=" + mFrameCount
+                + " overflows=" + mOverflowCount);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Fixed-size ring of the most recent RIL requests, responses and
+ * unsolicited responses, kept as primitives so that recording one does
+ * not allocate. Nothing is turned into text until {@link #dump} runs.
+ *
+ * Payloads are reduced to a summary of two ints: an element count (array
+ * or list length, string length, -1 for no payload) and, for int[]
+ * payloads, the first element, which dump shows when it is non-zero.
+ *
+ * {@hide}
+ */
+class RilEventLog {
+    static final int DEFAULT_CAPACITY = 1024;
+
+    static final byte KIND_REQUEST = 0;
+    static final byte KIND_RESPONSE = 1;
+    static final byte KIND_UNSOL = 2;
+    static final byte KIND_TIMEOUT = 3;
+
+    private static final int NO_PAYLOAD = -1;
+
+    // Guarded by this
+    private final long[] mTimes;
+    private final byte[] mKinds;
+    private final int[] mSerials;
+    private final int[] mCodes;
+    private final int[] mErrors;
+    private final int[] mCounts;
+    private final int[] mFirsts;
+    private int mNext;
+    private long mTotal;
+
+    RilEventLog(int capacity) {
+        mTimes = new long[capacity];
+        mKinds = new byte[capacity];
+        mSerials = new int[capacity];
+        mCodes = new int[capacity];
+        mErrors = new int[capacity];
+        mCounts = new int[capacity];
+        mFirsts = new int[capacity];
+    }
+
+    void log(byte kind, int serial, int code, int error, Object ret) {
+        int count = NO_PAYLOAD;
+        int first = 0;
+        if (ret instanceof int[]) {
+            int[] ints = (int[]) ret;
+            count = ints.length;
+            if (count > 0) first = ints[0];
+        } else if (ret instanceof Object[]) {
+            count = ((Object[]) ret).length;
+        } else if (ret instanceof List) {
+            count = ((List<?>) ret).size();
+        } else if (ret instanceof String) {
+            count = ((String) ret).length();
+        } else if (ret instanceof byte[]) {
+            count = ((byte[]) ret).length;
+        } else if (ret != null) {
+            count = 1;
+        }
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            int i = mNext;
+            mTimes[i] = now;
+            mKinds[i] = kind;
+            mSerials[i] = serial;
+            mCodes[i] = code;
+            mErrors[i] = error;
+            mCounts[i] = count;
+            mFirsts[i] = first;
+            mNext = (i + 1) % mTimes.length;
+            mTotal++;
+        }
+    }
+
+    synchronized long getTotal() {
+        return mTotal;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        int capacity = mTimes.length;
+        int size = (int) Math.min(mTotal, capacity);
+        pw.println(" RIL event log, " + size + " of " + mTotal + " events:");
+
+        SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS");
+        Date date = new Date();
+        StringBuilder sb = new StringBuilder();
+        for (int n = 0, i = (mNext - size + capacity) % capacity; n < size;
+                n++, i = (i + 1) % capacity) {
+            date.setTime(mTimes[i]);
+            sb.setLength(0);
+            sb.append("  ").append(format.format(date)).append(' ');
+            switch (mKinds[i]) {
+                case KIND_REQUEST:
+                    sb.append('[').append(mSerials[i]).append("]> ")
+                            .append(RIL.requestToString(mCodes[i]));
+                    break;
+                case KIND_RESPONSE:
+                    sb.append('[').append(mSerials[i]).append("]< ")
+                            .append(RIL.requestToString(mCodes[i]));
+                    if (mErrors[i] != 0) {
+                        sb.append(" error=").append(mErrors[i]);
+                    }
+                    break;
+                case KIND_TIMEOUT:
+                    sb.append('[').append(mSerials[i]).append("]< ")
+                            .append(RIL.requestToString(mCodes[i])).append(" timed out");
+                    break;
+                case KIND_UNSOL:
+                    sb.append("[UNSL]< ").append(RIL.responseToString(mCodes[i]));
+                    break;
+            }
+            if (mCounts[i] != NO_PAYLOAD) {
+                sb.append(" n=").append(mCounts[i]);
+                if (mCounts[i] > 0 && mFirsts[i] != 0) {
+                    sb.append(" first=").append(mFirsts[i]);
+                }
+            }
+            pw.println(sb);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Parcel;
+import android.telephony.Rlog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Splits the rild socket stream into length-prefixed RIL frames.
+ *
+ * A RIL message consists of a 4-byte big-endian length followed by the
+ * marshalled Parcel. Rather than issuing two blocking reads per message,
+ * the reader fills one reusable buffer with whatever the socket has
+ * available, so a burst of unsolicited responses is usually picked up
+ * with a single read. Frames are handed out as (offset, length) windows
+ * into the backing array and unmarshalled into a caller-owned Parcel
+ * without any intermediate copy.
+ *
+ * Not thread safe; owned by a single RILReceiver.
+ *
+ * {@hide}
+ */
+class RilFrameReader {
+    static final String LOG_TAG = "RilFrameReader";
+
+    private static final int HEADER_SIZE = 4;
+
+    /** Returned by {@link #nextBuffered} when no complete frame is buffered. */
+    static final int NEED_MORE = -1;
+
+    private final InputStream mInputStream;
+    private final int mMaxFrameLength;
+    private final ByteBuffer mBuffer;
+
+    private int mFrameOffset;
+    private int mFrameLength;
+
+    // Statistics, read by RIL.dump
+    private long mReadCount;
+    private long mFrameCount;
+
+    /**
+     * @param is non-null; stream to read from
+     * @param maxFrameLength largest message body rild may send
+     */
+    RilFrameReader(InputStream is, int maxFrameLength) {
+        mInputStream = is;
+        mMaxFrameLength = maxFrameLength;
+        // Room for one maximal frame plus its header; a partial frame is
+        // moved to the front before the next read, so it always fits
+        mBuffer = ByteBuffer.allocate(maxFrameLength + HEADER_SIZE);
+        mBuffer.order(ByteOrder.BIG_ENDIAN);
+        // Buffer starts out empty: position is the read cursor, limit the
+        // end of valid data.
+        mBuffer.limit(0);
+    }
+
+    /**
+     * Advances to the next complete frame, reading from the stream only
+     * when the buffer does not already hold one.
+     *
+     * @return length of the frame body, or -1 on end of stream.
+     * @throws IOException
+     */
+    int next() throws IOException {
+        if (!fill(HEADER_SIZE)) {
+            Rlog.e(LOG_TAG, "Hit EOS reading message length");
+            return -1;
+        }
+
+        int length = mBuffer.getInt(mBuffer.position());
+        if (length < 0 || length > mMaxFrameLength) {
+            throw new IOException("Invalid RIL message length " + length);
+        }
+
+        if (!fill(HEADER_SIZE + length)) {
+            Rlog.e(LOG_TAG, "Hit EOS reading message.  messageLength=" + length
+                    + " remaining=" + (HEADER_SIZE + length - mBuffer.remaining()));
+            return -1;
+        }
+
+        return consumeFrame(length);
+    }
+
+    /**
+     * Like {@link #next}, but never reads: for callers that poll the
+     * socket themselves and feed the reader with {@link #readAvailable}.
+     *
+     * @return length of the frame body, or NEED_MORE.
+     * @throws IOException on an invalid frame length
+     */
+    int nextBuffered() throws IOException {
+        if (mBuffer.remaining() < HEADER_SIZE) {
+            return NEED_MORE;
+        }
+
+        int length = mBuffer.getInt(mBuffer.position());
+        if (length < 0 || length > mMaxFrameLength) {
+            throw new IOException("Invalid RIL message length " + length);
+        }
+
+        if (mBuffer.remaining() < HEADER_SIZE + length) {
+            return NEED_MORE;
+        }
+        return consumeFrame(length);
+    }
+
+    /**
+     * Reads whatever the stream has available with a single read. Only
+     * call when the socket is known to be readable, or the read blocks.
+     *
+     * @return false on end of stream.
+     */
+    boolean readAvailable() throws IOException {
+        if (!mBuffer.hasRemaining()) {
+            mBuffer.clear();
+            mBuffer.limit(0);
+        } else if (mBuffer.position() > 0) {
+            // Move the partial frame to the front, so the rest of it fits
+            mBuffer.compact();
+            mBuffer.flip();
+        }
+
+        int end = mBuffer.limit();
+        int countRead = mInputStream.read(mBuffer.array(), mBuffer.arrayOffset() + end,
+                mBuffer.capacity() - end);
+        if (countRead < 0) {
+            return false;
+        }
+        mReadCount++;
+        mBuffer.limit(end + countRead);
+        return true;
+    }
+
+    private int consumeFrame(int length) {
+        mFrameOffset = mBuffer.arrayOffset() + mBuffer.position() + HEADER_SIZE;
+        mFrameLength = length;
+        mBuffer.position(mBuffer.position() + HEADER_SIZE + length);
+        mFrameCount++;
+        return length;
+    }
+
+    /**
+     * Unmarshalls the current frame into <code>p</code> and rewinds it.
+     */
+    void readInto(Parcel p) {
+        p.unmarshall(mBuffer.array(), mFrameOffset, mFrameLength);
+        p.setDataPosition(0);
+    }
+
+    /** Backing array of the current frame. Valid until the next call to next(). */
+    byte[] frameArray() {
+        return mBuffer.array();
+    }
+
+    int frameOffset() {
+        return mFrameOffset;
+    }
+
+    int frameLength() {
+        return mFrameLength;
+    }
+
+    long getReadCount() {
+        return mReadCount;
+    }
+
+    long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Ensures at least <code>needed</code> unconsumed bytes are buffered,
+     * compacting and reading as much as the stream will give per call.
+     *
+     * @return false on end of stream.
+     */
+    private boolean fill(int needed) throws IOException {
+        if (mBuffer.remaining() >= needed) {
+            return true;
+        }
+
+        if (!mBuffer.hasRemaining()) {
+            // Everything consumed; rewind for free
+            mBuffer.clear();
+            mBuffer.limit(0);
+        } else if (mBuffer.capacity() - mBuffer.position() < needed) {
+            // Move the partial frame to the front of the buffer
+            mBuffer.compact();
+            mBuffer.flip();
+        }
+
+        byte[] array = mBuffer.array();
+        int base = mBuffer.arrayOffset();
+        while (mBuffer.remaining() < needed) {
+            int end = mBuffer.limit();
+            int countRead = mInputStream.read(array, base + end, mBuffer.capacity() - end);
+            if (countRead < 0) {
+                return false;
+            }
+            mReadCount++;
+            mBuffer.limit(end + countRead);
+        }
+        return true;
+    }
+}
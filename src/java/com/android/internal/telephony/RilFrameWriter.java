@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Frames marshalled RIL requests into one reusable buffer so that a run of
+ * back to back requests reaches rild with a single socket write.
+ *
+ * Each frame is the 4-byte big-endian body length followed by the body,
+ * the same layout RILSender writes for a single request.
+ *
+ * Not thread safe; owned by the RILSender looper.
+ *
+ * {@hide}
+ */
+class RilFrameWriter {
+    private static final int HEADER_SIZE = 4;
+
+    private final byte[] mBuffer;
+    private int mLength;
+    private int mFrames;
+
+    // Statistics, read by RIL.dump
+    private long mFlushCount;
+    private long mFrameCount;
+    private int mMaxFramesPerFlush;
+
+    /**
+     * @param maxFrames number of maximal frames that fit before a flush is forced
+     * @param maxFrameLength largest request body rild accepts
+     */
+    RilFrameWriter(int maxFrames, int maxFrameLength) {
+        mBuffer = new byte[maxFrames * (maxFrameLength + HEADER_SIZE)];
+    }
+
+    /**
+     * @return true if a frame with a body of <code>length</code> bytes fits
+     * behind the frames already buffered.
+     */
+    boolean hasRoom(int length) {
+        return mLength + HEADER_SIZE + length <= mBuffer.length;
+    }
+
+    /**
+     * Appends one frame. The caller must have checked {@link #hasRoom}.
+     */
+    void append(byte[] data) {
+        int length = data.length;
+        // parcel length in big endian
+        mBuffer[mLength++] = 0;
+        mBuffer[mLength++] = 0;
+        mBuffer[mLength++] = (byte)((length >> 8) & 0xff);
+        mBuffer[mLength++] = (byte)(length & 0xff);
+        System.arraycopy(data, 0, mBuffer, mLength, length);
+        mLength += length;
+        mFrames++;
+    }
+
+    /**
+     * Writes every buffered frame with one call and empties the buffer,
+     * whether or not the write succeeds.
+     */
+    void flush(OutputStream os) throws IOException {
+        if (mFrames == 0) {
+            return;
+        }
+
+        int frames = mFrames;
+        int length = mLength;
+        mFrames = 0;
+        mLength = 0;
+
+        mFlushCount++;
+        mFrameCount += frames;
+        if (frames > mMaxFramesPerFlush) {
+            mMaxFramesPerFlush = frames;
+        }
+
+        os.write(mBuffer, 0, length);
+    }
+
+    long getFlushCount() {
+        return mFlushCount;
+    }
+
+    long getFrameCount() {
+        return mFrameCount;
+    }
+
+    int getMaxFramesPerFlush() {
+        return mMaxFramesPerFlush;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+
+/**
+ * Limits how many requests a RIL instance has accepted but not yet
+ * completed.
+ *
+ * Voice, SMS and control requests (see RilSendScheduler.classOf) are
+ * always admitted, though they count against the window. When the window
+ * is full, SIM I/O requests are deferred until a slot frees up, and
+ * informational queries, or SIM I/O beyond what can be deferred, are
+ * rejected so the caller sees REQUEST_WINDOW_FULL instead of a queue that
+ * grows without bound. A deferred request holds the wake lock and has a
+ * response deadline from the moment it is deferred, see RIL.onDeferred.
+ *
+ * {@hide}
+ */
+class RilInFlightWindow {
+    static final int ADMITTED = 0;
+    static final int DEFERRED = 1;
+    static final int REJECTED = 2;
+
+    private final RIL mRil;
+    private final int mSize;
+
+    // Guarded by this
+    private final ArrayDeque<RILRequest> mDeferred = new ArrayDeque<RILRequest>();
+    private int mInFlight;
+    private int mPeak;
+    private long mAdmittedCount;
+    private long mDeferredCount;
+    private long mRejectedCount;
+    private long mExpiredCount;
+
+    RilInFlightWindow(RIL ril, int size) {
+        mRil = ril;
+        mSize = size;
+    }
+
+    /**
+     * Decides what RIL.send does with <code>rr</code>. An ADMITTED request
+     * holds a slot until RILRequest.release; a DEFERRED one is handed to
+     * RIL.sendDeferred once a slot frees up.
+     */
+    synchronized int admit(RILRequest rr) {
+        int requestClass = RilSendScheduler.classOf(rr.mRequest);
+        boolean critical = requestClass < RilSendScheduler.CLASS_SIM_IO;
+        if (critical || mInFlight < mSize) {
+            take(rr);
+            return ADMITTED;
+        }
+        if (requestClass == RilSendScheduler.CLASS_SIM_IO && mDeferred.size() < mSize) {
+            mDeferred.add(rr);
+            mDeferredCount++;
+            // Under the lock, so that release cannot send rr before its
+            // wake lock reference is taken
+            mRil.onDeferred(rr);
+            return DEFERRED;
+        }
+        mRejectedCount++;
+        return REJECTED;
+    }
+
+    private void take(RILRequest rr) {
+        rr.mWindow = this;
+        mInFlight++;
+        mAdmittedCount++;
+        if (mInFlight > mPeak) {
+            mPeak = mInFlight;
+        }
+    }
+
+    /** Returns the slot of a completed request. */
+    void release() {
+        RILRequest next = null;
+        synchronized (this) {
+            mInFlight--;
+            if (mInFlight < mSize && !mDeferred.isEmpty()) {
+                next = mDeferred.poll();
+                take(next);
+            }
+        }
+        if (next != null) {
+            mRil.sendDeferred(next);
+        }
+    }
+
+    /**
+     * Drops a deferred request whose deadline passed before it got a slot.
+     *
+     * @return false if <code>rr</code> was already sent, or recycled and
+     * reused under another serial
+     */
+    synchronized boolean removeDeferred(RILRequest rr, int serial) {
+        if (rr.mSerial != serial || !mDeferred.remove(rr)) {
+            return false;
+        }
+        mExpiredCount++;
+        return true;
+    }
+
+    synchronized int getInFlight() {
+        return mInFlight;
+    }
+
+    synchronized long getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println(" In-flight window: " + mInFlight + "/" + mSize
+                + " peak=" + mPeak
+                + " deferredNow=" + mDeferred.size()
+                + " admitted=" + mAdmittedCount
+                + " deferred=" + mDeferredCount
+                + " rejected=" + mRejectedCount
+                + " expired=" + mExpiredCount);
+    }
+}
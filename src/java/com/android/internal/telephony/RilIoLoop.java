@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.net.LocalSocket;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+import android.telephony.Rlog;
+
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * One thread that reads the rild sockets of every RIL instance in the
+ * process, instead of one blocking RILReceiver thread per instance.
+ *
+ * RILReceiver still connects, retrying as usual, and then hands the
+ * connected socket here and exits. This thread polls all sockets, reads
+ * whatever is available and passes complete frames to the instance's
+ * RilDecodeQueue, which has them decoded on that instance's RILSender
+ * looper in the order rild sent them. A slow decoder therefore holds up
+ * only its own instance, and each instance costs one RILSender thread
+ * instead of a RILReceiver and a RilDecodePipeline thread as well. On
+ * disconnect the instance gets a fresh receiver thread, which cleans up
+ * and reconnects.
+ *
+ * {@hide}
+ */
+class RilIoLoop implements Runnable {
+    static final String LOG_TAG = "RilIoLoop";
+
+    private static RilIoLoop sInstance;
+
+    private static final class Connection {
+        final RIL mRil;
+        final LocalSocket mSocket;
+        final RilFrameReader mReader;
+        final String mName;
+
+        Connection(RIL ril, LocalSocket socket, RilFrameReader reader, String name) {
+            mRil = ril;
+            mSocket = socket;
+            mReader = reader;
+            mName = name;
+        }
+    }
+
+    // Guarded by itself; the loop thread works on a snapshot
+    private final ArrayList<Connection> mConnections = new ArrayList<Connection>();
+    private boolean mChanged;
+
+    // Written to when mConnections changes, to break out of poll
+    private final FileDescriptor mWakeupRead;
+    private final FileDescriptor mWakeupWrite;
+    private final byte[] mWakeupBuffer = new byte[64];
+
+    // Statistics, read by dump
+    private volatile long mPollCount;
+    private volatile long mReadCount;
+    private volatile long mFrameCount;
+
+    /** @return the process-wide loop, started on first use. */
+    static synchronized RilIoLoop getInstance() throws ErrnoException {
+        if (sInstance == null) {
+            sInstance = new RilIoLoop();
+            new Thread(sInstance, "RILIoLoop").start();
+        }
+        return sInstance;
+    }
+
+    private RilIoLoop() throws ErrnoException {
+        FileDescriptor[] pipe = Os.pipe();
+        mWakeupRead = pipe[0];
+        mWakeupWrite = pipe[1];
+    }
+
+    /**
+     * Starts reading <code>socket</code> for <code>ril</code>, which must
+     * have a RilDecodeQueue. Called by RILReceiver once connected.
+     */
+    void register(RIL ril, LocalSocket socket, RilFrameReader reader, String name) {
+        synchronized (mConnections) {
+            mConnections.add(new Connection(ril, socket, reader, name));
+            mChanged = true;
+        }
+        wakeup();
+    }
+
+    private void wakeup() {
+        try {
+            Os.write(mWakeupWrite, new byte[] { 0 }, 0, 1);
+        } catch (ErrnoException | java.io.InterruptedIOException e) {
+            Rlog.e(LOG_TAG, "wakeup failed", e);
+        }
+    }
+
+    @Override
+    public void run() {
+        Connection[] connections = new Connection[0];
+        StructPollfd[] fds = new StructPollfd[0];
+
+        for (;;) {
+            synchronized (mConnections) {
+                if (mChanged || fds.length == 0) {
+                    connections = mConnections.toArray(new Connection[mConnections.size()]);
+                    fds = new StructPollfd[connections.length + 1];
+                    for (int i = 0; i < fds.length; i++) {
+                        fds[i] = new StructPollfd();
+                    }
+                    fds[0].fd = mWakeupRead;
+                    fds[0].events = (short) OsConstants.POLLIN;
+                    for (int i = 0; i < connections.length; i++) {
+                        fds[i + 1].fd = connections[i].mSocket.getFileDescriptor();
+                        fds[i + 1].events = (short) OsConstants.POLLIN;
+                    }
+                    mChanged = false;
+                }
+            }
+
+            try {
+                Os.poll(fds, -1);
+            } catch (ErrnoException e) {
+                if (e.errno != OsConstants.EINTR) {
+                    Rlog.e(LOG_TAG, "poll failed", e);
+                }
+                continue;
+            }
+            mPollCount++;
+
+            if (fds[0].revents != 0) {
+                try {
+                    Os.read(mWakeupRead, mWakeupBuffer, 0, mWakeupBuffer.length);
+                } catch (ErrnoException | java.io.InterruptedIOException e) {
+                    // Nothing to read after all
+                }
+            }
+
+            for (int i = 0; i < connections.length; i++) {
+                if (fds[i + 1].revents != 0) {
+                    service(connections[i]);
+                }
+            }
+        }
+    }
+
+    private void service(Connection c) {
+        RilFrameReader reader = c.mReader;
+        int length = 0;
+        try {
+            if (!reader.readAvailable()) {
+                // End-of-stream reached
+                close(c);
+                return;
+            }
+            mReadCount++;
+
+            while ((length = reader.nextBuffered()) != RilFrameReader.NEED_MORE) {
+                if (c.mRil.mWireCapture != null) {
+                    c.mRil.mWireCapture.record(RilWireCapture.DIRECTION_INBOUND,
+                            reader.frameArray(), reader.frameOffset(), length);
+                }
+                c.mRil.mDecodeQueue.submit(reader.frameArray(), reader.frameOffset(), length);
+                mFrameCount++;
+            }
+        } catch (IOException e) {
+            Rlog.i(LOG_TAG, "'" + c.mName + "' socket closed", e);
+            close(c);
+        } catch (Throwable tr) {
+            // Anything unexpected ends this connection; it must not take
+            // the other instances down
+            Rlog.e(LOG_TAG, "Uncaught exception read length=" + length, tr);
+            close(c);
+        }
+    }
+
+    private void close(Connection c) {
+        synchronized (mConnections) {
+            if (!mConnections.remove(c)) {
+                return;
+            }
+            mChanged = true;
+        }
+        // Cleanup and reconnecting run on the instance's own receiver
+        // thread, so they do not hold up the other instances
+        c.mRil.onSharedSocketClosed(c.mName);
+    }
+
+    void dump(PrintWriter pw) {
+        int connections;
+        synchronized (mConnections) {
+            connections = mConnections.size();
+        }
+        pw.println(" Shared I/O loop: connections=" + connections
+                + " polls=" + mPollCount
+                + " reads=" + mReadCount
+                + " frames=" + mFrameCount);
+        dumpProcessStatus(pw);
+    }
+
+    /** Prints thread count and resident set size, to compare both modes. */
+    private static void dumpProcessStatus(PrintWriter pw) {
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new FileReader("/proc/self/status"));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("Threads:") || line.startsWith("VmRSS:")) {
+                    pw.println("  " + line.replaceAll("\\s+", " "));
+                }
+            }
+        } catch (IOException e) {
+            // Not worth failing dump over
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+}
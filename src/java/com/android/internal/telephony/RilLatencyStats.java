@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Per request code latency histograms for RIL requests.
+ *
+ * Each solicited request is timed in two legs: framework queueing, from
+ * send() until the request is written to the rild socket, and rild, from
+ * the write until the response is read back. Samples go into a
+ * LatencyHistogram per leg, so recording never allocates once a request
+ * code has been seen.
+ *
+ * {@hide}
+ */
+public class RilLatencyStats {
+    /** Mutable per request code accumulator, guarded by itself. */
+    private static class RequestStats {
+        final int mRequest;
+        final LatencyHistogram mQueue = new LatencyHistogram();
+        final LatencyHistogram mRild = new LatencyHistogram();
+        long mErrors;
+        long mTimeouts;
+
+        RequestStats(int request) {
+            mRequest = request;
+        }
+    }
+
+    /**
+     * Immutable copy of the statistics of one request code.
+     * Latencies are in microseconds.
+     */
+    public static class Snapshot {
+        public final int request;
+        public final String name;
+        public final long count;
+        public final long errors;
+        public final long timeouts;
+        public final long queueP50, queueP95, queueP99, queueMax;
+        public final long rildP50, rildP95, rildP99, rildMax;
+
+        Snapshot(RequestStats s) {
+            request = s.mRequest;
+            name = RIL.requestToString(s.mRequest);
+            count = s.mRild.mCount;
+            errors = s.mErrors;
+            timeouts = s.mTimeouts;
+            queueP50 = s.mQueue.percentile(50);
+            queueP95 = s.mQueue.percentile(95);
+            queueP99 = s.mQueue.percentile(99);
+            queueMax = s.mQueue.mMaxUs;
+            rildP50 = s.mRild.percentile(50);
+            rildP95 = s.mRild.percentile(95);
+            rildP99 = s.mRild.percentile(99);
+            rildMax = s.mRild.mMaxUs;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": n=" + count + " err=" + errors + " timeout=" + timeouts
+                    + " queue(us) p50=" + queueP50 + " p95=" + queueP95
+                    + " p99=" + queueP99 + " max=" + queueMax
+                    + " rild(us) p50=" + rildP50 + " p95=" + rildP95
+                    + " p99=" + rildP99 + " max=" + rildMax;
+        }
+    }
+
+    private final SparseArray<RequestStats> mStats = new SparseArray<RequestStats>();
+
+    private RequestStats statsFor(int request) {
+        synchronized (mStats) {
+            RequestStats s = mStats.get(request);
+            if (s == null) {
+                s = new RequestStats(request);
+                mStats.put(request, s);
+            }
+            return s;
+        }
+    }
+
+    /**
+     * Records a solicited response.
+     *
+     * @param enqueueNanos when send() accepted the request
+     * @param writeNanos when it was written to rild, or 0 if it never was
+     * @param responseNanos when the response was read
+     * @param error RIL_Errno of the response
+     */
+    void record(int request, long enqueueNanos, long writeNanos, long responseNanos,
+            int error) {
+        RequestStats s = statsFor(request);
+        synchronized (s) {
+            if (writeNanos != 0) {
+                s.mQueue.record((writeNanos - enqueueNanos) / 1000);
+                s.mRild.record((responseNanos - writeNanos) / 1000);
+            }
+            if (error != 0) s.mErrors++;
+        }
+    }
+
+    /** Records a request that missed its response deadline. */
+    void recordTimeout(int request) {
+        RequestStats s = statsFor(request);
+        synchronized (s) {
+            s.mTimeouts++;
+        }
+    }
+
+    /**
+     * @return a consistent copy of the statistics of every request code
+     * seen so far.
+     */
+    public ArrayList<Snapshot> getSnapshot() {
+        ArrayList<RequestStats> all = new ArrayList<RequestStats>();
+        synchronized (mStats) {
+            for (int i = 0, count = mStats.size(); i < count; i++) {
+                all.add(mStats.valueAt(i));
+            }
+        }
+
+        ArrayList<Snapshot> snapshot = new ArrayList<Snapshot>(all.size());
+        for (RequestStats s : all) {
+            synchronized (s) {
+                snapshot.add(new Snapshot(s));
+            }
+        }
+        return snapshot;
+    }
+
+    public void reset() {
+        synchronized (mStats) {
+            mStats.clear();
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println(" Request latency:");
+        for (Snapshot s : getSnapshot()) {
+            pw.println("  " + s);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Table of RIL requests that have been sent to rild and not yet answered,
+ * keyed by serial.
+ *
+ * Serials are handed out sequentially by RILRequest.obtain, so the low
+ * bits of a serial spread consecutive requests over a power-of-two ring
+ * and insert/remove are a single compare-and-set on the slot. A request
+ * whose slot is still occupied by a much older, unanswered request goes
+ * to a locked overflow map instead; that only happens when more than
+ * {@link #RING_SIZE} requests are outstanding at once.
+ *
+ * Each put stores a fresh entry holding the serial the request was put
+ * with. RILRequests are pooled, so the same object can come back into the
+ * same slot under a later serial; comparing entries rather than requests
+ * keeps a remove of the old serial from taking it out again.
+ *
+ * This replaces the SparseArray RIL.mRequestList used to be. {@link #get},
+ * {@link #append} and {@link #size} keep the SparseArray calls subclasses
+ * make by serial working. Locking the table excludes nothing, and there
+ * is no index-based access: subclasses should use
+ * RIL.findAndRemoveRequestFromList and RIL.clearRequestList instead.
+ *
+ * {@hide}
+ */
+class RilRequestTable {
+    static final int RING_SIZE = 256;
+    private static final int RING_MASK = RING_SIZE - 1;
+
+    /** A ring slot's contents; immutable, and never reused. */
+    private static final class Entry {
+        final int mSerial;
+        final RILRequest mRequest;
+
+        Entry(int serial, RILRequest request) {
+            mSerial = serial;
+            mRequest = request;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> mRing = new AtomicReferenceArray<Entry>(RING_SIZE);
+    private final AtomicInteger mSize = new AtomicInteger(0);
+
+    private final SparseArray<RILRequest> mOverflow = new SparseArray<RILRequest>();
+    // Lets remove() skip the overflow lock in the common case
+    private volatile int mOverflowSize;
+
+    /**
+     * Adds an in-flight request.
+     */
+    void put(RILRequest rr) {
+        int serial = rr.mSerial;
+        if (!mRing.compareAndSet(serial & RING_MASK, null, new Entry(serial, rr))) {
+            synchronized (mOverflow) {
+                mOverflow.put(serial, rr);
+                mOverflowSize = mOverflow.size();
+            }
+        }
+        mSize.incrementAndGet();
+    }
+
+    /**
+     * Removes and returns the request with the given serial.
+     *
+     * @return the request, or null if it is not in the table
+     */
+    RILRequest remove(int serial) {
+        int slot = serial & RING_MASK;
+        Entry entry = mRing.get(slot);
+        if (entry != null && entry.mSerial == serial && mRing.compareAndSet(slot, entry, null)) {
+            mSize.decrementAndGet();
+            return entry.mRequest;
+        }
+
+        if (mOverflowSize == 0) {
+            return null;
+        }
+
+        RILRequest rr;
+        synchronized (mOverflow) {
+            rr = mOverflow.get(serial);
+            if (rr != null) {
+                mOverflow.remove(serial);
+                mOverflowSize = mOverflow.size();
+            }
+        }
+        if (rr != null) {
+            mSize.decrementAndGet();
+        }
+        return rr;
+    }
+
+    /** Same as {@link #put}, for callers written against SparseArray. */
+    void append(int serial, RILRequest rr) {
+        if (rr.mSerial != serial) {
+            throw new IllegalArgumentException("serial " + serial + " != " + rr.mSerial);
+        }
+        put(rr);
+    }
+
+    /**
+     * @return the request with the given serial, left in the table, or null.
+     */
+    RILRequest get(int serial) {
+        Entry entry = mRing.get(serial & RING_MASK);
+        if (entry != null && entry.mSerial == serial) {
+            return entry.mRequest;
+        }
+
+        if (mOverflowSize == 0) {
+            return null;
+        }
+
+        synchronized (mOverflow) {
+            return mOverflow.get(serial);
+        }
+    }
+
+    /**
+     * @return true if a request with the given serial is in the table.
+     */
+    boolean contains(int serial) {
+        Entry entry = mRing.get(serial & RING_MASK);
+        if (entry != null && entry.mSerial == serial) {
+            return true;
+        }
+
+        if (mOverflowSize == 0) {
+            return false;
+        }
+
+        synchronized (mOverflow) {
+            return mOverflow.get(serial) != null;
+        }
+    }
+
+    /**
+     * Removes every request and appends it to <code>out</code>.
+     */
+    void removeAll(ArrayList<RILRequest> out) {
+        for (int i = 0; i < RING_SIZE; i++) {
+            Entry entry = mRing.getAndSet(i, null);
+            if (entry != null) {
+                mSize.decrementAndGet();
+                out.add(entry.mRequest);
+            }
+        }
+        synchronized (mOverflow) {
+            for (int i = 0, count = mOverflow.size(); i < count; i++) {
+                mSize.decrementAndGet();
+                out.add(mOverflow.valueAt(i));
+            }
+            mOverflow.clear();
+            mOverflowSize = 0;
+        }
+    }
+
+    /**
+     * Appends the requests currently in the table to <code>out</code>
+     * without removing them. The result is only a best-effort snapshot
+     * when other threads are modifying the table.
+     */
+    void snapshot(ArrayList<RILRequest> out) {
+        for (int i = 0; i < RING_SIZE; i++) {
+            Entry entry = mRing.get(i);
+            if (entry != null) {
+                out.add(entry.mRequest);
+            }
+        }
+        synchronized (mOverflow) {
+            for (int i = 0, count = mOverflow.size(); i < count; i++) {
+                out.add(mOverflow.valueAt(i));
+            }
+        }
+    }
+
+    int size() {
+        return mSize.get();
+    }
+}
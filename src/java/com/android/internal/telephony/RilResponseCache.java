@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.*;
+
+import android.os.SystemClock;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import java.io.PrintWriter;
+
+/**
+ * Remembers successful responses to parameterless requests whose answer
+ * only changes when the radio restarts, e.g. IMEI and baseband version.
+ *
+ * Each cacheable request code has a time to live; RIL answers a request
+ * from the cache while its entry is fresh and drops every entry when the
+ * radio becomes unavailable or the rild connection changes. The radio
+ * capability and hardware config also change on a capability switch, so
+ * their entries are dropped on SET_RADIO_CAPABILITY and on the unsolicited
+ * responses announcing either change.
+ *
+ * Every invalidation starts a new generation. RIL stamps each request
+ * with the generation current when it was sent, and a response to a
+ * request sent before an invalidation is not stored, so an answer that
+ * was in flight across a radio restart cannot refill the cache.
+ *
+ * The cache keeps its own copy of a response and hands each caller a
+ * fresh one, so callers may modify what they get.
+ *
+ * {@hide}
+ */
+class RilResponseCache {
+    static final int DEFAULT_TTL_MILLIS = 60 * 60 * 1000;
+
+    private static final int[] DEFAULT_CODES = {
+        RIL_REQUEST_GET_IMEI,
+        RIL_REQUEST_GET_IMEISV,
+        RIL_REQUEST_BASEBAND_VERSION,
+        RIL_REQUEST_DEVICE_IDENTITY,
+        RIL_REQUEST_GET_HARDWARE_CONFIG,
+        RIL_REQUEST_GET_RADIO_CAPABILITY,
+    };
+
+    private static final class Entry {
+        Object mValue;
+        long mExpiresAt;
+    }
+
+    // Time to live per cacheable request code; immutable after construction
+    private final SparseIntArray mTtls = new SparseIntArray();
+
+    // Guarded by this
+    private final SparseArray<Entry> mEntries = new SparseArray<Entry>();
+    private final SparseIntArray mHits = new SparseIntArray();
+    private final SparseIntArray mMisses = new SparseIntArray();
+    private int mInvalidations;
+    private int mGeneration;
+
+    /**
+     * @param config overrides in "code:ttlMillis,..." form; a ttl of 0
+     * stops a code from being cached. May be null.
+     */
+    RilResponseCache(String config) {
+        for (int code : DEFAULT_CODES) {
+            mTtls.put(code, DEFAULT_TTL_MILLIS);
+        }
+        if (config == null) {
+            return;
+        }
+        for (String entry : config.split(",")) {
+            String[] pair = entry.trim().split(":");
+            try {
+                int code = Integer.parseInt(pair[0].trim());
+                int ttl = Integer.parseInt(pair[1].trim());
+                if (ttl > 0) {
+                    mTtls.put(code, ttl);
+                } else {
+                    mTtls.delete(code);
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                // Malformed entries are ignored, as for request timeouts
+            }
+        }
+    }
+
+    boolean isCacheable(int request) {
+        return mTtls.get(request) > 0;
+    }
+
+    /**
+     * @return the fresh cached response to <code>request</code>, or null
+     * if it has to go to rild.
+     */
+    synchronized Object get(int request) {
+        if (!isCacheable(request)) {
+            return null;
+        }
+        Entry entry = mEntries.get(request);
+        if (entry == null || SystemClock.elapsedRealtime() >= entry.mExpiresAt) {
+            mMisses.put(request, mMisses.get(request) + 1);
+            return null;
+        }
+        mHits.put(request, mHits.get(request) + 1);
+        return RilResultCopy.copy(entry.mValue);
+    }
+
+    /** @return the generation to stamp a request with when it is sent */
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Stores a successful, non-null response, unless the cache was
+     * invalidated since the request was sent.
+     *
+     * @param generation what getGeneration returned when the request was
+     * sent
+     */
+    synchronized void put(int request, Object value, int generation) {
+        if (value == null || !isCacheable(request) || generation != mGeneration) {
+            return;
+        }
+        Entry entry = mEntries.get(request);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(request, entry);
+        }
+        entry.mValue = RilResultCopy.copy(value);
+        entry.mExpiresAt = SystemClock.elapsedRealtime() + mTtls.get(request);
+    }
+
+    /** Drops every cached response. */
+    synchronized void invalidate() {
+        mGeneration++;
+        if (mEntries.size() > 0) {
+            mEntries.clear();
+            mInvalidations++;
+        }
+    }
+
+    /** Drops the cached response to <code>request</code>, if any. */
+    synchronized void invalidate(int request) {
+        mGeneration++;
+        if (mEntries.get(request) != null) {
+            mEntries.remove(request);
+            mInvalidations++;
+        }
+    }
+
+    /** Drops the responses a completed <code>request</code> may have changed. */
+    void onSolicited(int request) {
+        if (request == RIL_REQUEST_SET_RADIO_CAPABILITY) {
+            invalidate(RIL_REQUEST_GET_RADIO_CAPABILITY);
+            invalidate(RIL_REQUEST_GET_HARDWARE_CONFIG);
+        }
+    }
+
+    /** Drops the responses an unsolicited <code>response</code> reports a change to. */
+    void onUnsolicited(int response) {
+        switch (response) {
+            case RIL_UNSOL_RADIO_CAPABILITY:
+                invalidate(RIL_REQUEST_GET_RADIO_CAPABILITY);
+                invalidate(RIL_REQUEST_GET_HARDWARE_CONFIG);
+                break;
+            case RIL_UNSOL_HARDWARE_CONFIG_CHANGED:
+                invalidate(RIL_REQUEST_GET_HARDWARE_CONFIG);
+                break;
+        }
+    }
+
+    synchronized int getHitCount(int request) {
+        return mHits.get(request);
+    }
+
+    synchronized int getMissCount(int request) {
+        return mMisses.get(request);
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println(" Response cache: entries=" + mEntries.size()
+                + " invalidations=" + mInvalidations);
+        for (int i = 0; i < mTtls.size(); i++) {
+            int code = mTtls.keyAt(i);
+            pw.println("  " + RIL.requestToString(code) + " ttl=" + mTtls.valueAt(i) + "ms"
+                    + " hits=" + mHits.get(code) + " misses=" + mMisses.get(code));
+        }
+    }
+}
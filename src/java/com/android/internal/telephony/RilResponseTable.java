@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Parcel;
+import android.util.SparseArray;
+
+import java.util.List;
+
+/**
+ * Maps RIL request or unsolicited response codes to the code that decodes
+ * and logs their payload.
+ *
+ * Codes within {@link #DENSE_SIZE} of the table's base are looked up by
+ * array index; anything else (vendor and OEM extensions) falls back to a
+ * SparseArray. RIL keeps one table for solicited responses and one for
+ * unsolicited ones, and vendor subclasses add or replace entries through
+ * RIL.registerSolicitedResponse / registerUnsolicitedResponse, called from
+ * RIL.onRegisterResponses before rild is read.
+ *
+ * {@hide}
+ */
+class RilResponseTable {
+    static final int DENSE_SIZE = 256;
+
+    /** Reads the payload of one response from the Parcel. */
+    interface Decoder {
+        Object decode(RIL ril, Parcel p) throws Exception;
+    }
+
+    /** Renders a decoded payload for the radio log. */
+    interface Formatter {
+        String format(Object ret);
+    }
+
+    static final class Entry {
+        final Decoder decoder;
+        final Formatter formatter;
+        // Payload is only logged with RILJ_LOGV, e.g. IMSI and IMEI
+        final boolean privacy;
+
+        Entry(Decoder decoder, Formatter formatter, boolean privacy) {
+            this.decoder = decoder;
+            this.formatter = formatter;
+            this.privacy = privacy;
+        }
+    }
+
+    /** int[] and String[] as {a, b}, anything else via toString(). */
+    static final Formatter FORMAT_DEFAULT = new Formatter() {
+        @Override
+        public String format(Object ret) {
+            StringBuilder sb;
+            int length;
+            if (ret instanceof int[]) {
+                int[] intArray = (int[]) ret;
+                length = intArray.length;
+                sb = new StringBuilder("{");
+                if (length > 0) {
+                    int i = 0;
+                    sb.append(intArray[i++]);
+                    while (i < length) {
+                        sb.append(", ").append(intArray[i++]);
+                    }
+                }
+                sb.append("}");
+                return sb.toString();
+            } else if (ret instanceof String[]) {
+                String[] strings = (String[]) ret;
+                length = strings.length;
+                sb = new StringBuilder("{");
+                if (length > 0) {
+                    int i = 0;
+                    sb.append(strings[i++]);
+                    while (i < length) {
+                        sb.append(", ").append(strings[i++]);
+                    }
+                }
+                sb.append("}");
+                return sb.toString();
+            }
+            return ret.toString();
+        }
+    };
+
+    /** Lists and arrays of records as {[a] [b] }. */
+    static final Formatter FORMAT_ELEMENTS = new Formatter() {
+        @Override
+        public String format(Object ret) {
+            StringBuilder sb = new StringBuilder("{");
+            if (ret instanceof Object[]) {
+                for (Object o : (Object[]) ret) {
+                    sb.append("[").append(o).append("] ");
+                }
+            } else {
+                for (Object o : (List<?>) ret) {
+                    sb.append("[").append(o).append("] ");
+                }
+            }
+            sb.append("}");
+            return sb.toString();
+        }
+    };
+
+    private final int mBase;
+    private final Entry[] mDense = new Entry[DENSE_SIZE];
+    private final SparseArray<Entry> mSparse = new SparseArray<Entry>();
+
+    /**
+     * @param base lowest code expected in this table, e.g. 0 for requests
+     * or RIL_UNSOL_RESPONSE_BASE for unsolicited responses
+     */
+    RilResponseTable(int base) {
+        mBase = base;
+    }
+
+    /** Creates an independent copy of <code>other</code>. */
+    RilResponseTable(RilResponseTable other) {
+        mBase = other.mBase;
+        System.arraycopy(other.mDense, 0, mDense, 0, DENSE_SIZE);
+        for (int i = 0, count = other.mSparse.size(); i < count; i++) {
+            mSparse.put(other.mSparse.keyAt(i), other.mSparse.valueAt(i));
+        }
+    }
+
+    void put(int code, Entry entry) {
+        int index = code - mBase;
+        if (index >= 0 && index < DENSE_SIZE) {
+            mDense[index] = entry;
+        } else {
+            mSparse.put(code, entry);
+        }
+    }
+
+    void put(int code, Decoder decoder) {
+        put(code, new Entry(decoder, FORMAT_DEFAULT, false));
+    }
+
+    /** @return the entry for <code>code</code>, or null if none is registered. */
+    Entry get(int code) {
+        int index = code - mBase;
+        if (index >= 0 && index < DENSE_SIZE) {
+            return mDense[index];
+        }
+        return mSparse.get(code);
+    }
+
+    /**
+     * Formats a decoded payload using the entry registered for
+     * <code>code</code>, honoring its privacy flag.
+     */
+    String format(int code, Object ret) {
+        if (ret == null) return "";
+        Entry entry = get(code);
+        if (entry == null) {
+            return FORMAT_DEFAULT.format(ret);
+        }
+        if (entry.privacy && !RIL.RILJ_LOGV) {
+            // If not verbose logging just return and don't display IMSI and IMEI, IMEISV
+            return "";
+        }
+        return entry.formatter.format(ret);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.telephony.CellInfo;
+import android.telephony.SignalStrength;
+
+import com.android.internal.telephony.dataconnection.DataCallResponse;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Deep copies of decoded RIL responses, for handing one response to
+ * several callers: those sharing a request through RilSingleFlight, and
+ * those answered from RilResponseCache. Callers are free to modify what
+ * they get, as they are with a response of their own.
+ *
+ * Covers the response types of the requests those two can share. Strings
+ * and boxed primitives are immutable and returned as they are; so is any
+ * other type, which callers must then treat as read-only.
+ *
+ * {@hide}
+ */
+class RilResultCopy {
+    private RilResultCopy() {
+    }
+
+    static Object copy(Object ret) {
+        if (ret instanceof String[]) {
+            return ((String[]) ret).clone();
+        } else if (ret instanceof int[]) {
+            return ((int[]) ret).clone();
+        } else if (ret instanceof List) {
+            List<?> list = (List<?>) ret;
+            ArrayList<Object> copy = new ArrayList<Object>(list.size());
+            for (int i = 0, count = list.size(); i < count; i++) {
+                copy.add(copy(list.get(i)));
+            }
+            return copy;
+        } else if (ret instanceof SignalStrength) {
+            return new SignalStrength((SignalStrength) ret);
+        } else if (ret instanceof CellInfo) {
+            return copyParcelable((CellInfo) ret, CellInfo.CREATOR);
+        } else if (ret instanceof DriverCall) {
+            return copyDriverCall((DriverCall) ret);
+        } else if (ret instanceof DataCallResponse) {
+            return copyDataCallResponse((DataCallResponse) ret);
+        } else if (ret instanceof HardwareConfig) {
+            return copyHardwareConfig((HardwareConfig) ret);
+        } else if (ret instanceof RadioCapability) {
+            RadioCapability rc = (RadioCapability) ret;
+            return new RadioCapability(rc.getPhoneId(), rc.getSession(), rc.getPhase(),
+                    rc.getRadioAccessFamily(), rc.getLogicalModemUuid(), rc.getStatus());
+        }
+        return ret;
+    }
+
+    private static <T extends Parcelable> T copyParcelable(T value,
+            Parcelable.Creator<T> creator) {
+        Parcel p = Parcel.obtain();
+        try {
+            value.writeToParcel(p, 0);
+            p.setDataPosition(0);
+            return creator.createFromParcel(p);
+        } finally {
+            p.recycle();
+        }
+    }
+
+    private static DriverCall copyDriverCall(DriverCall dc) {
+        DriverCall copy = new DriverCall();
+        copy.index = dc.index;
+        copy.isMT = dc.isMT;
+        copy.state = dc.state;
+        copy.isMpty = dc.isMpty;
+        copy.number = dc.number;
+        copy.TOA = dc.TOA;
+        copy.isVoice = dc.isVoice;
+        copy.isVoicePrivacy = dc.isVoicePrivacy;
+        copy.als = dc.als;
+        copy.numberPresentation = dc.numberPresentation;
+        copy.name = dc.name;
+        copy.namePresentation = dc.namePresentation;
+        if (dc.uusInfo != null) {
+            copy.uusInfo = new UUSInfo();
+            copy.uusInfo.setType(dc.uusInfo.getType());
+            copy.uusInfo.setDcs(dc.uusInfo.getDcs());
+            byte[] userData = dc.uusInfo.getUserData();
+            copy.uusInfo.setUserData(userData != null ? userData.clone() : null);
+        }
+        return copy;
+    }
+
+    private static DataCallResponse copyDataCallResponse(DataCallResponse dc) {
+        DataCallResponse copy = new DataCallResponse();
+        copy.version = dc.version;
+        copy.status = dc.status;
+        copy.cid = dc.cid;
+        copy.active = dc.active;
+        copy.type = dc.type;
+        copy.ifname = dc.ifname;
+        copy.addresses = dc.addresses != null ? dc.addresses.clone() : null;
+        copy.dnses = dc.dnses != null ? dc.dnses.clone() : null;
+        copy.gateways = dc.gateways != null ? dc.gateways.clone() : null;
+        copy.suggestedRetryTime = dc.suggestedRetryTime;
+        copy.pcscf = dc.pcscf != null ? dc.pcscf.clone() : null;
+        copy.mtu = dc.mtu;
+        return copy;
+    }
+
+    private static HardwareConfig copyHardwareConfig(HardwareConfig hw) {
+        HardwareConfig copy = new HardwareConfig(hw.type);
+        // The int constructor does not actually set the type
+        copy.type = hw.type;
+        copy.uuid = hw.uuid;
+        copy.state = hw.state;
+        copy.rilModel = hw.rilModel;
+        copy.rat = hw.rat != null ? (BitSet) hw.rat.clone() : null;
+        copy.maxActiveVoiceCall = hw.maxActiveVoiceCall;
+        copy.maxActiveDataCall = hw.maxActiveDataCall;
+        copy.maxStandby = hw.maxStandby;
+        copy.modemUuid = hw.modemUuid;
+        return copy;
+    }
+}
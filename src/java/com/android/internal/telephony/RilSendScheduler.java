@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.*;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+
+/**
+ * Orders requests waiting for RILSender by priority class, so a dial or
+ * an SMS does not queue behind a phonebook worth of SIM reads.
+ *
+ * Requests are FIFO within a class and {@link #poll} serves the highest
+ * class with work. To keep lower classes from starving, a request that
+ * has waited longer than <code>maxWaitMillis</code> is served ahead of
+ * higher classes, oldest first.
+ *
+ * {@hide}
+ */
+class RilSendScheduler {
+    static final int DEFAULT_MAX_WAIT_MILLIS = 500;
+
+    static final int CLASS_VOICE = 0;
+    static final int CLASS_SMS = 1;
+    static final int CLASS_CONTROL = 2;
+    static final int CLASS_SIM_IO = 3;
+    static final int CLASS_INFO = 4;
+    static final int CLASS_COUNT = 5;
+
+    private static final String[] CLASS_NAMES = {
+        "voice", "sms", "control", "sim_io", "info",
+    };
+
+    private final long mMaxWaitNanos;
+
+    // Guarded by this
+    private final ArrayDeque<RILRequest>[] mQueues;
+    private final LatencyHistogram[] mDelays;
+    private final long[] mPromoted = new long[CLASS_COUNT];
+    private int mSize;
+
+    @SuppressWarnings("unchecked")
+    RilSendScheduler(int maxWaitMillis) {
+        mMaxWaitNanos = maxWaitMillis * 1000000L;
+        mQueues = new ArrayDeque[CLASS_COUNT];
+        mDelays = new LatencyHistogram[CLASS_COUNT];
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            mQueues[i] = new ArrayDeque<RILRequest>();
+            mDelays[i] = new LatencyHistogram();
+        }
+    }
+
+    /** @return the priority class of a request code, lower is more urgent. */
+    static int classOf(int request) {
+        switch (request) {
+            case RIL_REQUEST_DIAL:
+            case RIL_REQUEST_ANSWER:
+            case RIL_REQUEST_HANGUP:
+            case RIL_REQUEST_HANGUP_WAITING_OR_BACKGROUND:
+            case RIL_REQUEST_HANGUP_FOREGROUND_RESUME_BACKGROUND:
+            case RIL_REQUEST_SWITCH_WAITING_OR_HOLDING_AND_ACTIVE:
+            case RIL_REQUEST_CONFERENCE:
+            case RIL_REQUEST_UDUB:
+            case RIL_REQUEST_SEPARATE_CONNECTION:
+            case RIL_REQUEST_EXPLICIT_CALL_TRANSFER:
+            case RIL_REQUEST_GET_CURRENT_CALLS:
+            case RIL_REQUEST_LAST_CALL_FAIL_CAUSE:
+            case RIL_REQUEST_DTMF:
+            case RIL_REQUEST_DTMF_START:
+            case RIL_REQUEST_DTMF_STOP:
+            case RIL_REQUEST_CDMA_FLASH:
+            case RIL_REQUEST_CDMA_BURST_DTMF:
+            case RIL_REQUEST_SET_MUTE:
+                return CLASS_VOICE;
+
+            case RIL_REQUEST_SEND_SMS:
+            case RIL_REQUEST_SEND_SMS_EXPECT_MORE:
+            case RIL_REQUEST_CDMA_SEND_SMS:
+            case RIL_REQUEST_IMS_SEND_SMS:
+            case RIL_REQUEST_SMS_ACKNOWLEDGE:
+            case RIL_REQUEST_CDMA_SMS_ACKNOWLEDGE:
+            case RIL_REQUEST_ACKNOWLEDGE_INCOMING_GSM_SMS_WITH_PDU:
+            case RIL_REQUEST_WRITE_SMS_TO_SIM:
+            case RIL_REQUEST_DELETE_SMS_ON_SIM:
+            case RIL_REQUEST_CDMA_WRITE_SMS_TO_RUIM:
+            case RIL_REQUEST_CDMA_DELETE_SMS_ON_RUIM:
+                return CLASS_SMS;
+
+            case RIL_REQUEST_SIM_IO:
+                return CLASS_SIM_IO;
+
+            case RIL_REQUEST_SIGNAL_STRENGTH:
+            case RIL_REQUEST_VOICE_REGISTRATION_STATE:
+            case RIL_REQUEST_DATA_REGISTRATION_STATE:
+            case RIL_REQUEST_OPERATOR:
+            case RIL_REQUEST_QUERY_NETWORK_SELECTION_MODE:
+            case RIL_REQUEST_QUERY_AVAILABLE_NETWORKS:
+            case RIL_REQUEST_GET_CELL_INFO_LIST:
+            case RIL_REQUEST_GET_NEIGHBORING_CELL_IDS:
+            case RIL_REQUEST_DATA_CALL_LIST:
+            case RIL_REQUEST_VOICE_RADIO_TECH:
+            case RIL_REQUEST_GET_PREFERRED_NETWORK_TYPE:
+            case RIL_REQUEST_BASEBAND_VERSION:
+            case RIL_REQUEST_GET_IMEI:
+            case RIL_REQUEST_GET_IMEISV:
+            case RIL_REQUEST_DEVICE_IDENTITY:
+            case RIL_REQUEST_GET_HARDWARE_CONFIG:
+            case RIL_REQUEST_GET_RADIO_CAPABILITY:
+            case RIL_REQUEST_GET_ACTIVITY_INFO:
+                return CLASS_INFO;
+
+            default:
+                return CLASS_CONTROL;
+        }
+    }
+
+    /** Queues a request; rr.mEnqueueNanos must already be set. */
+    synchronized void offer(RILRequest rr) {
+        mQueues[classOf(rr.mRequest)].add(rr);
+        mSize++;
+    }
+
+    /** @return the next request to send, or null if none are waiting. */
+    synchronized RILRequest poll() {
+        if (mSize == 0) {
+            return null;
+        }
+        long now = SystemClock.elapsedRealtimeNanos();
+
+        int pick = -1;
+        long oldestStarved = Long.MAX_VALUE;
+        int starved = -1;
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            RILRequest head = mQueues[i].peek();
+            if (head == null) {
+                continue;
+            }
+            if (pick < 0) {
+                pick = i;
+            }
+            if (now - head.mEnqueueNanos >= mMaxWaitNanos
+                    && head.mEnqueueNanos < oldestStarved) {
+                oldestStarved = head.mEnqueueNanos;
+                starved = i;
+            }
+        }
+        if (starved > pick) {
+            mPromoted[starved]++;
+            pick = starved;
+        }
+
+        RILRequest rr = mQueues[pick].poll();
+        mSize--;
+        mDelays[pick].record((now - rr.mEnqueueNanos) / 1000);
+        return rr;
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println(" Send scheduler, maxWait=" + (mMaxWaitNanos / 1000000) + "ms:");
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            LatencyHistogram h = mDelays[i];
+            pw.println("  " + CLASS_NAMES[i] + " queued=" + mQueues[i].size()
+                    + " sent=" + h.mCount
+                    + " promoted=" + mPromoted[i]
+                    + " delayUs p50=" + h.percentile(50)
+                    + " p95=" + h.percentile(95)
+                    + " p99=" + h.percentile(99)
+                    + " max=" + h.mMaxUs);
+        }
+    }
+}
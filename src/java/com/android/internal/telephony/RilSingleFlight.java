@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.*;
+
+import android.os.Message;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Collapses concurrent copies of parameterless, read-only RIL queries
+ * into one modem round trip.
+ *
+ * The first request of a type becomes the leader and is queued as usual.
+ * Requests of the same type issued while the leader is still queued are
+ * not sent; their result Messages are parked here and, when the leader
+ * completes, receive its result or exception. Once the leader has been
+ * written to rild its response may reflect state from before a later
+ * request was made, so that request starts a new leader instead.
+ *
+ * Each waiter gets its own copy of the result, made by RilResultCopy.
+ *
+ * {@hide}
+ */
+class RilSingleFlight {
+    // Guarded by this
+    // Request code -> leader not yet written, which later requests may join
+    private final SparseArray<RILRequest> mLeaders = new SparseArray<RILRequest>();
+    // Leader serial -> Messages waiting on it
+    private final SparseArray<ArrayList<Message>> mWaiters =
+            new SparseArray<ArrayList<Message>>();
+    private final SparseIntArray mSaved = new SparseIntArray();
+
+    /** @return true for requests whose response depends only on modem state. */
+    static boolean isShareable(int request) {
+        switch (request) {
+            case RIL_REQUEST_GET_CURRENT_CALLS:
+            case RIL_REQUEST_SIGNAL_STRENGTH:
+            case RIL_REQUEST_DATA_CALL_LIST:
+            case RIL_REQUEST_VOICE_REGISTRATION_STATE:
+            case RIL_REQUEST_OPERATOR:
+            case RIL_REQUEST_GET_CELL_INFO_LIST:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Called by RIL.send before a request is queued.
+     *
+     * @return true if an identical request is still queued and
+     * <code>rr</code> was parked behind it. The caller must then release
+     * <code>rr</code> without sending it.
+     */
+    synchronized boolean join(RILRequest rr) {
+        int request = rr.mRequest;
+        if (!isShareable(request)) {
+            return false;
+        }
+
+        if (mLeaders.get(request) == null) {
+            mLeaders.put(request, rr);
+            rr.mSingleFlight = this;
+            return false;
+        }
+
+        int leader = mLeaders.get(request).mSerial;
+        ArrayList<Message> waiters = mWaiters.get(leader);
+        if (waiters == null) {
+            waiters = new ArrayList<Message>();
+            mWaiters.put(leader, waiters);
+        }
+        if (rr.mResult != null) {
+            waiters.add(rr.mResult);
+        }
+        mSaved.put(request, mSaved.get(request) + 1);
+        return true;
+    }
+
+    /**
+     * Called by RILSender just before <code>rr</code> is written to rild.
+     * Closes the leader's group to later requests.
+     */
+    synchronized void onWritten(RILRequest rr) {
+        if (mLeaders.get(rr.mRequest) == rr) {
+            mLeaders.remove(rr.mRequest);
+        }
+    }
+
+    /**
+     * Called when a leader completes, however it completes.
+     *
+     * @return the Messages waiting on <code>leader</code>, or null
+     */
+    synchronized ArrayList<Message> complete(RILRequest leader) {
+        if (mLeaders.get(leader.mRequest) == leader) {
+            mLeaders.remove(leader.mRequest);
+        }
+        ArrayList<Message> waiters = mWaiters.get(leader.mSerial);
+        mWaiters.remove(leader.mSerial);
+        return waiters;
+    }
+
+    /** @return modem round trips saved for <code>request</code>. */
+    synchronized int getSavedCount(int request) {
+        return mSaved.get(request);
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        int total = 0;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mSaved.size(); i++) {
+            total += mSaved.valueAt(i);
+            sb.append(' ').append(RIL.requestToString(mSaved.keyAt(i)))
+                    .append('=').append(mSaved.valueAt(i));
+        }
+        pw.println(" Single-flight: saved round trips=" + total + sb);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.*;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import java.io.PrintWriter;
+
+/**
+ * Thins out bursts of unsolicited responses whose payload fully replaces
+ * the previous one of the same type.
+ *
+ * A response of a type with no window running is delivered right away by
+ * the caller and opens a window of <code>windowMillis</code>. Responses of
+ * the same type arriving before it closes are held, each replacing the one
+ * before, which is counted as dropped. When the window closes, a held
+ * response is handed to RIL.dispatchUnsolicited on this handler's looper
+ * and opens another window; with nothing held, the window just closes. So
+ * a lone response is never delayed, and a steady stream is delivered at
+ * most once per window. Responses of other types are not held, so a
+ * coalesced type may be delivered after a later response of another type.
+ *
+ * {@hide}
+ */
+class RilUnsolCoalescer extends Handler {
+    static final int DEFAULT_WINDOW_MILLIS = 100;
+
+    private static final int EVENT_WINDOW_END = 1;
+
+    /** Unsolicited responses that are pure state snapshots. */
+    private static final int[] COALESCED = {
+        RIL_UNSOL_SIGNAL_STRENGTH,
+        RIL_UNSOL_CELL_INFO_LIST,
+        RIL_UNSOL_DATA_CALL_LIST_CHANGED,
+        RIL_UNSOL_RESPONSE_VOICE_NETWORK_STATE_CHANGED,
+        RIL_UNSOL_RESPONSE_IMS_NETWORK_STATE_CHANGED,
+    };
+
+    private final RIL mRil;
+    private final int mWindowMillis;
+
+    // Guarded by this
+    private final boolean[] mWindowOpen = new boolean[COALESCED.length];
+    private final boolean[] mHasPending = new boolean[COALESCED.length];
+    private final Object[] mPending = new Object[COALESCED.length];
+    private final long[] mDelivered = new long[COALESCED.length];
+    private final long[] mDropped = new long[COALESCED.length];
+
+    RilUnsolCoalescer(RIL ril, Looper looper, int windowMillis) {
+        super(looper);
+        mRil = ril;
+        mWindowMillis = windowMillis;
+    }
+
+    private static int indexOf(int response) {
+        for (int i = 0; i < COALESCED.length; i++) {
+            if (COALESCED[i] == response) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Called on the receiver thread with a decoded unsolicited response.
+     *
+     * @return true if the response was taken over, false if the caller
+     * should dispatch it right away.
+     */
+    boolean offer(int response, Object ret) {
+        int i = indexOf(response);
+        if (i < 0) {
+            return false;
+        }
+
+        synchronized (this) {
+            if (mWindowOpen[i]) {
+                if (mHasPending[i]) {
+                    mDropped[i]++;
+                }
+                mPending[i] = ret;
+                mHasPending[i] = true;
+                return true;
+            }
+            mWindowOpen[i] = true;
+            mDelivered[i]++;
+        }
+        sendMessageDelayed(obtainMessage(EVENT_WINDOW_END, i, 0), mWindowMillis);
+        return false;
+    }
+
+    @Override
+    public void handleMessage(Message msg) {
+        switch (msg.what) {
+            case EVENT_WINDOW_END:
+                int i = msg.arg1;
+                Object ret;
+                synchronized (this) {
+                    if (!mHasPending[i]) {
+                        mWindowOpen[i] = false;
+                        return;
+                    }
+                    ret = mPending[i];
+                    mPending[i] = null;
+                    mHasPending[i] = false;
+                    mDelivered[i]++;
+                }
+                // Keep the window open while the burst lasts
+                sendMessageDelayed(obtainMessage(EVENT_WINDOW_END, i, 0), mWindowMillis);
+                mRil.dispatchUnsolicited(COALESCED[i], ret, null);
+                break;
+        }
+    }
+
+    /** @return how many responses of <code>response</code> were superseded. */
+    synchronized long getDroppedCount(int response) {
+        int i = indexOf(response);
+        return i < 0 ? 0 : mDropped[i];
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println(" Unsolicited coalescing, window=" + mWindowMillis + "ms:");
+        for (int i = 0; i < COALESCED.length; i++) {
+            pw.println("  " + RIL.responseToString(COALESCED[i])
+                    + " delivered=" + mDelivered[i] + " dropped=" + mDropped[i]);
+        }
+    }
+}
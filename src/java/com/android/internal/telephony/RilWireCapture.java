@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.SystemClock;
+import android.telephony.Rlog;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+
+/**
+ * Records every frame exchanged with rild, in both directions, to a binary
+ * capture file that {@link com.android.internal.telephony.test.RilCaptureReplayer}
+ * can later play back.
+ *
+ * The file starts with {@link #MAGIC} and {@link #VERSION}, followed by one
+ * record per frame: direction (int), elapsedRealtimeNanos when the frame
+ * was sent or read (long), payload length (int) and the Parcel payload
+ * without the 4 byte length prefix. All values are big endian.
+ *
+ * Captures contain IMSI, phone numbers and message contents, so RIL only
+ * enables this on debuggable builds.
+ *
+ * {@hide}
+ */
+public class RilWireCapture {
+    static final String LOG_TAG = "RilWireCapture";
+
+    public static final int MAGIC = 0x52494c43; // "RILC"
+    public static final int VERSION = 1;
+
+    /** Frame written to rild. */
+    public static final int DIRECTION_OUTBOUND = 0;
+    /** Frame read from rild. */
+    public static final int DIRECTION_INBOUND = 1;
+
+    private static final int RECORD_HEADER_BYTES = 16;
+
+    // Guarded by this; null once closed or after a write error
+    private DataOutputStream mOut;
+    private final long mMaxBytes;
+    private long mBytes;
+    private long mRecords;
+    private boolean mTruncated;
+
+    /**
+     * @param maxBytes capture stops once the file would grow past this,
+     * or 0 for no limit
+     */
+    public RilWireCapture(OutputStream out, long maxBytes) throws IOException {
+        mOut = new DataOutputStream(new BufferedOutputStream(out));
+        mMaxBytes = maxBytes;
+        mOut.writeInt(MAGIC);
+        mOut.writeInt(VERSION);
+        mBytes = 8;
+    }
+
+    /** @return a capture writing to <code>path</code>, or null if it cannot be opened. */
+    static RilWireCapture open(String path, long maxBytes) {
+        try {
+            return new RilWireCapture(new FileOutputStream(path), maxBytes);
+        } catch (IOException ex) {
+            Rlog.e(LOG_TAG, "Cannot open capture file " + path, ex);
+            return null;
+        }
+    }
+
+    /** Appends one frame; called from both RILSender and RILReceiver. */
+    public synchronized void record(int direction, byte[] data, int offset, int length) {
+        if (mOut == null || mTruncated) {
+            return;
+        }
+        if (mMaxBytes > 0 && mBytes + RECORD_HEADER_BYTES + length > mMaxBytes) {
+            Rlog.w(LOG_TAG, "Capture limit of " + mMaxBytes + " bytes reached");
+            mTruncated = true;
+            flush();
+            return;
+        }
+
+        try {
+            mOut.writeInt(direction);
+            mOut.writeLong(SystemClock.elapsedRealtimeNanos());
+            mOut.writeInt(length);
+            mOut.write(data, offset, length);
+            mBytes += RECORD_HEADER_BYTES + length;
+            mRecords++;
+        } catch (IOException ex) {
+            Rlog.e(LOG_TAG, "Capture write failed, stopping", ex);
+            close();
+        }
+    }
+
+    public synchronized void flush() {
+        if (mOut == null) {
+            return;
+        }
+        try {
+            mOut.flush();
+        } catch (IOException ex) {
+            Rlog.e(LOG_TAG, "Capture flush failed, stopping", ex);
+            close();
+        }
+    }
+
+    public synchronized void close() {
+        if (mOut == null) {
+            return;
+        }
+        try {
+            mOut.close();
+        } catch (IOException ex) {
+            // nothing more to lose
+        }
+        mOut = null;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println(" Wire capture: records=" + mRecords + " bytes=" + mBytes
+                + (mTruncated ? " (limit reached)" : "")
+                + (mOut == null ? " (closed)" : ""));
+    }
+
+    /** One frame read back from a capture file. */
+    public static class Record {
+        public int direction;
+        public long timestampNanos;
+        public byte[] data;
+    }
+
+    /** Reads the records of a capture file in order. */
+    public static class Reader {
+        private final DataInputStream mIn;
+
+        public Reader(InputStream in) throws IOException {
+            mIn = new DataInputStream(in);
+            if (mIn.readInt() != MAGIC) {
+                throw new IOException("Not a RIL capture file");
+            }
+            int version = mIn.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported capture version " + version);
+            }
+        }
+
+        /** @return the next record, or null at the end of the capture. */
+        public Record next() throws IOException {
+            Record record = new Record();
+            try {
+                record.direction = mIn.readInt();
+            } catch (EOFException ex) {
+                return null;
+            }
+            record.timestampNanos = mIn.readLong();
+            int length = mIn.readInt();
+            if (length < 0) {
+                throw new IOException("Invalid record length " + length);
+            }
+            record.data = new byte[length];
+            mIn.readFully(record.data);
+            return record;
+        }
+
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
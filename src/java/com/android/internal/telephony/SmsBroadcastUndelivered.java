@@ -16,19 +16,30 @@
 
 package com.android.internal.telephony;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.provider.Telephony;
 import android.telephony.Rlog;
 
 import com.android.internal.telephony.cdma.CdmaInboundSmsHandler;
 import com.android.internal.telephony.gsm.GsmInboundSmsHandler;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Called at boot time to clean out the raw table, collecting all acknowledged messages and
@@ -44,11 +55,20 @@ public class SmsBroadcastUndelivered implements Runnable {
     /** Delete any partial message segments older than 30 days. */
     static final long PARTIAL_SEGMENT_EXPIRE_AGE = (long) (60 * 60 * 1000) * 24 * 30;
 
+    /** Rows converted to the configured PDU format per provider call. */
+    private static final int PDU_CONVERSION_BATCH_SIZE = 100;
+
+    /** Rows read from the raw table per query. */
+    static final int PAGE_SIZE = 200;
+
+    /** Expired messages deleted per provider call. */
+    private static final int DELETE_BATCH_SIZE = 100;
+
     /**
      * Query projection for dispatching pending messages at boot time.
      * Column order must match the {@code *_COLUMN} constants in {@link InboundSmsHandler}.
      */
-    private static final String[] PDU_PENDING_MESSAGE_PROJECTION = {
+    static final String[] PDU_PENDING_MESSAGE_PROJECTION = {
             "pdu",
             "sequence",
             "destination_port",
@@ -71,6 +91,13 @@ public class SmsBroadcastUndelivered implements Runnable {
     /** Handler for 3GPP2-format messages (may be null). */
     private final CdmaInboundSmsHandler mCdmaInboundSmsHandler;
 
+    // Recovery metrics, logged when the scan finishes
+    private int mPages;
+    private int mRowsProcessed;
+    private int mMessagesBroadcast;
+    private int mExpiredRowsDeleted;
+    private int mPdusConverted;
+
     public SmsBroadcastUndelivered(Context context, GsmInboundSmsHandler gsmInboundSmsHandler,
             CdmaInboundSmsHandler cdmaInboundSmsHandler) {
         mResolver = context.getContentResolver();
@@ -93,77 +120,225 @@ public class SmsBroadcastUndelivered implements Runnable {
 
     /**
      * Scan the raw table for complete SMS messages to broadcast, and old PDUs to delete.
+     * The table is read in pages of {@link #PAGE_SIZE} rows, fetching the next page on a
+     * second thread while the current one is processed. Complete messages are handed to
+     * their handler as soon as their last segment is seen; only a count of segments is kept
+     * for incomplete messages, and only the key of complete ones.
      */
     private void scanRawTable() {
         long startTime = System.nanoTime();
         HashMap<SmsReferenceKey, Integer> multiPartReceivedCount =
                 new HashMap<SmsReferenceKey, Integer>(4);
         HashSet<SmsReferenceKey> oldMultiPartMessages = new HashSet<SmsReferenceKey>(4);
+        HashSet<SmsReferenceKey> completeMessages = new HashSet<SmsReferenceKey>(4);
+        ExecutorService prefetcher = Executors.newSingleThreadExecutor();
         Cursor cursor = null;
+        Future<Cursor> nextPage = null;
         try {
-            cursor = mResolver.query(sRawUri, PDU_PENDING_MESSAGE_PROJECTION, null, null, null);
+            cursor = queryPage(-1);
             if (cursor == null) {
                 Rlog.e(TAG, "error getting pending message cursor");
                 return;
             }
 
             boolean isCurrentFormat3gpp2 = InboundSmsHandler.isCurrentFormat3gpp2();
-            while (cursor.moveToNext()) {
-                InboundSmsTracker tracker;
+            while (cursor != null) {
+                mPages++;
+                if (cursor.getCount() > PAGE_SIZE && cursor.moveToPosition(PAGE_SIZE - 1)) {
+                    // There is more; start fetching the page after this one
+                    final long lastId = cursor.getLong(InboundSmsHandler.ID_COLUMN);
+                    cursor.moveToPosition(-1);
+                    nextPage = prefetcher.submit(new Callable<Cursor>() {
+                        @Override
+                        public Cursor call() {
+                            return queryPage(lastId);
+                        }
+                    });
+                }
+
+                processPage(cursor, isCurrentFormat3gpp2, multiPartReceivedCount,
+                        oldMultiPartMessages, completeMessages);
+                cursor.close();
+                cursor = null;
+
+                if (nextPage != null) {
+                    cursor = nextPage.get();
+                    nextPage = null;
+                }
+            }
+
+            // Delete old incomplete message segments
+            deleteExpired(oldMultiPartMessages);
+        } catch (SQLException | InterruptedException | ExecutionException e) {
+            Rlog.e(TAG, "error reading pending SMS messages", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            if (nextPage != null) {
+                // Only left over after an error; don't leak the prefetched cursor
                 try {
-                    tracker = new InboundSmsTracker(cursor, isCurrentFormat3gpp2);
-                } catch (IllegalArgumentException e) {
-                    Rlog.e(TAG, "error loading SmsTracker: " + e);
-                    continue;
+                    Cursor unused = nextPage.get();
+                    if (unused != null) {
+                        unused.close();
+                    }
+                } catch (InterruptedException | ExecutionException e) {
+                    // Nothing to close
                 }
+            }
+            prefetcher.shutdown();
+            Rlog.d(TAG, "finished scanning raw table in "
+                    + ((System.nanoTime() - startTime) / 1000000) + " ms: rows="
+                    + mRowsProcessed + " pages=" + mPages
+                    + " broadcast=" + mMessagesBroadcast
+                    + " expiredRowsDeleted=" + mExpiredRowsDeleted
+                    + " pdusConverted=" + mPdusConverted);
+        }
+    }
+
+    /**
+     * @return the rows with _id above <code>afterId</code>, in _id order, of which
+     * {@link #processPage} reads the first PAGE_SIZE.
+     *
+     * This depends only on SmsProvider passing the selection and sort order of the raw
+     * table through to SQLite. It takes no limit for raw, and the query API has no limit
+     * argument, while a LIMIT smuggled in through the sort order would break with any
+     * provider that checks it. Paging on _id still bounds the rows handled at once, but
+     * the cursor window may already hold rows of the pages that follow.
+     */
+    private Cursor queryPage(long afterId) {
+        return mResolver.query(sRawUri, PDU_PENDING_MESSAGE_PROJECTION, "_id>?",
+                new String[] {Long.toString(afterId)}, "_id");
+    }
+
+    private void processPage(Cursor cursor, boolean isCurrentFormat3gpp2,
+            HashMap<SmsReferenceKey, Integer> multiPartReceivedCount,
+            HashSet<SmsReferenceKey> oldMultiPartMessages,
+            HashSet<SmsReferenceKey> completeMessages) {
+        ArrayList<ContentProviderOperation> conversions =
+                new ArrayList<ContentProviderOperation>();
+        int rows = 0;
+        while (rows < PAGE_SIZE && cursor.moveToNext()) {
+            rows++;
+            mRowsProcessed++;
+            InboundSmsTracker tracker;
+            try {
+                tracker = new InboundSmsTracker(cursor, isCurrentFormat3gpp2);
+            } catch (IllegalArgumentException e) {
+                Rlog.e(TAG, "error loading SmsTracker: " + e);
+                continue;
+            }
 
-                if (tracker.getMessageCount() == 1) {
-                    // deliver single-part message
-                    broadcastSms(tracker);
+            if (InboundSmsTracker.needsPduConversion(cursor)) {
+                ContentValues values = new ContentValues(1);
+                InboundSmsTracker.putPdu(values, tracker.getPdu());
+                conversions.add(ContentProviderOperation.newUpdate(sRawUri)
+                        .withSelection(InboundSmsHandler.SELECT_BY_ID, new String[] {
+                                cursor.getString(InboundSmsHandler.ID_COLUMN)})
+                        .withValues(values)
+                        .build());
+            }
+
+            if (tracker.getMessageCount() == 1) {
+                // deliver single-part message
+                broadcastSms(tracker);
+            } else {
+                SmsReferenceKey reference = new SmsReferenceKey(tracker);
+                if (completeMessages.contains(reference)) {
+                    // A duplicate segment of a message already handed over for broadcast;
+                    // its rows are the handler's to delete, never expired here
+                    continue;
+                }
+                Integer receivedCount = multiPartReceivedCount.get(reference);
+                if (receivedCount == null) {
+                    multiPartReceivedCount.put(reference, 1);    // first segment seen
+                    if (tracker.getTimestamp() <
+                            (System.currentTimeMillis() - PARTIAL_SEGMENT_EXPIRE_AGE)) {
+                        // older than 30 days; delete if we don't find all the segments
+                        oldMultiPartMessages.add(reference);
+                    }
                 } else {
-                    SmsReferenceKey reference = new SmsReferenceKey(tracker);
-                    Integer receivedCount = multiPartReceivedCount.get(reference);
-                    if (receivedCount == null) {
-                        multiPartReceivedCount.put(reference, 1);    // first segment seen
-                        if (tracker.getTimestamp() <
-                                (System.currentTimeMillis() - PARTIAL_SEGMENT_EXPIRE_AGE)) {
-                            // older than 30 days; delete if we don't find all the segments
-                            oldMultiPartMessages.add(reference);
-                        }
+                    int newCount = receivedCount + 1;
+                    if (newCount == tracker.getMessageCount()) {
+                        // looks like we've got all the pieces; send a single tracker
+                        // to state machine which will find the other pieces to broadcast
+                        if (DBG) Rlog.d(TAG, "found complete multi-part message");
+                        broadcastSms(tracker);
+                        // don't delete this old message until after we broadcast it
+                        oldMultiPartMessages.remove(reference);
+                        multiPartReceivedCount.remove(reference);
+                        completeMessages.add(reference);
                     } else {
-                        int newCount = receivedCount + 1;
-                        if (newCount == tracker.getMessageCount()) {
-                            // looks like we've got all the pieces; send a single tracker
-                            // to state machine which will find the other pieces to broadcast
-                            if (DBG) Rlog.d(TAG, "found complete multi-part message");
-                            broadcastSms(tracker);
-                            // don't delete this old message until after we broadcast it
-                            oldMultiPartMessages.remove(reference);
-                        } else {
-                            multiPartReceivedCount.put(reference, newCount);
-                        }
+                        multiPartReceivedCount.put(reference, newCount);
                     }
                 }
             }
-            // Delete old incomplete message segments
-            for (SmsReferenceKey message : oldMultiPartMessages) {
-                int rows = mResolver.delete(sRawUri, InboundSmsHandler.SELECT_BY_REFERENCE,
-                        message.getDeleteWhereArgs());
-                if (rows == 0) {
-                    Rlog.e(TAG, "No rows were deleted from raw table!");
-                } else if (DBG) {
-                    Rlog.d(TAG, "Deleted " + rows + " rows from raw table for incomplete "
-                            + message.mMessageCount + " part message");
+        }
+        convertPdus(conversions);
+    }
+
+    /**
+     * Delete the segments of expired incomplete messages, {@link #DELETE_BATCH_SIZE}
+     * messages per provider call, and drop them from the {@link SmsReassemblyIndex} of
+     * either format, as the delete does not look at the format either.
+     */
+    private void deleteExpired(HashSet<SmsReferenceKey> oldMultiPartMessages) {
+        ArrayList<SmsReferenceKey> messages = new ArrayList<SmsReferenceKey>(oldMultiPartMessages);
+        ArrayList<ContentProviderOperation> deletes =
+                new ArrayList<ContentProviderOperation>(messages.size());
+        for (SmsReferenceKey message : messages) {
+            deletes.add(ContentProviderOperation.newDelete(sRawUri)
+                    .withSelection(InboundSmsHandler.SELECT_BY_REFERENCE,
+                            message.getDeleteWhereArgs())
+                    .build());
+        }
+
+        for (int start = 0; start < deletes.size(); start += DELETE_BATCH_SIZE) {
+            int end = Math.min(start + DELETE_BATCH_SIZE, deletes.size());
+            try {
+                ContentProviderResult[] results = mResolver.applyBatch(sRawUri.getAuthority(),
+                        new ArrayList<ContentProviderOperation>(deletes.subList(start, end)));
+                for (ContentProviderResult result : results) {
+                    if (result.count == null || result.count == 0) {
+                        Rlog.e(TAG, "No rows were deleted from raw table!");
+                    } else {
+                        mExpiredRowsDeleted += result.count;
+                    }
                 }
+                for (int i = start; i < end; i++) {
+                    messages.get(i).removeFromIndex();
+                }
+            } catch (RemoteException | OperationApplicationException e) {
+                Rlog.e(TAG, "error deleting expired raw table segments", e);
             }
-        } catch (SQLException e) {
-            Rlog.e(TAG, "error reading pending SMS messages", e);
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+        }
+        if (DBG && !deletes.isEmpty()) {
+            Rlog.d(TAG, "Deleted " + mExpiredRowsDeleted + " rows from raw table for "
+                    + deletes.size() + " incomplete messages");
+        }
+    }
+
+    /**
+     * Rewrite rows whose PDU is not in the format set by ro.telephony.sms.raw_blob_pdu, so
+     * the raw table converges on one format. Readers accept both, so this can be partial.
+     */
+    private void convertPdus(ArrayList<ContentProviderOperation> conversions) {
+        int converted = 0;
+        for (int start = 0; start < conversions.size(); start += PDU_CONVERSION_BATCH_SIZE) {
+            int end = Math.min(start + PDU_CONVERSION_BATCH_SIZE, conversions.size());
+            try {
+                mResolver.applyBatch(sRawUri.getAuthority(),
+                        new ArrayList<ContentProviderOperation>(conversions.subList(start, end)));
+                converted = end;
+            } catch (RemoteException | OperationApplicationException e) {
+                Rlog.e(TAG, "error converting raw table PDUs", e);
+                break;
             }
-            if (DBG) Rlog.d(TAG, "finished scanning raw table in "
-                    + ((System.nanoTime() - startTime) / 1000000) + " ms");
+        }
+        mPdusConverted += converted;
+        if (DBG && !conversions.isEmpty()) {
+            Rlog.d(TAG, "converted " + converted + " of " + conversions.size()
+                    + " raw table PDUs to " + (InboundSmsTracker.STORE_BLOB_PDUS ? "blob" : "hex"));
         }
     }
 
@@ -178,12 +353,28 @@ public class SmsBroadcastUndelivered implements Runnable {
             handler = mGsmInboundSmsHandler;
         }
         if (handler != null) {
+            mMessagesBroadcast++;
             handler.sendMessage(InboundSmsHandler.EVENT_BROADCAST_SMS, tracker);
         } else {
             Rlog.e(TAG, "null handler for " + tracker.getFormat() + " format, can't deliver.");
         }
     }
 
+    /** @return the number of raw table rows read by the last scan. */
+    int getRowsProcessed() {
+        return mRowsProcessed;
+    }
+
+    /** @return the number of queries the last scan took. */
+    int getPageCount() {
+        return mPages;
+    }
+
+    /** @return the number of expired segment rows the last scan deleted. */
+    int getExpiredRowsDeleted() {
+        return mExpiredRowsDeleted;
+    }
+
     /**
      * Used as the HashMap key for matching concatenated message segments.
      */
@@ -203,6 +394,13 @@ public class SmsBroadcastUndelivered implements Runnable {
                     Integer.toString(mMessageCount)};
         }
 
+        void removeFromIndex() {
+            SmsReassemblyIndex.forFormat(false).remove(mAddress, mReferenceNumber,
+                    mMessageCount);
+            SmsReassemblyIndex.forFormat(true).remove(mAddress, mReferenceNumber,
+                    mMessageCount);
+        }
+
         @Override
         public int hashCode() {
             return ((mReferenceNumber * 31) + mMessageCount) * 31 + mAddress.hashCode();
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.provider.Telephony;
+import android.telephony.Rlog;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Groups the SMS provider raw table writes of an InboundSmsHandler into
+ * fewer applyBatch calls.
+ *
+ * Inserts are never delayed: a segment must be in the raw table before
+ * it is acknowledged, and the SMSC sends nothing more until it is. Deletes
+ * of delivered messages are write-behind instead. They wait up to the
+ * batch window and then go out in one batch, or ride along in front of
+ * the next insert, so a burst of segments costs one provider round trip
+ * each. Because queued deletes always run before the next insert, a
+ * delete by reference never removes rows of a newer message that reuses
+ * the same reference.
+ *
+ * {@hide}
+ */
+class SmsRawTableWriter {
+    private static final String TAG = "SmsRawTableWriter";
+    private static final boolean DBG = InboundSmsHandler.DBG;
+
+    static final int MAX_BATCH_SIZE = 32;
+
+    private static final Uri sRawUri = Uri.withAppendedPath(Telephony.Sms.CONTENT_URI, "raw");
+
+    private static final class PendingDelete {
+        final String mWhere;
+        final String[] mWhereArgs;
+
+        PendingDelete(String where, String[] whereArgs) {
+            mWhere = where;
+            mWhereArgs = whereArgs;
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final int mWindowMillis;
+    private final Handler mHandler;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    // Guarded by this; deletes are queued from binder threads too
+    private ArrayList<PendingDelete> mPendingDeletes = new ArrayList<PendingDelete>();
+    private long mBatchCount;
+    private long mOperationCount;
+    private int mMaxBatchSize;
+    private long mFailureCount;
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+
+    /**
+     * @param windowMillis how long a delete may wait for company; 0 writes
+     * every delete through at once
+     * @param looper runs delayed flushes
+     */
+    SmsRawTableWriter(ContentResolver resolver, int windowMillis, Looper looper) {
+        mResolver = resolver;
+        mWindowMillis = windowMillis;
+        mHandler = new Handler(looper);
+    }
+
+    /**
+     * Inserts a raw table row, together with any queued deletes, and
+     * returns once the provider has stored it.
+     *
+     * @return the URI of the new row, or null on failure.
+     */
+    synchronized Uri insert(ContentValues values) {
+        ArrayList<PendingDelete> deletes = takePendingDeletes();
+        ArrayList<ContentProviderOperation> ops = toOperations(deletes);
+        ops.add(ContentProviderOperation.newInsert(sRawUri).withValues(values).build());
+        ContentProviderResult[] results = apply(ops);
+        if (results != null) {
+            checkDeleted(results, deletes.size());
+            return results[results.length - 1].uri;
+        }
+
+        // Fall back to one call per operation, like before batching
+        deleteEach(deletes);
+        return mResolver.insert(sRawUri, values);
+    }
+
+    /** Deletes the rows matched by <code>where</code>, within the batch window. */
+    synchronized void delete(String where, String[] whereArgs) {
+        mPendingDeletes.add(new PendingDelete(where, whereArgs));
+        if (mWindowMillis <= 0 || mPendingDeletes.size() >= MAX_BATCH_SIZE) {
+            flush();
+        } else if (mPendingDeletes.size() == 1) {
+            mHandler.postDelayed(mFlush, mWindowMillis);
+        }
+    }
+
+    /** Writes out queued deletes now. */
+    synchronized void flush() {
+        if (mPendingDeletes.isEmpty()) {
+            return;
+        }
+        ArrayList<PendingDelete> deletes = takePendingDeletes();
+        ContentProviderResult[] results = apply(toOperations(deletes));
+        if (results != null) {
+            checkDeleted(results, deletes.size());
+        } else {
+            deleteEach(deletes);
+        }
+    }
+
+    private ArrayList<PendingDelete> takePendingDeletes() {
+        mHandler.removeCallbacks(mFlush);
+        ArrayList<PendingDelete> deletes = mPendingDeletes;
+        mPendingDeletes = new ArrayList<PendingDelete>();
+        return deletes;
+    }
+
+    private static ArrayList<ContentProviderOperation> toOperations(
+            ArrayList<PendingDelete> deletes) {
+        ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(deletes.size() + 1);
+        for (PendingDelete delete : deletes) {
+            ops.add(ContentProviderOperation.newDelete(sRawUri)
+                    .withSelection(delete.mWhere, delete.mWhereArgs).build());
+        }
+        return ops;
+    }
+
+    /** Logs the outcome of the first <code>deletes</code> results. */
+    private static void checkDeleted(ContentProviderResult[] results, int deletes) {
+        if (deletes == 0) {
+            return;
+        }
+        int rows = 0;
+        for (int i = 0; i < deletes; i++) {
+            Integer count = results[i].count;
+            if (count == null || count == 0) {
+                Rlog.e(TAG, "No rows were deleted from raw table!");
+            } else {
+                rows += count;
+            }
+        }
+        if (DBG) Rlog.d(TAG, "Deleted " + rows + " rows from raw table in " + deletes
+                + " operations.");
+    }
+
+    /** @return the results, or null if the batch failed. */
+    private ContentProviderResult[] apply(ArrayList<ContentProviderOperation> ops) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            ContentProviderResult[] results = mResolver.applyBatch(sRawUri.getAuthority(), ops);
+            mLatency.record((SystemClock.elapsedRealtimeNanos() - start) / 1000);
+            mBatchCount++;
+            mOperationCount += ops.size();
+            if (ops.size() > mMaxBatchSize) {
+                mMaxBatchSize = ops.size();
+            }
+            return results;
+        } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+            Rlog.e(TAG, "raw table batch of " + ops.size() + " failed", e);
+            mFailureCount++;
+            return null;
+        }
+    }
+
+    private void deleteEach(ArrayList<PendingDelete> deletes) {
+        for (PendingDelete delete : deletes) {
+            try {
+                int rows = mResolver.delete(sRawUri, delete.mWhere, delete.mWhereArgs);
+                if (rows == 0) {
+                    Rlog.e(TAG, "No rows were deleted from raw table!");
+                }
+            } catch (RuntimeException e) {
+                Rlog.e(TAG, "raw table delete failed", e);
+            }
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println(" Raw table writer: window=" + mWindowMillis + "ms"
+                + " batches=" + mBatchCount
+                + " operations=" + mOperationCount
+                + " avgBatch=" + (mBatchCount > 0 ? ((float) mOperationCount / mBatchCount) : 0)
+                + " maxBatch=" + mMaxBatchSize
+                + " pendingDeletes=" + mPendingDeletes.size()
+                + " failures=" + mFailureCount);
+        pw.println("  latency p50=" + mLatency.percentile(50) + "us"
+                + " p99=" + mLatency.percentile(99) + "us"
+                + " max=" + mLatency.mMaxUs + "us");
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * In-memory copy of the multi-part message segments in the raw table, so
+ * that InboundSmsHandler can detect duplicate segments and find complete
+ * messages without querying the SMS provider for every segment.
+ *
+ * Segments are grouped by (address, reference number, count), like the
+ * raw table's SELECT_BY_REFERENCE, and keyed by sequence number within a
+ * message. The raw table stays the durable copy: the index is loaded from
+ * it once, when the first handler finishes startup, and each segment is
+ * added only after its row is inserted.
+ *
+ * A message that has been taken for broadcast stays in the index, marked
+ * taken, until its rows are deleted. Until then a retransmitted segment is
+ * still rejected as a duplicate, as the rows would reject it, and is not
+ * later mistaken for a segment of a new message reusing the reference.
+ *
+ * A message that stays incomplete is dropped once its first segment is
+ * older than SmsBroadcastUndelivered.PARTIAL_SEGMENT_EXPIRE_AGE, and the
+ * caller deletes its rows, as the boot scan would. Otherwise segments that
+ * never complete would pile up for as long as the phone process runs.
+ *
+ * The raw table is shared by every phone, so there is one index per
+ * format, shared by the handlers of all phones like the table is.
+ *
+ * {@hide}
+ */
+final class SmsReassemblyIndex {
+    private static final SmsReassemblyIndex s3gppIndex = new SmsReassemblyIndex();
+    private static final SmsReassemblyIndex s3gpp2Index = new SmsReassemblyIndex();
+
+    /** How often {@link #removeExpired} looks for expired messages. */
+    static final long EXPIRY_CHECK_INTERVAL = 24 * 60 * 60 * 1000;
+
+    private static final class Key {
+        final String mAddress;
+        final int mReferenceNumber;
+        final int mMessageCount;
+
+        Key(InboundSmsTracker tracker) {
+            this(tracker.getAddress(), tracker.getReferenceNumber(), tracker.getMessageCount());
+        }
+
+        Key(String address, int referenceNumber, int messageCount) {
+            mAddress = address;
+            mReferenceNumber = referenceNumber;
+            mMessageCount = messageCount;
+        }
+
+        String[] getDeleteWhereArgs() {
+            return new String[] {mAddress, Integer.toString(mReferenceNumber),
+                    Integer.toString(mMessageCount)};
+        }
+
+        @Override
+        public int hashCode() {
+            return ((mReferenceNumber * 31) + mMessageCount) * 31
+                    + (mAddress == null ? 0 : mAddress.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof Key) {
+                Key other = (Key) o;
+                return (other.mReferenceNumber == mReferenceNumber)
+                        && (other.mMessageCount == mMessageCount)
+                        && (mAddress == null ? other.mAddress == null
+                                : mAddress.equals(other.mAddress));
+            }
+            return false;
+        }
+    }
+
+    // Guarded by this
+    // Segments of each message with rows in the raw table, keyed by sequence number
+    private final HashMap<Key, SparseArray<InboundSmsTracker>> mMessages =
+            new HashMap<Key, SparseArray<InboundSmsTracker>>();
+    // Messages taken for broadcast whose rows are not deleted yet
+    private final HashSet<Key> mTaken = new HashSet<Key>();
+    private int mSegmentCount;
+    private boolean mLoaded;
+    private long mNextExpiryCheck;
+
+    /** @return the index shared by the handlers of one format. */
+    static SmsReassemblyIndex forFormat(boolean is3gpp2) {
+        return is3gpp2 ? s3gpp2Index : s3gppIndex;
+    }
+
+    /**
+     * Marks the index loaded from the raw table.
+     *
+     * @return false if it already was, and must not be loaded again.
+     */
+    synchronized boolean markLoaded() {
+        if (mLoaded) {
+            return false;
+        }
+        mLoaded = true;
+        return true;
+    }
+
+    /** Records a multi-part segment that is now in the raw table. */
+    synchronized void add(InboundSmsTracker tracker) {
+        Key key = new Key(tracker);
+        SparseArray<InboundSmsTracker> segments = mMessages.get(key);
+        if (segments == null) {
+            segments = new SparseArray<InboundSmsTracker>(tracker.getMessageCount());
+            mMessages.put(key, segments);
+        }
+        if (segments.get(tracker.getSequenceNumber()) == null) {
+            mSegmentCount++;
+        }
+        segments.put(tracker.getSequenceNumber(), tracker);
+    }
+
+    /**
+     * @return the stored segment with the same message and sequence number
+     * as <code>tracker</code>, or null if it is not a duplicate.
+     */
+    synchronized InboundSmsTracker getSegment(InboundSmsTracker tracker) {
+        SparseArray<InboundSmsTracker> segments = mMessages.get(new Key(tracker));
+        return segments == null ? null : segments.get(tracker.getSequenceNumber());
+    }
+
+    /**
+     * If every segment of <code>tracker</code>'s message is present, marks
+     * the message taken and returns its segments in order. A message is
+     * only taken once.
+     *
+     * @return the segments, indexed from 0, or null if some are missing or
+     * the message was already taken.
+     */
+    synchronized InboundSmsTracker[] takeIfComplete(InboundSmsTracker tracker) {
+        Key key = new Key(tracker);
+        SparseArray<InboundSmsTracker> segments = mMessages.get(key);
+        if (segments == null || mTaken.contains(key)) {
+            return null;
+        }
+
+        int count = tracker.getMessageCount();
+        int offset = tracker.getIndexOffset();
+        InboundSmsTracker[] ordered = new InboundSmsTracker[count];
+        for (int i = 0; i < count; i++) {
+            ordered[i] = segments.get(i + offset);
+            if (ordered[i] == null) {
+                return null;
+            }
+        }
+        mTaken.add(key);
+        return ordered;
+    }
+
+    /**
+     * Forgets a message whose rows are being deleted from the raw table,
+     * taken or not.
+     */
+    synchronized void remove(String address, int referenceNumber, int messageCount) {
+        Key key = new Key(address, referenceNumber, messageCount);
+        SparseArray<InboundSmsTracker> segments = mMessages.remove(key);
+        if (segments != null) {
+            mSegmentCount -= segments.size();
+        }
+        mTaken.remove(key);
+    }
+
+    /**
+     * Drops the incomplete messages whose first segment arrived more than
+     * PARTIAL_SEGMENT_EXPIRE_AGE before <code>now</code>. Looks at most
+     * once per {@link #EXPIRY_CHECK_INTERVAL}; taken messages are left to
+     * the handler that broadcasts them.
+     *
+     * @return the SELECT_BY_REFERENCE arguments of the dropped messages,
+     * whose rows the caller deletes, or null if there are none
+     */
+    synchronized ArrayList<String[]> removeExpired(long now) {
+        if (now < mNextExpiryCheck) {
+            return null;
+        }
+        mNextExpiryCheck = now + EXPIRY_CHECK_INTERVAL;
+
+        long expireBefore = now - SmsBroadcastUndelivered.PARTIAL_SEGMENT_EXPIRE_AGE;
+        ArrayList<String[]> expired = null;
+        Iterator<Map.Entry<Key, SparseArray<InboundSmsTracker>>> it =
+                mMessages.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, SparseArray<InboundSmsTracker>> entry = it.next();
+            if (mTaken.contains(entry.getKey())) {
+                continue;
+            }
+            SparseArray<InboundSmsTracker> segments = entry.getValue();
+            long first = Long.MAX_VALUE;
+            for (int i = 0; i < segments.size(); i++) {
+                first = Math.min(first, segments.valueAt(i).getTimestamp());
+            }
+            if (first < expireBefore) {
+                it.remove();
+                mSegmentCount -= segments.size();
+                if (expired == null) {
+                    expired = new ArrayList<String[]>();
+                }
+                expired.add(entry.getKey().getDeleteWhereArgs());
+            }
+        }
+        return expired;
+    }
+
+    /** @return the number of incomplete messages. */
+    synchronized int getMessageCount() {
+        return mMessages.size() - mTaken.size();
+    }
+
+    /** @return the number of segments held, including those of taken messages. */
+    synchronized int getSegmentCount() {
+        return mSegmentCount;
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.provider.Settings;
+import android.service.carrier.CarrierMessagingService;
+import android.telephony.Rlog;
+
+import com.android.internal.telephony.uicc.UiccCard;
+import com.android.internal.telephony.uicc.UiccController;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Caches what InboundSmsHandler.processMessagePart needs to route a
+ * message: the protected SMS addresses, the carrier app and the system app
+ * that filter SMS. Each is loaded on first use and kept until something it
+ * depends on changes:
+ * <ul>
+ * <li>protected addresses, when Settings.Secure.PROTECTED_SMS_ADDRESSES
+ * changes;</li>
+ * <li>carrier packages, when the UICC changes, its carrier privilege rules
+ * are reloaded, a package changes, or the phone id changes;</li>
+ * <li>system packages, when a package changes.</li>
+ * </ul>
+ * Lookups and invalidation both run on the given Looper, which must be the
+ * InboundSmsHandler's, so no locking is needed.
+ *
+ * {@hide}
+ */
+class SmsRoutingContext extends Handler {
+    private static final String TAG = "SmsRoutingContext";
+    private static final boolean DBG = InboundSmsHandler.DBG;
+
+    private static final int EVENT_ICC_CHANGED = 1;
+    private static final int EVENT_CARRIER_PRIVILEGES_LOADED = 2;
+
+    private static final String CARRIER_FILTER_SMS_PERMISSION =
+            "android.permission.CARRIER_FILTER_SMS";
+
+    /** A lazily loaded value and its hit counts. */
+    private abstract static class Entry<T> {
+        private final String mName;
+        private T mValue;
+        private boolean mValid;
+        long mHits;
+        long mMisses;
+        long mLoadNanos;
+
+        Entry(String name) {
+            mName = name;
+        }
+
+        final T get() {
+            if (mValid) {
+                mHits++;
+                return mValue;
+            }
+            long start = System.nanoTime();
+            mValue = load();
+            mLoadNanos += System.nanoTime() - start;
+            mMisses++;
+            mValid = true;
+            return mValue;
+        }
+
+        final void invalidate() {
+            mValid = false;
+            mValue = null;
+        }
+
+        abstract T load();
+
+        void dump(PrintWriter pw) {
+            long lookups = mHits + mMisses;
+            long avgLoadUs = mMisses > 0 ? mLoadNanos / mMisses / 1000 : 0;
+            pw.println("  " + mName + ": hits=" + mHits + " misses=" + mMisses
+                    + " hitRate=" + (lookups > 0 ? (mHits * 100 / lookups) : 0) + "%"
+                    + " avgLoad=" + avgLoadUs + "us"
+                    + " saved~=" + (mHits * avgLoadUs / 1000) + "ms");
+        }
+    }
+
+    private final Context mContext;
+    private UiccCard mCard;
+    private int mPhoneId;
+
+    private final Entry<List<String>> mProtectedAddresses =
+            new Entry<List<String>>("protectedAddresses") {
+        @Override
+        List<String> load() {
+            return Settings.Secure.getDelimitedStringAsList(mContext.getContentResolver(),
+                    Settings.Secure.PROTECTED_SMS_ADDRESSES, "|");
+        }
+    };
+
+    private final Entry<List<String>> mCarrierPackages =
+            new Entry<List<String>>("carrierPackages") {
+        @Override
+        List<String> load() {
+            UiccCard card = UiccController.getInstance().getUiccCard(mPhoneId);
+            if (card == null) {
+                Rlog.e(TAG, "UiccCard not initialized.");
+                return null;
+            }
+            return card.getCarrierPackageNamesForIntent(mContext.getPackageManager(),
+                    new Intent(CarrierMessagingService.SERVICE_INTERFACE));
+        }
+    };
+
+    private final Entry<List<String>> mSystemPackages =
+            new Entry<List<String>>("systemPackages") {
+        @Override
+        List<String> load() {
+            return getSystemAppForIntent(new Intent(CarrierMessagingService.SERVICE_INTERFACE));
+        }
+    };
+
+    private final ContentObserver mSettingsObserver;
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            onPackagesChanged();
+        }
+    };
+
+    SmsRoutingContext(Context context, Looper looper, int phoneId) {
+        super(looper);
+        mContext = context;
+        mPhoneId = phoneId;
+
+        mSettingsObserver = new ContentObserver(this) {
+            @Override
+            public void onChange(boolean selfChange) {
+                onProtectedAddressesChanged();
+            }
+        };
+        context.getContentResolver().registerContentObserver(
+                Settings.Secure.getUriFor(Settings.Secure.PROTECTED_SMS_ADDRESSES), false,
+                mSettingsObserver);
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addDataScheme("package");
+        context.registerReceiver(mPackageReceiver, filter, null, this);
+
+        UiccController.getInstance().registerForIccChanged(this, EVENT_ICC_CHANGED, null);
+    }
+
+    void dispose() {
+        mContext.getContentResolver().unregisterContentObserver(mSettingsObserver);
+        mContext.unregisterReceiver(mPackageReceiver);
+        UiccController.getInstance().unregisterForIccChanged(this);
+        if (mCard != null) {
+            mCard.unregisterForCarrierPrivilegeRulesLoaded(this);
+            mCard = null;
+        }
+    }
+
+    @Override
+    public void handleMessage(Message msg) {
+        switch (msg.what) {
+            case EVENT_ICC_CHANGED:
+                onIccChanged();
+                break;
+
+            case EVENT_CARRIER_PRIVILEGES_LOADED:
+                onCarrierPrivilegesChanged();
+                break;
+        }
+    }
+
+    /** @return the addresses whose messages go to PROTECTED_SMS_RECEIVED_ACTION. */
+    List<String> getProtectedAddresses() {
+        return mProtectedAddresses.get();
+    }
+
+    /** @return the carrier apps that may filter SMS, or null if the UICC is not ready. */
+    List<String> getCarrierPackages(int phoneId) {
+        if (phoneId != mPhoneId) {
+            mPhoneId = phoneId;
+            onIccChanged();
+        }
+        return mCarrierPackages.get();
+    }
+
+    /** @return the system apps that may filter SMS. */
+    List<String> getSystemPackages() {
+        return mSystemPackages.get();
+    }
+
+    void onProtectedAddressesChanged() {
+        if (DBG) Rlog.d(TAG, "protected SMS addresses changed");
+        mProtectedAddresses.invalidate();
+    }
+
+    void onPackagesChanged() {
+        if (DBG) Rlog.d(TAG, "packages changed");
+        mCarrierPackages.invalidate();
+        mSystemPackages.invalidate();
+    }
+
+    void onCarrierPrivilegesChanged() {
+        if (DBG) Rlog.d(TAG, "carrier privilege rules loaded");
+        mCarrierPackages.invalidate();
+    }
+
+    private void onIccChanged() {
+        UiccCard card = UiccController.getInstance().getUiccCard(mPhoneId);
+        if (card != mCard) {
+            if (mCard != null) {
+                mCard.unregisterForCarrierPrivilegeRulesLoaded(this);
+            }
+            mCard = card;
+            if (card != null) {
+                // Notifies at once if the rules are already loaded
+                card.registerForCarrierPrivilegeRulesLoaded(this,
+                        EVENT_CARRIER_PRIVILEGES_LOADED, null);
+            }
+        }
+        mCarrierPackages.invalidate();
+    }
+
+    private List<String> getSystemAppForIntent(Intent intent) {
+        List<String> packages = new ArrayList<String>();
+        PackageManager packageManager = mContext.getPackageManager();
+        List<ResolveInfo> receivers = packageManager.queryIntentServices(intent, 0);
+
+        for (ResolveInfo info : receivers) {
+            if (info.serviceInfo == null) {
+                Rlog.e(TAG, "Can't get service information from " + info);
+                continue;
+            }
+            String packageName = info.serviceInfo.packageName;
+            if (packageManager.checkPermission(CARRIER_FILTER_SMS_PERMISSION, packageName) ==
+                    PackageManager.PERMISSION_GRANTED) {
+                packages.add(packageName);
+                if (DBG) Rlog.d(TAG, "getSystemAppForIntent: added package " + packageName);
+            }
+        }
+        return packages;
+    }
+
+    /** @return lookups answered from the cache, across all entries. */
+    long getHitCount() {
+        return mProtectedAddresses.mHits + mCarrierPackages.mHits + mSystemPackages.mHits;
+    }
+
+    /** @return lookups that had to load, across all entries. */
+    long getMissCount() {
+        return mProtectedAddresses.mMisses + mCarrierPackages.mMisses + mSystemPackages.mMisses;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println(" Routing context cache:");
+        mProtectedAddresses.dump(pw);
+        mCarrierPackages.dump(pw);
+        mSystemPackages.dump(pw);
+    }
+}
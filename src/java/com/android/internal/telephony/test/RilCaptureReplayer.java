@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.test;
+
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.os.Parcel;
+import android.os.SystemClock;
+import android.telephony.Rlog;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.android.internal.telephony.RilWireCapture;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Plays a RilWireCapture back as rild would: a local socket stand-in that
+ * sends the captured inbound frames to the RIL that connects, with the
+ * original spacing scaled by a speed factor.
+ *
+ * Serials differ from run to run, so solicited responses are matched to
+ * the client's live requests instead. The n-th request of a type the
+ * client sends stands for the n-th captured request of that type, and the
+ * captured response to it goes out with the live serial, once the client
+ * has sent that request. A response whose request the client does not send
+ * within the match timeout is skipped. Unsolicited frames go out as
+ * captured.
+ *
+ * Point a RIL at it by overriding RIL.getSocketAddress to return
+ * <code>new LocalSocketAddress(name)</code>, as with RilStandInServer.
+ *
+ * {@hide}
+ */
+public class RilCaptureReplayer {
+    static final String LOG_TAG = "RilCaptureReplayer";
+
+    private static final int RESPONSE_SOLICITED = 0;
+    private static final int MAX_FRAME_LENGTH = 8 * 1024;
+
+    private final ArrayList<RilWireCapture.Record> mInbound =
+            new ArrayList<RilWireCapture.Record>();
+    private int mCapturedOutbound;
+    private final float mSpeed;
+    private final long mMatchTimeoutMillis;
+
+    // Captured serials of each request code, in capture order; guarded by mSerials
+    private final SparseArray<ArrayDeque<Integer>> mCapturedSerials =
+            new SparseArray<ArrayDeque<Integer>>();
+    // Captured serial -> live serial; guarded by mSerials
+    private final SparseIntArray mSerials = new SparseIntArray();
+
+    private volatile int mSent;
+    private volatile int mReceived;
+    private volatile int mSkipped;
+    private volatile int mUnexpected;
+
+    /**
+     * @param speed 1 replays in real time, 2 twice as fast, 0 with no delays
+     * @param matchTimeoutMillis how long a solicited response waits for the
+     * client to send its request
+     */
+    public RilCaptureReplayer(InputStream capture, float speed, long matchTimeoutMillis)
+            throws IOException {
+        mSpeed = speed;
+        mMatchTimeoutMillis = matchTimeoutMillis;
+        RilWireCapture.Reader reader = new RilWireCapture.Reader(capture);
+        Parcel p = Parcel.obtain();
+        try {
+            RilWireCapture.Record record;
+            while ((record = reader.next()) != null) {
+                if (record.direction == RilWireCapture.DIRECTION_INBOUND) {
+                    mInbound.add(record);
+                    continue;
+                }
+                mCapturedOutbound++;
+                p.unmarshall(record.data, 0, record.data.length);
+                p.setDataPosition(0);
+                int request = p.readInt();
+                int serial = p.readInt();
+                ArrayDeque<Integer> serials = mCapturedSerials.get(request);
+                if (serials == null) {
+                    serials = new ArrayDeque<Integer>();
+                    mCapturedSerials.put(request, serials);
+                }
+                serials.add(serial);
+            }
+        } finally {
+            p.recycle();
+            reader.close();
+        }
+    }
+
+    /**
+     * Listens on the abstract local socket <code>name</code>, accepts one
+     * connection and replays into it. Returns once every inbound frame has
+     * been sent or skipped.
+     */
+    public void serve(String name) throws IOException {
+        LocalServerSocket server = new LocalServerSocket(name);
+        LocalSocket s = null;
+        try {
+            s = server.accept();
+            replay(s.getInputStream(), s.getOutputStream());
+        } finally {
+            if (s != null) {
+                s.close();
+            }
+            server.close();
+        }
+    }
+
+    /** Sends every captured inbound frame to <code>toClient</code>. */
+    public void replay(final InputStream fromClient, OutputStream toClient)
+            throws IOException {
+        Thread reader = new Thread("RilCaptureReplayer-reader") {
+            @Override
+            public void run() {
+                readRequests(fromClient);
+            }
+        };
+        reader.start();
+
+        byte[] lengthBytes = new byte[4];
+        Parcel p = Parcel.obtain();
+        long previous = -1;
+        try {
+            for (int i = 0, count = mInbound.size(); i < count; i++) {
+                RilWireCapture.Record record = mInbound.get(i);
+                if (previous >= 0 && mSpeed > 0) {
+                    long delayMs = (long) ((record.timestampNanos - previous) / mSpeed
+                            / 1000000);
+                    if (delayMs > 0) {
+                        SystemClock.sleep(delayMs);
+                    }
+                }
+                previous = record.timestampNanos;
+
+                byte[] data = record.data;
+                p.unmarshall(data, 0, data.length);
+                p.setDataPosition(0);
+                if (p.readInt() == RESPONSE_SOLICITED) {
+                    int serial = awaitLiveSerial(p.readInt());
+                    if (serial < 0) {
+                        mSkipped++;
+                        continue;
+                    }
+                    p.setDataPosition(4);
+                    p.writeInt(serial);
+                    data = p.marshall();
+                }
+
+                int length = data.length;
+                lengthBytes[0] = (byte) ((length >> 24) & 0xff);
+                lengthBytes[1] = (byte) ((length >> 16) & 0xff);
+                lengthBytes[2] = (byte) ((length >> 8) & 0xff);
+                lengthBytes[3] = (byte) (length & 0xff);
+                toClient.write(lengthBytes);
+                toClient.write(data);
+                mSent++;
+            }
+            toClient.flush();
+        } finally {
+            p.recycle();
+        }
+    }
+
+    /**
+     * @return the live serial standing for <code>capturedSerial</code>, or
+     * -1 if the client did not send the request in time.
+     */
+    private int awaitLiveSerial(int capturedSerial) {
+        long deadline = SystemClock.elapsedRealtime() + mMatchTimeoutMillis;
+        synchronized (mSerials) {
+            for (;;) {
+                int index = mSerials.indexOfKey(capturedSerial);
+                if (index >= 0) {
+                    int serial = mSerials.valueAt(index);
+                    mSerials.removeAt(index);
+                    return serial;
+                }
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0) {
+                    Rlog.w(LOG_TAG, "No request for captured serial " + capturedSerial);
+                    return -1;
+                }
+                try {
+                    mSerials.wait(remaining);
+                } catch (InterruptedException e) {
+                    return -1;
+                }
+            }
+        }
+    }
+
+    private void readRequests(InputStream fromClient) {
+        DataInputStream in = new DataInputStream(fromClient);
+        byte[] buffer = new byte[MAX_FRAME_LENGTH];
+        Parcel p = Parcel.obtain();
+        try {
+            for (;;) {
+                int length = in.readInt();
+                if (length < 0 || length > buffer.length) {
+                    Rlog.e(LOG_TAG, "Invalid frame length " + length);
+                    return;
+                }
+                in.readFully(buffer, 0, length);
+                mReceived++;
+
+                p.unmarshall(buffer, 0, length);
+                p.setDataPosition(0);
+                int request = p.readInt();
+                int serial = p.readInt();
+                synchronized (mSerials) {
+                    ArrayDeque<Integer> captured = mCapturedSerials.get(request);
+                    if (captured == null || captured.isEmpty()) {
+                        mUnexpected++;
+                        continue;
+                    }
+                    mSerials.put(captured.poll(), serial);
+                    mSerials.notifyAll();
+                }
+            }
+        } catch (IOException ex) {
+            // Client went away
+        } finally {
+            p.recycle();
+        }
+    }
+
+    /** @return inbound frames in the capture. */
+    public int getInboundCount() {
+        return mInbound.size();
+    }
+
+    /** @return outbound frames in the capture. */
+    public int getCapturedOutboundCount() {
+        return mCapturedOutbound;
+    }
+
+    /** @return inbound frames sent so far. */
+    public int getSentCount() {
+        return mSent;
+    }
+
+    /** @return solicited responses skipped because their request never came. */
+    public int getSkippedCount() {
+        return mSkipped;
+    }
+
+    /** @return frames received from the client so far. */
+    public int getReceivedCount() {
+        return mReceived;
+    }
+
+    /** @return requests from the client with no captured counterpart left. */
+    public int getUnexpectedCount() {
+        return mUnexpected;
+    }
+}
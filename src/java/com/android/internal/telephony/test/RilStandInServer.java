@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.test;
+
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.os.Parcel;
+import android.telephony.Rlog;
+import android.util.SparseArray;
+
+import com.android.internal.telephony.RILConstants;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in for rild that speaks the RIL socket protocol, for load testing
+ * RIL end to end without a modem.
+ *
+ * It listens on an abstract local socket and serves one RIL connection at
+ * a time. On connect it reports RIL_UNSOL_RIL_CONNECTED and radio on,
+ * like rild. Each solicited request is answered from the {@link Response}
+ * scripted for its request code, or with an empty success if none is, after
+ * the response's latency. Unsolicited responses can be scripted to repeat
+ * at a fixed rate.
+ *
+ * Point a RIL at it by overriding RIL.getSocketAddress to return
+ * <code>new LocalSocketAddress(name)</code>.
+ *
+ * {@hide}
+ */
+public class RilStandInServer {
+    static final String LOG_TAG = "RilStandInServer";
+
+    private static final int RESPONSE_SOLICITED = 0;
+    private static final int RESPONSE_UNSOLICITED = 1;
+    private static final int RADIO_STATE_ON = 10;
+    private static final int MAX_FRAME_LENGTH = 8 * 1024;
+
+    /** A scripted reply: error, payload and how long rild "takes". */
+    public static class Response {
+        final int mError;
+        final byte[] mPayload;
+        final int mLatencyMillis;
+
+        /**
+         * @param payload the marshalled Parcel that follows the response
+         * header, as built by {@link #ints} and friends
+         */
+        public Response(int error, byte[] payload, int latencyMillis) {
+            mError = error;
+            mPayload = payload;
+            mLatencyMillis = latencyMillis;
+        }
+
+        /** @return a payload in the layout RIL.responseInts expects. */
+        public static byte[] ints(int... ints) {
+            Parcel p = Parcel.obtain();
+            p.writeInt(ints.length);
+            for (int i : ints) {
+                p.writeInt(i);
+            }
+            byte[] data = p.marshall();
+            p.recycle();
+            return data;
+        }
+
+        /** @return a payload in the layout RIL.responseStrings expects. */
+        public static byte[] strings(String... strings) {
+            Parcel p = Parcel.obtain();
+            p.writeInt(strings.length);
+            for (String s : strings) {
+                p.writeString(s);
+            }
+            byte[] data = p.marshall();
+            p.recycle();
+            return data;
+        }
+
+        /** @return a payload in the layout RIL.responseString expects. */
+        public static byte[] string(String string) {
+            Parcel p = Parcel.obtain();
+            p.writeString(string);
+            byte[] data = p.marshall();
+            p.recycle();
+            return data;
+        }
+    }
+
+    private final String mName;
+    private final int mRilVersion;
+
+    // Guarded by itself
+    private final SparseArray<Response> mResponses = new SparseArray<Response>();
+
+    // Writes every frame, so responses and unsolicited responses never interleave
+    private ScheduledThreadPoolExecutor mWriter;
+    private LocalServerSocket mServer;
+    private Thread mAcceptThread;
+    private volatile boolean mRunning;
+    private volatile LocalSocket mClient;
+    private volatile OutputStream mOut;
+
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mResponseCount = new AtomicLong();
+    private final AtomicLong mUnsolicitedCount = new AtomicLong();
+
+    /**
+     * @param name abstract namespace socket name to listen on
+     * @param rilVersion reported in RIL_UNSOL_RIL_CONNECTED
+     */
+    public RilStandInServer(String name, int rilVersion) {
+        mName = name;
+        mRilVersion = rilVersion;
+    }
+
+    /** Scripts the answer to every request of type <code>request</code>. */
+    public void setResponse(int request, Response response) {
+        synchronized (mResponses) {
+            mResponses.put(request, response);
+        }
+    }
+
+    public synchronized void start() throws IOException {
+        mServer = new LocalServerSocket(mName);
+        mWriter = new ScheduledThreadPoolExecutor(1);
+        mRunning = true;
+        mAcceptThread = new Thread(LOG_TAG) {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        };
+        mAcceptThread.start();
+    }
+
+    public synchronized void stop() {
+        mRunning = false;
+        mWriter.shutdownNow();
+        closeClient();
+        try {
+            mServer.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    /**
+     * Sends <code>response</code> with <code>payload</code> every
+     * <code>periodMillis</code> while a client is connected. Call after
+     * {@link #start}.
+     */
+    public void emitUnsolicited(final int response, final byte[] payload, long periodMillis) {
+        mWriter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                if (mOut != null) {
+                    writeUnsolicited(response, payload);
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    public long getResponseCount() {
+        return mResponseCount.get();
+    }
+
+    public long getUnsolicitedCount() {
+        return mUnsolicitedCount.get();
+    }
+
+    private void acceptLoop() {
+        while (mRunning) {
+            LocalSocket s;
+            try {
+                s = mServer.accept();
+            } catch (IOException e) {
+                if (mRunning) Rlog.e(LOG_TAG, "accept failed", e);
+                return;
+            }
+
+            try {
+                mClient = s;
+                mOut = s.getOutputStream();
+                mWriter.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeUnsolicited(RILConstants.RIL_UNSOL_RIL_CONNECTED,
+                                Response.ints(mRilVersion));
+                        writeUnsolicited(RILConstants.RIL_UNSOL_RESPONSE_RADIO_STATE_CHANGED,
+                                rawInt(RADIO_STATE_ON));
+                    }
+                });
+                readLoop(new DataInputStream(s.getInputStream()));
+            } catch (IOException e) {
+                // Client went away
+            } finally {
+                closeClient();
+            }
+        }
+    }
+
+    private void readLoop(DataInputStream in) throws IOException {
+        byte[] buffer = new byte[MAX_FRAME_LENGTH];
+        Parcel p = Parcel.obtain();
+        try {
+            for (;;) {
+                int length = in.readInt();
+                if (length < 0 || length > MAX_FRAME_LENGTH) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                in.readFully(buffer, 0, length);
+                p.unmarshall(buffer, 0, length);
+                p.setDataPosition(0);
+                int request = p.readInt();
+                int serial = p.readInt();
+                mRequestCount.incrementAndGet();
+                scheduleResponse(request, serial);
+            }
+        } finally {
+            p.recycle();
+        }
+    }
+
+    private void scheduleResponse(int request, final int serial) {
+        final Response response;
+        synchronized (mResponses) {
+            response = mResponses.get(request);
+        }
+        Runnable reply = new Runnable() {
+            @Override
+            public void run() {
+                if (response == null) {
+                    writeSolicited(serial, 0, null);
+                } else {
+                    writeSolicited(serial, response.mError, response.mPayload);
+                }
+            }
+        };
+        int latency = response == null ? 0 : response.mLatencyMillis;
+        try {
+            mWriter.schedule(reply, latency, TimeUnit.MILLISECONDS);
+        } catch (java.util.concurrent.RejectedExecutionException e) {
+            // Stopped
+        }
+    }
+
+    private static byte[] rawInt(int value) {
+        Parcel p = Parcel.obtain();
+        p.writeInt(value);
+        byte[] data = p.marshall();
+        p.recycle();
+        return data;
+    }
+
+    private void writeSolicited(int serial, int error, byte[] payload) {
+        Parcel p = Parcel.obtain();
+        p.writeInt(RESPONSE_SOLICITED);
+        p.writeInt(serial);
+        p.writeInt(error);
+        if (writeFrame(p, payload)) {
+            mResponseCount.incrementAndGet();
+        }
+    }
+
+    private void writeUnsolicited(int response, byte[] payload) {
+        Parcel p = Parcel.obtain();
+        p.writeInt(RESPONSE_UNSOLICITED);
+        p.writeInt(response);
+        if (writeFrame(p, payload)) {
+            mUnsolicitedCount.incrementAndGet();
+        }
+    }
+
+    /** Writes header + payload as one frame; runs on mWriter only. */
+    private boolean writeFrame(Parcel header, byte[] payload) {
+        byte[] head = header.marshall();
+        header.recycle();
+        OutputStream out = mOut;
+        if (out == null) {
+            return false;
+        }
+
+        int length = head.length + (payload == null ? 0 : payload.length);
+        byte[] frame = new byte[4 + length];
+        frame[0] = (byte) ((length >> 24) & 0xff);
+        frame[1] = (byte) ((length >> 16) & 0xff);
+        frame[2] = (byte) ((length >> 8) & 0xff);
+        frame[3] = (byte) (length & 0xff);
+        System.arraycopy(head, 0, frame, 4, head.length);
+        if (payload != null) {
+            System.arraycopy(payload, 0, frame, 4 + head.length, payload.length);
+        }
+        try {
+            out.write(frame);
+            return true;
+        } catch (IOException e) {
+            closeClient();
+            return false;
+        }
+    }
+
+    private void closeClient() {
+        mOut = null;
+        LocalSocket s = mClient;
+        mClient = null;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.util;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.provider.Telephony.Blacklist;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.regex.Pattern;
+
+/**
+ * In-process copy of the blacklist, so that BlacklistUtils.isListed can
+ * answer without a provider query.
+ *
+ * Entries are keyed by their normalized number, the same form the provider
+ * matches against. Exact numbers go into a hash map. Wildcard entries that
+ * block a mode are split per mode: pure prefixes ("+1900%") go into a trie
+ * over E.164 characters, and everything else is compiled into one
+ * alternation that mirrors SQL LIKE, with % for any run and _ for any one
+ * character. Wildcard entries that do not block a mode cannot change the
+ * result for it and are left out.
+ *
+ * The shared index is loaded on first use and reloaded after the provider
+ * reports a change, or when the country used for normalizing numbers
+ * changes.
+ *
+ * {@hide}
+ */
+class BlacklistIndex {
+    private static final String TAG = "BlacklistIndex";
+    private static final boolean DEBUG = false;
+
+    private static final String[] PROJECTION = {
+        Blacklist.NUMBER, Blacklist.IS_REGEX, Blacklist.PHONE_MODE, Blacklist.MESSAGE_MODE
+    };
+
+    private static final int MODE_COUNT = 2;
+
+    private static final Object sLock = new Object();
+    private static ContentObserver sObserver;
+    private static volatile BlacklistIndex sIndex;
+    private static volatile boolean sStale = true;
+
+    /** A trie node over the characters of a normalized number: 0-9 and +. */
+    private static final class Node {
+        final Node[] mChildren = new Node[11];
+        boolean mTerminal;
+    }
+
+    // Normalized number -> BLOCK_CALLS | BLOCK_MESSAGES bits of the modes it blocks
+    private final HashMap<String, Integer> mExact = new HashMap<String, Integer>();
+    private final Node[] mPrefixes = new Node[MODE_COUNT];
+    private final ArrayList<String>[] mPatternSources;
+    private final Pattern[] mPatterns = new Pattern[MODE_COUNT];
+    private final String mCountry;
+    private int mEntryCount;
+
+    @SuppressWarnings("unchecked")
+    BlacklistIndex(String country) {
+        mCountry = country;
+        mPatternSources = new ArrayList[MODE_COUNT];
+        for (int i = 0; i < MODE_COUNT; i++) {
+            mPrefixes[i] = new Node();
+            mPatternSources[i] = new ArrayList<String>();
+        }
+    }
+
+    /**
+     * Returns the shared index, loading it if the blacklist changed since
+     * it was last loaded.
+     *
+     * @return the index, or null if the blacklist provider could not be read.
+     */
+    static BlacklistIndex get(Context context) {
+        String country = BlacklistUtils.getNumberCountry(context);
+        BlacklistIndex index = sIndex;
+        if (!sStale && index != null && index.mCountry.equals(country)) {
+            return index;
+        }
+
+        synchronized (sLock) {
+            if (sObserver == null) {
+                sObserver = new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        sStale = true;
+                    }
+                };
+                context.getContentResolver().registerContentObserver(Blacklist.CONTENT_URI,
+                        true, sObserver);
+            }
+            index = sIndex;
+            if (sStale || index == null || !index.mCountry.equals(country)) {
+                // Clear first, so a change during the load triggers another one
+                sStale = false;
+                index = load(context, country);
+                sIndex = index;
+                if (index == null) {
+                    sStale = true;
+                }
+            }
+            return index;
+        }
+    }
+
+    private static BlacklistIndex load(Context context, String country) {
+        long start = System.nanoTime();
+        Cursor c;
+        try {
+            c = context.getContentResolver().query(Blacklist.CONTENT_URI, PROJECTION,
+                    null, null, null);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Could not read the blacklist", e);
+            return null;
+        }
+        if (c == null) {
+            return null;
+        }
+
+        BlacklistIndex index = new BlacklistIndex(country);
+        try {
+            int numberColumn = c.getColumnIndexOrThrow(Blacklist.NUMBER);
+            int regexColumn = c.getColumnIndexOrThrow(Blacklist.IS_REGEX);
+            int phoneColumn = c.getColumnIndexOrThrow(Blacklist.PHONE_MODE);
+            int messageColumn = c.getColumnIndexOrThrow(Blacklist.MESSAGE_MODE);
+            while (c.moveToNext()) {
+                String number = c.getString(numberColumn);
+                if (number == null) {
+                    continue;
+                }
+                int flags = (c.getInt(phoneColumn) != 0 ? BlacklistUtils.BLOCK_CALLS : 0)
+                        | (c.getInt(messageColumn) != 0 ? BlacklistUtils.BLOCK_MESSAGES : 0);
+                index.add(BlacklistUtils.normalizeNumber(context, number).first,
+                        c.getInt(regexColumn) != 0, flags);
+            }
+        } finally {
+            c.close();
+        }
+        index.compile();
+
+        if (DEBUG) Log.d(TAG, "Loaded " + index.mEntryCount + " entries in "
+                + (System.nanoTime() - start) / 1000 + "us");
+        return index;
+    }
+
+    /**
+     * Adds an entry. Call {@link #compile} once all are added.
+     *
+     * @param number the normalized number or wildcard pattern
+     * @param flags BLOCK_CALLS | BLOCK_MESSAGES bits of the modes the entry blocks
+     */
+    void add(String number, boolean isRegex, int flags) {
+        mEntryCount++;
+        if (!isRegex) {
+            // The provider blocks a number if any of its exact entries does
+            Integer existing = mExact.get(number);
+            mExact.put(number, existing == null ? flags : existing | flags);
+            return;
+        }
+        for (int i = 0; i < MODE_COUNT; i++) {
+            if ((flags & modeFor(i)) == 0) {
+                continue;
+            }
+            if (!addPrefix(mPrefixes[i], number)) {
+                mPatternSources[i].add(likeToRegex(number));
+            }
+        }
+    }
+
+    /** Builds the combined pattern of each mode. */
+    void compile() {
+        for (int i = 0; i < MODE_COUNT; i++) {
+            ArrayList<String> sources = mPatternSources[i];
+            if (sources.isEmpty()) {
+                mPatterns[i] = null;
+                continue;
+            }
+            StringBuilder sb = new StringBuilder();
+            for (String source : sources) {
+                if (sb.length() > 0) {
+                    sb.append('|');
+                }
+                sb.append("(?:").append(source).append(')');
+            }
+            mPatterns[i] = Pattern.compile(sb.toString());
+        }
+    }
+
+    /**
+     * Matches a normalized number the way the provider's filter-by-number
+     * query does.
+     *
+     * @param mode BLOCK_CALLS or BLOCK_MESSAGES
+     * @param regex whether wildcard entries take part
+     * @return MATCH_NONE, MATCH_LIST or MATCH_REGEX
+     */
+    int lookup(String number, int mode, boolean regex) {
+        Integer flags = mExact.get(number);
+        if (flags != null) {
+            // An exact entry that does not block this mode whitelists the number
+            return (flags & mode) != 0 ? BlacklistUtils.MATCH_LIST : BlacklistUtils.MATCH_NONE;
+        }
+        if (!regex) {
+            return BlacklistUtils.MATCH_NONE;
+        }
+        int i = indexFor(mode);
+        if (matchesPrefix(mPrefixes[i], number)) {
+            return BlacklistUtils.MATCH_REGEX;
+        }
+        Pattern pattern = mPatterns[i];
+        if (pattern != null && pattern.matcher(number).matches()) {
+            return BlacklistUtils.MATCH_REGEX;
+        }
+        return BlacklistUtils.MATCH_NONE;
+    }
+
+    int size() {
+        return mEntryCount;
+    }
+
+    private static int modeFor(int index) {
+        return index == 0 ? BlacklistUtils.BLOCK_CALLS : BlacklistUtils.BLOCK_MESSAGES;
+    }
+
+    private static int indexFor(int mode) {
+        return mode == BlacklistUtils.BLOCK_CALLS ? 0 : 1;
+    }
+
+    private static int charIndex(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        return c == '+' ? 10 : -1;
+    }
+
+    /**
+     * Adds <code>pattern</code> to the trie if it is a run of number
+     * characters followed only by %.
+     *
+     * @return false if the pattern needs the regex matcher instead.
+     */
+    private static boolean addPrefix(Node root, String pattern) {
+        int end = pattern.length();
+        while (end > 0 && pattern.charAt(end - 1) == '%') {
+            end--;
+        }
+        if (end == pattern.length()) {
+            return false;
+        }
+        for (int i = 0; i < end; i++) {
+            if (charIndex(pattern.charAt(i)) < 0) {
+                return false;
+            }
+        }
+
+        Node node = root;
+        for (int i = 0; i < end && !node.mTerminal; i++) {
+            int child = charIndex(pattern.charAt(i));
+            if (node.mChildren[child] == null) {
+                node.mChildren[child] = new Node();
+            }
+            node = node.mChildren[child];
+        }
+        node.mTerminal = true;
+        return true;
+    }
+
+    private static boolean matchesPrefix(Node root, String number) {
+        Node node = root;
+        for (int i = 0, count = number.length(); ; i++) {
+            if (node.mTerminal) {
+                return true;
+            }
+            if (i == count) {
+                return false;
+            }
+            int child = charIndex(number.charAt(i));
+            if (child < 0 || node.mChildren[child] == null) {
+                return false;
+            }
+            node = node.mChildren[child];
+        }
+    }
+
+    /** Turns a SQL LIKE pattern into an equivalent regex. */
+    static String likeToRegex(String pattern) {
+        StringBuilder sb = new StringBuilder(pattern.length() + 8);
+        for (int i = 0, count = pattern.length(); i < count; i++) {
+            char c = pattern.charAt(i);
+            if (c == '%') {
+                sb.append(".*");
+            } else if (c == '_') {
+                sb.append('.');
+            } else if (Character.isLetterOrDigit(c)) {
+                sb.append(c);
+            } else {
+                sb.append('\\').append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -113,9 +113,27 @@ public class BlacklistUtils {
             return MATCH_NONE;
         }
 
+        final boolean regex = isBlacklistRegexEnabled(context);
+        final int result;
+
+        // Answer from the in-process index when possible, to save the provider round trip
+        BlacklistIndex index = BlacklistIndex.get(context);
+        String normalizedNumber = normalizeNumber(context, number).first;
+        if (index != null && !isInputRegex(normalizedNumber)) {
+            result = index.lookup(normalizedNumber, mode, regex);
+        } else {
+            result = queryListed(context, number, type, regex);
+        }
+
+        if (DEBUG) Log.d(TAG, "Blacklist check result for number " + number + " is " + result);
+        return result;
+    }
+
+    private static int queryListed(Context context, String number, String type,
+            boolean regex) {
         Uri.Builder builder = Blacklist.CONTENT_FILTER_BYNUMBER_URI.buildUpon();
         builder.appendPath(number);
-        if (isBlacklistRegexEnabled(context)) {
+        if (regex) {
             builder.appendQueryParameter(Blacklist.REGEX_KEY, "1");
         }
 
@@ -149,8 +167,6 @@ public class BlacklistUtils {
             }
             c.close();
         }
-
-        if (DEBUG) Log.d(TAG, "Blacklist check result for number " + number + " is " + result);
         return result;
     }
 
@@ -235,6 +251,14 @@ public class BlacklistUtils {
     }
 
     public static String toE164Number(Context context, String src) {
+        return PhoneNumberUtils.formatNumberToE164(src, getNumberCountry(context));
+    }
+
+    /**
+     * Returns the country numbers are normalized for: the SIM's if known,
+     * else the locale's.
+     */
+    static String getNumberCountry(Context context) {
         // Try to retrieve the current ISO Country code
         TelephonyManager tm = (TelephonyManager)
                 context.getSystemService(Context.TELEPHONY_SERVICE);
@@ -242,8 +266,7 @@ public class BlacklistUtils {
         Locale numberLocale = TextUtils.isEmpty(countryCode)
                 ? context.getResources().getConfiguration().locale
                 : new Locale("", countryCode);
-
-        return PhoneNumberUtils.formatNumberToE164(src, numberLocale.getCountry());
+        return numberLocale.getCountry();
     }
 
     public static boolean isValidPhoneNumber(String address) {
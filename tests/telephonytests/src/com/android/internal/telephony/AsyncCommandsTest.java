@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+
+import android.os.AsyncResult;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for AsyncCommands.
+ */
+public class AsyncCommandsTest extends InstrumentationTestCase {
+    private CommandsInterface mCi;
+    private HandlerThread mThread;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        System.setProperty("dexmaker.dexcache",
+                getInstrumentation().getTargetContext().getCacheDir().getPath());
+        Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
+        mCi = Mockito.mock(CommandsInterface.class);
+        mThread = new HandlerThread("AsyncCommandsTest");
+        mThread.start();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mThread.quit();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testResponseCompletesFuture() throws Exception {
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                Message response = (Message) invocation.getArguments()[0];
+                AsyncResult.forMessage(response, new String[] { "Operator", "Op", "00101" },
+                        null);
+                response.sendToTarget();
+                return null;
+            }
+        }).when(mCi).getOperator(any(Message.class));
+
+        AsyncCommands commands = new AsyncCommands(mCi, mThread.getLooper(), 0);
+        String[] operator = commands.getOperator().get(5, TimeUnit.SECONDS);
+        assertEquals("00101", operator[2]);
+    }
+
+    @SmallTest
+    public void testUnansweredRequestTimesOut() throws Exception {
+        AsyncCommands commands = new AsyncCommands(mCi, mThread.getLooper(), 20);
+        try {
+            commands.getSignalStrength().get(5, TimeUnit.SECONDS);
+            fail("expected ExecutionException");
+        } catch (ExecutionException expected) {
+            assertEquals(CommandException.Error.REQUEST_TIMED_OUT,
+                    ((CommandException) expected.getCause()).getCommandError());
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Test cases for CommandsFuture.
+ */
+public class CommandsFutureTest extends TestCase {
+
+    @SmallTest
+    public void testCompletesOnce() throws Exception {
+        CommandsFuture<String> future = new CommandsFuture<String>();
+        assertFalse(future.isDone());
+        assertTrue(future.complete("first"));
+        assertFalse(future.complete("second"));
+        assertFalse(future.completeExceptionally(new RuntimeException()));
+        assertEquals("first", future.get());
+    }
+
+    @SmallTest
+    public void testGetTimesOut() throws Exception {
+        CommandsFuture<String> future = new CommandsFuture<String>();
+        try {
+            future.get(10, TimeUnit.MILLISECONDS);
+            fail("expected TimeoutException");
+        } catch (TimeoutException expected) {
+        }
+    }
+
+    @SmallTest
+    public void testFailureReachesGet() throws Exception {
+        CommandsFuture<String> future = new CommandsFuture<String>();
+        CommandException ex = new CommandException(CommandException.Error.SIM_ABSENT);
+        future.completeExceptionally(ex);
+        try {
+            future.get();
+            fail("expected ExecutionException");
+        } catch (ExecutionException expected) {
+            assertSame(ex, expected.getCause());
+        }
+    }
+
+    @SmallTest
+    public void testMapAndThen() throws Exception {
+        final CommandsFuture<Integer> second = new CommandsFuture<Integer>();
+        CommandsFuture<String> first = new CommandsFuture<String>();
+        CommandsFuture<Integer> chained = first.map(
+                new CommandsFuture.Transform<String, Integer>() {
+                    @Override
+                    public Integer apply(String result) {
+                        return result.length();
+                    }
+                }).then(new CommandsFuture.Continuation<Integer, Integer>() {
+                    @Override
+                    public CommandsFuture<Integer> apply(Integer length) {
+                        return second;
+                    }
+                });
+
+        first.complete("abc");
+        assertFalse(chained.isDone());
+        second.complete(42);
+        assertEquals(Integer.valueOf(42), chained.get());
+    }
+
+    @SmallTest
+    public void testFailureSkipsContinuation() throws Exception {
+        CommandsFuture<String> first = new CommandsFuture<String>();
+        final boolean[] ran = { false };
+        CommandsFuture<String> chained = first.then(
+                new CommandsFuture.Continuation<String, String>() {
+                    @Override
+                    public CommandsFuture<String> apply(String result) {
+                        ran[0] = true;
+                        return CommandsFuture.completed(result);
+                    }
+                });
+        first.completeExceptionally(new CommandException(CommandException.Error.GENERIC_FAILURE));
+        assertTrue(chained.getException() instanceof CommandException);
+        assertFalse(ran[0]);
+    }
+
+    @SmallTest
+    public void testAllOf() throws Exception {
+        List<CommandsFuture<Integer>> futures = new ArrayList<CommandsFuture<Integer>>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(new CommandsFuture<Integer>());
+        }
+        CommandsFuture<List<Integer>> all = CommandsFuture.allOf(futures);
+
+        // Completion order does not affect result order
+        futures.get(2).complete(2);
+        futures.get(0).complete(0);
+        assertFalse(all.isDone());
+        futures.get(1).complete(1);
+        List<Integer> results = all.get();
+        assertEquals(3, results.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Integer.valueOf(i), results.get(i));
+        }
+    }
+}
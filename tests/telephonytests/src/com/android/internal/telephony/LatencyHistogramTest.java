@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for LatencyHistogram.
+ */
+public class LatencyHistogramTest extends TestCase {
+
+    @SmallTest
+    public void testBucketBoundsContainValue() {
+        for (long us = 0; us < 1000000; us = us * 3 / 2 + 1) {
+            int bucket = LatencyHistogram.bucketFor(us);
+            assertTrue(us <= LatencyHistogram.bucketUpperBound(bucket));
+            if (bucket > 0) {
+                assertTrue(us > LatencyHistogram.bucketUpperBound(bucket - 1));
+            }
+        }
+    }
+
+    @SmallTest
+    public void testPercentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            h.record(i * 1000);
+        }
+        assertEquals(100, h.mCount);
+        assertEquals(100000, h.mMaxUs);
+
+        // Buckets are within 25% of the true value
+        assertTrue(Math.abs(h.percentile(50) - 50000) <= 50000 / 4);
+        assertTrue(Math.abs(h.percentile(95) - 95000) <= 95000 / 4);
+        assertEquals(100000, h.percentile(100));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+/**
+ * Test cases for RilDeadlineWheel.
+ */
+public class RilDeadlineWheelTest extends TestCase {
+    private static final long TICK_MS = 1000;
+    private static final long START = 100000;
+
+    private RilRequestTable mTable;
+    private RilDeadlineWheel mWheel;
+    private ArrayList<RILRequest> mExpired;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mTable = new RilRequestTable();
+        mWheel = new RilDeadlineWheel(TICK_MS, START);
+        mExpired = new ArrayList<RILRequest>();
+    }
+
+    private RILRequest schedule(long deadline) {
+        RILRequest rr = RILRequest.obtain(RILConstants.RIL_REQUEST_SIGNAL_STRENGTH, null);
+        mTable.put(rr);
+        mWheel.add(rr.mSerial, deadline);
+        return rr;
+    }
+
+    /** Advances to <code>now</code> and returns whether <code>rr</code> expired. */
+    private boolean expiresAt(RILRequest rr, long now) {
+        mExpired.clear();
+        mWheel.advance(now, mTable, mExpired);
+        return mExpired.contains(rr);
+    }
+
+    @SmallTest
+    public void testDeadlineOnTickBoundary() {
+        RILRequest rr = schedule(START + 5 * TICK_MS);
+        assertFalse(expiresAt(rr, START + 5 * TICK_MS - 1));
+        assertTrue(expiresAt(rr, START + 5 * TICK_MS));
+        assertTrue(mWheel.isEmpty());
+    }
+
+    @SmallTest
+    public void testDeadlineBetweenTicks() {
+        RILRequest rr = schedule(START + 5 * TICK_MS + 300);
+        // The tick the deadline falls in has begun but the deadline has not passed
+        assertFalse(expiresAt(rr, START + 5 * TICK_MS + 100));
+        // Fires on the next tick, not a lap of the wheel later
+        assertTrue(expiresAt(rr, START + 6 * TICK_MS));
+        assertTrue(mWheel.isEmpty());
+    }
+
+    @SmallTest
+    public void testDeadlineWithinCurrentTick() {
+        RILRequest rr = schedule(START + 10);
+        assertFalse(expiresAt(rr, START + 5));
+        assertTrue(expiresAt(rr, START + TICK_MS));
+    }
+
+    @SmallTest
+    public void testDeadlineBeyondOneLap() {
+        RILRequest rr = schedule(START + 100 * TICK_MS + 1);
+        for (long t = 1; t <= 100; t++) {
+            assertFalse("tick " + t, expiresAt(rr, START + t * TICK_MS));
+        }
+        assertTrue(expiresAt(rr, START + 101 * TICK_MS));
+    }
+
+    @SmallTest
+    public void testAnsweredRequestsAreDropped() {
+        RILRequest answered = schedule(START + 2 * TICK_MS);
+        RILRequest pending = schedule(START + 2 * TICK_MS);
+        assertSame(answered, mTable.remove(answered.mSerial));
+        assertEquals(2, mWheel.size());
+
+        assertTrue(expiresAt(pending, START + 2 * TICK_MS));
+        assertEquals(1, mExpired.size());
+        assertTrue(mWheel.isEmpty());
+        assertEquals(0, mTable.size());
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Parcel;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+
+/**
+ * Test cases for RilDecodeQueue.
+ */
+public class RilDecodeQueueTest extends InstrumentationTestCase {
+    private static final int FRAMES = 1000;
+    private static final int EVENT_DECODE = 1;
+
+    private RIL mRil;
+    private HandlerThread mThread;
+    private RilDecodeQueue mQueue;
+    private final ArrayList<Integer> mSerials = new ArrayList<Integer>();
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        System.setProperty("dexmaker.dexcache",
+                getInstrumentation().getTargetContext().getCacheDir().getPath());
+        Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
+        mRil = Mockito.mock(RIL.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws InterruptedException {
+                Parcel p = (Parcel) invocation.getArguments()[0];
+                p.readInt();
+                int serial = p.readInt();
+                if (serial % 100 == 0) {
+                    // A slow decoder, so the queue fills up
+                    Thread.sleep(5);
+                }
+                synchronized (mSerials) {
+                    mSerials.add(serial);
+                }
+                return null;
+            }
+        }).when(mRil).processResponse(any(Parcel.class));
+
+        mThread = new HandlerThread("RilDecodeQueueTest");
+        mThread.start();
+        Handler handler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                mQueue.process();
+            }
+        };
+        // A queue of two forces overflows and buffers to be reused
+        mQueue = new RilDecodeQueue(mRil, handler, EVENT_DECODE, 2);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mThread.quit();
+        super.tearDown();
+    }
+
+    private static byte[] frame(int serial, int padding) {
+        Parcel p = Parcel.obtain();
+        p.writeInt(RIL.RESPONSE_SOLICITED);
+        p.writeInt(serial);
+        for (int i = 0; i < padding; i++) {
+            p.writeInt(i);
+        }
+        byte[] data = p.marshall();
+        p.recycle();
+        return data;
+    }
+
+    @SmallTest
+    public void testOrderPreservedWhenQueueOverflows() throws Exception {
+        for (int serial = 0; serial < FRAMES; serial++) {
+            // Vary the size so buffers have to grow
+            byte[] data = frame(serial, serial % 300);
+            mQueue.submit(data, 0, data.length);
+        }
+        // As on disconnect: whatever is still queued completes here
+        mQueue.process();
+
+        synchronized (mSerials) {
+            assertEquals(FRAMES, mSerials.size());
+            for (int i = 0; i < FRAMES; i++) {
+                assertEquals(i, mSerials.get(i).intValue());
+            }
+        }
+    }
+}
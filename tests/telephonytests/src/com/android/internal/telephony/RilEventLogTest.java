@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.*;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Test cases for RilEventLog.
+ */
+public class RilEventLogTest extends TestCase {
+
+    private static String[] dump(RilEventLog log) {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        log.dump(pw);
+        pw.flush();
+        return sw.toString().split("\n");
+    }
+
+    @SmallTest
+    public void testFormatting() {
+        RilEventLog log = new RilEventLog(8);
+        log.log(RilEventLog.KIND_REQUEST, 7, RIL_REQUEST_SIGNAL_STRENGTH, 0, null);
+        log.log(RilEventLog.KIND_RESPONSE, 7, RIL_REQUEST_SIGNAL_STRENGTH, 0, new int[] {5, 6});
+        log.log(RilEventLog.KIND_RESPONSE, 8, RIL_REQUEST_DIAL, 2, null);
+        log.log(RilEventLog.KIND_UNSOL, 0, RIL_UNSOL_NITZ_TIME_RECEIVED, 0, "15/01/01");
+
+        String[] lines = dump(log);
+        assertEquals(5, lines.length);
+        assertTrue(lines[1].endsWith("[7]> SIGNAL_STRENGTH"));
+        assertTrue(lines[2].endsWith("[7]< SIGNAL_STRENGTH n=2 first=5"));
+        assertTrue(lines[3].endsWith("[8]< DIAL error=2"));
+        assertTrue(lines[4].endsWith("[UNSL]< UNSOL_NITZ_TIME_RECEIVED n=8"));
+    }
+
+    @SmallTest
+    public void testKeepsMostRecent() {
+        RilEventLog log = new RilEventLog(4);
+        for (int serial = 0; serial < 10; serial++) {
+            log.log(RilEventLog.KIND_REQUEST, serial, RIL_REQUEST_DIAL, 0, null);
+        }
+        assertEquals(10, log.getTotal());
+
+        String[] lines = dump(log);
+        assertEquals(5, lines.length);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(lines[i + 1].endsWith("[" + (6 + i) + "]> DIAL"));
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Parcel;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Test cases for RilFrameReader.
+ */
+public class RilFrameReaderTest extends TestCase {
+
+    /** Hands out at most mChunk bytes per read, like a slow socket. */
+    private static class ChunkedInputStream extends InputStream {
+        private final InputStream mIn;
+        private final int mChunk;
+
+        ChunkedInputStream(byte[] data, int chunk) {
+            mIn = new ByteArrayInputStream(data);
+            mChunk = chunk;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return mIn.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return mIn.read(b, off, Math.min(len, mChunk));
+        }
+    }
+
+    private static void writeFrame(ByteArrayOutputStream out, int type, int value) {
+        Parcel p = Parcel.obtain();
+        p.writeInt(type);
+        p.writeInt(value);
+        byte[] data = p.marshall();
+        p.recycle();
+
+        out.write((data.length >> 24) & 0xff);
+        out.write((data.length >> 16) & 0xff);
+        out.write((data.length >> 8) & 0xff);
+        out.write(data.length & 0xff);
+        out.write(data, 0, data.length);
+    }
+
+    private static byte[] buildStream(int frames) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < frames; i++) {
+            writeFrame(out, RIL.RESPONSE_UNSOLICITED, i);
+        }
+        return out.toByteArray();
+    }
+
+    private static void checkFrames(RilFrameReader reader, int frames) throws IOException {
+        Parcel p = Parcel.obtain();
+        for (int i = 0; i < frames; i++) {
+            assertTrue(reader.next() > 0);
+            reader.readInto(p);
+            assertEquals(RIL.RESPONSE_UNSOLICITED, p.readInt());
+            assertEquals(i, p.readInt());
+        }
+        assertEquals(-1, reader.next());
+        p.recycle();
+    }
+
+    @SmallTest
+    public void testManyFramesPerRead() throws Exception {
+        byte[] data = buildStream(100);
+        RilFrameReader reader = new RilFrameReader(new ByteArrayInputStream(data),
+                RIL.RIL_MAX_COMMAND_BYTES);
+        checkFrames(reader, 100);
+        assertTrue(reader.getReadCount() < reader.getFrameCount());
+    }
+
+    @SmallTest
+    public void testFramesSplitAcrossReads() throws Exception {
+        byte[] data = buildStream(2000);
+        RilFrameReader reader = new RilFrameReader(new ChunkedInputStream(data, 3),
+                RIL.RIL_MAX_COMMAND_BYTES);
+        checkFrames(reader, 2000);
+    }
+
+    @SmallTest
+    public void testBufferedFramesWithoutBlocking() throws Exception {
+        byte[] data = buildStream(2000);
+        RilFrameReader reader = new RilFrameReader(new ChunkedInputStream(data, 7),
+                RIL.RIL_MAX_COMMAND_BYTES);
+        Parcel p = Parcel.obtain();
+        int frames = 0;
+        while (reader.readAvailable()) {
+            while (reader.nextBuffered() != RilFrameReader.NEED_MORE) {
+                reader.readInto(p);
+                assertEquals(RIL.RESPONSE_UNSOLICITED, p.readInt());
+                assertEquals(frames++, p.readInt());
+            }
+        }
+        p.recycle();
+        assertEquals(2000, frames);
+    }
+
+    @SmallTest
+    public void testMaximalFramesFitOneFrameBuffer() throws Exception {
+        // A small frame ahead of each maximal one leaves the large frame
+        // partly read at an offset, so it only fits after compacting
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] body = new byte[RIL.RIL_MAX_COMMAND_BYTES];
+        for (int i = 0; i < 6; i++) {
+            writeRawFrame(out, new byte[] { (byte) i });
+            body[0] = (byte) i;
+            writeRawFrame(out, body);
+        }
+        byte[] data = out.toByteArray();
+
+        RilFrameReader reader = new RilFrameReader(new ChunkedInputStream(data, 1000),
+                RIL.RIL_MAX_COMMAND_BYTES);
+        int frames = 0;
+        while (reader.readAvailable()) {
+            while (reader.nextBuffered() != RilFrameReader.NEED_MORE) {
+                int expected = (frames % 2 == 0) ? 1 : RIL.RIL_MAX_COMMAND_BYTES;
+                assertEquals(expected, reader.frameLength());
+                assertEquals(frames / 2, reader.frameArray()[reader.frameOffset()]);
+                frames++;
+            }
+        }
+        assertEquals(12, frames);
+    }
+
+    private static void writeRawFrame(ByteArrayOutputStream out, byte[] body) {
+        int length = body.length;
+        out.write((length >> 24) & 0xff);
+        out.write((length >> 16) & 0xff);
+        out.write((length >> 8) & 0xff);
+        out.write(length & 0xff);
+        out.write(body, 0, length);
+    }
+
+    @SmallTest
+    public void testOversizedFrameRejected() throws Exception {
+        byte[] data = new byte[] { 0x7f, 0, 0, 0 };
+        RilFrameReader reader = new RilFrameReader(new ByteArrayInputStream(data),
+                RIL.RIL_MAX_COMMAND_BYTES);
+        try {
+            reader.next();
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Test cases for RilFrameWriter.
+ */
+public class RilFrameWriterTest extends TestCase {
+
+    /** Accepts the first mLimit bytes written, then fails like a closed socket. */
+    private static class FailingOutputStream extends OutputStream {
+        final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+        int mLimit;
+
+        FailingOutputStream(int limit) {
+            mLimit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int accepted = Math.min(len, mLimit - mOut.size());
+            mOut.write(b, off, Math.max(accepted, 0));
+            if (accepted < len) {
+                throw new IOException("Broken pipe");
+            }
+        }
+    }
+
+    private static byte[] body(int length, int fill) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) fill);
+        return data;
+    }
+
+    private static byte[] frame(byte[] body) {
+        byte[] frame = new byte[body.length + 4];
+        frame[2] = (byte) ((body.length >> 8) & 0xff);
+        frame[3] = (byte) (body.length & 0xff);
+        System.arraycopy(body, 0, frame, 4, body.length);
+        return frame;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    @SmallTest
+    public void testFramesAreWrittenBackToBack() throws Exception {
+        RilFrameWriter writer = new RilFrameWriter(4, 300);
+        byte[] first = body(3, 1);
+        byte[] second = body(300, 2);
+        writer.append(first);
+        writer.append(second);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.flush(out);
+        assertTrue(Arrays.equals(concat(frame(first), frame(second)), out.toByteArray()));
+        // The length header is big endian
+        assertEquals(1, out.toByteArray()[9]);
+        assertEquals(44, out.toByteArray()[10]);
+        assertEquals(1, writer.getFlushCount());
+        assertEquals(2, writer.getFrameCount());
+        assertEquals(2, writer.getMaxFramesPerFlush());
+
+        // Nothing buffered, nothing written
+        writer.flush(out);
+        assertEquals(1, writer.getFlushCount());
+    }
+
+    @SmallTest
+    public void testRoomEndsOnFrameBoundary() throws Exception {
+        RilFrameWriter writer = new RilFrameWriter(2, 10);
+        assertTrue(writer.hasRoom(10));
+        writer.append(body(10, 1));
+        assertTrue(writer.hasRoom(10));
+        writer.append(body(6, 2));
+        // 28 bytes total, 24 used: only a header with an empty body still fits
+        assertTrue(writer.hasRoom(0));
+        assertFalse(writer.hasRoom(1));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.flush(out);
+        assertEquals(24, out.size());
+        assertTrue(writer.hasRoom(10));
+    }
+
+    @SmallTest
+    public void testPartialWriteDropsTheWholeBatch() throws Exception {
+        RilFrameWriter writer = new RilFrameWriter(4, 100);
+        writer.append(body(50, 1));
+        writer.append(body(50, 2));
+
+        FailingOutputStream broken = new FailingOutputStream(70);
+        try {
+            writer.flush(broken);
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+        assertEquals(70, broken.mOut.size());
+
+        // The next batch starts on a fresh frame boundary, with none of the failed frames
+        byte[] next = body(5, 3);
+        writer.append(next);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.flush(out);
+        assertTrue(Arrays.equals(frame(next), out.toByteArray()));
+        assertEquals(2, writer.getFlushCount());
+        assertEquals(3, writer.getFrameCount());
+    }
+}
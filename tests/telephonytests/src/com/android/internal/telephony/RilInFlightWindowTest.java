@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.*;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.mockito.Mockito;
+
+/**
+ * Test cases for RilInFlightWindow.
+ */
+public class RilInFlightWindowTest extends InstrumentationTestCase {
+    private RIL mRil;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        System.setProperty("dexmaker.dexcache",
+                getInstrumentation().getTargetContext().getCacheDir().getPath());
+        Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
+        mRil = Mockito.mock(RIL.class);
+    }
+
+    @SmallTest
+    public void testAdmission() {
+        RilInFlightWindow window = new RilInFlightWindow(mRil, 2);
+        RILRequest info = RILRequest.obtain(RIL_REQUEST_SIGNAL_STRENGTH, null);
+        RILRequest simIo = RILRequest.obtain(RIL_REQUEST_SIM_IO, null);
+        assertEquals(RilInFlightWindow.ADMITTED, window.admit(info));
+        assertEquals(RilInFlightWindow.ADMITTED, window.admit(simIo));
+        assertSame(window, info.mWindow);
+
+        // Full: calls still go through, SIM I/O waits, queries are turned away
+        RILRequest dial = RILRequest.obtain(RIL_REQUEST_DIAL, null);
+        RILRequest deferred = RILRequest.obtain(RIL_REQUEST_SIM_IO, null);
+        assertEquals(RilInFlightWindow.ADMITTED, window.admit(dial));
+        assertEquals(RilInFlightWindow.DEFERRED, window.admit(deferred));
+        verify(mRil).onDeferred(deferred);
+        assertEquals(RilInFlightWindow.REJECTED,
+                window.admit(RILRequest.obtain(RIL_REQUEST_OPERATOR, null)));
+        assertEquals(3, window.getInFlight());
+        assertEquals(1, window.getRejectedCount());
+
+        // Back to 2 of 2: still no room for the deferred request
+        dial.release();
+        verify(mRil, never()).sendDeferred(deferred);
+
+        info.release();
+        verify(mRil).sendDeferred(deferred);
+        verify(mRil, never()).sendAdmitted(deferred);
+        assertSame(window, deferred.mWindow);
+        assertEquals(2, window.getInFlight());
+    }
+
+    @SmallTest
+    public void testRemoveDeferred() {
+        RilInFlightWindow window = new RilInFlightWindow(mRil, 1);
+        RILRequest first = RILRequest.obtain(RIL_REQUEST_SIM_IO, null);
+        RILRequest deferred = RILRequest.obtain(RIL_REQUEST_SIM_IO, null);
+        assertEquals(RilInFlightWindow.ADMITTED, window.admit(first));
+        assertEquals(RilInFlightWindow.DEFERRED, window.admit(deferred));
+
+        // A stale deadline for an earlier use of the same object
+        assertFalse(window.removeDeferred(deferred, deferred.mSerial - 1));
+        assertTrue(window.removeDeferred(deferred, deferred.mSerial));
+        assertFalse(window.removeDeferred(deferred, deferred.mSerial));
+
+        // Nothing is left to send once the slot frees up
+        first.release();
+        verify(mRil, never()).sendDeferred(deferred);
+        assertEquals(0, window.getInFlight());
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+/**
+ * Test cases for RilLatencyStats.
+ */
+public class RilLatencyStatsTest extends TestCase {
+
+    @SmallTest
+    public void testSnapshot() {
+        RilLatencyStats stats = new RilLatencyStats();
+        long ms = 1000000;
+        stats.record(RILConstants.RIL_REQUEST_DIAL, 0, 2 * ms, 300 * ms, 0);
+        stats.record(RILConstants.RIL_REQUEST_DIAL, 0, 1 * ms, 100 * ms, 2);
+        stats.recordTimeout(RILConstants.RIL_REQUEST_DIAL);
+
+        ArrayList<RilLatencyStats.Snapshot> snapshot = stats.getSnapshot();
+        assertEquals(1, snapshot.size());
+        RilLatencyStats.Snapshot dial = snapshot.get(0);
+        assertEquals(RILConstants.RIL_REQUEST_DIAL, dial.request);
+        assertEquals(2, dial.count);
+        assertEquals(1, dial.errors);
+        assertEquals(1, dial.timeouts);
+        assertEquals(2000, dial.queueMax);
+        assertEquals(298000, dial.rildMax);
+    }
+}
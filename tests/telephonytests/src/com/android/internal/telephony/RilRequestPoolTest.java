@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.*;
+
+import android.os.Parcel;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Test cases for the RILRequest pool and a benchmark of obtain/release
+ * under contention.
+ */
+public class RilRequestPoolTest extends TestCase {
+    private static final String TAG = "RilRequestPoolTest";
+
+    private static final int BENCH_OPS = 200000;
+
+    @SmallTest
+    public void testParcelIsReusedAndReset() {
+        RILRequest rr = RILRequest.obtain(RIL_REQUEST_DIAL, null);
+        rr.mParcel.writeString("+15555550100");
+        Parcel parcel = rr.mParcel;
+        rr.release();
+
+        // Drain the pool until rr comes back
+        RILRequest again = null;
+        for (int i = 0; i < 64 && again != rr; i++) {
+            again = RILRequest.obtain(RIL_REQUEST_HANGUP, null);
+        }
+        assertSame(rr, again);
+        assertSame(parcel, again.mParcel);
+
+        // Only the new header: request code and serial
+        Parcel p = again.mParcel;
+        assertEquals(8, p.dataSize());
+        p.setDataPosition(0);
+        assertEquals(RIL_REQUEST_HANGUP, p.readInt());
+        assertEquals(again.mSerial, p.readInt());
+    }
+
+    @SmallTest
+    public void testLargeParcelIsNotRetained() {
+        RILRequest rr = RILRequest.obtain(RIL_REQUEST_SIM_IO, null);
+        rr.mParcel.writeByteArray(new byte[4096]);
+        rr.release();
+        assertNull(rr.mParcel);
+    }
+
+    private static long runThreads(int threads, final int opsPerThread) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < opsPerThread; i++) {
+                        RILRequest rr = RILRequest.obtain(RIL_REQUEST_SIGNAL_STRENGTH, null);
+                        rr.mParcel.marshall();
+                        rr.release();
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        long begin = SystemClock.elapsedRealtimeNanos();
+        start.countDown();
+        done.await();
+        return SystemClock.elapsedRealtimeNanos() - begin;
+    }
+
+    @LargeTest
+    public void testBenchmarkObtainRelease() throws Exception {
+        // Warm up the pool and the JIT
+        runThreads(1, BENCH_OPS / 10);
+
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            long nanos = runThreads(threads, BENCH_OPS / threads);
+            Log.d(TAG, threads + " threads: " + (nanos / BENCH_OPS) + " ns per obtain/release");
+        }
+    }
+}
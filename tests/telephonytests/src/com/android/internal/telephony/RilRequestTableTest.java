@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+import android.util.SparseArray;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test cases and a sender/receiver microbenchmark for RilRequestTable.
+ */
+public class RilRequestTableTest extends TestCase {
+    private static final String TAG = "RilRequestTableTest";
+
+    private static final int BENCH_REQUESTS = 200000;
+    private static final int BENCH_IN_FLIGHT = 16;
+
+    private static RILRequest[] obtainRequests(int count) {
+        RILRequest[] requests = new RILRequest[count];
+        for (int i = 0; i < count; i++) {
+            requests[i] = RILRequest.obtain(RILConstants.RIL_REQUEST_SIGNAL_STRENGTH, null);
+        }
+        return requests;
+    }
+
+    @SmallTest
+    public void testPutRemove() {
+        RilRequestTable table = new RilRequestTable();
+        RILRequest[] requests = obtainRequests(10);
+        for (RILRequest rr : requests) {
+            table.put(rr);
+        }
+        assertEquals(10, table.size());
+        for (RILRequest rr : requests) {
+            assertSame(rr, table.remove(rr.mSerial));
+            assertNull(table.remove(rr.mSerial));
+        }
+        assertEquals(0, table.size());
+    }
+
+    @SmallTest
+    public void testSparseArrayCalls() {
+        RilRequestTable table = new RilRequestTable();
+        RILRequest[] requests = obtainRequests(RilRequestTable.RING_SIZE + 1);
+        for (RILRequest rr : requests) {
+            table.append(rr.mSerial, rr);
+        }
+        // The last one overflowed into the map
+        assertSame(requests[0], table.get(requests[0].mSerial));
+        assertSame(requests[requests.length - 1],
+                table.get(requests[requests.length - 1].mSerial));
+        assertEquals(requests.length, table.size());
+        assertNull(table.get(requests[0].mSerial + 1 + RilRequestTable.RING_SIZE * 2));
+
+        try {
+            table.append(requests[0].mSerial + 1, requests[0]);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @SmallTest
+    public void testOverflowWhenRingWraps() {
+        RilRequestTable table = new RilRequestTable();
+        RILRequest[] requests = obtainRequests(RilRequestTable.RING_SIZE * 3);
+        for (RILRequest rr : requests) {
+            table.put(rr);
+        }
+        assertEquals(requests.length, table.size());
+
+        ArrayList<RILRequest> snapshot = new ArrayList<RILRequest>();
+        table.snapshot(snapshot);
+        assertEquals(requests.length, snapshot.size());
+
+        // Remove newest first so overflowed entries are looked up while
+        // their ring slot is still taken
+        for (int i = requests.length - 1; i >= 0; i--) {
+            assertSame(requests[i], table.remove(requests[i].mSerial));
+        }
+        assertEquals(0, table.size());
+    }
+
+    @SmallTest
+    public void testRemoveAll() {
+        RilRequestTable table = new RilRequestTable();
+        RILRequest[] requests = obtainRequests(RilRequestTable.RING_SIZE + 5);
+        for (RILRequest rr : requests) {
+            table.put(rr);
+        }
+        ArrayList<RILRequest> cleared = new ArrayList<RILRequest>();
+        table.removeAll(cleared);
+        assertEquals(requests.length, cleared.size());
+        assertEquals(0, table.size());
+        assertNull(table.remove(requests[0].mSerial));
+    }
+
+    /**
+     * Two threads remove the same serial, as the deadline sweep and the
+     * receiver can; the winner reuses the request under a serial in the
+     * same slot, as the pool does. The loser must not remove it again.
+     */
+    @MediumTest
+    public void testRemoveRacesReuseInSameSlot() throws InterruptedException {
+        final RilRequestTable table = new RilRequestTable();
+        final RILRequest rr = RILRequest.obtain(RILConstants.RIL_REQUEST_SIGNAL_STRENGTH, null);
+        for (int i = 0; i < 2000; i++) {
+            final int serial = i * 2 * RilRequestTable.RING_SIZE;
+            final int reused = serial + RilRequestTable.RING_SIZE;
+            rr.mSerial = serial;
+            table.put(rr);
+
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicInteger removed = new AtomicInteger();
+            Thread[] removers = new Thread[2];
+            for (int t = 0; t < removers.length; t++) {
+                removers[t] = new Thread("remover" + t) {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        if (table.remove(serial) != null) {
+                            removed.incrementAndGet();
+                            rr.mSerial = reused;
+                            table.put(rr);
+                        }
+                    }
+                };
+                removers[t].start();
+            }
+            start.countDown();
+            for (Thread remover : removers) {
+                remover.join();
+            }
+
+            assertEquals(1, removed.get());
+            assertSame(rr, table.remove(reused));
+            assertEquals(0, table.size());
+        }
+    }
+
+    /** Minimal abstraction so both tables run through the same harness. */
+    private interface InFlight {
+        void put(RILRequest rr);
+        RILRequest remove(int serial);
+    }
+
+    /**
+     * One thread inserts like RILSender, another removes like RILReceiver;
+     * the hand-off queue bounds the number of outstanding requests.
+     */
+    private static long runSenderReceiver(final InFlight table, final RILRequest[] requests)
+            throws InterruptedException {
+        final ArrayBlockingQueue<Integer> wire =
+                new ArrayBlockingQueue<Integer>(BENCH_IN_FLIGHT);
+        Thread receiver = new Thread("receiver") {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < BENCH_REQUESTS; i++) {
+                        int serial = wire.take();
+                        assertNotNull(table.remove(serial));
+                    }
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        receiver.start();
+        for (int i = 0; i < BENCH_REQUESTS; i++) {
+            RILRequest rr = requests[i % requests.length];
+            // Pooled requests get a fresh serial on every use
+            rr.mSerial = RILRequest.sNextSerial.getAndIncrement();
+            table.put(rr);
+            wire.put(rr.mSerial);
+        }
+        receiver.join();
+        return SystemClock.elapsedRealtimeNanos() - start;
+    }
+
+    @LargeTest
+    public void testBenchmarkAgainstSparseArray() throws Exception {
+        RILRequest[] requests = obtainRequests(BENCH_IN_FLIGHT * 2);
+
+        final RilRequestTable ring = new RilRequestTable();
+        long ringNanos = runSenderReceiver(new InFlight() {
+            @Override
+            public void put(RILRequest rr) {
+                ring.put(rr);
+            }
+
+            @Override
+            public RILRequest remove(int serial) {
+                return ring.remove(serial);
+            }
+        }, requests);
+
+        final SparseArray<RILRequest> list = new SparseArray<RILRequest>();
+        long sparseNanos = runSenderReceiver(new InFlight() {
+            @Override
+            public void put(RILRequest rr) {
+                synchronized (list) {
+                    list.append(rr.mSerial, rr);
+                }
+            }
+
+            @Override
+            public RILRequest remove(int serial) {
+                synchronized (list) {
+                    RILRequest rr = list.get(serial);
+                    if (rr != null) {
+                        list.remove(serial);
+                    }
+                    return rr;
+                }
+            }
+        }, requests);
+
+        Log.d(TAG, "RilRequestTable: " + (ringNanos / BENCH_REQUESTS) + " ns/request,"
+                + " SparseArray: " + (sparseNanos / BENCH_REQUESTS) + " ns/request");
+        assertEquals(0, ring.size());
+        assertEquals(0, list.size());
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.*;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for RilResponseCache.
+ */
+public class RilResponseCacheTest extends TestCase {
+
+    @SmallTest
+    public void testHitMissAndInvalidate() {
+        RilResponseCache cache = new RilResponseCache(null);
+        assertNull(cache.get(RIL_REQUEST_GET_IMEI));
+        cache.put(RIL_REQUEST_GET_IMEI, "001010123456789", cache.getGeneration());
+        assertEquals("001010123456789", cache.get(RIL_REQUEST_GET_IMEI));
+        assertEquals(1, cache.getHitCount(RIL_REQUEST_GET_IMEI));
+        assertEquals(1, cache.getMissCount(RIL_REQUEST_GET_IMEI));
+
+        cache.invalidate();
+        assertNull(cache.get(RIL_REQUEST_GET_IMEI));
+        assertEquals(2, cache.getMissCount(RIL_REQUEST_GET_IMEI));
+    }
+
+    @SmallTest
+    public void testOnlyConfiguredCodesAreCached() {
+        RilResponseCache cache = new RilResponseCache(
+                RIL_REQUEST_GET_IMEI + ":0, " + RIL_REQUEST_OPERATOR + ":1000, bogus");
+        assertFalse(cache.isCacheable(RIL_REQUEST_GET_IMEI));
+        assertTrue(cache.isCacheable(RIL_REQUEST_OPERATOR));
+        assertTrue(cache.isCacheable(RIL_REQUEST_BASEBAND_VERSION));
+        assertFalse(cache.isCacheable(RIL_REQUEST_SIGNAL_STRENGTH));
+
+        cache.put(RIL_REQUEST_GET_IMEI, "001010123456789", cache.getGeneration());
+        assertNull(cache.get(RIL_REQUEST_GET_IMEI));
+        assertEquals(0, cache.getMissCount(RIL_REQUEST_GET_IMEI));
+    }
+
+    @SmallTest
+    public void testEntriesExpire() throws Exception {
+        RilResponseCache cache = new RilResponseCache(RIL_REQUEST_BASEBAND_VERSION + ":20");
+        cache.put(RIL_REQUEST_BASEBAND_VERSION, "M8974A-1.0", cache.getGeneration());
+        assertNotNull(cache.get(RIL_REQUEST_BASEBAND_VERSION));
+        Thread.sleep(50);
+        assertNull(cache.get(RIL_REQUEST_BASEBAND_VERSION));
+    }
+
+    @SmallTest
+    public void testCapabilitySwitchInvalidates() {
+        RilResponseCache cache = new RilResponseCache(null);
+        cache.put(RIL_REQUEST_GET_IMEI, "001010123456789", cache.getGeneration());
+        cache.put(RIL_REQUEST_GET_RADIO_CAPABILITY, new int[] { 1 }, cache.getGeneration());
+        cache.put(RIL_REQUEST_GET_HARDWARE_CONFIG, new int[] { 2 }, cache.getGeneration());
+
+        cache.onUnsolicited(RIL_UNSOL_HARDWARE_CONFIG_CHANGED);
+        assertNull(cache.get(RIL_REQUEST_GET_HARDWARE_CONFIG));
+        assertNotNull(cache.get(RIL_REQUEST_GET_RADIO_CAPABILITY));
+
+        cache.put(RIL_REQUEST_GET_HARDWARE_CONFIG, new int[] { 2 }, cache.getGeneration());
+        cache.onSolicited(RIL_REQUEST_SET_RADIO_CAPABILITY);
+        assertNull(cache.get(RIL_REQUEST_GET_RADIO_CAPABILITY));
+        assertNull(cache.get(RIL_REQUEST_GET_HARDWARE_CONFIG));
+
+        cache.put(RIL_REQUEST_GET_RADIO_CAPABILITY, new int[] { 1 }, cache.getGeneration());
+        cache.onUnsolicited(RIL_UNSOL_RADIO_CAPABILITY);
+        assertNull(cache.get(RIL_REQUEST_GET_RADIO_CAPABILITY));
+
+        // Identities are not affected
+        assertEquals("001010123456789", cache.get(RIL_REQUEST_GET_IMEI));
+    }
+
+    @SmallTest
+    public void testCallersGetOwnCopies() {
+        RilResponseCache cache = new RilResponseCache(null);
+        String[] identity = new String[] { "001010123456789", "01" };
+        cache.put(RIL_REQUEST_DEVICE_IDENTITY, identity, cache.getGeneration());
+        identity[0] = null;
+
+        String[] first = (String[]) cache.get(RIL_REQUEST_DEVICE_IDENTITY);
+        assertEquals("001010123456789", first[0]);
+        first[0] = null;
+
+        String[] second = (String[]) cache.get(RIL_REQUEST_DEVICE_IDENTITY);
+        assertNotSame(first, second);
+        assertEquals("001010123456789", second[0]);
+    }
+
+    @SmallTest
+    public void testResponseSentBeforeInvalidateIsDropped() {
+        RilResponseCache cache = new RilResponseCache(null);
+        int sentAt = cache.getGeneration();
+        cache.invalidate();
+        cache.put(RIL_REQUEST_GET_IMEI, "001010123456789", sentAt);
+        assertNull(cache.get(RIL_REQUEST_GET_IMEI));
+
+        // Even an invalidation of another code ends the generation
+        sentAt = cache.getGeneration();
+        cache.onUnsolicited(RIL_UNSOL_HARDWARE_CONFIG_CHANGED);
+        cache.put(RIL_REQUEST_GET_IMEI, "001010123456789", sentAt);
+        assertNull(cache.get(RIL_REQUEST_GET_IMEI));
+
+        cache.put(RIL_REQUEST_GET_IMEI, "001010123456789", cache.getGeneration());
+        assertEquals("001010123456789", cache.get(RIL_REQUEST_GET_IMEI));
+    }
+}
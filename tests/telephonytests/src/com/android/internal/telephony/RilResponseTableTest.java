@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.*;
+
+import android.os.Parcel;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import org.mockito.Mockito;
+
+/**
+ * Test cases for RilResponseTable and a benchmark of table dispatch
+ * against the switch statement it replaced.
+ */
+public class RilResponseTableTest extends InstrumentationTestCase {
+    private static final String TAG = "RilResponseTableTest";
+
+    private static final int BENCH_ROUNDS = 20000;
+
+    // Roughly the mix of solicited responses seen while idle in service
+    private static final int[] RESPONSE_MIX = {
+        RIL_REQUEST_SIGNAL_STRENGTH, RIL_REQUEST_VOICE_REGISTRATION_STATE,
+        RIL_REQUEST_DATA_REGISTRATION_STATE, RIL_REQUEST_OPERATOR,
+        RIL_REQUEST_QUERY_NETWORK_SELECTION_MODE, RIL_REQUEST_GET_IMSI,
+        RIL_REQUEST_SCREEN_STATE, RIL_REQUEST_VOICE_RADIO_TECH,
+    };
+
+    private RIL mRil;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        System.setProperty("dexmaker.dexcache",
+                getInstrumentation().getTargetContext().getCacheDir().getPath());
+        Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
+        // Decoders only touch the Parcel, so skip the socket-owning constructor
+        mRil = Mockito.mock(RIL.class, Mockito.CALLS_REAL_METHODS);
+    }
+
+    @SmallTest
+    public void testDenseAndSparseCodes() {
+        RilResponseTable t = new RilResponseTable(0);
+        t.put(RIL_REQUEST_DIAL, RIL.DECODE_VOID);
+        t.put(RilResponseTable.DENSE_SIZE + 500, RIL.DECODE_INTS);
+        assertSame(RIL.DECODE_VOID, t.get(RIL_REQUEST_DIAL).decoder);
+        assertSame(RIL.DECODE_INTS, t.get(RilResponseTable.DENSE_SIZE + 500).decoder);
+        assertNull(t.get(RIL_REQUEST_HANGUP));
+        assertNull(t.get(-1));
+    }
+
+    @SmallTest
+    public void testCopyIsIndependent() {
+        RilResponseTable copy = new RilResponseTable(RIL.sSolicitedDefaults);
+        copy.put(RIL_REQUEST_GET_IMEI, RIL.DECODE_VOID);
+        assertSame(RIL.DECODE_VOID, copy.get(RIL_REQUEST_GET_IMEI).decoder);
+        assertSame(RIL.DECODE_STRING, RIL.sSolicitedDefaults.get(RIL_REQUEST_GET_IMEI).decoder);
+    }
+
+    @SmallTest
+    public void testPrivacyFlag() {
+        if (RIL.RILJ_LOGV) return;
+        assertEquals("", RIL.retToString(RIL_REQUEST_GET_IMSI, "001010123456789"));
+        assertEquals("{1, 2}", RIL.retToString(RIL_REQUEST_GET_CLIR, new int[] {1, 2}));
+    }
+
+    private static Parcel buildResponse(int request) {
+        Parcel p = Parcel.obtain();
+        switch (request) {
+            case RIL_REQUEST_SIGNAL_STRENGTH:
+                p.writeInt(12);
+                for (int i = 0; i < 11; i++) p.writeInt(99);
+                break;
+            case RIL_REQUEST_VOICE_REGISTRATION_STATE:
+            case RIL_REQUEST_DATA_REGISTRATION_STATE:
+                p.writeInt(4);
+                p.writeString("1");
+                p.writeString("1a2b");
+                p.writeString("0001c3d4");
+                p.writeString("3");
+                break;
+            case RIL_REQUEST_OPERATOR:
+                p.writeInt(3);
+                p.writeString("Test Network");
+                p.writeString("Test");
+                p.writeString("00101");
+                break;
+            case RIL_REQUEST_GET_IMSI:
+                p.writeString("001010123456789");
+                break;
+            case RIL_REQUEST_SCREEN_STATE:
+                break;
+            default:
+                p.writeInt(1);
+                p.writeInt(0);
+                break;
+        }
+        p.setDataPosition(0);
+        return p;
+    }
+
+    /** The dispatch processSolicited used before the table. */
+    private Object decodeWithSwitch(int request, Parcel p) {
+        switch (request) {
+            case RIL_REQUEST_SIGNAL_STRENGTH: return mRil.responseSignalStrength(p);
+            case RIL_REQUEST_VOICE_REGISTRATION_STATE: return mRil.responseStrings(p);
+            case RIL_REQUEST_DATA_REGISTRATION_STATE: return mRil.responseStrings(p);
+            case RIL_REQUEST_OPERATOR: return mRil.responseStrings(p);
+            case RIL_REQUEST_QUERY_NETWORK_SELECTION_MODE: return mRil.responseInts(p);
+            case RIL_REQUEST_GET_IMSI: return mRil.responseString(p);
+            case RIL_REQUEST_SCREEN_STATE: return mRil.responseVoid(p);
+            case RIL_REQUEST_VOICE_RADIO_TECH: return mRil.responseInts(p);
+            default: throw new RuntimeException("Unrecognized solicited response: " + request);
+        }
+    }
+
+    @LargeTest
+    public void testBenchmarkTableAgainstSwitch() throws Exception {
+        Parcel[] responses = new Parcel[RESPONSE_MIX.length];
+        for (int i = 0; i < RESPONSE_MIX.length; i++) {
+            responses[i] = buildResponse(RESPONSE_MIX[i]);
+        }
+        RilResponseTable table = RIL.sSolicitedDefaults;
+        // Both paths must produce the same non-null results
+        int decoded = 0;
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int round = 0; round < BENCH_ROUNDS; round++) {
+            for (int i = 0; i < RESPONSE_MIX.length; i++) {
+                responses[i].setDataPosition(0);
+                if (table.get(RESPONSE_MIX[i]).decoder.decode(mRil, responses[i]) != null) {
+                    decoded++;
+                }
+            }
+        }
+        long tableNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int round = 0; round < BENCH_ROUNDS; round++) {
+            for (int i = 0; i < RESPONSE_MIX.length; i++) {
+                responses[i].setDataPosition(0);
+                if (decodeWithSwitch(RESPONSE_MIX[i], responses[i]) != null) {
+                    decoded--;
+                }
+            }
+        }
+        long switchNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        for (Parcel p : responses) {
+            p.recycle();
+        }
+
+        assertEquals(0, decoded);
+
+        int decodes = BENCH_ROUNDS * RESPONSE_MIX.length;
+        Log.d(TAG, "table: " + (tableNanos / decodes) + " ns/response,"
+                + " switch: " + (switchNanos / decodes) + " ns/response");
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.*;
+
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for RilSendScheduler.
+ */
+public class RilSendSchedulerTest extends TestCase {
+
+    private static RILRequest request(int code, long enqueueNanos) {
+        RILRequest rr = RILRequest.obtain(code, null);
+        rr.mEnqueueNanos = enqueueNanos;
+        return rr;
+    }
+
+    private static void assertNext(RilSendScheduler scheduler, RILRequest expected) {
+        RILRequest rr = scheduler.poll();
+        assertSame(expected, rr);
+        rr.mParcel.recycle();
+        rr.mParcel = null;
+        rr.release();
+    }
+
+    @SmallTest
+    public void testHigherClassFirstFifoWithinClass() {
+        RilSendScheduler scheduler = new RilSendScheduler(60000);
+        long now = SystemClock.elapsedRealtimeNanos();
+        RILRequest simIo1 = request(RIL_REQUEST_SIM_IO, now);
+        RILRequest simIo2 = request(RIL_REQUEST_SIM_IO, now);
+        RILRequest cells = request(RIL_REQUEST_GET_CELL_INFO_LIST, now);
+        RILRequest sms = request(RIL_REQUEST_SEND_SMS, now);
+        RILRequest dial = request(RIL_REQUEST_DIAL, now);
+        scheduler.offer(cells);
+        scheduler.offer(simIo1);
+        scheduler.offer(simIo2);
+        scheduler.offer(sms);
+        scheduler.offer(dial);
+        assertEquals(5, scheduler.size());
+
+        assertNext(scheduler, dial);
+        assertNext(scheduler, sms);
+        assertNext(scheduler, simIo1);
+        assertNext(scheduler, simIo2);
+        assertNext(scheduler, cells);
+        assertNull(scheduler.poll());
+    }
+
+    @SmallTest
+    public void testStarvedRequestIsPromoted() {
+        RilSendScheduler scheduler = new RilSendScheduler(500);
+        long now = SystemClock.elapsedRealtimeNanos();
+        // Waited a second, past the 500ms limit
+        RILRequest oldInfo = request(RIL_REQUEST_SIGNAL_STRENGTH, now - 1000000000L);
+        RILRequest dial = request(RIL_REQUEST_DIAL, now);
+        scheduler.offer(oldInfo);
+        scheduler.offer(dial);
+
+        assertNext(scheduler, oldInfo);
+        assertNext(scheduler, dial);
+    }
+
+    @SmallTest
+    public void testClassOf() {
+        assertEquals(RilSendScheduler.CLASS_VOICE,
+                RilSendScheduler.classOf(RIL_REQUEST_ANSWER));
+        assertEquals(RilSendScheduler.CLASS_SMS,
+                RilSendScheduler.classOf(RIL_REQUEST_CDMA_SEND_SMS));
+        assertEquals(RilSendScheduler.CLASS_CONTROL,
+                RilSendScheduler.classOf(RIL_REQUEST_RADIO_POWER));
+        assertEquals(RilSendScheduler.CLASS_SIM_IO,
+                RilSendScheduler.classOf(RIL_REQUEST_SIM_IO));
+        assertEquals(RilSendScheduler.CLASS_INFO,
+                RilSendScheduler.classOf(RIL_REQUEST_OPERATOR));
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.*;
+
+import android.content.Context;
+import android.net.LocalSocketAddress;
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.internal.telephony.test.RilStandInServer;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connects several RIL instances to RilStandInServer, first each with its
+ * own receiver thread and then on the shared I/O loop, and reports the
+ * threads and resident memory each mode adds to the process.
+ */
+public class RilSharedIoLoopTest extends InstrumentationTestCase {
+    private static final String TAG = "RilSharedIoLoopTest";
+    private static final String SOCKET_NAME = "RilSharedIoLoopTest";
+
+    private static final int INSTANCES = 4;
+
+    private static class StandInRil extends RIL {
+        StandInRil(Context context, int instance) {
+            super(context, NETWORK_MODE_WCDMA_PREF, 0, instance);
+        }
+
+        @Override
+        protected boolean useSharedIoLoop() {
+            return sSharedForNext;
+        }
+
+        @Override
+        protected LocalSocketAddress getSocketAddress(String name) {
+            return new LocalSocketAddress(SOCKET_NAME);
+        }
+    }
+
+    // Read by StandInRil.useSharedIoLoop, which RIL calls from its
+    // constructor
+    private static volatile boolean sSharedForNext;
+
+    private RilStandInServer mServer;
+    private HandlerThread mCallbackThread;
+    private final ArrayList<RIL> mRils = new ArrayList<RIL>();
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mServer = new RilStandInServer(SOCKET_NAME, 10);
+        mServer.setResponse(RIL_REQUEST_SIGNAL_STRENGTH, new RilStandInServer.Response(0,
+                RilStandInServer.Response.ints(12, 99, -1, -1, -1, -1, -1, 99, -1, -1, -1, -1),
+                2));
+        mServer.start();
+        mCallbackThread = new HandlerThread(TAG);
+        mCallbackThread.start();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        disposeAll();
+        mServer.stop();
+        mCallbackThread.quit();
+        super.tearDown();
+    }
+
+    @LargeTest
+    public void testThreadsAndMemoryPerMode() throws Exception {
+        // Start the loop up front, so that it is not counted against the
+        // first shared instance
+        RilIoLoop.getInstance();
+
+        long[] own = measure(false);
+        disposeAll();
+        long[] shared = measure(true);
+
+        Log.d(TAG, INSTANCES + " instances, own receiver: +" + own[0] + " threads, +"
+                + own[1] + "kB RSS; shared loop: +" + shared[0] + " threads, +"
+                + shared[1] + "kB RSS");
+        // A RILReceiver and a RILSender each, against only a RILSender
+        // each, which also decodes, with reading on the loop
+        assertTrue(own[0] >= 2 * INSTANCES);
+        assertTrue(shared[0] < own[0]);
+    }
+
+    /** @return threads and kB of resident memory added by the instances */
+    private long[] measure(boolean shared) throws Exception {
+        Context context = getInstrumentation().getTargetContext();
+        System.gc();
+        long[] before = readStatus();
+
+        sSharedForNext = shared;
+        for (int i = 0; i < INSTANCES; i++) {
+            mRils.add(new StandInRil(context, i));
+        }
+        for (RIL ril : mRils) {
+            for (int i = 0; i < 100 && ril.mSocket == null; i++) {
+                Thread.sleep(50);
+            }
+            assertNotNull(ril.mSocket);
+            if (shared) {
+                // Hands the socket to the loop and exits
+                ril.mReceiverThread.join(5000);
+                assertFalse(ril.mReceiverThread.isAlive());
+                assertNull(ril.mDecodePipeline);
+                assertNotNull(ril.mDecodeQueue);
+            }
+        }
+        exercise();
+
+        System.gc();
+        long[] after = readStatus();
+        return new long[] { after[0] - before[0], after[1] - before[1] };
+    }
+
+    /** Checks that every instance gets its responses. */
+    private void exercise() throws InterruptedException {
+        final int perInstance = 50;
+        final CountDownLatch done = new CountDownLatch(perInstance * mRils.size());
+        final AtomicInteger failures = new AtomicInteger();
+        Handler handler = new Handler(mCallbackThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (((AsyncResult) msg.obj).exception != null) {
+                    failures.incrementAndGet();
+                }
+                done.countDown();
+            }
+        };
+        for (int i = 0; i < perInstance; i++) {
+            for (RIL ril : mRils) {
+                ril.getSignalStrength(handler.obtainMessage());
+            }
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertEquals(0, failures.get());
+    }
+
+    private void disposeAll() throws InterruptedException {
+        for (RIL ril : mRils) {
+            ril.dispose();
+        }
+        for (RIL ril : mRils) {
+            ril.mSenderThread.join(5000);
+            if (ril.mReceiverThread != null) {
+                ril.mReceiverThread.join(5000);
+            }
+        }
+        mRils.clear();
+    }
+
+    /** @return the Threads and VmRSS (kB) lines of /proc/self/status */
+    private static long[] readStatus() throws IOException {
+        long[] status = new long[2];
+        BufferedReader in = new BufferedReader(new FileReader("/proc/self/status"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("Threads:")) {
+                    status[0] = Long.parseLong(line.substring(8).trim());
+                } else if (line.startsWith("VmRSS:")) {
+                    status[1] = Long.parseLong(line.substring(6).replace("kB", "").trim());
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return status;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.*;
+
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for RilSingleFlight.
+ */
+public class RilSingleFlightTest extends TestCase {
+
+    @SmallTest
+    public void testFollowersWaitOnLeader() {
+        RilSingleFlight flight = new RilSingleFlight();
+        RILRequest leader = RILRequest.obtain(RIL_REQUEST_SIGNAL_STRENGTH, null);
+        assertFalse(flight.join(leader));
+        assertSame(flight, leader.mSingleFlight);
+
+        Message m1 = Message.obtain();
+        Message m2 = Message.obtain();
+        assertTrue(flight.join(RILRequest.obtain(RIL_REQUEST_SIGNAL_STRENGTH, m1)));
+        assertTrue(flight.join(RILRequest.obtain(RIL_REQUEST_SIGNAL_STRENGTH, m2)));
+        assertEquals(2, flight.getSavedCount(RIL_REQUEST_SIGNAL_STRENGTH));
+
+        ArrayList<Message> waiters = flight.complete(leader);
+        assertEquals(2, waiters.size());
+        assertSame(m1, waiters.get(0));
+        assertSame(m2, waiters.get(1));
+
+        // The next request goes to the modem again
+        RILRequest next = RILRequest.obtain(RIL_REQUEST_SIGNAL_STRENGTH, null);
+        assertFalse(flight.join(next));
+        assertNull(flight.complete(next));
+    }
+
+    @SmallTest
+    public void testOtherRequestsAreNotShared() {
+        RilSingleFlight flight = new RilSingleFlight();
+        assertFalse(flight.join(RILRequest.obtain(RIL_REQUEST_DIAL, null)));
+        assertFalse(flight.join(RILRequest.obtain(RIL_REQUEST_DIAL, null)));
+        assertEquals(0, flight.getSavedCount(RIL_REQUEST_DIAL));
+
+        // Different shareable types do not wait on each other
+        assertFalse(flight.join(RILRequest.obtain(RIL_REQUEST_OPERATOR, null)));
+        assertFalse(flight.join(RILRequest.obtain(RIL_REQUEST_GET_CURRENT_CALLS, null)));
+    }
+
+    @SmallTest
+    public void testWrittenLeaderTakesNoFollowers() {
+        RilSingleFlight flight = new RilSingleFlight();
+        RILRequest first = RILRequest.obtain(RIL_REQUEST_GET_CURRENT_CALLS, null);
+        assertFalse(flight.join(first));
+        flight.onWritten(first);
+
+        // Issued after the first was written, so it needs a fresh answer
+        RILRequest second = RILRequest.obtain(RIL_REQUEST_GET_CURRENT_CALLS, null);
+        assertFalse(flight.join(second));
+        Message m = Message.obtain();
+        assertTrue(flight.join(RILRequest.obtain(RIL_REQUEST_GET_CURRENT_CALLS, m)));
+
+        assertNull(flight.complete(first));
+        ArrayList<Message> waiters = flight.complete(second);
+        assertEquals(1, waiters.size());
+        assertSame(m, waiters.get(0));
+    }
+
+    @SmallTest
+    public void testWaitersGetOwnCopies() throws InterruptedException {
+        HandlerThread thread = new HandlerThread("RilSingleFlightTest");
+        thread.start();
+        final ArrayList<Object> results = new ArrayList<Object>();
+        final CountDownLatch latch = new CountDownLatch(3);
+        Handler handler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                synchronized (results) {
+                    results.add(((AsyncResult) msg.obj).result);
+                }
+                latch.countDown();
+            }
+        };
+
+        try {
+            RilSingleFlight flight = new RilSingleFlight();
+            RILRequest leader = RILRequest.obtain(RIL_REQUEST_OPERATOR,
+                    handler.obtainMessage());
+            assertFalse(flight.join(leader));
+            assertTrue(flight.join(RILRequest.obtain(RIL_REQUEST_OPERATOR,
+                    handler.obtainMessage())));
+            assertTrue(flight.join(RILRequest.obtain(RIL_REQUEST_OPERATOR,
+                    handler.obtainMessage())));
+
+            String[] ret = new String[] { "Operator", "Op", "00101" };
+            leader.sendResult(ret, null);
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+            synchronized (results) {
+                assertEquals(3, results.size());
+                for (int i = 0; i < results.size(); i++) {
+                    String[] result = (String[]) results.get(i);
+                    assertEquals("00101", result[2]);
+                    for (int j = 0; j < i; j++) {
+                        assertNotSame(results.get(j), result);
+                    }
+                }
+            }
+        } finally {
+            thread.quit();
+        }
+    }
+}
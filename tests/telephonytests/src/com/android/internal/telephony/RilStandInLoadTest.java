@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.*;
+
+import android.content.Context;
+import android.net.LocalSocketAddress;
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Parcel;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.internal.telephony.test.RilStandInServer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives a real RIL against RilStandInServer and reports throughput,
+ * latency and heap growth.
+ */
+public class RilStandInLoadTest extends InstrumentationTestCase {
+    private static final String TAG = "RilStandInLoadTest";
+    private static final String SOCKET_NAME = "RilStandInLoadTest";
+
+    private static final int REQUESTS = 5000;
+
+    private static class StandInRil extends RIL {
+        StandInRil(Context context) {
+            super(context, NETWORK_MODE_WCDMA_PREF, 0, 0);
+        }
+
+        @Override
+        protected LocalSocketAddress getSocketAddress(String name) {
+            return new LocalSocketAddress(SOCKET_NAME);
+        }
+    }
+
+    /** Replaces a decoder the way a vendor RIL does. */
+    private static class VendorRil extends StandInRil {
+        static final String DECODED = "vendor";
+
+        VendorRil(Context context) {
+            super(context);
+        }
+
+        @Override
+        protected void onRegisterResponses() {
+            registerSolicitedResponse(RIL_REQUEST_SIGNAL_STRENGTH,
+                    new RilResponseTable.Decoder() {
+                        @Override
+                        public Object decode(RIL ril, Parcel p) {
+                            return DECODED;
+                        }
+                    });
+        }
+    }
+
+    private RilStandInServer mServer;
+    private HandlerThread mCallbackThread;
+    private RIL mRil;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mServer = new RilStandInServer(SOCKET_NAME, 10);
+        mServer.setResponse(RIL_REQUEST_SIGNAL_STRENGTH, new RilStandInServer.Response(0,
+                RilStandInServer.Response.ints(12, 99, -1, -1, -1, -1, -1, 99, -1, -1, -1, -1),
+                2));
+        mServer.start();
+        mCallbackThread = new HandlerThread(TAG);
+        mCallbackThread.start();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        if (mRil != null) {
+            mRil.dispose();
+            mRil.mReceiverThread.join(5000);
+            assertFalse(mRil.mReceiverThread.isAlive());
+        }
+        mServer.stop();
+        mCallbackThread.quit();
+        super.tearDown();
+    }
+
+    @LargeTest
+    public void testSignalStrengthLoad() throws Exception {
+        RIL ril = new StandInRil(getInstrumentation().getTargetContext());
+        mRil = ril;
+        // Wait for the connection handshake
+        for (int i = 0; i < 100 && ril.mSocket == null; i++) {
+            Thread.sleep(50);
+        }
+        assertNotNull(ril.mSocket);
+
+        // Something to coalesce or just count, depending on configuration
+        mServer.emitUnsolicited(RIL_UNSOL_SIGNAL_STRENGTH,
+                RilStandInServer.Response.ints(12, 99, -1, -1, -1, -1, -1, 99, -1, -1, -1, -1), 10);
+
+        final CountDownLatch done = new CountDownLatch(REQUESTS);
+        final AtomicInteger failures = new AtomicInteger();
+        Handler handler = new Handler(mCallbackThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (((AsyncResult) msg.obj).exception != null) {
+                    failures.incrementAndGet();
+                }
+                done.countDown();
+            }
+        };
+
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < REQUESTS; i++) {
+            ril.getSignalStrength(handler.obtainMessage());
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+
+        assertEquals(0, failures.get());
+        Log.d(TAG, REQUESTS + " requests in " + elapsed + "ms ("
+                + (REQUESTS * 1000L / Math.max(elapsed, 1)) + "/s), "
+                + mServer.getUnsolicitedCount() + " unsolicited, heap growth "
+                + ((heapAfter - heapBefore) / 1024) + "KB");
+        for (RilLatencyStats.Snapshot s : ril.getRequestLatencySnapshot()) {
+            Log.d(TAG, s.toString());
+        }
+    }
+
+    @LargeTest
+    public void testVendorDecoderUsedFromFirstResponse() throws Exception {
+        RIL ril = new VendorRil(getInstrumentation().getTargetContext());
+        mRil = ril;
+        for (int i = 0; i < 100 && ril.mSocket == null; i++) {
+            Thread.sleep(50);
+        }
+        assertNotNull(ril.mSocket);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final Object[] result = new Object[1];
+        Handler handler = new Handler(mCallbackThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                result[0] = ((AsyncResult) msg.obj).result;
+                done.countDown();
+            }
+        };
+        ril.getSignalStrength(handler.obtainMessage());
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(VendorRil.DECODED, result[0]);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import android.os.HandlerThread;
+import android.os.Parcel;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.mockito.Mockito;
+
+/**
+ * Test cases for RilUnsolCoalescer.
+ */
+public class RilUnsolCoalescerTest extends InstrumentationTestCase {
+    private static final int WINDOW_MILLIS = 50;
+
+    private RIL mRil;
+    private HandlerThread mThread;
+    private RilUnsolCoalescer mCoalescer;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        System.setProperty("dexmaker.dexcache",
+                getInstrumentation().getTargetContext().getCacheDir().getPath());
+        Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
+        mRil = Mockito.mock(RIL.class);
+        mThread = new HandlerThread("RilUnsolCoalescerTest");
+        mThread.start();
+        mCoalescer = new RilUnsolCoalescer(mRil, mThread.getLooper(), WINDOW_MILLIS);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mThread.quit();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testSingleResponseIsNotDelayed() throws Exception {
+        // The caller dispatches it at once
+        assertFalse(mCoalescer.offer(RIL_UNSOL_SIGNAL_STRENGTH, "first"));
+
+        Thread.sleep(WINDOW_MILLIS * 4);
+        verify(mRil, never()).dispatchUnsolicited(anyInt(), any(), any(Parcel.class));
+        assertEquals(0, mCoalescer.getDroppedCount(RIL_UNSOL_SIGNAL_STRENGTH));
+
+        // The window has closed, so the next one goes straight through too
+        assertFalse(mCoalescer.offer(RIL_UNSOL_SIGNAL_STRENGTH, "second"));
+    }
+
+    @SmallTest
+    public void testBurstDeliversFirstAndLatest() throws Exception {
+        assertFalse(mCoalescer.offer(RIL_UNSOL_SIGNAL_STRENGTH, "first"));
+        assertTrue(mCoalescer.offer(RIL_UNSOL_SIGNAL_STRENGTH, "second"));
+        assertTrue(mCoalescer.offer(RIL_UNSOL_SIGNAL_STRENGTH, "third"));
+        assertTrue(mCoalescer.offer(RIL_UNSOL_SIGNAL_STRENGTH, "latest"));
+
+        verify(mRil, timeout(WINDOW_MILLIS * 20)).dispatchUnsolicited(
+                RIL_UNSOL_SIGNAL_STRENGTH, "latest", null);
+        assertEquals(2, mCoalescer.getDroppedCount(RIL_UNSOL_SIGNAL_STRENGTH));
+        verify(mRil, never()).dispatchUnsolicited(RIL_UNSOL_SIGNAL_STRENGTH, "second", null);
+        verify(mRil, never()).dispatchUnsolicited(RIL_UNSOL_SIGNAL_STRENGTH, "third", null);
+    }
+
+    @SmallTest
+    public void testOtherTypesAreNotHeld() {
+        assertFalse(mCoalescer.offer(RIL_UNSOL_RESPONSE_NEW_SMS, "sms"));
+        assertFalse(mCoalescer.offer(RIL_UNSOL_RESPONSE_NEW_SMS, "sms"));
+        // A burst of one type does not hold another
+        assertFalse(mCoalescer.offer(RIL_UNSOL_SIGNAL_STRENGTH, "first"));
+        assertTrue(mCoalescer.offer(RIL_UNSOL_SIGNAL_STRENGTH, "second"));
+        assertFalse(mCoalescer.offer(RIL_UNSOL_CELL_INFO_LIST, "cells"));
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.*;
+
+import android.content.Context;
+import android.net.LocalSocketAddress;
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Parcel;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.test.RilCaptureReplayer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for RilWireCapture and RilCaptureReplayer.
+ */
+public class RilWireCaptureTest extends InstrumentationTestCase {
+    private static final String SOCKET_NAME = "RilWireCaptureTest";
+
+    private static final String IMEI = "001010123456789";
+    private static final String BASEBAND = "M8974A-1.0";
+
+    private static class ReplayRil extends RIL {
+        ReplayRil(Context context) {
+            super(context, NETWORK_MODE_WCDMA_PREF, 0, 0);
+        }
+
+        @Override
+        protected LocalSocketAddress getSocketAddress(String name) {
+            return new LocalSocketAddress(SOCKET_NAME);
+        }
+    }
+
+    private static byte[] payload(int seed, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (seed + i);
+        }
+        return data;
+    }
+
+    private static byte[] capture(int frames, long maxBytes) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RilWireCapture capture = new RilWireCapture(out, maxBytes);
+        for (int i = 0; i < frames; i++) {
+            capture.record(RilWireCapture.DIRECTION_OUTBOUND, payload(i, 8), 0, 8);
+            capture.record(RilWireCapture.DIRECTION_INBOUND, payload(i, 12 + i), 0, 12 + i);
+        }
+        capture.close();
+        return out.toByteArray();
+    }
+
+    @SmallTest
+    public void testRoundTrip() throws Exception {
+        RilWireCapture.Reader reader =
+                new RilWireCapture.Reader(new ByteArrayInputStream(capture(10, 0)));
+        long lastTimestamp = 0;
+        for (int i = 0; i < 10; i++) {
+            RilWireCapture.Record out = reader.next();
+            assertEquals(RilWireCapture.DIRECTION_OUTBOUND, out.direction);
+            assertTrue(Arrays.equals(payload(i, 8), out.data));
+            assertTrue(out.timestampNanos >= lastTimestamp);
+
+            RilWireCapture.Record in = reader.next();
+            assertEquals(RilWireCapture.DIRECTION_INBOUND, in.direction);
+            assertTrue(Arrays.equals(payload(i, 12 + i), in.data));
+            assertTrue(in.timestampNanos >= out.timestampNanos);
+            lastTimestamp = in.timestampNanos;
+        }
+        assertNull(reader.next());
+    }
+
+    @SmallTest
+    public void testSizeLimit() throws Exception {
+        // Header plus two records of 16 + 8 and 16 + 12 bytes
+        RilWireCapture.Reader reader =
+                new RilWireCapture.Reader(new ByteArrayInputStream(capture(10, 8 + 24 + 28)));
+        assertNotNull(reader.next());
+        assertNotNull(reader.next());
+        assertNull(reader.next());
+    }
+
+    private static byte[] request(int request, int serial) {
+        Parcel p = Parcel.obtain();
+        p.writeInt(request);
+        p.writeInt(serial);
+        byte[] data = p.marshall();
+        p.recycle();
+        return data;
+    }
+
+    private static byte[] stringResponse(int serial, String value) {
+        Parcel p = Parcel.obtain();
+        p.writeInt(RIL.RESPONSE_SOLICITED);
+        p.writeInt(serial);
+        p.writeInt(0);
+        p.writeString(value);
+        byte[] data = p.marshall();
+        p.recycle();
+        return data;
+    }
+
+    private static void record(RilWireCapture capture, int direction, byte[] data) {
+        capture.record(direction, data, 0, data.length);
+    }
+
+    /**
+     * Replays a capture with two requests answered out of order through a
+     * real RIL. The captured serials are not the ones the RIL uses, so each
+     * answer only reaches its caller if the replayer remapped it.
+     */
+    @MediumTest
+    public void testReplayThroughRil() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RilWireCapture capture = new RilWireCapture(out, 0);
+        record(capture, RilWireCapture.DIRECTION_OUTBOUND, request(RIL_REQUEST_GET_IMEI, 9000));
+        record(capture, RilWireCapture.DIRECTION_OUTBOUND,
+                request(RIL_REQUEST_BASEBAND_VERSION, 9001));
+        record(capture, RilWireCapture.DIRECTION_INBOUND, stringResponse(9001, BASEBAND));
+        record(capture, RilWireCapture.DIRECTION_INBOUND, stringResponse(9000, IMEI));
+        capture.close();
+
+        final RilCaptureReplayer replayer = new RilCaptureReplayer(
+                new ByteArrayInputStream(out.toByteArray()), 0, 10000);
+        assertEquals(2, replayer.getInboundCount());
+        assertEquals(2, replayer.getCapturedOutboundCount());
+
+        final Exception[] serveError = new Exception[1];
+        Thread server = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    replayer.serve(SOCKET_NAME);
+                } catch (Exception e) {
+                    serveError[0] = e;
+                }
+            }
+        };
+        server.start();
+
+        HandlerThread callbackThread = new HandlerThread(SOCKET_NAME);
+        callbackThread.start();
+        final CountDownLatch done = new CountDownLatch(2);
+        final Object[] results = new Object[2];
+        Handler handler = new Handler(callbackThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                AsyncResult ar = (AsyncResult) msg.obj;
+                results[msg.what] = ar.exception != null ? ar.exception : ar.result;
+                done.countDown();
+            }
+        };
+
+        RIL ril = new ReplayRil(getInstrumentation().getTargetContext());
+        try {
+            for (int i = 0; i < 100 && ril.mSocket == null; i++) {
+                Thread.sleep(50);
+            }
+            assertNotNull(ril.mSocket);
+
+            ril.getIMEI(handler.obtainMessage(0));
+            ril.getBasebandVersion(handler.obtainMessage(1));
+            assertTrue(done.await(20, TimeUnit.SECONDS));
+            assertEquals(IMEI, results[0]);
+            assertEquals(BASEBAND, results[1]);
+
+            server.join(5000);
+            assertNull(serveError[0]);
+            assertEquals(2, replayer.getSentCount());
+            assertEquals(0, replayer.getSkippedCount());
+        } finally {
+            ril.dispose();
+            callbackThread.quit();
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.mock.MockContext;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.util.HexDump;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+/**
+ * Test cases for the paged raw table scan in SmsBroadcastUndelivered.
+ */
+public class SmsBroadcastUndeliveredTest extends TestCase {
+
+    /** Raw table provider backed by an in-memory database. */
+    private static class RawTableProvider extends MockContentProvider {
+        final SQLiteDatabase mDb;
+        int mQueries;
+        int mBatches;
+
+        RawTableProvider() {
+            mDb = SQLiteDatabase.create(null);
+            mDb.execSQL("CREATE TABLE raw (_id INTEGER PRIMARY KEY, date INTEGER,"
+                    + " reference_number INTEGER, count INTEGER, sequence INTEGER,"
+                    + " destination_port INTEGER, address TEXT, pdu TEXT)");
+        }
+
+        @Override
+        public synchronized Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            mQueries++;
+            Cursor cursor = mDb.query("raw", projection, selection, selectionArgs, null, null,
+                    sortOrder);
+            cursor.getCount();  // fill the window on this thread
+            return cursor;
+        }
+
+        @Override
+        public synchronized int update(Uri uri, ContentValues values, String selection,
+                String[] selectionArgs) {
+            return mDb.update("raw", values, selection, selectionArgs);
+        }
+
+        @Override
+        public synchronized int delete(Uri uri, String selection, String[] selectionArgs) {
+            return mDb.delete("raw", selection, selectionArgs);
+        }
+
+        @Override
+        public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> ops)
+                throws OperationApplicationException {
+            mBatches++;
+            ContentProviderResult[] results = new ContentProviderResult[ops.size()];
+            for (int i = 0; i < ops.size(); i++) {
+                results[i] = ops.get(i).apply(this, results, i);
+            }
+            return results;
+        }
+    }
+
+    private static class ResolverContext extends MockContext {
+        final ContentResolver mResolver;
+
+        ResolverContext(ContentResolver resolver) {
+            mResolver = resolver;
+        }
+
+        @Override
+        public ContentResolver getContentResolver() {
+            return mResolver;
+        }
+    }
+
+    private RawTableProvider mProvider;
+    private SmsBroadcastUndelivered mScanner;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mProvider = new RawTableProvider();
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider("sms", mProvider);
+        // No handlers; messages found are logged and dropped
+        mScanner = new SmsBroadcastUndelivered(new ResolverContext(resolver), null, null);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mProvider.mDb.close();
+        super.tearDown();
+    }
+
+    private void insertSegment(long date, int reference, int count, int sequence) {
+        ContentValues values = new ContentValues();
+        values.put("pdu", HexDump.toHexString(new byte[] { 1, 2, 3 }));
+        values.put("date", date);
+        if (count > 0) {
+            values.put("address", "+15555550100");
+            values.put("reference_number", reference);
+            values.put("count", count);
+            values.put("sequence", sequence);
+        }
+        mProvider.mDb.insert("raw", null, values);
+    }
+
+    private int countRows() {
+        Cursor cursor = mProvider.mDb.rawQuery("SELECT COUNT(*) FROM raw", null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @SmallTest
+    public void testEmptyTable() {
+        mScanner.run();
+        assertEquals(0, mScanner.getRowsProcessed());
+        assertEquals(1, mScanner.getPageCount());
+    }
+
+    @SmallTest
+    public void testFullPageNeedsNoSecondQuery() {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < SmsBroadcastUndelivered.PAGE_SIZE; i++) {
+            insertSegment(now, 0, 0, 0);
+        }
+        mScanner.run();
+        assertEquals(SmsBroadcastUndelivered.PAGE_SIZE, mScanner.getRowsProcessed());
+        assertEquals(1, mScanner.getPageCount());
+        assertEquals(1, mProvider.mQueries);
+    }
+
+    @SmallTest
+    public void testPagesAndDeletesExpiredSegments() {
+        long now = System.currentTimeMillis();
+        int singles = SmsBroadcastUndelivered.PAGE_SIZE * 2 + 10;
+        for (int i = 0; i < singles; i++) {
+            insertSegment(now, 0, 0, 0);
+        }
+        // 150 expired messages missing their last segment
+        for (int ref = 0; ref < 150; ref++) {
+            insertSegment(0, ref, 3, 1);
+            insertSegment(0, ref, 3, 2);
+        }
+        // A recent incomplete message is kept
+        insertSegment(now, 200, 2, 1);
+        // An expired but complete message is broadcast, not deleted
+        insertSegment(0, 201, 2, 1);
+        insertSegment(0, 201, 2, 2);
+
+        int total = singles + 300 + 3;
+        mScanner.run();
+
+        assertEquals(total, mScanner.getRowsProcessed());
+        assertEquals(total / SmsBroadcastUndelivered.PAGE_SIZE + 1, mScanner.getPageCount());
+        assertEquals(mScanner.getPageCount(), mProvider.mQueries);
+        assertEquals(300, mScanner.getExpiredRowsDeleted());
+        assertEquals(total - 300, countRows());
+        // Deletes go out 100 messages at a time
+        assertTrue(mProvider.mBatches >= 2);
+    }
+
+    @SmallTest
+    public void testCompleteMessageWithDuplicateSegmentIsNotExpired() {
+        // Expired and complete, followed by a retransmitted copy of its last segment
+        insertSegment(0, 7, 2, 1);
+        insertSegment(0, 7, 2, 2);
+        insertSegment(0, 7, 2, 2);
+
+        mScanner.run();
+
+        assertEquals(3, mScanner.getRowsProcessed());
+        assertEquals(0, mScanner.getExpiredRowsDeleted());
+        assertEquals(3, countRows());
+    }
+
+    @SmallTest
+    public void testExpiredSegmentsLeaveTheIndex() {
+        insertSegment(0, 9, 3, 1);
+        InboundSmsTracker indexed = new InboundSmsTracker(new byte[] { 1 }, 0, -1, false,
+                "+15555550100", 9, 1, 3, false);
+        SmsReassemblyIndex index = SmsReassemblyIndex.forFormat(false);
+        index.add(indexed);
+
+        mScanner.run();
+
+        assertEquals(1, mScanner.getExpiredRowsDeleted());
+        assertNull(index.getSegment(indexed));
+    }
+}
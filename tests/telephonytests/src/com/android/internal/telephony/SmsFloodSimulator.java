@@ -0,0 +1,553 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.app.Activity;
+import android.content.BroadcastReceiver;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.AsyncResult;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.IDeviceIdleController;
+import android.os.IPowerManager;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.provider.Telephony.Sms.Intents;
+import android.telephony.PhoneNumberUtils;
+import android.telephony.SmsMessage;
+import android.telephony.TelephonyManager;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import com.android.internal.telephony.cdma.CdmaInboundSmsHandler;
+import com.android.internal.telephony.cdma.sms.BearerData;
+import com.android.internal.telephony.cdma.sms.CdmaSmsAddress;
+import com.android.internal.telephony.cdma.sms.SmsEnvelope;
+import com.android.internal.telephony.cdma.sms.UserData;
+import com.android.internal.telephony.gsm.GsmInboundSmsHandler;
+import com.android.internal.telephony.test.SimulatedCommands;
+import com.android.internal.telephony.uicc.UiccController;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Floods a real GsmInboundSmsHandler or CdmaInboundSmsHandler with generated
+ * PDUs, for measuring inbound SMS throughput without a modem.
+ *
+ * PDUs arrive as EVENT_NEW_SMS, the way RIL delivers them, and are acked to
+ * SimulatedCommands. The handlers run against in-process stand-ins: an
+ * in-memory raw table behind the "sms" authority, an empty settings
+ * provider, a PowerManager whose wake locks go nowhere, and ordered
+ * broadcasts that complete at once on the handler thread. The stand-in
+ * reports the delivery broadcast as finished with its notification stage
+ * (SMS_RECEIVED, WAP_PUSH_RECEIVED), since sending to all users needs
+ * privileges a test package does not have. There is no default SMS app,
+ * so delivery goes to the implicit broadcast.
+ *
+ * Latency is measured from handing the PDU that completes a message to the
+ * handler until its delivery broadcast is sent. Allocations are counted
+ * process wide while the flood runs, with all PDUs built beforehand.
+ */
+class SmsFloodSimulator {
+    static final String GSM_ADDRESS = "+15555550100";
+    static final String CDMA_ADDRESS = "5555550100";
+
+    private static final int WAP_PUSH_SOURCE_PORT = 9200;
+
+    // SI push: transaction id, PDU type push, header length, content type, WBXML body
+    private static final byte[] WSP_PUSH = {
+        0x01, 0x06, 0x01, (byte) 0xae, 0x02, 0x05, 0x6a, 0x00
+    };
+
+    // 15/10/17 12:34:56 GMT, in swapped semi-octets
+    private static final byte[] SERVICE_CENTRE_TIME_STAMP = {
+        0x51, 0x01, 0x71, 0x21, 0x43, 0x65, 0x00
+    };
+
+    /** The mix of messages in one flood, interleaved in round-robin order. */
+    static class Stream {
+        int mSinglePart;
+        int mMultiPart;
+        int mSegments = 3;
+        int mWapPush;
+        /** Multi-part messages whose first segment arrives a second time. */
+        int mDuplicates;
+
+        Stream(int singlePart, int multiPart, int wapPush, int duplicates) {
+            mSinglePart = singlePart;
+            mMultiPart = multiPart;
+            mWapPush = wapPush;
+            mDuplicates = duplicates;
+        }
+
+        int getMessageCount() {
+            return mSinglePart + mMultiPart + mWapPush;
+        }
+
+        int getPduCount() {
+            return mSinglePart + mMultiPart * mSegments + mWapPush
+                    + Math.min(mDuplicates, mMultiPart);
+        }
+    }
+
+    /** What one flood measured. */
+    static class Result {
+        final String mName;
+        final int mMessages;
+        final int mPdus;
+        final long mElapsedNanos;
+        final LatencyHistogram mLatency;
+        final long mAllocations;
+        final int mRejected;
+        final int mRowsLeft;
+        final long mRoutingHits;
+        final long mRoutingLookups;
+
+        Result(String name, int messages, int pdus, long elapsedNanos,
+                LatencyHistogram latency, long allocations, int rejected,
+                int rowsLeft, long routingHits, long routingLookups) {
+            mName = name;
+            mMessages = messages;
+            mPdus = pdus;
+            mElapsedNanos = elapsedNanos;
+            mLatency = latency;
+            mAllocations = allocations;
+            mRejected = rejected;
+            mRowsLeft = rowsLeft;
+            mRoutingHits = routingHits;
+            mRoutingLookups = routingLookups;
+        }
+
+        long getMessagesPerSecond() {
+            return mMessages * 1000000000L / Math.max(mElapsedNanos, 1);
+        }
+
+        long getAllocationsPerMessage() {
+            return mAllocations / Math.max(mMessages, 1);
+        }
+
+        @Override
+        public String toString() {
+            return mName + ": " + mMessages + " messages (" + mPdus + " PDUs) in "
+                    + (mElapsedNanos / 1000000) + "ms, " + getMessagesPerSecond() + " msgs/s,"
+                    + " latency p50=" + mLatency.percentile(50) + "us"
+                    + " p99=" + mLatency.percentile(99) + "us"
+                    + " max=" + mLatency.mMaxUs + "us, "
+                    + getAllocationsPerMessage() + " allocs/msg, "
+                    + mRejected + " rejected, " + mRowsLeft + " raw rows left, routing cache "
+                    + mRoutingHits + "/" + mRoutingLookups + " hits";
+        }
+    }
+
+    /** The raw table, in memory. */
+    private static class RawTableProvider extends MockContentProvider {
+        private final SQLiteDatabase mDb;
+
+        RawTableProvider() {
+            mDb = SQLiteDatabase.create(null);
+            mDb.execSQL("CREATE TABLE raw (_id INTEGER PRIMARY KEY, date INTEGER,"
+                    + " reference_number INTEGER, count INTEGER, sequence INTEGER,"
+                    + " destination_port INTEGER, address TEXT, pdu TEXT)");
+        }
+
+        @Override
+        public synchronized Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            return mDb.query("raw", projection, selection, selectionArgs, null, null, sortOrder);
+        }
+
+        @Override
+        public synchronized Uri insert(Uri uri, ContentValues values) {
+            long id = mDb.insert("raw", null, values);
+            return id < 0 ? null : ContentUris.withAppendedId(uri, id);
+        }
+
+        @Override
+        public synchronized int update(Uri uri, ContentValues values, String selection,
+                String[] selectionArgs) {
+            return mDb.update("raw", values, selection, selectionArgs);
+        }
+
+        @Override
+        public synchronized int delete(Uri uri, String selection, String[] selectionArgs) {
+            return mDb.delete("raw", selection, selectionArgs);
+        }
+
+        @Override
+        public synchronized ContentProviderResult[] applyBatch(
+                ArrayList<ContentProviderOperation> ops) throws OperationApplicationException {
+            ContentProviderResult[] results = new ContentProviderResult[ops.size()];
+            for (int i = 0; i < ops.size(); i++) {
+                results[i] = ops.get(i).apply(this, results, i);
+            }
+            return results;
+        }
+
+        synchronized int countRows() {
+            Cursor cursor = mDb.rawQuery("SELECT COUNT(*) FROM raw", null);
+            try {
+                cursor.moveToFirst();
+                return cursor.getInt(0);
+            } finally {
+                cursor.close();
+            }
+        }
+
+        void close() {
+            mDb.close();
+        }
+    }
+
+    /** Answers every settings lookup with the caller's default. */
+    private static class EmptySettingsProvider extends MockContentProvider {
+        @Override
+        public Bundle call(String method, String request, Bundle args) {
+            return new Bundle();
+        }
+    }
+
+    private class FloodContext extends ContextWrapper {
+        private final PowerManager mPowerManager;
+        private final TelephonyManager mTelephonyManager;
+
+        FloodContext(Context base) {
+            super(base);
+            mPowerManager = new PowerManager(base, mock(IPowerManager.class),
+                    new Handler(Looper.getMainLooper()));
+            mTelephonyManager = new TelephonyManager(base) {
+                @Override
+                public boolean isSmsCapable() {
+                    // Keeps SmsApplication from picking a default SMS app
+                    return false;
+                }
+            };
+        }
+
+        @Override
+        public MockContentResolver getContentResolver() {
+            return mResolver;
+        }
+
+        @Override
+        public Object getSystemService(String name) {
+            if (Context.POWER_SERVICE.equals(name)) {
+                return mPowerManager;
+            } else if (Context.TELEPHONY_SERVICE.equals(name)) {
+                return mTelephonyManager;
+            }
+            return super.getSystemService(name);
+        }
+
+        @Override
+        public void sendBroadcast(Intent intent, String receiverPermission) {
+            // Only SMS_REJECTED_ACTION goes out unordered
+            mRejected++;
+        }
+
+        @Override
+        public void sendOrderedBroadcastAsUser(final Intent intent, UserHandle user,
+                String receiverPermission, int appOp, Bundle options,
+                final BroadcastReceiver resultReceiver, Handler scheduler, int initialCode,
+                String initialData, Bundle initialExtras) {
+            Long injected = mInjectTimes.poll();
+            if (injected != null) {
+                mLatency.record((SystemClock.elapsedRealtimeNanos() - injected) / 1000);
+            }
+            scheduler.post(new Runnable() {
+                @Override
+                public void run() {
+                    String action = intent.getAction();
+                    if (Intents.SMS_DELIVER_ACTION.equals(action)) {
+                        intent.setAction(Intents.SMS_RECEIVED_ACTION);
+                    } else if (Intents.WAP_PUSH_DELIVER_ACTION.equals(action)) {
+                        intent.setAction(Intents.WAP_PUSH_RECEIVED_ACTION);
+                    }
+                    resultReceiver.setPendingResult(new BroadcastReceiver.PendingResult(
+                            Activity.RESULT_OK, null, null,
+                            BroadcastReceiver.PendingResult.TYPE_UNREGISTERED, true, false,
+                            null, UserHandle.myUserId(), 0));
+                    resultReceiver.onReceive(FloodContext.this, intent);
+                    mBroadcasts.countDown();
+                }
+            });
+        }
+    }
+
+    private final RawTableProvider mRawTable = new RawTableProvider();
+    private final MockContentResolver mResolver = new MockContentResolver();
+    private final FloodContext mContext;
+    private final SimulatedCommands mCommands = new SimulatedCommands();
+    private final PhoneBase mPhone;
+    private final SmsStorageMonitor mStorageMonitor;
+
+    private final ConcurrentLinkedQueue<Long> mInjectTimes = new ConcurrentLinkedQueue<Long>();
+
+    // Written on the handler thread while a flood runs
+    private LatencyHistogram mLatency;
+    private volatile int mRejected;
+    private CountDownLatch mBroadcasts;
+
+    /**
+     * Needs Mockito ready to run, and sets up UiccController on
+     * SimulatedCommands if nothing else in the process has.
+     */
+    SmsFloodSimulator(Context context) {
+        mResolver.addProvider("sms", mRawTable);
+        mResolver.addProvider("settings", new EmptySettingsProvider());
+        mContext = new FloodContext(context);
+
+        mPhone = mock(PhoneBase.class);
+        mPhone.mCi = mCommands;
+        mStorageMonitor = mock(SmsStorageMonitor.class);
+        when(mStorageMonitor.isStorageAvailable()).thenReturn(true);
+
+        try {
+            UiccController.getInstance();
+        } catch (RuntimeException e) {
+            UiccController.make(context, new CommandsInterface[] { mCommands });
+        }
+    }
+
+    GsmInboundSmsHandler makeGsmHandler() {
+        return start(GsmInboundSmsHandler.makeInboundSmsHandler(mContext, mStorageMonitor,
+                mPhone));
+    }
+
+    CdmaInboundSmsHandler makeCdmaHandler() {
+        return start(CdmaInboundSmsHandler.makeInboundSmsHandler(mContext, mStorageMonitor,
+                mPhone, null));
+    }
+
+    private <T extends InboundSmsHandler> T start(T handler) {
+        handler.mDeviceIdleController = mock(IDeviceIdleController.class);
+        // Stands in for SmsBroadcastUndelivered on an empty raw table
+        handler.sendMessage(InboundSmsHandler.EVENT_START_ACCEPTING_SMS);
+        return handler;
+    }
+
+    void dispose() {
+        mRawTable.close();
+    }
+
+    /**
+     * Sends every PDU of <code>stream</code> to <code>handler</code> back to
+     * back and waits for all of its messages to be broadcast.
+     */
+    Result flood(String name, InboundSmsHandler handler, Stream stream, long timeoutMillis)
+            throws InterruptedException {
+        boolean is3gpp2 = handler.is3gpp2();
+        ArrayList<AsyncResult> pdus = new ArrayList<AsyncResult>(stream.getPduCount());
+        ArrayList<Boolean> completes = new ArrayList<Boolean>(stream.getPduCount());
+        buildPdus(stream, is3gpp2, pdus, completes);
+
+        mLatency = new LatencyHistogram();
+        mRejected = 0;
+        mInjectTimes.clear();
+        mBroadcasts = new CountDownLatch(stream.getMessageCount());
+        long routingHits = handler.mRoutingContext.getHitCount();
+        long routingMisses = handler.mRoutingContext.getMissCount();
+
+        Debug.resetGlobalAllocCount();
+        Debug.startAllocCounting();
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < pdus.size(); i++) {
+            if (completes.get(i)) {
+                mInjectTimes.add(SystemClock.elapsedRealtimeNanos());
+            }
+            handler.sendMessage(InboundSmsHandler.EVENT_NEW_SMS, pdus.get(i));
+        }
+        boolean done = mBroadcasts.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+        Debug.stopAllocCounting();
+        long allocations = Debug.getGlobalAllocCount();
+
+        handler.mRawTableWriter.flush();
+        int delivered = stream.getMessageCount() - (int) mBroadcasts.getCount();
+        routingHits = handler.mRoutingContext.getHitCount() - routingHits;
+        routingMisses = handler.mRoutingContext.getMissCount() - routingMisses;
+        return new Result(name + (done ? "" : " (timed out)"), delivered, pdus.size(), elapsed,
+                mLatency, allocations, mRejected, mRawTable.countRows(), routingHits,
+                routingHits + routingMisses);
+    }
+
+    private static void buildPdus(Stream stream, boolean is3gpp2, ArrayList<AsyncResult> pdus,
+            ArrayList<Boolean> completes) {
+        String format = is3gpp2 ? SmsConstants.FORMAT_3GPP2 : SmsConstants.FORMAT_3GPP;
+        int rounds = Math.max(stream.mSinglePart, Math.max(stream.mMultiPart, stream.mWapPush));
+        int reference = 0;
+        for (int i = 0; i < rounds; i++) {
+            if (i < stream.mSinglePart) {
+                add(pdus, completes, textPdu(is3gpp2, reference++, null, "single " + i),
+                        format, true);
+            }
+            if (i < stream.mMultiPart) {
+                int ref = reference++ & 0xff;
+                for (int seq = 1; seq <= stream.mSegments; seq++) {
+                    SmsHeader header = concatHeader(ref, seq, stream.mSegments);
+                    byte[] pdu = textPdu(is3gpp2, ref, header, "part " + seq + " of " + i);
+                    add(pdus, completes, pdu, format, seq == stream.mSegments);
+                    if (seq == 2 && i < stream.mDuplicates) {
+                        // Resend the first segment while the message is still incomplete
+                        add(pdus, completes, textPdu(is3gpp2, ref, concatHeader(ref, 1,
+                                stream.mSegments), "part 1 of " + i), format, false);
+                    }
+                }
+            }
+            if (i < stream.mWapPush) {
+                add(pdus, completes, wapPushPdu(is3gpp2, reference++), format, true);
+            }
+        }
+    }
+
+    private static void add(ArrayList<AsyncResult> pdus, ArrayList<Boolean> completes,
+            byte[] pdu, String format, boolean complete) {
+        pdus.add(new AsyncResult(null, SmsMessage.createFromPdu(pdu, format), null));
+        completes.add(complete);
+    }
+
+    private static SmsHeader concatHeader(int reference, int sequence, int count) {
+        SmsHeader header = new SmsHeader();
+        header.concatRef = new SmsHeader.ConcatRef();
+        header.concatRef.refNumber = reference;
+        header.concatRef.seqNumber = sequence;
+        header.concatRef.msgCount = count;
+        header.concatRef.isEightBits = true;
+        return header;
+    }
+
+    private static byte[] textPdu(boolean is3gpp2, int reference, SmsHeader header,
+            String text) {
+        if (is3gpp2) {
+            UserData userData = new UserData();
+            userData.msgEncoding = UserData.ENCODING_UNICODE_16;
+            userData.msgEncodingSet = true;
+            userData.payloadStr = text;
+            userData.userDataHeader = header;
+            return cdmaPdu(SmsEnvelope.TELESERVICE_WMT, reference, userData);
+        }
+        return gsmDeliverPdu(header, text.getBytes());
+    }
+
+    private static byte[] wapPushPdu(boolean is3gpp2, int reference) {
+        if (is3gpp2) {
+            // WDP datagram: type, segment count, segment number, ports, WSP
+            ByteArrayOutputStream wdp = new ByteArrayOutputStream();
+            wdp.write(0);
+            wdp.write(1);
+            wdp.write(0);
+            writePort(wdp, WAP_PUSH_SOURCE_PORT);
+            writePort(wdp, SmsHeader.PORT_WAP_PUSH);
+            wdp.write(WSP_PUSH, 0, WSP_PUSH.length);
+
+            UserData userData = new UserData();
+            userData.msgEncoding = UserData.ENCODING_OCTET;
+            userData.msgEncodingSet = true;
+            userData.payload = wdp.toByteArray();
+            return cdmaPdu(SmsEnvelope.TELESERVICE_WAP, reference, userData);
+        }
+        SmsHeader header = new SmsHeader();
+        header.portAddrs = new SmsHeader.PortAddrs();
+        header.portAddrs.destPort = SmsHeader.PORT_WAP_PUSH;
+        header.portAddrs.origPort = WAP_PUSH_SOURCE_PORT;
+        return gsmDeliverPdu(header, WSP_PUSH);
+    }
+
+    private static void writePort(ByteArrayOutputStream out, int port) {
+        out.write(port >> 8);
+        out.write(port & 0xff);
+    }
+
+    /** @return an SMS-DELIVER with 8-bit data from GSM_ADDRESS, as a RIL would hand it up. */
+    private static byte[] gsmDeliverPdu(SmsHeader header, byte[] payload) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x00);                            // no SMSC address
+        out.write(header == null ? 0x04 : 0x44);    // SMS-DELIVER, no more messages, UDHI
+        byte[] address = PhoneNumberUtils.networkPortionToCalledPartyBCD(GSM_ADDRESS);
+        out.write(GSM_ADDRESS.length() - 1);        // digits, without the '+'
+        out.write(address, 0, address.length);     // type of address, then BCD digits
+        out.write(0x00);                            // TP-PID
+        out.write(0x04);                            // TP-DCS: 8-bit data
+        out.write(SERVICE_CENTRE_TIME_STAMP, 0, SERVICE_CENTRE_TIME_STAMP.length);
+        if (header == null) {
+            out.write(payload.length);
+        } else {
+            byte[] udh = SmsHeader.toByteArray(header);
+            out.write(1 + udh.length + payload.length);
+            out.write(udh.length);
+            out.write(udh, 0, udh.length);
+        }
+        out.write(payload, 0, payload.length);
+        return out.toByteArray();
+    }
+
+    /** @return a point to point CDMA PDU from CDMA_ADDRESS, in the layout RIL produces. */
+    private static byte[] cdmaPdu(int teleService, int messageId, UserData userData) {
+        BearerData bearerData = new BearerData();
+        bearerData.messageType = BearerData.MESSAGE_TYPE_DELIVER;
+        bearerData.messageId = messageId & 0xffff;
+        bearerData.userData = userData;
+        bearerData.hasUserDataHeader = userData.userDataHeader != null;
+        byte[] encoded = BearerData.encode(bearerData);
+
+        CdmaSmsAddress address = CdmaSmsAddress.parse(CDMA_ADDRESS);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(SmsEnvelope.MESSAGE_TYPE_POINT_TO_POINT);
+            out.writeInt(teleService);
+            out.writeInt(0);                        // service category
+            out.writeByte(address.digitMode);
+            out.writeByte(address.numberMode);
+            out.writeByte(address.ton);
+            out.writeByte(address.numberPlan);
+            out.writeByte(address.origBytes.length);
+            out.write(address.origBytes);
+            out.writeInt(0);                        // bearer reply
+            out.writeByte(0);                       // reply sequence number
+            out.writeByte(0);                       // error class
+            out.writeByte(0);                       // cause code
+            out.writeInt(encoded.length);
+            out.write(encoded);
+            out.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Floods the GSM and CDMA inbound SMS handlers through SmsFloodSimulator and
+ * reports throughput, latency to broadcast and allocations per message.
+ */
+public class SmsInboundFloodTest extends InstrumentationTestCase {
+    private static final String TAG = "SmsInboundFloodTest";
+
+    private static final long TIMEOUT_MILLIS = 120 * 1000;
+
+    private SmsFloodSimulator mSimulator;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        // Mockito needs a dex cache and the test class loader
+        System.setProperty("dexmaker.dexcache",
+                getInstrumentation().getTargetContext().getCacheDir().getPath());
+        Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
+        mSimulator = new SmsFloodSimulator(getInstrumentation().getTargetContext());
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mSimulator.dispose();
+        super.tearDown();
+    }
+
+    private void runFlood(String name, InboundSmsHandler handler) throws Exception {
+        try {
+            // Warm up class loading and the JIT before measuring
+            mSimulator.flood(name + " warmup", handler,
+                    new SmsFloodSimulator.Stream(50, 20, 10, 5), TIMEOUT_MILLIS);
+
+            SmsFloodSimulator.Stream[] streams = {
+                new SmsFloodSimulator.Stream(1000, 0, 0, 0),
+                new SmsFloodSimulator.Stream(0, 300, 0, 0),
+                new SmsFloodSimulator.Stream(0, 0, 500, 0),
+                new SmsFloodSimulator.Stream(400, 200, 100, 100),
+            };
+            String[] names = { "single-part", "multi-part", "WAP push", "mixed with duplicates" };
+            for (int i = 0; i < streams.length; i++) {
+                SmsFloodSimulator.Result result = mSimulator.flood(name + " " + names[i],
+                        handler, streams[i], TIMEOUT_MILLIS);
+                Log.d(TAG, result.toString());
+                assertEquals(streams[i].getMessageCount(), result.mMessages);
+                assertEquals(0, result.mRejected);
+                assertEquals(0, result.mRowsLeft);
+            }
+        } finally {
+            handler.dispose();
+        }
+    }
+
+    @LargeTest
+    public void testGsmFlood() throws Exception {
+        runFlood("GSM", mSimulator.makeGsmHandler());
+    }
+
+    @LargeTest
+    public void testCdmaFlood() throws Exception {
+        runFlood("CDMA", mSimulator.makeCdmaHandler());
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.internal.util.HexDump;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Test cases for reading raw table PDUs in hex and blob format, and a benchmark comparing
+ * segment insert and reassembly cost of the two.
+ */
+public class SmsRawPduFormatTest extends TestCase {
+    private static final String TAG = "SmsRawPduFormatTest";
+
+    private static final String[] PROJECTION = { "pdu", "sequence" };
+
+    private static final int BENCH_MESSAGES = 500;
+    private static final int BENCH_SEGMENTS = 4;
+    private static final int PDU_LENGTH = 160;
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        // Same columns as the SMS provider's raw table
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE raw (_id INTEGER PRIMARY KEY, date INTEGER,"
+                + " reference_number INTEGER, count INTEGER, sequence INTEGER,"
+                + " destination_port INTEGER, address TEXT, pdu TEXT)");
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    private static byte[] pdu(int seed) {
+        byte[] pdu = new byte[PDU_LENGTH];
+        for (int i = 0; i < pdu.length; i++) {
+            pdu[i] = (byte) (seed + i);
+        }
+        return pdu;
+    }
+
+    @SmallTest
+    public void testReadsBothFormats() {
+        byte[] pdu = pdu(3);
+        ContentValues hex = new ContentValues();
+        hex.put("pdu", HexDump.toHexString(pdu));
+        hex.put("sequence", 1);
+        mDb.insert("raw", null, hex);
+        ContentValues blob = new ContentValues();
+        blob.put("pdu", pdu);
+        blob.put("sequence", 2);
+        mDb.insert("raw", null, blob);
+
+        Cursor cursor = mDb.query("raw", PROJECTION, null, null, null, null, "sequence");
+        try {
+            assertTrue(cursor.moveToNext());
+            assertTrue(Arrays.equals(pdu, InboundSmsTracker.readPdu(cursor)));
+            assertEquals(InboundSmsTracker.STORE_BLOB_PDUS,
+                    InboundSmsTracker.needsPduConversion(cursor));
+            assertTrue(cursor.moveToNext());
+            assertTrue(Arrays.equals(pdu, InboundSmsTracker.readPdu(cursor)));
+            assertEquals(!InboundSmsTracker.STORE_BLOB_PDUS,
+                    InboundSmsTracker.needsPduConversion(cursor));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long[] runBenchmark(boolean blob) {
+        mDb.delete("raw", null, null);
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int m = 0; m < BENCH_MESSAGES; m++) {
+            for (int s = 1; s <= BENCH_SEGMENTS; s++) {
+                ContentValues values = new ContentValues();
+                byte[] pdu = pdu(m + s);
+                if (blob) {
+                    values.put("pdu", pdu);
+                } else {
+                    values.put("pdu", HexDump.toHexString(pdu));
+                }
+                values.put("address", "+15555550100");
+                values.put("reference_number", m);
+                values.put("count", BENCH_SEGMENTS);
+                values.put("sequence", s);
+                mDb.insert("raw", null, values);
+            }
+        }
+        long inserted = SystemClock.elapsedRealtimeNanos();
+
+        for (int m = 0; m < BENCH_MESSAGES; m++) {
+            Cursor cursor = mDb.query("raw", PROJECTION,
+                    InboundSmsHandler.SELECT_BY_REFERENCE, new String[] {
+                            "+15555550100", Integer.toString(m),
+                            Integer.toString(BENCH_SEGMENTS)}, null, null, null);
+            try {
+                byte[][] pdus = new byte[BENCH_SEGMENTS][];
+                while (cursor.moveToNext()) {
+                    pdus[cursor.getInt(1) - 1] = InboundSmsTracker.readPdu(cursor);
+                }
+                assertNotNull(pdus[BENCH_SEGMENTS - 1]);
+            } finally {
+                cursor.close();
+            }
+        }
+        long reassembled = SystemClock.elapsedRealtimeNanos();
+
+        Cursor size = mDb.rawQuery("SELECT sum(length(pdu)) FROM raw", null);
+        long bytes = 0;
+        try {
+            if (size.moveToNext()) {
+                bytes = size.getLong(0);
+            }
+        } finally {
+            size.close();
+        }
+        return new long[] { inserted - start, reassembled - inserted, bytes };
+    }
+
+    @LargeTest
+    public void testBenchmarkHexAndBlob() {
+        // Warm up
+        runBenchmark(false);
+        runBenchmark(true);
+
+        int segments = BENCH_MESSAGES * BENCH_SEGMENTS;
+        for (boolean blob : new boolean[] { false, true }) {
+            long[] result = runBenchmark(blob);
+            Log.d(TAG, (blob ? "blob" : "hex") + ": insert " + (result[0] / segments)
+                    + " ns/segment, reassemble " + (result[1] / BENCH_MESSAGES)
+                    + " ns/message, " + result[2] + " pdu bytes stored");
+        }
+    }
+}
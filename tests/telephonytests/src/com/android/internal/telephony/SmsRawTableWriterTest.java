@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Looper;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+/**
+ * Test cases for SmsRawTableWriter.
+ */
+public class SmsRawTableWriterTest extends TestCase {
+
+    /** Records the calls it gets, in order. */
+    private static class RecordingProvider extends MockContentProvider {
+        final ArrayList<String> mCalls = new ArrayList<String>();
+        int mBatches;
+        long mNextId = 1;
+
+        @Override
+        public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> ops)
+                throws OperationApplicationException {
+            mBatches++;
+            ContentProviderResult[] results = new ContentProviderResult[ops.size()];
+            for (int i = 0; i < ops.size(); i++) {
+                results[i] = ops.get(i).apply(this, results, i);
+            }
+            return results;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            mCalls.add("insert");
+            return ContentUris.withAppendedId(uri, mNextId++);
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            mCalls.add("delete " + selectionArgs[0]);
+            return 1;
+        }
+    }
+
+    private RecordingProvider mProvider;
+    private MockContentResolver mResolver;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mProvider = new RecordingProvider();
+        mResolver = new MockContentResolver();
+        mResolver.addProvider("sms", mProvider);
+    }
+
+    @SmallTest
+    public void testDeletesRideAlongWithNextInsert() {
+        SmsRawTableWriter writer = new SmsRawTableWriter(mResolver, 60 * 1000,
+                Looper.getMainLooper());
+        writer.delete("_id=?", new String[] { "1" });
+        writer.delete("_id=?", new String[] { "2" });
+        assertEquals(0, mProvider.mBatches);
+
+        Uri uri = writer.insert(new ContentValues());
+        assertNotNull(uri);
+        assertEquals(1, mProvider.mBatches);
+        assertEquals(3, mProvider.mCalls.size());
+        assertEquals("delete 1", mProvider.mCalls.get(0));
+        assertEquals("delete 2", mProvider.mCalls.get(1));
+        assertEquals("insert", mProvider.mCalls.get(2));
+    }
+
+    @SmallTest
+    public void testFlushAndWriteThrough() {
+        SmsRawTableWriter writer = new SmsRawTableWriter(mResolver, 60 * 1000,
+                Looper.getMainLooper());
+        writer.delete("_id=?", new String[] { "1" });
+        writer.flush();
+        assertEquals(1, mProvider.mBatches);
+        writer.flush();
+        assertEquals(1, mProvider.mBatches);
+
+        // Without a window every delete goes out at once
+        SmsRawTableWriter direct = new SmsRawTableWriter(mResolver, 0, Looper.getMainLooper());
+        direct.delete("_id=?", new String[] { "2" });
+        assertEquals(2, mProvider.mBatches);
+        assertEquals("delete 2", mProvider.mCalls.get(1));
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Test cases for SmsReassemblyIndex.
+ */
+public class SmsReassemblyIndexTest extends TestCase {
+    private static final String ADDRESS = "+15555550100";
+
+    private static InboundSmsTracker segment(String address, int reference, int sequence,
+            int count) {
+        // 3GPP sequence numbers start at 1
+        return new InboundSmsTracker(new byte[] { (byte) sequence }, 0, -1, false, address,
+                reference, sequence, count, false);
+    }
+
+    @SmallTest
+    public void testCompleteMessageIsTakenInOrder() {
+        SmsReassemblyIndex index = new SmsReassemblyIndex();
+        index.add(segment(ADDRESS, 7, 3, 3));
+        index.add(segment(ADDRESS, 7, 1, 3));
+        assertNull(index.takeIfComplete(segment(ADDRESS, 7, 1, 3)));
+
+        InboundSmsTracker last = segment(ADDRESS, 7, 2, 3);
+        index.add(last);
+        InboundSmsTracker[] segments = index.takeIfComplete(last);
+        assertNotNull(segments);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i + 1, segments[i].getPdu()[0]);
+        }
+
+        // Taken only once; the segments stay until the rows are deleted
+        assertNull(index.takeIfComplete(last));
+        assertEquals(0, index.getMessageCount());
+        assertEquals(3, index.getSegmentCount());
+
+        index.remove(ADDRESS, 7, 3);
+        assertEquals(0, index.getSegmentCount());
+        assertNull(index.takeIfComplete(last));
+    }
+
+    @SmallTest
+    public void testDuplicateAfterCompleteIsRejected() {
+        SmsReassemblyIndex index = new SmsReassemblyIndex();
+        index.add(segment(ADDRESS, 7, 1, 2));
+        InboundSmsTracker last = segment(ADDRESS, 7, 2, 2);
+        index.add(last);
+        assertNotNull(index.takeIfComplete(last));
+
+        // A retransmission while the rows are still being deleted is a duplicate
+        InboundSmsTracker retransmitted = segment(ADDRESS, 7, 2, 2);
+        assertSame(last, index.getSegment(retransmitted));
+
+        // Once they are, the reference is free for a new message
+        index.remove(ADDRESS, 7, 2);
+        assertNull(index.getSegment(retransmitted));
+        InboundSmsTracker next = new InboundSmsTracker(new byte[] { 42 }, 0, -1, false,
+                ADDRESS, 7, 2, 2, false);
+        index.add(next);
+        index.add(segment(ADDRESS, 7, 1, 2));
+        InboundSmsTracker[] segments = index.takeIfComplete(next);
+        assertNotNull(segments);
+        assertSame(next, segments[1]);
+    }
+
+    @SmallTest
+    public void testSharedPerFormat() {
+        assertSame(SmsReassemblyIndex.forFormat(false), SmsReassemblyIndex.forFormat(false));
+        assertNotSame(SmsReassemblyIndex.forFormat(false), SmsReassemblyIndex.forFormat(true));
+        SmsReassemblyIndex index = new SmsReassemblyIndex();
+        assertTrue(index.markLoaded());
+        assertFalse(index.markLoaded());
+    }
+
+    @SmallTest
+    public void testDuplicateLookup() {
+        SmsReassemblyIndex index = new SmsReassemblyIndex();
+        InboundSmsTracker first = segment(ADDRESS, 7, 1, 2);
+        index.add(first);
+        assertSame(first, index.getSegment(segment(ADDRESS, 7, 1, 2)));
+        assertNull(index.getSegment(segment(ADDRESS, 7, 2, 2)));
+        // A different reference, count or sender is a different message
+        assertNull(index.getSegment(segment(ADDRESS, 8, 1, 2)));
+        assertNull(index.getSegment(segment(ADDRESS, 7, 1, 3)));
+        assertNull(index.getSegment(segment("+15555550101", 7, 1, 2)));
+    }
+
+    @SmallTest
+    public void testOutOfRangeSequenceDoesNotComplete() {
+        SmsReassemblyIndex index = new SmsReassemblyIndex();
+        index.add(segment(ADDRESS, 7, 1, 2));
+        InboundSmsTracker bogus = segment(ADDRESS, 7, 5, 2);
+        index.add(bogus);
+        assertNull(index.takeIfComplete(bogus));
+        assertEquals(2, index.getSegmentCount());
+    }
+
+    @SmallTest
+    public void testIncompleteMessagesExpire() {
+        long now = SmsBroadcastUndelivered.PARTIAL_SEGMENT_EXPIRE_AGE * 2;
+        long expired = now - SmsBroadcastUndelivered.PARTIAL_SEGMENT_EXPIRE_AGE - 1;
+        SmsReassemblyIndex index = new SmsReassemblyIndex();
+        index.add(new InboundSmsTracker(new byte[] { 1 }, expired, -1, false, ADDRESS,
+                7, 1, 3, false));
+        index.add(new InboundSmsTracker(new byte[] { 2 }, now, -1, false, ADDRESS,
+                7, 2, 3, false));
+        index.add(new InboundSmsTracker(new byte[] { 1 }, now, -1, false, ADDRESS,
+                8, 1, 2, false));
+        // Taken messages are the broadcasting handler's to delete
+        index.add(new InboundSmsTracker(new byte[] { 1 }, expired, -1, false, ADDRESS,
+                9, 1, 1, false));
+        assertNotNull(index.takeIfComplete(segment(ADDRESS, 9, 1, 1)));
+
+        ArrayList<String[]> removed = index.removeExpired(now);
+        assertEquals(1, removed.size());
+        assertTrue(Arrays.equals(new String[] {ADDRESS, "7", "3"}, removed.get(0)));
+        assertEquals(2, index.getSegmentCount());
+        assertEquals(1, index.getMessageCount());
+
+        // Not looked at again until the next check is due
+        index.add(new InboundSmsTracker(new byte[] { 1 }, expired, -1, false, ADDRESS,
+                10, 1, 2, false));
+        assertNull(index.removeExpired(now + 1));
+        assertEquals(1, index.removeExpired(
+                now + SmsReassemblyIndex.EXPIRY_CHECK_INTERVAL).size());
+    }
+}
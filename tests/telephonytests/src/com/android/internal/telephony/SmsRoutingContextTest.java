@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.os.Bundle;
+import android.os.HandlerThread;
+import android.test.InstrumentationTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.test.SimulatedCommands;
+import com.android.internal.telephony.uicc.UiccController;
+
+import java.util.ArrayList;
+
+/**
+ * Test cases for SmsRoutingContext caching and invalidation.
+ */
+public class SmsRoutingContextTest extends InstrumentationTestCase {
+
+    private static class SettingsProvider extends MockContentProvider {
+        @Override
+        public Bundle call(String method, String request, Bundle args) {
+            Bundle result = new Bundle();
+            result.putString("value", "+15555550100|12345");
+            return result;
+        }
+    }
+
+    private HandlerThread mThread;
+    private PackageManager mPackageManager;
+    private SmsRoutingContext mRouting;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        System.setProperty("dexmaker.dexcache",
+                getInstrumentation().getTargetContext().getCacheDir().getPath());
+        Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
+
+        try {
+            UiccController.getInstance();
+        } catch (RuntimeException e) {
+            UiccController.make(getInstrumentation().getTargetContext(),
+                    new CommandsInterface[] { new SimulatedCommands() });
+        }
+
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider("settings", new SettingsProvider());
+        mPackageManager = mock(PackageManager.class);
+        when(mPackageManager.queryIntentServices(any(Intent.class), anyInt()))
+                .thenReturn(new ArrayList<ResolveInfo>());
+        Context context = mock(Context.class);
+        when(context.getContentResolver()).thenReturn(resolver);
+        when(context.getPackageManager()).thenReturn(mPackageManager);
+
+        mThread = new HandlerThread("SmsRoutingContextTest");
+        mThread.start();
+        mRouting = new SmsRoutingContext(context, mThread.getLooper(), 0);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mRouting.dispose();
+        mThread.quit();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testProtectedAddressesCached() {
+        assertEquals(2, mRouting.getProtectedAddresses().size());
+        assertTrue(mRouting.getProtectedAddresses().contains("12345"));
+        assertEquals(1, mRouting.getMissCount());
+        assertEquals(1, mRouting.getHitCount());
+
+        mRouting.onProtectedAddressesChanged();
+        assertEquals(2, mRouting.getProtectedAddresses().size());
+        assertEquals(2, mRouting.getMissCount());
+    }
+
+    @SmallTest
+    public void testSystemPackagesReloadAfterPackageChange() {
+        mRouting.getSystemPackages();
+        mRouting.getSystemPackages();
+        verify(mPackageManager, times(1)).queryIntentServices(any(Intent.class), anyInt());
+
+        // A carrier privilege reload doesn't touch the system app lookup
+        mRouting.onCarrierPrivilegesChanged();
+        mRouting.getSystemPackages();
+        verify(mPackageManager, times(1)).queryIntentServices(any(Intent.class), anyInt());
+
+        mRouting.onPackagesChanged();
+        mRouting.getSystemPackages();
+        verify(mPackageManager, times(2)).queryIntentServices(any(Intent.class), anyInt());
+        assertEquals(2, mRouting.getHitCount());
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.util;
+
+import static com.android.internal.telephony.util.BlacklistUtils.*;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Test cases for BlacklistIndex, checked against the SQL LIKE matching of
+ * the blacklist provider.
+ */
+public class BlacklistIndexTest extends TestCase {
+    private static final String TAG = "BlacklistIndexTest";
+
+    private static final int ENTRIES = 10000;
+    private static final int LOOKUPS = 2000;
+
+    private static BlacklistIndex makeIndex(Object... entries) {
+        BlacklistIndex index = new BlacklistIndex("US");
+        for (int i = 0; i < entries.length; i += 2) {
+            String number = (String) entries[i];
+            index.add(number, isInputRegex(number), (Integer) entries[i + 1]);
+        }
+        index.compile();
+        return index;
+    }
+
+    @SmallTest
+    public void testExactEntries() {
+        BlacklistIndex index = makeIndex("+15555550100", BLOCK_MESSAGES,
+                "+15555550101", BLOCK_CALLS);
+        assertEquals(MATCH_LIST, index.lookup("+15555550100", BLOCK_MESSAGES, false));
+        assertEquals(MATCH_NONE, index.lookup("+15555550100", BLOCK_CALLS, false));
+        assertEquals(MATCH_LIST, index.lookup("+15555550101", BLOCK_CALLS, true));
+        assertEquals(MATCH_NONE, index.lookup("+15555550102", BLOCK_MESSAGES, true));
+    }
+
+    @SmallTest
+    public void testDuplicateExactEntries() {
+        BlacklistIndex index = makeIndex("+15555550100", BLOCK_MESSAGES,
+                "+15555550100", 0, "+15555550101", BLOCK_CALLS, "+15555550101", BLOCK_MESSAGES);
+        // Blocked if either entry blocks, whichever comes last
+        assertEquals(MATCH_LIST, index.lookup("+15555550100", BLOCK_MESSAGES, false));
+        assertEquals(MATCH_NONE, index.lookup("+15555550100", BLOCK_CALLS, false));
+        assertEquals(MATCH_LIST, index.lookup("+15555550101", BLOCK_CALLS, false));
+        assertEquals(MATCH_LIST, index.lookup("+15555550101", BLOCK_MESSAGES, false));
+    }
+
+    @SmallTest
+    public void testPrefixAndPatternEntries() {
+        BlacklistIndex index = makeIndex("+1900%", BLOCK_MESSAGES | BLOCK_CALLS,
+                "+1555_550%", BLOCK_MESSAGES, "%6666", BLOCK_CALLS);
+        assertEquals(MATCH_REGEX, index.lookup("+19005550100", BLOCK_MESSAGES, true));
+        assertEquals(MATCH_REGEX, index.lookup("+1900", BLOCK_CALLS, true));
+        assertEquals(MATCH_NONE, index.lookup("+19005550100", BLOCK_MESSAGES, false));
+        assertEquals(MATCH_REGEX, index.lookup("+15557550123", BLOCK_MESSAGES, true));
+        assertEquals(MATCH_NONE, index.lookup("+15557550123", BLOCK_CALLS, true));
+        assertEquals(MATCH_REGEX, index.lookup("+15551236666", BLOCK_CALLS, true));
+        assertEquals(MATCH_NONE, index.lookup("+15551236666", BLOCK_MESSAGES, true));
+        assertEquals(MATCH_NONE, index.lookup("+1800", BLOCK_CALLS, true));
+    }
+
+    @SmallTest
+    public void testExactEntryWhitelists() {
+        BlacklistIndex index = makeIndex("+1900%", BLOCK_MESSAGES,
+                "+19005550100", BLOCK_CALLS);
+        assertEquals(MATCH_NONE, index.lookup("+19005550100", BLOCK_MESSAGES, true));
+        assertEquals(MATCH_REGEX, index.lookup("+19005550101", BLOCK_MESSAGES, true));
+    }
+
+    @SmallTest
+    public void testLikeToRegex() {
+        assertEquals("\\+1.*", BlacklistIndex.likeToRegex("+1%"));
+        assertEquals("555.0", BlacklistIndex.likeToRegex("555_0"));
+    }
+
+    /**
+     * Loads 10k entries into both an index and an in-memory copy of the
+     * provider's table, checks they agree on every lookup, and logs the
+     * time per lookup of each. The SQL side leaves out the IPC of a real
+     * provider query, so it understates the saving.
+     */
+    @LargeTest
+    public void testTenThousandEntries() {
+        Random random = new Random(1);
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        db.execSQL("CREATE TABLE blacklist (normalized_number TEXT, is_regex INTEGER,"
+                + " phone INTEGER, message INTEGER)");
+        BlacklistIndex index = new BlacklistIndex("US");
+        ArrayList<String> numbers = new ArrayList<String>();
+
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < ENTRIES; i++) {
+                String number;
+                int kind = random.nextInt(100);
+                if (kind < 8 && !numbers.isEmpty()) {
+                    // Another entry for a number already listed, as two raw numbers
+                    // that normalize alike give
+                    number = numbers.get(random.nextInt(numbers.size()));
+                } else if (kind < 80) {
+                    number = "+1555" + digits(random, 7);
+                    numbers.add(number);
+                } else if (kind < 95) {
+                    number = "+1900" + digits(random, 3) + "%";
+                } else {
+                    number = "+1" + digits(random, 2) + "_" + digits(random, 3) + "%"
+                            + digits(random, 2);
+                }
+                int flags = (random.nextBoolean() ? BLOCK_CALLS : 0)
+                        | (random.nextBoolean() ? BLOCK_MESSAGES : 0);
+                boolean isRegex = isInputRegex(number);
+                index.add(number, isRegex, flags);
+
+                ContentValues values = new ContentValues();
+                values.put("normalized_number", number);
+                values.put("is_regex", isRegex ? 1 : 0);
+                values.put("phone", (flags & BLOCK_CALLS) != 0 ? 1 : 0);
+                values.put("message", (flags & BLOCK_MESSAGES) != 0 ? 1 : 0);
+                db.insert("blacklist", null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        long start = System.nanoTime();
+        index.compile();
+        long compileNanos = System.nanoTime() - start;
+
+        String[] lookups = new String[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            switch (i % 4) {
+                case 0:
+                    lookups[i] = numbers.get(random.nextInt(numbers.size()));
+                    break;
+                case 1:
+                    lookups[i] = "+1900" + digits(random, 7);
+                    break;
+                default:
+                    lookups[i] = "+1" + digits(random, 10);
+                    break;
+            }
+        }
+
+        int[] expected = new int[LOOKUPS];
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            expected[i] = querySql(db, lookups[i], i % 2 == 0);
+        }
+        long sqlNanos = System.nanoTime() - start;
+
+        int[] actual = new int[LOOKUPS];
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            actual[i] = index.lookup(lookups[i], (i % 2 == 0) ? BLOCK_MESSAGES : BLOCK_CALLS,
+                    true);
+        }
+        long indexNanos = System.nanoTime() - start;
+        db.close();
+
+        for (int i = 0; i < LOOKUPS; i++) {
+            assertEquals(lookups[i], expected[i], actual[i]);
+        }
+        Log.d(TAG, ENTRIES + " entries: compile " + compileNanos / 1000000 + "ms, lookup "
+                + indexNanos / LOOKUPS / 1000 + "us vs SQL LIKE "
+                + sqlNanos / LOOKUPS / 1000 + "us");
+    }
+
+    private static String digits(Random random, int count) {
+        StringBuilder sb = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            sb.append((char) ('0' + random.nextInt(10)));
+        }
+        return sb.toString();
+    }
+
+    /** What BlacklistUtils made of the provider's filter-by-number query with regex on. */
+    private static int querySql(SQLiteDatabase db, String number, boolean messages) {
+        String type = messages ? "message" : "phone";
+        Cursor c = db.rawQuery("SELECT is_regex, " + type + " FROM blacklist"
+                + " WHERE ? LIKE normalized_number", new String[] { number });
+        int result = MATCH_NONE;
+        boolean whitelisted = false;
+        try {
+            while (c.moveToNext()) {
+                boolean isRegex = c.getInt(0) != 0;
+                boolean blocked = c.getInt(1) != 0;
+                if (!isRegex) {
+                    whitelisted = !blocked;
+                    result = MATCH_LIST;
+                    if (blocked) {
+                        break;
+                    }
+                } else if (blocked) {
+                    result = MATCH_REGEX;
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return whitelisted ? MATCH_NONE : result;
+    }
+}